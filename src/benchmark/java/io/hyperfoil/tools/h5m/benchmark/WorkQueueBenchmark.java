@@ -0,0 +1,92 @@
+package io.hyperfoil.tools.h5m.benchmark;
+
+import io.hyperfoil.tools.h5m.api.EphemeralMode;
+import io.hyperfoil.tools.h5m.api.NodeType;
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
+import io.hyperfoil.tools.h5m.queue.WorkQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+@State(Scope.Thread)
+public class WorkQueueBenchmark {
+
+    private static final int WIDTH = 16;
+
+    // Work for the leaves of a fan, one source value per work item. The leaves do
+    // not depend on each other, so the queue never needs to sort.
+    @State(Scope.Thread)
+    public static class QueueState {
+        @Param({"1000", "10000"})
+        int size;
+
+        JqNode[] fan;
+        NodeGraph graph;
+        List<Work> works;
+        List<Work> duplicates;
+        WorkQueue filled;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            GraphBuilder.resetIds();
+            fan = GraphBuilder.buildWideFan(WIDTH);
+            List<NodeGraph.Node> nodes = new ArrayList<>();
+            List<NodeGraph.Edge> edges = new ArrayList<>();
+            for (JqNode node : fan) {
+                nodes.add(new NodeGraph.Node(node.id, NodeType.JQ, EphemeralMode.AUTO));
+                for (NodeEntity source : node.sources) {
+                    edges.add(new NodeGraph.Edge(node.id, source.id));
+                }
+            }
+            graph = new NodeGraph(1, 1, nodes, edges);
+            works = create(this);
+            duplicates = create(this);
+            filled = new WorkQueue();
+            filled.addWorks(works);
+        }
+    }
+
+    private static List<Work> create(QueueState state) {
+        List<Work> rtrn = new ArrayList<>(state.size);
+        for (int i = 0; i < state.size; i++) {
+            JqNode leaf = state.fan[1 + i % WIDTH];
+            Work work = new Work(leaf, leaf.sources, List.of(1_000_000L + i));
+            work.precomputeAncestors(state.graph);
+            rtrn.add(work);
+        }
+        return rtrn;
+    }
+
+    @Benchmark
+    public List<Work> create_work(QueueState state) {
+        return create(state);
+    }
+
+    @Benchmark
+    public int insert(QueueState state) {
+        WorkQueue queue = new WorkQueue();
+        queue.addWorks(state.works);
+        return queue.size();
+    }
+
+    @Benchmark
+    public int dedup(QueueState state) {
+        int found = 0;
+        for (Work work : state.duplicates) {
+            if (state.filled.hasWork(work)) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -58,6 +58,15 @@ public interface FolderServiceInterface {
      */
     JqValue structure(long folderId);
 
+    /**
+     * Rebuilds the structure of a folder from its stored uploads.
+     *
+     * @param folderId The ID of the folder.
+     * @param sample Only use the most recent uploads, null for all of them.
+     * @return The JSON representation of the folder's structure.
+     */
+    JqValue rebuildStructure(long folderId, Integer sample);
+
     /**
      * Retrieves dashboard summaries for all folders.
      *
@@ -65,6 +74,41 @@ public interface FolderServiceInterface {
      */
     List<FolderSummary> getDashboardSummaries();
 
+    /**
+     * Recounts the maintained upload, node and change statistics of every folder.
+     *
+     * @return The number of folders counted.
+     */
+    int rebuildStats();
+
+    /**
+     * Rewrites the stored uploads of a folder with a dictionary trained from its most recent
+     * uploads, or as plain JSON when value compression is disabled.
+     *
+     * @param folderId The ID of the folder.
+     * @return The number of uploads rewritten.
+     */
+    int compress(long folderId);
+
+    /**
+     * Sets the retention policy of a folder. Uploads older than {@code days} days, or beyond the
+     * newest {@code uploads} uploads, have their payload moved to the upload archive once their
+     * ingestion completed. The values calculated from them are kept.
+     *
+     * @param folderId The ID of the folder.
+     * @param days Days an upload payload is kept in the database, or null for no age limit.
+     * @param uploads Number of most recent upload payloads kept in the database, or null for no limit.
+     */
+    void setRetention(long folderId, Integer days, Integer uploads);
+
+    /**
+     * Applies the retention policy of a folder now instead of at the next scheduled run.
+     *
+     * @param folderId The ID of the folder.
+     * @return The number of uploads archived.
+     */
+    int archive(long folderId);
+
     /**
      * Exports a folder's node graph to a JSON file.
      *
@@ -42,6 +42,24 @@ public interface ValueServiceInterface {
      */
     List<JqValue> getGroupedValues(Long nodeId);
 
+    /**
+     * Retrieves one page of grouped values for a specific node, in upload order.
+     *
+     * @param nodeId The ID of the node.
+     * @param afterRootId Only return rows of root values with a greater ID, null for the first page.
+     * @param limit Maximum number of rows to return.
+     * @return A list of JSON nodes representing the grouped values.
+     */
+    List<JqValue> getGroupedValuesPage(Long nodeId, Long afterRootId, int limit);
+
+    /**
+     * Returns the number of rows {@link #getGroupedValues(Long)} returns for a specific node.
+     *
+     * @param nodeId The ID of the node.
+     * @return The count of grouped rows.
+     */
+    long getGroupedValueCount(Long nodeId);
+
 
     /**
      * Retrieves all values produced by a specific node.
@@ -0,0 +1,37 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+import org.aesh.command.option.Argument;
+
+import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
+
+@CommandDefinition(name = "compress", description = "Rewrite the stored uploads of a folder with a dictionary trained from its recent uploads", generateHelp = true)
+public class CompressCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    FolderServiceInterface folderService;
+
+    @Argument(description = "folder name", completer = FolderCompleter.class)
+    String folderName;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        if (folderName == null && invocation.hasFolderContext()) folderName = invocation.getFolderName();
+        if (folderName == null) {
+            invocation.println("folder name is required");
+            return CommandResult.FAILURE;
+        }
+        var folder = folderService.find(folderName);
+        if (folder == null) {
+            invocation.println("Folder '" + folderName + "' not found");
+            return CommandResult.FAILURE;
+        }
+        int uploads = folderService.compress(folder.id());
+        invocation.println("Rewrote " + uploads + " upload(s) of " + folderName);
+        return CommandResult.SUCCESS;
+    }
+}
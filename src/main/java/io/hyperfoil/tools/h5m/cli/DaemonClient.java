@@ -0,0 +1,160 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thin client of {@link DaemonServer}. It only uses the JDK, so it starts without booting
+ * Quarkus: {@code java -cp h5m.jar io.hyperfoil.tools.h5m.cli.DaemonClient folder list}.
+ * The socket is {@code $H5M_DAEMON_SOCKET}, or {@code $H5M_PATH.sock} next to the database,
+ * matching the default of {@code h5m.daemon.socket}.
+ * <p>
+ * The daemon runs in its own working directory, so the file parameters of the commands (see
+ * {@link #FILE_PARAMETERS}) are sent as absolute paths. The exit status is the command's, {@code 1} if
+ * it failed with an error and {@code 3} if no daemon answered.
+ */
+public final class DaemonClient {
+
+    /**
+     * How a command takes files: whether its argument is a file, the options whose value is a
+     * file, the other options taking a value and the options without one. Options are accepted
+     * without dashes, like the commands declare them.
+     */
+    record FileParameters(boolean fileArgument, Set<String> fileOptions, Set<String> valueOptions, Set<String> flags) {}
+
+    // the commands with file parameters, kept in line with their @Argument and @Option declarations
+    static final Map<String, FileParameters> FILE_PARAMETERS = Map.of(
+            "folder upload", new FileParameters(true, Set.of(), Set.of("to"), Set.of("async", "help")),
+            "run upload", new FileParameters(true, Set.of(), Set.of("to"), Set.of("async", "help")),
+            "folder import", new FileParameters(true, Set.of(), Set.of(), Set.of("overwrite", "help")),
+            "folder export", new FileParameters(false, Set.of("to"), Set.of(), Set.of("help")));
+
+    private DaemonClient() {}
+
+    public static void main(String[] args) {
+        Path socket = defaultSocket();
+        if (!Files.exists(socket)) {
+            System.err.println("No h5m daemon on " + socket + ", start one with 'h5m daemon'");
+            System.exit(3);
+        }
+        try {
+            System.exit(send(socket, commandLine(args), System.out));
+        } catch (IOException e) {
+            System.err.println("h5m daemon on " + socket + " failed: " + e.getMessage());
+            System.exit(3);
+        }
+    }
+
+    static Path defaultSocket() {
+        String socket = System.getenv("H5M_DAEMON_SOCKET");
+        if (socket != null && !socket.isBlank()) {
+            return Path.of(socket);
+        }
+        String db = System.getenv("H5M_PATH");
+        if (db == null || db.isBlank()) {
+            db = Path.of(System.getProperty("user.home"), "h5m.db").toString();
+        }
+        return Path.of(db + ".sock");
+    }
+
+    /**
+     * Sends {@code line} to the daemon on {@code socket} and copies its output to {@code out}.
+     *
+     * @return the exit status of the command
+     */
+    static int send(Path socket, String line, PrintStream out) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            request.flush();
+            DataInputStream response = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                byte type;
+                try {
+                    type = response.readByte();
+                } catch (EOFException e) {
+                    throw new IOException("connection closed before the command finished");
+                }
+                byte[] payload = new byte[response.readInt()];
+                response.readFully(payload);
+                String text = new String(payload, StandardCharsets.UTF_8);
+                if (type == DaemonServer.EXIT) {
+                    out.flush();
+                    return Integer.parseInt(text);
+                }
+                out.print(text);
+            }
+        }
+    }
+
+    /**
+     * Joins {@code args} into one command line, quoting the arguments the command parser would
+     * split and making the relative paths given to file parameters absolute, whether the file
+     * exists yet or not.
+     */
+    static String commandLine(String[] args) {
+        Path cwd = Path.of("").toAbsolutePath();
+        String[] resolved = args.clone();
+        FileParameters files = args.length < 2 ? null : FILE_PARAMETERS.get(args[0] + " " + args[1]);
+        if (files != null) {
+            boolean argumentSeen = false;
+            for (int i = 2; i < args.length; i++) {
+                String arg = args[i];
+                String name = arg.startsWith("-") ? arg.replaceFirst("^--?", "") : arg;
+                int equals = arg.startsWith("-") ? name.indexOf('=') : -1;
+                if (equals >= 0) {
+                    // --to=file
+                    String option = name.substring(0, equals);
+                    if (files.fileOptions().contains(option)) {
+                        resolved[i] = arg.substring(0, arg.length() - name.length() + equals + 1)
+                                + absolute(cwd, name.substring(equals + 1));
+                    }
+                } else if (files.fileOptions().contains(name) || files.valueOptions().contains(name)) {
+                    if (i + 1 < args.length && files.fileOptions().contains(name)) {
+                        resolved[i + 1] = absolute(cwd, args[i + 1]);
+                    }
+                    i++;
+                } else if (!files.flags().contains(name) && !arg.startsWith("-") && files.fileArgument() && !argumentSeen) {
+                    resolved[i] = absolute(cwd, arg);
+                    argumentSeen = true;
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < resolved.length; i++) {
+            String arg = resolved[i];
+            if (i > 0) {
+                sb.append(' ');
+            }
+            boolean needsQuoting = arg.isEmpty() || arg.chars().anyMatch(c -> Character.isWhitespace(c) || "\"'{}|\\".indexOf(c) >= 0);
+            if (!needsQuoting) {
+                sb.append(arg);
+            } else if (arg.contains("\"") && !arg.contains("'")) {
+                sb.append('\'').append(arg).append('\'');
+            } else {
+                sb.append('"').append(arg.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String absolute(Path cwd, String path) {
+        try {
+            return path.isEmpty() || Path.of(path).isAbsolute() ? path : cwd.resolve(path).normalize().toString();
+        } catch (InvalidPathException e) {
+            return path;
+        }
+    }
+}
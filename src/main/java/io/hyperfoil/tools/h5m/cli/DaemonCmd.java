@@ -0,0 +1,62 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+import org.aesh.command.option.Option;
+
+@CommandDefinition(name = "daemon", description = "Keep h5m running and serve the commands of the thin client until stopped", generateHelp = true)
+public class DaemonCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    DaemonServer server;
+
+    @Option(name = "stop", description = "stop the running daemon", hasValue = false, defaultValue = "false")
+    boolean stop;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        if (stop) {
+            if (server.isServing()) {
+                // sent by the client, the daemon stops after answering it
+                server.stop();
+                invocation.println("Daemon stopping");
+                return CommandResult.SUCCESS;
+            }
+            Path socket = server.socketPath();
+            if (!DaemonServer.isListening(socket)) {
+                invocation.println("No h5m daemon on " + socket);
+                return CommandResult.FAILURE;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                int status = DaemonClient.send(socket, "daemon --stop", new PrintStream(output, true, StandardCharsets.UTF_8));
+                invocation.print(output.toString(StandardCharsets.UTF_8));
+                return status == 0 ? CommandResult.SUCCESS : CommandResult.FAILURE;
+            } catch (IOException e) {
+                invocation.println("Stopping the daemon on " + socket + " failed: " + e.getMessage());
+                return CommandResult.FAILURE;
+            }
+        }
+        if (server.isServing()) {
+            invocation.println("Already running as the daemon");
+            return CommandResult.FAILURE;
+        }
+        try {
+            invocation.println("Serving on " + server.socketPath());
+            server.serve();
+        } catch (IOException e) {
+            invocation.println("Daemon failed: " + e.getMessage());
+            return CommandResult.FAILURE;
+        }
+        return CommandResult.SUCCESS;
+    }
+}
@@ -0,0 +1,358 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.aesh.command.CommandException;
+import org.aesh.command.CommandNotFoundException;
+import org.aesh.command.CommandResult;
+import org.aesh.command.CommandRuntime;
+import org.aesh.command.Executor;
+import org.aesh.command.impl.AeshCommandRuntimeBuilder;
+import org.aesh.command.invocation.CommandInvocation;
+import org.aesh.command.invocation.CommandInvocationConfiguration;
+import org.aesh.command.invocation.CommandInvocationProvider;
+import org.aesh.command.parser.CommandLineParserException;
+import org.aesh.command.shell.Shell;
+import org.aesh.command.validator.CommandValidatorException;
+import org.aesh.command.validator.OptionValidatorException;
+import org.aesh.readline.prompt.Prompt;
+import org.aesh.terminal.KeyAction;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Keeps one CLI instance running and executes the command lines sent by {@link DaemonClient}
+ * over a Unix domain socket, so scripts calling h5m in a loop do not pay for a startup per call
+ * and reuse the warm caches. Requests are executed one at a time, each with a folder context of
+ * its own, and the output of a command is streamed back as it is printed.
+ * <p>
+ * A request is one command line in UTF-8 ended by a newline. The response is a sequence of
+ * frames, each a type byte followed by a length-prefixed payload: {@link #OUTPUT} frames carry
+ * printed text and the final {@link #EXIT} frame the exit status as text: {@code 0} when the
+ * command succeeded, the command's result value when it is positive and {@code 1} for any other
+ * failure. Commands cannot prompt for input through the daemon, missing arguments have to be
+ * passed on the command line. A client that does not send its command line within
+ * {@code h5m.daemon.request-timeout} is dropped, so it cannot hold up the requests behind it.
+ * <p>
+ * The socket runs commands with the daemon's access to the database, so only its owner can
+ * connect to it.
+ */
+@ApplicationScoped
+public class DaemonServer {
+
+    static final byte OUTPUT = 'o';
+    static final byte EXIT = 'x';
+
+    @ConfigProperty(name = "h5m.daemon.socket")
+    String socket;
+
+    @ConfigProperty(name = "h5m.daemon.request-timeout", defaultValue = "PT10S")
+    Duration requestTimeout;
+
+    @Inject
+    H5mCommandRegistryFactory registryFactory;
+
+    private volatile ServerSocketChannel server;
+    private volatile boolean running;
+    // the request being executed, read by the invocations of its command
+    private DataOutputStream current;
+    private FolderContext currentFolder;
+
+    public Path socketPath() {
+        return Path.of(socket);
+    }
+
+    public boolean isServing() {
+        return running;
+    }
+
+    /**
+     * Serves requests on {@code h5m.daemon.socket} until {@link #stop} is called. A socket file
+     * left behind by a daemon that did not stop cleanly is replaced.
+     */
+    public void serve() throws IOException {
+        Path path = socketPath();
+        if (Files.exists(path)) {
+            if (isListening(path)) {
+                throw new IOException("A daemon is already listening on " + path);
+            }
+            Files.delete(path);
+        }
+        CommandRuntime<H5mCommandInvocation> runtime = AeshCommandRuntimeBuilder.<H5mCommandInvocation>builder()
+                .commandRegistry(registryFactory.create().create())
+                .commandInvocationProvider(new Provider())
+                .build();
+        try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bindPrivate(channel, path);
+            path.toFile().deleteOnExit();
+            server = channel;
+            running = true;
+            Log.infof("h5m daemon listening on %s", path);
+            while (running) {
+                try (SocketChannel client = channel.accept()) {
+                    handle(runtime, client);
+                } catch (IOException e) {
+                    if (running) {
+                        Log.debugf(e, "Daemon request failed");
+                    }
+                }
+            }
+        } finally {
+            running = false;
+            server = null;
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Binds {@code channel} to {@code path} with owner-only permissions. The socket is created in
+     * a directory only the owner can enter and then moved in place, so other users never get a
+     * window in which the umask leaves it open to them.
+     */
+    private static void bindPrivate(ServerSocketChannel channel, Path path) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            channel.bind(UnixDomainSocketAddress.of(path));
+            return;
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        Path dir = Files.createTempDirectory(parent, ".h5m-daemon",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        try {
+            Path bound = dir.resolve("sock");
+            channel.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    static boolean isListening(Path path) {
+        try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops serving once the request being executed has been answered.
+     */
+    public void stop() {
+        running = false;
+        ServerSocketChannel channel = server;
+        if (channel != null) {
+            try {
+                // wakes up the accept of an idle daemon
+                channel.close();
+            } catch (IOException e) {
+                Log.debugf(e, "Closing the daemon socket failed");
+            }
+        }
+    }
+
+    private void handle(CommandRuntime<H5mCommandInvocation> runtime, SocketChannel client) throws IOException {
+        String line = readLine(client, requestTimeout);
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+        int status = 0;
+        current = out;
+        currentFolder = new FolderContext();
+        try {
+            status = status(runtime.executeCommand(line));
+        } catch (Exception e) {
+            write(out, OUTPUT, (e.getMessage() == null ? e.toString() : e.getMessage()) + "\n");
+            status = 1;
+        } finally {
+            current = null;
+            currentFolder = null;
+        }
+        write(out, EXIT, Integer.toString(status));
+        out.flush();
+    }
+
+    private static int status(CommandResult result) {
+        if (result == null || result.isSuccess()) {
+            return 0;
+        }
+        return result.getResultValue() > 0 ? result.getResultValue() : 1;
+    }
+
+    /**
+     * Reads the command line of a request, failing if it does not arrive within {@code timeout}.
+     * A Unix domain channel has no read timeout, so the line is read without blocking.
+     */
+    static String readLine(SocketChannel client, Duration timeout) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+        long deadline = System.nanoTime() + timeout.toNanos();
+        client.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            client.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    throw new SocketTimeoutException("no command line within " + timeout);
+                }
+                selector.select(left);
+                selector.selectedKeys().clear();
+                bytes.clear();
+                int read = client.read(bytes);
+                if (read < 0) {
+                    break;
+                }
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    byte b = bytes.get();
+                    if (b == '\n') {
+                        return buffer.toString(StandardCharsets.UTF_8);
+                    }
+                    buffer.write(b);
+                }
+            }
+        } finally {
+            // closing the selector deregistered the channel, the response is written blocking
+            client.configureBlocking(true);
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    static void write(DataOutputStream out, byte type, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void print(String text) {
+        DataOutputStream out = current;
+        if (out == null) {
+            return;
+        }
+        try {
+            write(out, OUTPUT, text);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private class Provider implements CommandInvocationProvider<H5mCommandInvocation> {
+        @Override
+        public H5mCommandInvocation enhanceCommandInvocation(CommandInvocation commandInvocation) {
+            return new H5mCommandInvocation(new Invocation(commandInvocation), currentFolder);
+        }
+    }
+
+    /**
+     * Sends what a command prints to the client of the current request. There is no terminal
+     * behind it, so prompts and key input are not available.
+     */
+    private class Invocation implements CommandInvocation {
+
+        private final CommandInvocation delegate;
+
+        Invocation(CommandInvocation delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Shell getShell() {
+            throw new UnsupportedOperationException("Commands run by the daemon cannot prompt for input, pass all arguments on the command line");
+        }
+
+        @Override
+        public void setPrompt(Prompt prompt) {
+        }
+
+        @Override
+        public Prompt getPrompt() {
+            return new Prompt("");
+        }
+
+        @Override
+        public String getHelpInfo(String commandName) {
+            return delegate.getHelpInfo(commandName);
+        }
+
+        @Override
+        public String getHelpInfo() {
+            return delegate.getHelpInfo();
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public CommandInvocationConfiguration getConfiguration() {
+            return delegate.getConfiguration();
+        }
+
+        @Override
+        public KeyAction input() {
+            throw new UnsupportedOperationException("Commands run by the daemon cannot read key input");
+        }
+
+        @Override
+        public KeyAction input(long timeout, TimeUnit unit) {
+            return input();
+        }
+
+        @Override
+        public String inputLine() {
+            throw new UnsupportedOperationException("Commands run by the daemon cannot read input");
+        }
+
+        @Override
+        public String inputLine(Prompt prompt) {
+            return inputLine();
+        }
+
+        @Override
+        public void print(String msg, boolean paging) {
+            DaemonServer.this.print(msg);
+        }
+
+        @Override
+        public void println(String msg, boolean paging) {
+            DaemonServer.this.print(msg + "\n");
+        }
+
+        @Override
+        public Executor<? extends CommandInvocation> buildExecutor(String line)
+                throws CommandNotFoundException, CommandLineParserException,
+                OptionValidatorException, CommandValidatorException, IOException {
+            return delegate.buildExecutor(line);
+        }
+
+        @Override
+        public void executeCommand(String input) throws CommandNotFoundException,
+                CommandLineParserException, OptionValidatorException,
+                CommandValidatorException, CommandException, InterruptedException, IOException {
+            delegate.executeCommand(input);
+        }
+    }
+}
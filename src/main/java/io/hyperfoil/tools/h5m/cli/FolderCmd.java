@@ -7,17 +7,22 @@ import org.aesh.command.CommandResult;
 
 @CommandDefinition(
     name = "folder",
-    description = "Folder management: create, list, remove, upload, export, import, and more",
+    description = "Folder management: create, list, remove, reap, vacuum, upload, export, import, and more",
     groupCommands = {
         AddFolder.class,
         ListFolder.class,
         RemoveFolder.class,
+        ReapCmd.class,
+        VacuumCmd.class,
         UploadCmd.class,
         ExportFolder.class,
         ImportFolder.class,
         StructureCmd.class,
         RecalculateCmd.class,
         PurgeValuesCmd.class,
+        RebuildStatsCmd.class,
+        CompressCmd.class,
+        RetentionCmd.class,
         ListValue.class,
     },
     generateHelp = true
@@ -38,7 +38,8 @@ public class H5mCommandRegistryFactory implements CliCommandRegistryFactory {
             StatusCmd.class,
             ChangesCmd.class,
             ViewCmd.class,
-            RunCmd.class
+            RunCmd.class,
+            DaemonCmd.class
     );
 
     private final Instance<Command<? extends CommandInvocation>> commands;
@@ -87,11 +87,11 @@ public class ListValue implements Command<H5mCommandInvocation>, FolderAware {
                 return CommandResult.FAILURE;
             }else{
                 Node foundNode = foundNodes.get(0);
-                List<JqValue> jsons = valueService.getGroupedValues(foundNode.id());
-                int totalCount = jsons.size();
-                if (limit > 0 && jsons.size() > limit) {
-                    jsons = jsons.subList(0, limit);
-                }
+                // the limit is applied in the query, the total is counted separately
+                List<JqValue> jsons = limit > 0
+                        ? valueService.getGroupedValuesPage(foundNode.id(), null, limit)
+                        : valueService.getGroupedValues(foundNode.id());
+                long totalCount = limit > 0 ? valueService.getGroupedValueCount(foundNode.id()) : jsons.size();
                 if(Format.raw.equals(format)){
                     invocation.println("Count: " + totalCount + (limit > 0 ? " (showing " + jsons.size() + ")" : ""));
                     invocation.println(ListCmd.table(80, jsons,
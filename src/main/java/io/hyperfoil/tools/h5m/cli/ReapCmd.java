@@ -0,0 +1,23 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+
+import io.hyperfoil.tools.h5m.svc.FolderReaper;
+
+@CommandDefinition(name = "reap", description = "Reclaim the values of deleted folders whose removal did not finish", generateHelp = true)
+public class ReapCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    FolderReaper reaper;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        int folders = reaper.reapAll();
+        invocation.println("Reclaimed " + folders + " deleted folder(s)");
+        return CommandResult.SUCCESS;
+    }
+}
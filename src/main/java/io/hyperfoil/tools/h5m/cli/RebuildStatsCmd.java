@@ -0,0 +1,22 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
+
+@CommandDefinition(name = "rebuild-stats", description = "Recount the upload, node and change statistics shown for each folder", generateHelp = true)
+public class RebuildStatsCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    FolderServiceInterface folderService;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        int folders = folderService.rebuildStats();
+        invocation.println("Rebuilt statistics for " + folders + " folder(s)");
+        return CommandResult.SUCCESS;
+    }
+}
@@ -1,6 +1,7 @@
 package io.hyperfoil.tools.h5m.cli;
 
 import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
+import io.hyperfoil.tools.h5m.svc.FolderReaper;
 import jakarta.inject.Inject;
 
 import org.aesh.command.Command;
@@ -14,6 +15,9 @@ public class RemoveFolder implements Command<H5mCommandInvocation> {
     @Inject
     FolderServiceInterface folderService;
 
+    @Inject
+    FolderReaper reaper;
+
     @Argument(description = "folder name", required = true, completer = FolderCompleter.class)
     String name;
 
@@ -29,6 +33,9 @@ public class RemoveFolder implements Command<H5mCommandInvocation> {
             return CommandResult.FAILURE;
         }
         folderService.delete(folder.id());
+        // the process may exit before the background reaper is done with the folder
+        long deleted = reaper.reap(folder.id());
+        invocation.println("Deleted folder " + name + ": " + deleted + " value(s) reclaimed");
         return CommandResult.SUCCESS;
     }
 }
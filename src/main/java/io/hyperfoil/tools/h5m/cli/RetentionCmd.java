@@ -0,0 +1,45 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+import org.aesh.command.option.Argument;
+import org.aesh.command.option.Option;
+
+import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
+
+@CommandDefinition(name = "retention", description = "Set how long upload payloads stay in the database and archive the older ones", generateHelp = true)
+public class RetentionCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    FolderServiceInterface folderService;
+
+    @Option(name = "days", description = "keep upload payloads of the last N days, archive older ones")
+    Integer days;
+
+    @Option(name = "uploads", description = "keep the payloads of the newest N uploads, archive the rest")
+    Integer uploads;
+
+    @Argument(description = "folder name", completer = FolderCompleter.class)
+    String folderName;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        if (folderName == null && invocation.hasFolderContext()) folderName = invocation.getFolderName();
+        if (folderName == null) {
+            invocation.println("folder name is required");
+            return CommandResult.FAILURE;
+        }
+        var folder = folderService.find(folderName);
+        if (folder == null) {
+            invocation.println("Folder '" + folderName + "' not found");
+            return CommandResult.FAILURE;
+        }
+        folderService.setRetention(folder.id(), days, uploads);
+        int archived = folderService.archive(folder.id());
+        invocation.println("Archived " + archived + " upload(s) of " + folderName);
+        return CommandResult.SUCCESS;
+    }
+}
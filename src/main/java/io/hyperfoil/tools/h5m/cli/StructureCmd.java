@@ -7,6 +7,7 @@ import org.aesh.command.Command;
 import org.aesh.command.CommandDefinition;
 import org.aesh.command.CommandResult;
 import org.aesh.command.option.Argument;
+import org.aesh.command.option.Option;
 
 
 import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
@@ -21,6 +22,12 @@ public class StructureCmd implements Command<H5mCommandInvocation> {
     @Argument(description = "folder name", completer = FolderCompleter.class)
     String folderName;
 
+    @Option(name = "rebuild", description = "rebuild the structure from the stored uploads", hasValue = false, defaultValue = "false")
+    boolean rebuild;
+
+    @Option(name = "sample", description = "with --rebuild, only use this many of the most recent uploads")
+    Integer sample;
+
     @Override
     public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
         if (folderName == null && invocation.hasFolderContext()) folderName = invocation.getFolderName();
@@ -34,7 +41,9 @@ public class StructureCmd implements Command<H5mCommandInvocation> {
                 invocation.println("Folder '" + folderName + "' not found");
                 return CommandResult.FAILURE;
             }
-            JqValue structure = folderService.structure(folder.id());
+            JqValue structure = rebuild
+                    ? folderService.rebuildStructure(folder.id(), sample)
+                    : folderService.structure(folder.id());
             invocation.println(structure.toString());
         } catch (NoResultException e) {
             invocation.println("Folder '" + folderName + "' not found");
@@ -0,0 +1,26 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import jakarta.inject.Inject;
+
+import org.aesh.command.Command;
+import org.aesh.command.CommandDefinition;
+import org.aesh.command.CommandResult;
+
+import io.hyperfoil.tools.h5m.svc.FolderReaper;
+
+@CommandDefinition(name = "vacuum", description = "Rebuild an older SQLite database once so that deleted folders return their space", generateHelp = true)
+public class VacuumCmd implements Command<H5mCommandInvocation> {
+
+    @Inject
+    FolderReaper reaper;
+
+    @Override
+    public CommandResult execute(H5mCommandInvocation invocation) throws InterruptedException {
+        if (reaper.vacuum()) {
+            invocation.println("Rebuilt the database, deleted folders now return their space");
+        } else {
+            invocation.println("Nothing to rebuild");
+        }
+        return CommandResult.SUCCESS;
+    }
+}
@@ -625,11 +625,11 @@ public class VerifyLegacy implements Command<H5mCommandInvocation> {
 
         // Get h5m values for this specific upload (descendants of rootValueId),
         // scoped to avoid mixing values from different uploads.
-        // PostgreSQL stores value data as BYTEA (needs convert_from),
-        // SQLite stores as BLOB (needs CAST to TEXT).
+        // PostgreSQL stores value data as BYTEA (needs convert_from) or jsonb (needs a cast),
+        // SQLite stores as BLOB (needs CAST to TEXT). Shared payloads are read from value_blob.
         String dataExpr = switch (db.kind()) {
-            case POSTGRESQL -> "convert_from(v.data, 'UTF-8')";
-            case SQLITE -> "CAST(v.data AS TEXT)";
+            case POSTGRESQL -> db.isJsonb() ? db.valueData("v") + "::text" : "convert_from(" + db.valueData("v") + ", 'UTF-8')";
+            case SQLITE -> "CAST(" + db.valueData("v") + " AS TEXT)";
         };
         @SuppressWarnings("unchecked")
         List<Object[]> h5mValues = em.createNativeQuery("""
@@ -0,0 +1,33 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+import java.time.LocalDateTime;
+
+/**
+ * A run of {@link io.hyperfoil.tools.h5m.svc.UploadArchive} archiving the uploads of one folder,
+ * renewed with each batch. Another run, in this or another instance sharing the database, skips
+ * the folder until the lease is released or stopped being renewed. The mapping exists for the
+ * schema; rows are written with native SQL.
+ */
+@Entity(name = "archive_lease")
+public class ArchiveLeaseEntity extends PanacheEntityBase {
+
+    @Id
+    @Column(name = "folder_id")
+    public Long folderId;
+
+    @Column(nullable = false)
+    public String owner;
+
+    @Column(name = "renewed_at", nullable = false)
+    public LocalDateTime renewedAt;
+
+    @Override
+    public String toString() {
+        return "ArchiveLeaseEntity<" + folderId + ">[ owner=" + owner + " renewedAt=" + renewedAt + " ]";
+    }
+}
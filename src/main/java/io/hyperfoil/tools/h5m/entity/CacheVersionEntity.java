@@ -0,0 +1,26 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+/**
+ * Change counter of one in-memory cache, bumped by {@link io.hyperfoil.tools.h5m.svc.CacheVersions}
+ * so that instances sharing the database notice changes made by another instance. The mapping
+ * exists for the schema; rows are written with native SQL.
+ */
+@Entity(name = "cache_version")
+public class CacheVersionEntity extends PanacheEntityBase {
+
+    @Id
+    public String name;
+
+    @Column(nullable = false)
+    public long version;
+
+    @Override
+    public String toString() {
+        return "CacheVersionEntity<" + name + ">[ version=" + version + " ]";
+    }
+}
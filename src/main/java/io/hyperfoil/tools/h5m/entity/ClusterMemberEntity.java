@@ -0,0 +1,28 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+import java.time.LocalDateTime;
+
+/**
+ * A live member of the {@link io.hyperfoil.tools.h5m.svc.WorkCluster}, heartbeating while it runs.
+ * Work claimed by a member without a recent heartbeat is released for the others. The mapping
+ * exists for the schema; rows are written with native SQL.
+ */
+@Entity(name = "cluster_member")
+public class ClusterMemberEntity extends PanacheEntityBase {
+
+    @Id
+    public String id;
+
+    @Column(name = "heartbeat_at", nullable = false)
+    public LocalDateTime heartbeatAt;
+
+    @Override
+    public String toString() {
+        return "ClusterMemberEntity< id=" + id + " heartbeatAt=" + heartbeatAt + " >";
+    }
+}
@@ -0,0 +1,37 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * A deleted folder whose rows are still being reclaimed by
+ * {@link io.hyperfoil.tools.h5m.svc.FolderReaper}. The folder row is kept, without its name and
+ * with {@code deleted_at} set, until all of its values are gone; the row is removed with it.
+ * {@code values_deleted} counts the values reclaimed so far.
+ */
+@Entity(name = "folder_deletion")
+public class FolderDeletionEntity extends PanacheEntityBase {
+
+    @Id
+    @Column(name = "folder_id")
+    public Long folderId;
+
+    @Column(nullable = false)
+    public String name;
+
+    @Column(name = "requested_at", nullable = false)
+    public LocalDateTime requestedAt;
+
+    @Column(name = "values_deleted", nullable = false)
+    public long valuesDeleted;
+
+    @Column(name = "updated_at")
+    public LocalDateTime updatedAt;
+
+    @Override
+    public String toString() {
+        return "FolderDeletionEntity<" + folderId + ">[ name=" + name + " values_deleted=" + valuesDeleted + " ]";
+    }
+}
@@ -2,8 +2,18 @@ package io.hyperfoil.tools.h5m.entity;
 
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.*;
+import org.hibernate.annotations.SQLRestriction;
 
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * A folder of uploads. Deleting a folder only tombstones it: the name is released, {@code deleted_at}
+ * is set and the rows are reclaimed in the background by {@link io.hyperfoil.tools.h5m.svc.FolderReaper}.
+ * Tombstoned folders are never loaded.
+ */
 @Entity(name="folder")
+@SQLRestriction("deleted_at IS NULL")
 public class FolderEntity extends PanacheEntityBase {
 
     @Id
@@ -22,17 +32,28 @@ public class FolderEntity extends PanacheEntityBase {
     @OneToMany(mappedBy = "folder", cascade = CascadeType.ALL, orphanRemoval = true)
     public java.util.List<ViewEntity> views = new java.util.ArrayList<>();
 
+    @Column(name = "deleted_at")
+    public LocalDateTime deletedAt;
+
+    /** uploads older than this many days are archived, see {@link io.hyperfoil.tools.h5m.svc.UploadArchive} */
+    @Column(name = "retention_days")
+    public Integer retentionDays;
+
+    /** uploads beyond the newest this many are archived */
+    @Column(name = "retention_uploads")
+    public Integer retentionUploads;
+
     @Override
     public final boolean equals(Object o) {
         if (!(o instanceof FolderEntity that)) {
             return false;
         }
-        return name.equals(that.name);
+        return Objects.equals(name, that.name);
     }
 
     @Override
     public int hashCode() {
-        return name.hashCode();
+        return Objects.hashCode(name);
     }
 
     @Override
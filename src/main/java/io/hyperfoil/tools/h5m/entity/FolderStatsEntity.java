@@ -0,0 +1,44 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Dashboard counters of one folder, kept up to date by
+ * {@link io.hyperfoil.tools.h5m.svc.FolderStatsService} instead of aggregating the
+ * {@code value} table on every read. The mapping exists for the schema; rows are written
+ * with native SQL.
+ */
+@Entity(name = "folder_stats")
+public class FolderStatsEntity extends PanacheEntityBase {
+
+    @Id
+    @Column(name = "folder_id")
+    public Long folderId;
+
+    @Column(name = "upload_count", nullable = false)
+    public long uploadCount;
+
+    @Column(name = "node_count", nullable = false)
+    public int nodeCount;
+
+    @Column(name = "change_count", nullable = false)
+    public long changeCount;
+
+    @Column(name = "last_upload")
+    public LocalDateTime lastUpload;
+
+    @Column(name = "last_change")
+    public LocalDateTime lastChange;
+
+    /** merged type structure of the uploads as JSON, {@code null} until it is built */
+    @Column(columnDefinition = "TEXT")
+    public String structure;
+
+    @Override
+    public String toString() {
+        return "FolderStatsEntity<" + folderId + ">[ uploads=" + uploadCount + " nodes=" + nodeCount + " changes=" + changeCount + " ]";
+    }
+}
@@ -4,6 +4,7 @@ import io.hyperfoil.tools.h5m.api.EphemeralMode;
 import io.hyperfoil.tools.h5m.api.NodeType;
 import io.hyperfoil.tools.h5m.entity.node.RootNode;
 import io.hyperfoil.tools.h5m.queue.KahnDagSort;
+import io.hyperfoil.tools.h5m.svc.NodeGraphs;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.*;
 import org.hibernate.annotations.Cache;
@@ -18,6 +19,7 @@ import java.util.stream.Collectors;
 @DiscriminatorColumn(name = "type", discriminatorType =  DiscriminatorType.STRING)
 @Cacheable
 @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@EntityListeners(NodeGraphs.Listener.class)
 public abstract class NodeEntity extends PanacheEntityBase implements Comparable<NodeEntity> {
 
     @Id
@@ -210,8 +212,8 @@ public abstract class NodeEntity extends PanacheEntityBase implements Comparable
      * Always traverses the source graph — no caching on NodeEntity to avoid
      * stale results when a parent node's sources are modified (issue #215).
      * For performance-sensitive hot paths (e.g., WorkQueue sorting), use
-     * {@link io.hyperfoil.tools.h5m.entity.work.Work#precomputeAncestors()}
-     * which caches ancestor IDs on the short-lived Work object instead.
+     * {@link io.hyperfoil.tools.h5m.entity.work.Work#precomputeAncestors(io.hyperfoil.tools.h5m.queue.NodeGraph)}
+     * which looks the ancestors up in the compiled graph of the group instead.
      */
     public boolean dependsOn(NodeEntity source) {
         if (source == null || this.sources == null || this.sources.isEmpty()) return false;
@@ -13,6 +13,9 @@ import java.time.LocalDateTime;
  *
  * Ingestion records have {@code valueId} set (the root value being processed).
  * Recalculation records have {@code nodeId} set (the target node being recalculated).
+ * Records created with the {@link io.hyperfoil.tools.h5m.svc.WorkJournal} enabled are
+ * {@code journaled}: their outstanding work is in {@code work_journal}, so recovery resumes it
+ * instead of starting over.
  */
 @Entity(name = "processing")
 public class ProcessingEntity extends PanacheEntityBase {
@@ -33,6 +36,13 @@ public class ProcessingEntity extends PanacheEntityBase {
     @Column(nullable = false)
     public boolean completed = false;
 
+    // null for records from before the work journal
+    public Boolean journaled;
+
+    // why work of a cluster operation was given up, the operation completes as failed
+    @Column(columnDefinition = "TEXT")
+    public String error;
+
     @CreationTimestamp
     @Column(updatable = false)
     public LocalDateTime createdAt;
@@ -52,4 +62,8 @@ public class ProcessingEntity extends PanacheEntityBase {
     public boolean isRecalculation() {
         return nodeId != null;
     }
+
+    public boolean isJournaled() {
+        return Boolean.TRUE.equals(journaled);
+    }
 }
@@ -0,0 +1,33 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * One schema the database has been migrated to, recorded by
+ * {@link io.hyperfoil.tools.h5m.svc.SchemaVersions} once Hibernate updated it. {@code checksum}
+ * identifies the mapping of the build that did the update; the row with the highest
+ * {@code version} is the current schema, and a start with the same checksum skips the update.
+ */
+@Entity(name = "schema_version")
+public class SchemaVersionEntity extends PanacheEntityBase {
+
+    @Id
+    public Integer version;
+
+    @Column(nullable = false)
+    public String checksum;
+
+    @Column(name = "application_version")
+    public String applicationVersion;
+
+    @Column(name = "applied_at", nullable = false)
+    public LocalDateTime appliedAt;
+
+    @Override
+    public String toString() {
+        return "SchemaVersionEntity<" + version + ">[ checksum=" + checksum + " application_version=" + applicationVersion + " ]";
+    }
+}
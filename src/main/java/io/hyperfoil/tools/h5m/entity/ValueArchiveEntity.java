@@ -0,0 +1,37 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Location of an archived upload payload, see {@link io.hyperfoil.tools.h5m.svc.UploadArchive}.
+ * The payload is one gzip member of {@code file} (relative to {@code h5m.archive.dir}) starting
+ * at {@code file_offset}; the value keeps its row and edges with {@code data} set to null.
+ * The mapping exists for the schema; rows are written with native SQL.
+ */
+@Entity(name = "value_archive")
+public class ValueArchiveEntity extends PanacheEntityBase {
+
+    @Id
+    @Column(name = "value_id")
+    public Long valueId;
+
+    @Column(nullable = false)
+    public String file;
+
+    @Column(name = "file_offset", nullable = false)
+    public long fileOffset;
+
+    @Column(name = "file_length", nullable = false)
+    public int fileLength;
+
+    @Column(name = "archived_at", nullable = false)
+    public LocalDateTime archivedAt;
+
+    @Override
+    public String toString() {
+        return "ValueArchiveEntity<" + valueId + ">[ file=" + file + " offset=" + fileOffset + " ]";
+    }
+}
@@ -0,0 +1,33 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * A value payload stored once for all the values with the same {@code data_hash}, referenced
+ * by {@link ValueEntity#blobHash}, see {@link io.hyperfoil.tools.h5m.svc.ValueBlobs}. The mapping
+ * exists for the schema; rows are written with native SQL.
+ */
+@Entity(name = "value_blob")
+@Table(indexes = @Index(name = "idx_value_blob_used_at", columnList = "used_at"))
+public class ValueBlobEntity extends PanacheEntityBase {
+
+    /** the {@link ValueHashes data hash} of the payload */
+    @Id
+    public Long hash;
+
+    // same storage as value.data, converted together with it (see JsonbStorage)
+    @Column(columnDefinition = "BYTEA", nullable = false)
+    public byte[] data;
+
+    /** last time a value was written with this payload, protects it from a concurrent sweep */
+    @Column(name = "used_at", nullable = false)
+    public LocalDateTime usedAt;
+
+    @Override
+    public String toString() {
+        return "ValueBlobEntity<" + hash + ">[ size=" + (data == null ? 0 : data.length) + " ]";
+    }
+}
@@ -0,0 +1,34 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Preset dictionary used to compress the uploads of one root node, see
+ * {@link io.hyperfoil.tools.h5m.svc.ValueCompression}. The ID is the hash of the dictionary
+ * bytes and is stored in every payload compressed with it, so a dictionary is kept as long as
+ * the node exists. The mapping exists for the schema; rows are written with native SQL.
+ */
+@Entity(name = "value_dictionary")
+@Table(indexes = @Index(name = "idx_value_dictionary_node", columnList = "node_id, created_at"))
+public class ValueDictionaryEntity extends PanacheEntityBase {
+
+    @Id
+    public Long id;
+
+    @Column(name = "node_id", nullable = false)
+    public long nodeId;
+
+    @Column(columnDefinition = "BYTEA", nullable = false)
+    public byte[] data;
+
+    @Column(name = "created_at", nullable = false)
+    public LocalDateTime createdAt;
+
+    @Override
+    public String toString() {
+        return "ValueDictionaryEntity<" + id + ">[ node=" + nodeId + " size=" + (data == null ? 0 : data.length) + " ]";
+    }
+}
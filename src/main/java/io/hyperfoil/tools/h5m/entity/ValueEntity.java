@@ -1,6 +1,9 @@
 package io.hyperfoil.tools.h5m.entity;
 
+import io.hyperfoil.tools.jjq.value.JqNumber;
+import io.hyperfoil.tools.jjq.value.JqString;
 import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import io.quarkus.runtime.annotations.RegisterForReflection;
 import jakarta.persistence.*;
@@ -8,14 +11,14 @@ import jakarta.validation.constraints.NotNull;
 import org.hibernate.annotations.BatchSize;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnTransformer;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.Immutable;
 import io.hyperfoil.tools.jjq.jakarta.JqValueJavaType;
-import io.hyperfoil.tools.jjq.jakarta.JqValueJdbcType;
+import io.hyperfoil.tools.h5m.provided.JqValueDataJdbcType;
 import org.hibernate.annotations.JavaType;
 import org.hibernate.annotations.JdbcType;
 import org.hibernate.annotations.Mutability;
-import org.hibernate.annotations.NativeGenerator;
 import org.hibernate.type.descriptor.java.Immutability;
 
 import java.time.LocalDateTime;
@@ -25,7 +28,10 @@ import java.util.stream.Collectors;
 @Entity(name = "value")
 @Table(indexes = {
     @Index(name = "idx_value_node_id", columnList = "node_id"),
-    @Index(name = "idx_value_folder_id", columnList = "folder_id")
+    @Index(name = "idx_value_folder_id", columnList = "folder_id"),
+    @Index(name = "idx_value_node_path", columnList = "node_id, path_hash", unique = true),
+    @Index(name = "idx_value_node_domain", columnList = "node_id, domain_num, domain_txt"),
+    @Index(name = "idx_value_blob_hash", columnList = "blob_hash")
 })
 @Immutable
 @Cacheable
@@ -33,11 +39,14 @@ import java.util.stream.Collectors;
 public class ValueEntity extends PanacheEntityBase {
 
     @Id
-    @NativeGenerator
+    @ValueId
     public Long id;
 
+    // created as BYTEA, converted to jsonb at startup with h5m.postgresql.jsonb (see JsonbStorage).
+    // NULL when the payload is shared through value_blob (see blobHash), which is read in its place.
     @Column(columnDefinition = "BYTEA")
-    @JdbcType(JqValueJdbcType.class)
+    @ColumnTransformer(read = "coalesce(data, (select b.data from value_blob b where b.hash = blob_hash))")
+    @JdbcType(JqValueDataJdbcType.class)
     @JavaType(JqValueJavaType.class)
     @Basic(fetch = FetchType.LAZY)
     @Mutability(Immutability.class)
@@ -59,6 +68,59 @@ public class ValueEntity extends PanacheEntityBase {
 
     private LocalDateTime lastUpdated;
 
+    /** lineage hash, see {@link ValueHashes}. Unique per node. */
+    @Column(name = "path_hash")
+    public Long pathHash;
+
+    /** hash of the serialized data, see {@link ValueHashes}. Survives ephemeral data removal. */
+    @Column(name = "data_hash")
+    public Long dataHash;
+
+    /**
+     * {@link #dataHash} of a payload stored once in {@code value_blob} instead of {@link #data},
+     * see {@link io.hyperfoil.tools.h5m.svc.ValueBlobs}. Cleared with the data.
+     */
+    @Column(name = "blob_hash")
+    public Long blobHash;
+
+    /**
+     * Folder of the upload the value was calculated from ({@link #folder} for uploads), {@code 0}
+     * when there is none. The partition key of {@code value} and {@code value_edge} with
+     * {@code h5m.postgresql.partitioned}, see {@link io.hyperfoil.tools.h5m.svc.ValuePartitions}.
+     */
+    @Column(name = "root_folder_id")
+    public Long rootFolderId;
+
+    /** longest string that gets a {@link #domainTxt}, keeps the index entries small */
+    public static final int DOMAIN_TXT_MAX = 200;
+
+    /**
+     * Sort key of a number value, so detection series order and filter by their domain node
+     * without parsing the data. Survives ephemeral data removal.
+     */
+    @Column(name = "domain_num")
+    public Double domainNum;
+
+    /**
+     * Exact sort key of an integer value, {@link #domainNum} rounds integers beyond 2^53 (such as
+     * nanosecond timestamps) and ties between them are ordered by this key.
+     */
+    @Column(name = "domain_int")
+    public Long domainInt;
+
+    /** sort key of a string value of at most {@link #DOMAIN_TXT_MAX} characters, see {@link #domainNum} */
+    @Column(name = "domain_txt", length = DOMAIN_TXT_MAX)
+    public String domainTxt;
+
+    /**
+     * Sets the timestamps for a value that is inserted without Hibernate
+     * (see {@link io.hyperfoil.tools.h5m.svc.ValueService#createAll}).
+     */
+    public void initTimestamps(LocalDateTime now) {
+        this.createdAt = now;
+        this.lastUpdated = now;
+    }
+
 
     public LocalDateTime getCreatedAt() {return createdAt;}
 
@@ -111,10 +173,76 @@ public class ValueEntity extends PanacheEntityBase {
         return prefix+suffix;
     }
 
+    /**
+     * Computes {@link #dataHash} and {@link #pathHash} from the current state. Sources without a
+     * stored path hash are hashed recursively. Values without sources need their {@link #id}.
+     */
+    public void computeHashes() {
+        dataHash = data == null ? null : ValueHashes.dataHash(JqValues.serializeToBytes(data));
+        computePathHash();
+    }
+
+    /**
+     * Sets {@link #domainNum}, {@link #domainInt} and {@link #domainTxt} from the current data.
+     */
+    public void computeDomainKeys() {
+        domainNum = domainNum(data);
+        domainInt = domainInt(data);
+        domainTxt = domainTxt(data);
+    }
+
+    public static Double domainNum(JqValue data) {
+        return data instanceof JqNumber n ? n.doubleValue() : null;
+    }
+
+    public static Long domainInt(JqValue data) {
+        return data instanceof JqNumber n && n.isIntegral() ? n.longValue() : null;
+    }
+
+    public static String domainTxt(JqValue data) {
+        return data instanceof JqString s && s.stringValue().codePointCount(0, s.stringValue().length()) <= DOMAIN_TXT_MAX
+                ? s.stringValue() : null;
+    }
+
+    /**
+     * Computes {@link #pathHash} assuming {@link #dataHash} is already set.
+     */
+    public long computePathHash() {
+        long[] sourceHashes = new long[sources == null ? 0 : sources.size()];
+        for (int i = 0; i < sourceHashes.length; i++) {
+            ValueEntity source = sources.get(i);
+            sourceHashes[i] = source.pathHash != null ? source.pathHash : source.computePathHash();
+        }
+        if (sourceHashes.length == 0 && id == null) {
+            throw new IllegalStateException("value without sources needs an id for its path hash");
+        }
+        pathHash = ValueHashes.pathHash(node.getId(), idx, sourceHashes, id == null ? 0 : id, node.type().isDetection(), dataHash);
+        return pathHash;
+    }
+
+    /**
+     * Sets {@link #rootFolderId} from {@link #folder} or the first source that descends from an
+     * upload. Sources without a stored root folder are resolved recursively.
+     */
+    public long computeRootFolderId() {
+        long found = folder != null && folder.id != null ? folder.id : 0;
+        if (found == 0 && sources != null) {
+            for (ValueEntity source : sources) {
+                found = source.rootFolderId != null ? source.rootFolderId : source.computeRootFolderId();
+                if (found != 0) {
+                    break;
+                }
+            }
+        }
+        rootFolderId = found;
+        return found;
+    }
+
     @PreUpdate
     @PrePersist
     public void preUpdate() {
         this.lastUpdated =  LocalDateTime.now();
+        computeDomainKeys();
     }
 
     public List<ValueEntity> getSources() {return this.sources;}
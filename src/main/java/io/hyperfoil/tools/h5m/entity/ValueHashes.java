@@ -0,0 +1,62 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 64-bit hashes stored on each {@code value} row.
+ * <ul>
+ *     <li>{@code data_hash}: hash of the serialized {@link ValueEntity#data}. It is kept when
+ *     ephemeral data is nulled so recalculations can still tell whether the data changed.</li>
+ *     <li>{@code path_hash}: hash of the value's lineage: its node, its idx and the path hashes
+ *     of its sources in order. Values without sources (uploads) use their own ID instead, so
+ *     every lineage is anchored on a unique value and {@code (node_id, path_hash)} identifies
+ *     "the same" value across recalculations. Detection values also include their data hash
+ *     because one calculation can emit several changes with the same idx and sources.</li>
+ * </ul>
+ * Both are the first 8 bytes of a SHA-256 digest; collisions only matter within one node.
+ */
+public final class ValueHashes {
+
+    private ValueHashes() {}
+
+    public static Long dataHash(byte[] serializedData) {
+        if (serializedData == null) {
+            return null;
+        }
+        MessageDigest md = sha256();
+        return ByteBuffer.wrap(md.digest(serializedData)).getLong();
+    }
+
+    /**
+     * @param id         the value's own ID, only used when there are no sources
+     * @param dataHash   only used for detection values, may be {@code null}
+     */
+    public static long pathHash(long nodeId, int idx, long[] sourcePathHashes, long id, boolean detection, Long dataHash) {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * (4 + sourcePathHashes.length) + Integer.BYTES);
+        buffer.putLong(nodeId).putInt(idx);
+        if (sourcePathHashes.length == 0) {
+            buffer.putLong(id);
+        } else {
+            for (long sourceHash : sourcePathHashes) {
+                buffer.putLong(sourceHash);
+            }
+        }
+        if (detection && dataHash != null) {
+            buffer.putLong(dataHash);
+        }
+        buffer.flip();
+        MessageDigest md = sha256();
+        md.update(buffer);
+        return ByteBuffer.wrap(md.digest()).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
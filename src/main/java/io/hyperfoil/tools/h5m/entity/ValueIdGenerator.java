@@ -0,0 +1,53 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.hyperfoil.tools.h5m.provided.ValueIdAllocator;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import jakarta.enterprise.inject.spi.CDI;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.generator.EventTypeSets;
+
+import java.sql.SQLException;
+import java.util.EnumSet;
+
+/**
+ * Assigns {@link ValueEntity} IDs from the shared {@link ValueIdAllocator} so that
+ * values persisted through Hibernate and values written by the bulk insert path
+ * share one ID space. Selected with {@link ValueId}.
+ * <p>
+ * Hibernate reads the entity state after the ID is generated, so this is also where
+ * {@link ValueEntity#computeHashes()} runs for values persisted through Hibernate.
+ * If a source is not persisted yet the hashes are left {@code null}; reconciliation in
+ * {@link io.hyperfoil.tools.h5m.svc.ValueService#reconcile} fills them in when needed.
+ */
+@RegisterForReflection
+public class ValueIdGenerator implements BeforeExecutionGenerator {
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue, EventType eventType) {
+        long id;
+        try {
+            id = CDI.current().select(ValueIdAllocator.class).get()
+                    .next(session.getJdbcCoordinator().getLogicalConnection().getPhysicalConnection());
+        } catch (SQLException e) {
+            throw new HibernateException("Failed to allocate value id", e);
+        }
+        if (owner instanceof ValueEntity value && value.pathHash == null) {
+            value.id = id;
+            try {
+                value.computeHashes();
+            } catch (IllegalStateException e) {
+                // a source without id yet (cascaded persist), see class comment
+                value.pathHash = null;
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public EnumSet<EventType> getEventTypes() {
+        return EventTypeSets.INSERT_ONLY;
+    }
+}
@@ -26,6 +26,13 @@ public class ViewEntity extends PanacheEntityBase {
     @OrderBy("headerOrder ASC")
     public List<ViewComponentEntity> components = new ArrayList<>();
 
+    /**
+     * The rows of uploads with a greater ID are not materialized yet and are computed when read,
+     * {@code null} once every row is materialized (see {@link io.hyperfoil.tools.h5m.svc.ViewService}).
+     */
+    @Column(name = "rows_pending_after")
+    public Long rowsPendingAfter;
+
     public ViewEntity() {}
 
     public ViewEntity(String name, FolderEntity folder) {
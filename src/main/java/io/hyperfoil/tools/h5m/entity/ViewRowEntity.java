@@ -0,0 +1,61 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * One materialized row of a view: the values of the view's component nodes below one root value,
+ * as a JSON object keyed by node name. Maintained by
+ * {@link io.hyperfoil.tools.h5m.svc.ViewService} with native SQL; the mapping exists for the schema.
+ * A {@code null} data marks a root value with no values for the view's nodes.
+ */
+@Entity(name = "folder_view_row")
+@IdClass(ViewRowEntity.Key.class)
+@Table(indexes = @Index(name = "idx_folder_view_row_root", columnList = "root_value_id"))
+public class ViewRowEntity extends PanacheEntityBase {
+
+    public static class Key implements Serializable {
+        public Long viewId;
+        public Long rootValueId;
+
+        public Key() {}
+
+        public Key(Long viewId, Long rootValueId) {
+            this.viewId = viewId;
+            this.rootValueId = rootValueId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Objects.equals(viewId, k.viewId) && Objects.equals(rootValueId, k.rootValueId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(viewId, rootValueId);
+        }
+    }
+
+    @Id
+    @Column(name = "view_id")
+    public Long viewId;
+
+    @Id
+    @Column(name = "root_value_id")
+    public Long rootValueId;
+
+    @Column(columnDefinition = "TEXT")
+    public String data;
+
+    @Column(name = "updated_at")
+    public LocalDateTime updatedAt;
+
+    @Override
+    public String toString() {
+        return "ViewRowEntity< viewId=" + viewId + " rootValueId=" + rootValueId + " >";
+    }
+}
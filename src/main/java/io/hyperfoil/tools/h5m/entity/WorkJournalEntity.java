@@ -0,0 +1,85 @@
+package io.hyperfoil.tools.h5m.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Queued work that has not completed yet, see {@link io.hyperfoil.tools.h5m.svc.WorkJournal}.
+ * A row is the node to calculate and its source values (comma separated ids, the first one is
+ * the root value), inserted in the transaction that queues the work and deleted in the one that
+ * stores its results. The mapping exists for the schema; rows are written with native SQL.
+ * <p>
+ * In cluster mode {@code claimed_by} is the {@link io.hyperfoil.tools.h5m.svc.WorkCluster}
+ * member running the work, null while the work waits to be claimed. {@code attempts} counts the
+ * claims that failed, the row is dropped once it reaches {@code h5m.cluster.max-attempts}.
+ */
+@Entity(name = "work_journal")
+@IdClass(WorkJournalEntity.Key.class)
+@Table(indexes = {
+        @Index(name = "idx_work_journal_root", columnList = "root_value_id"),
+        @Index(name = "idx_work_journal_claimed", columnList = "claimed_by")
+})
+public class WorkJournalEntity extends PanacheEntityBase {
+
+    public static class Key implements Serializable {
+        public Long nodeId;
+        public String valueIds;
+
+        public Key() {}
+
+        public Key(Long nodeId, String valueIds) {
+            this.nodeId = nodeId;
+            this.valueIds = valueIds;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Objects.equals(nodeId, k.nodeId) && Objects.equals(valueIds, k.valueIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(nodeId, valueIds);
+        }
+    }
+
+    @Id
+    @Column(name = "node_id")
+    public Long nodeId;
+
+    @Id
+    @Column(name = "value_ids", columnDefinition = "TEXT")
+    public String valueIds;
+
+    @Column(name = "root_value_id", nullable = false)
+    public long rootValueId;
+
+    @Column(nullable = false)
+    public boolean cascades;
+
+    @Column(nullable = false)
+    public boolean dispatches;
+
+    @Column(name = "queued_at", nullable = false)
+    public LocalDateTime queuedAt;
+
+    @Column(name = "claimed_by")
+    public String claimedBy;
+
+    @Column(name = "claimed_at")
+    public LocalDateTime claimedAt;
+
+    @Column(nullable = false)
+    @ColumnDefault("0")
+    public int attempts;
+
+    @Override
+    public String toString() {
+        return "WorkJournalEntity< nodeId=" + nodeId + " valueIds=" + valueIds + " >";
+    }
+}
@@ -4,6 +4,7 @@ import io.hyperfoil.tools.h5m.entity.NodeEntity;
 import io.hyperfoil.tools.h5m.entity.node.EDivisive;
 import io.hyperfoil.tools.h5m.entity.node.RelativeDifference;
 import io.hyperfoil.tools.h5m.entity.node.StdDevAnomaly;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
 import io.hyperfoil.tools.h5m.svc.WorkService;
 import jakarta.enterprise.inject.spi.CDI;
 
@@ -13,21 +14,45 @@ import java.util.stream.Collectors;
 
 //cross test comparison could use sourceNodes and not have an activeNode?
 //custom post nodegroup actions could have sourceNodes without activeNode
+/**
+ * A calculation of the active nodes for the source values. A work item is identified by the IDs
+ * of its active nodes, source nodes and (unless cumulative) source values, kept in primitive
+ * arrays with the hash computed once, so the sets of the {@link io.hyperfoil.tools.h5m.queue.WorkQueue}
+ * neither allocate nor walk entities to find a duplicate. Work for nodes that are not persisted
+ * yet is only equal to itself.
+ */
 public class Work implements Runnable, Comparable<Work>{
 
-    private List<Long> sourceValueIds;//IDs of source values — full entities are loaded in WorkService.execute()
+    private static final long[] NONE = new long[0];
 
-    private List<NodeEntity> sourceNodes; //what is going to use a list of sources that are not already listed for the activeNode?
+    // sorted, the active nodes are a set
+    private long[] activeNodeIds = NONE;
+
+    private long[] sourceNodeIds = NONE; //what is going to use a list of sources that are not already listed for the activeNode?
+
+    private long[] sourceValueIds = NONE;//IDs of source values — full entities are loaded in WorkService.execute()
+
+    // false if a node has no ID, the IDs above do not identify the work then
+    private boolean persisted;
+
+    private int hash;
 
     private int retryCount;
 
-    private Set<NodeEntity> activeNodes;
+    // Only kept until the work ran, WorkService.execute() reloads them by id
+    private List<NodeEntity> activeNodes;
+
+    // Ancestors of activeNodes in the compiled graph of their group, set by
+    // precomputeAncestors(NodeGraph). The set of a single node is shared with
+    // the graph, so work for the same node in the same group does not copy it.
+    private NodeGraph graph;
+    private BitSet ancestors;
 
-    // Cached set of all transitive ancestor node IDs for activeNodes.
-    // Populated by precomputeAncestors() while the Hibernate session is open,
-    // then used by dependsOn() for O(1) lookups during WorkQueue sorting
-    // (which runs in afterCompletion, outside the session).
-    private Set<Long> ancestorNodeIds;
+    // Sorted IDs of all transitive ancestors of activeNodes for nodes outside
+    // of a graph. Populated by precomputeAncestors() while the Hibernate session
+    // is open, then used by dependsOn() during WorkQueue sorting (which runs in
+    // afterCompletion, outside the session).
+    private long[] ancestorNodeIds;
 
     /*
      * If the work should be performed after work for any dependent Nodes regardless of Values
@@ -45,6 +70,12 @@ public class Work implements Runnable, Comparable<Work>{
      */
     private boolean cascade = true;
 
+    /*
+     * The WorkCluster member that claimed the work, null for work queued on this instance.
+     * Not part of equality, cascade work inherits it to stay with the member.
+     */
+    private String claimedBy;
+
     public Work(){
         retryCount = 0;
     }
@@ -53,38 +84,90 @@ public class Work implements Runnable, Comparable<Work>{
     }
     public Work(Set<NodeEntity> activeNodes,List<NodeEntity> sourceNodes,List<Long> sourceValueIds){
         this();
-        this.activeNodes = new HashSet<>(activeNodes); //so that it will be mutable
-        if(activeNodes.stream().anyMatch(node -> node instanceof StdDevAnomaly || node instanceof EDivisive)){
-            this.cumulative = true;
+        if (sourceNodes != null) {
+            this.sourceNodeIds = new long[sourceNodes.size()];
+            for (int i = 0; i < sourceNodeIds.length; i++) {
+                Long id = sourceNodes.get(i).id;
+                sourceNodeIds[i] = id == null ? 0 : id;
+            }
+        }
+        if (sourceValueIds != null) {
+            this.sourceValueIds = new long[sourceValueIds.size()];
+            for (int i = 0; i < this.sourceValueIds.length; i++) {
+                this.sourceValueIds[i] = sourceValueIds.get(i);
+            }
         }
-        this.sourceValueIds = sourceValueIds == null ? Collections.emptyList() : new ArrayList<>(sourceValueIds);
-        this.sourceNodes = sourceNodes == null ? Collections.emptyList() : new ArrayList<>(sourceNodes);
+        setActiveNodes(activeNodes);
     }
 
-    public Set<NodeEntity> getActiveNodes() {
+    /**
+     * The active nodes, {@code null} once the work released its references.
+     */
+    public List<NodeEntity> getActiveNodes() {
         return activeNodes;
     }
 
+    /**
+     * IDs of the active nodes in ascending order, must not be modified.
+     */
+    public long[] getActiveNodeIds() {
+        return activeNodeIds;
+    }
+
     public void setActiveNodes(Set<NodeEntity> activeNodes) {
-        this.activeNodes = activeNodes;
+        this.activeNodes = List.copyOf(activeNodes);
+        this.activeNodeIds = new long[this.activeNodes.size()];
+        boolean found = true;
+        for (int i = 0; i < activeNodeIds.length; i++) {
+            Long id = this.activeNodes.get(i).id;
+            found &= id != null;
+            activeNodeIds[i] = id == null ? 0 : id;
+        }
+        Arrays.sort(activeNodeIds);
+        for (long sourceNodeId : sourceNodeIds) {
+            found &= sourceNodeId != 0;
+        }
+        this.persisted = found;
         this.ancestorNodeIds = null; // invalidate cache — new active nodes need fresh ancestors
-        if(activeNodes.stream().anyMatch(node -> node instanceof StdDevAnomaly || node instanceof EDivisive)){
-            this.cumulative = true;
-        }else{
-            this.cumulative = false;
+        this.graph = null;
+        this.ancestors = null;
+        this.cumulative = activeNodes.stream().anyMatch(node -> node instanceof StdDevAnomaly || node instanceof EDivisive);
+        this.hash = computeHash();
+    }
+
+    /**
+     * IDs of the source values in the order they were given, must not be modified.
+     */
+    public long[] getSourceValueIds(){return sourceValueIds;}
+
+    /**
+     * Looks up the ancestors of the active nodes in the compiled graph of their group, so that
+     * dependsOn() neither traverses the NodeEntity.sources graph nor needs a session. Falls back
+     * to {@link #precomputeAncestors()} when there is no graph or a node is not in it.
+     */
+    public void precomputeAncestors(NodeGraph graph) {
+        if (activeNodeIds.length == 0) return;
+        BitSet found = graph == null || !persisted ? null : graph.ancestors(activeNodeIds);
+        if (found == null) {
+            precomputeAncestors();
+            return;
         }
+        this.graph = graph;
+        this.ancestors = found;
+        this.ancestorNodeIds = null;
     }
-    public List<Long> getSourceValueIds(){return sourceValueIds;}
 
     /**
      * Pre-computes the transitive ancestor node IDs for all active nodes.
      * Must be called while the Hibernate session is open (sources are lazy).
-     * After this, dependsOn() uses O(1) Set.contains() instead of traversing
+     * After this, dependsOn() uses a binary search instead of traversing
      * the NodeEntity.sources graph.
      */
     public void precomputeAncestors() {
         if (activeNodes == null || activeNodes.isEmpty()) return;
-        ancestorNodeIds = new HashSet<>();
+        graph = null;
+        ancestors = null;
+        Set<Long> found = new HashSet<>();
         Queue<NodeEntity> queue = new ArrayDeque<>();
         for (NodeEntity activeNode : activeNodes) {
             if (activeNode.sources != null) {
@@ -93,33 +176,38 @@ public class Work implements Runnable, Comparable<Work>{
         }
         while (!queue.isEmpty()) {
             NodeEntity node = queue.poll();
-            if (node.id != null && ancestorNodeIds.add(node.id)) {
+            if (node.id != null && found.add(node.id)) {
                 if (node.sources != null) {
                     queue.addAll(node.sources);
                 }
             }
         }
+        ancestorNodeIds = found.stream().mapToLong(Long::longValue).sorted().toArray();
     }
 
     //work A depends on work B if A.activeNode depends on B.activeNode
     public boolean dependsOn(Work work){
 
-        if(work == null || work.activeNodes == null || work.activeNodes.isEmpty()){
-            return false;
-        }
-        if (this.activeNodes == null || this.activeNodes.isEmpty()) {
+        if(work == null || work.activeNodeIds.length == 0 || this.activeNodeIds.length == 0){
             return false;
         }
         // Fast path: use pre-computed ancestor IDs if available
         boolean hasNodeDependency = false;
-        if (ancestorNodeIds != null) {
-            for (NodeEntity otherNode : work.activeNodes) {
-                if (otherNode.id != null && ancestorNodeIds.contains(otherNode.id)) {
+        if (ancestors != null) {
+            for (long otherNodeId : work.activeNodeIds) {
+                if (graph.isIn(ancestors, otherNodeId)) {
                     hasNodeDependency = true;
                     break;
                 }
             }
-        } else {
+        } else if (ancestorNodeIds != null) {
+            for (long otherNodeId : work.activeNodeIds) {
+                if (otherNodeId != 0 && Arrays.binarySearch(ancestorNodeIds, otherNodeId) >= 0) {
+                    hasNodeDependency = true;
+                    break;
+                }
+            }
+        } else if (this.activeNodes != null && work.activeNodes != null) {
             // Fallback: traverse the source graph (requires active Hibernate session)
             for (NodeEntity thisNode : this.activeNodes) {
                 for (NodeEntity otherNode : work.activeNodes) {
@@ -134,12 +222,14 @@ public class Work implements Runnable, Comparable<Work>{
         if (!hasNodeDependency) {
             return false;
         }
-        if (cumulative || sourceValueIds.isEmpty()) {
+        if (cumulative || sourceValueIds.length == 0) {
             return true;
         }
-        for (int i = 0, size = sourceValueIds.size(); i < size; i++) {
-            if (work.sourceValueIds.contains(sourceValueIds.get(i))) {
-                return true;
+        for (long sourceValueId : sourceValueIds) {
+            for (long otherValueId : work.sourceValueIds) {
+                if (sourceValueId == otherValueId) {
+                    return true;
+                }
             }
         }
         return false;
@@ -163,55 +253,27 @@ public class Work implements Runnable, Comparable<Work>{
 
     @Override
     public boolean equals(Object o){
+        if(this == o){
+            return true;
+        }
         if(o instanceof Work work){
-            if (this.activeNodes == null || work.activeNodes == null
-                    || this.sourceNodes == null || work.sourceNodes == null) {
-                return false;
-            }
-            boolean sameNodes =  this.activeNodes.containsAll(work.activeNodes) && work.activeNodes.containsAll(this.activeNodes);
-            if(!sameNodes){
-                return false;
-            }
-            if (this.sourceNodes.size() != work.sourceNodes.size()) {
+            if (!persisted || !work.persisted || hash != work.hash) {
                 return false;
             }
-            for (int i = 0; i < sourceNodes.size(); i++) {
-                if (!sourceNodes.get(i).equals(work.sourceNodes.get(i))) {
-                    return false;
-                }
-            }
-            if(cumulative){
-                return true;
-            }
-            if (this.sourceValueIds == null || work.sourceValueIds == null) {
-                return false;
-            }
-            if (this.sourceValueIds.size() != work.sourceValueIds.size()) {
-                return false;
-            }
-            for (int i = 0; i < sourceValueIds.size(); i++) {
-                if (!sourceValueIds.get(i).equals(work.sourceValueIds.get(i))) {
-                    return false;
-                }
-            }
-            return true;
+            return Arrays.equals(activeNodeIds, work.activeNodeIds)
+                    && Arrays.equals(sourceNodeIds, work.sourceNodeIds)
+                    && (cumulative || Arrays.equals(sourceValueIds, work.sourceValueIds));
         }
         return false;
     }
     @Override
     public int hashCode(){
-        if (activeNodes == null) {
-            return 0;
-        }
-        List<Object> param = new ArrayList<>();
-        param.addAll(activeNodes);
-        if (sourceNodes != null) {
-            param.addAll(sourceNodes);
-        }
-        if(!cumulative && sourceValueIds != null) {
-            param.addAll(sourceValueIds);
-        }
-        return Objects.hash(param);
+        return hash;
+    }
+
+    private int computeHash(){
+        int rtrn = 31 * Arrays.hashCode(activeNodeIds) + Arrays.hashCode(sourceNodeIds);
+        return cumulative ? rtrn : 31 * rtrn + Arrays.hashCode(sourceValueIds);
     }
 
     @Override
@@ -226,21 +288,35 @@ public class Work implements Runnable, Comparable<Work>{
     }
 
     @Override public void run() {
-        CDI.current().select(WorkService.class).get().execute(this);
+        WorkService workService = CDI.current().select(WorkService.class).get();
+        if (workService.isSingleWriter()) {
+            workService.executeWithWriter(this);
+        } else {
+            try {
+                workService.execute(this);
+            } catch (RuntimeException e) {
+                workService.failedCommit(this, e);
+                throw e;
+            }
+        }
     }
 
+    /**
+     * Drops the entities and the ancestry once the work ran, the IDs stay so that the work can
+     * still be found in the sets of the queue.
+     */
     public void releaseReferences() {
-        sourceValueIds = null;
-        sourceNodes = null;
         activeNodes = null;
         ancestorNodeIds = null;
+        graph = null;
+        ancestors = null;
     }
 
     @Override
     public String toString() {
-        return "Work<activeNodes="+activeNodes+
-                " sourceNodes="+(sourceNodes == null ? "null" : sourceNodes.stream().map(n->""+n.getId()).collect(Collectors.joining(",")))+
-                " sourceValueIds="+(sourceValueIds == null ? "null" : sourceValueIds.stream().map(String::valueOf).collect(Collectors.joining(",")))+
+        return "Work<activeNodes="+(activeNodes == null ? Arrays.toString(activeNodeIds) : activeNodes)+
+                " sourceNodes="+Arrays.stream(sourceNodeIds).mapToObj(String::valueOf).collect(Collectors.joining(","))+
+                " sourceValueIds="+Arrays.stream(sourceValueIds).mapToObj(String::valueOf).collect(Collectors.joining(","))+
                 " retry="+retryCount+
                 " hashCode="+hashCode()+" >";
     }
@@ -251,8 +327,14 @@ public class Work implements Runnable, Comparable<Work>{
     public boolean isDispatch() { return dispatch; }
     public void setDispatch(boolean dispatch) { this.dispatch = dispatch; }
 
+    public String getClaimedBy() { return claimedBy; }
+    public void setClaimedBy(String claimedBy) { this.claimedBy = claimedBy; }
+
     public boolean isCumulative() { return cumulative; }
-    public void setCumulative(boolean cumulative) { this.cumulative = cumulative; }
+    public void setCumulative(boolean cumulative) {
+        this.cumulative = cumulative;
+        this.hash = computeHash();
+    }
 
 
     public int getRetryCount() { return retryCount; }
@@ -0,0 +1,14 @@
+package io.hyperfoil.tools.h5m.event;
+
+/**
+ * CDI event fired when users, teams or team memberships change.
+ * <p>
+ * {@link io.hyperfoil.tools.h5m.svc.AuthorizationService} observes it to discard its
+ * in-memory authorization snapshot so the next check reloads the current state.
+ *
+ * @param kind what kind of authorization data changed
+ */
+public record AuthorizationChangedEvent(Kind kind) {
+
+    public enum Kind { USER, TEAM, MEMBERSHIP }
+}
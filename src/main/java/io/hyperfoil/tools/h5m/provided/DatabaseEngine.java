@@ -11,6 +11,15 @@ public class DatabaseEngine {
     @ConfigProperty(name = "quarkus.datasource.jdbc.url", defaultValue = "")
     String jdbcUrl;
 
+    @ConfigProperty(name = "h5m.postgresql.jsonb", defaultValue = "false")
+    boolean jsonb;
+
+    @ConfigProperty(name = "h5m.postgresql.partitioned", defaultValue = "false")
+    boolean partitioned;
+
+    @ConfigProperty(name = "h5m.value-blobs.enabled", defaultValue = "false")
+    boolean valueBlobs;
+
     public Kind kind() {
         return jdbcUrl != null && jdbcUrl.startsWith("jdbc:sqlite:") ? Kind.SQLITE : Kind.POSTGRESQL;
     }
@@ -18,4 +27,71 @@ public class DatabaseEngine {
     public boolean isSQLite() {
         return kind() == Kind.SQLITE;
     }
+
+    /**
+     * Whether {@code value.data} is a {@code jsonb} column (PostgreSQL with {@code h5m.postgresql.jsonb})
+     * instead of UTF-8 JSON in a {@code BYTEA}.
+     */
+    public boolean isJsonb() {
+        return jsonb && kind() == Kind.POSTGRESQL;
+    }
+
+    /**
+     * Whether {@code value} and {@code value_edge} are partitioned by {@code root_folder_id}
+     * (PostgreSQL with {@code h5m.postgresql.partitioned}, see {@code ValuePartitions}).
+     */
+    public boolean isPartitioned() {
+        return partitioned && kind() == Kind.POSTGRESQL;
+    }
+
+    /**
+     * Condition limiting the {@code value} or {@code value_edge} rows aliased {@code alias} to the
+     * partition of folder {@code rootFolderId}, empty unless the tables are partitioned. The folder
+     * is inlined so that the planner prunes the other partitions.
+     */
+    public String inPartition(String alias, Long rootFolderId) {
+        return isPartitioned() && rootFolderId != null ? " AND " + alias + ".root_folder_id = " + rootFolderId : "";
+    }
+
+    /**
+     * Conflict target of an upsert into {@code value}: the unique index on a partitioned table
+     * also holds the partition key.
+     */
+    public String valueConflict() {
+        return isPartitioned() ? "(node_id, path_hash, root_folder_id)" : "(node_id, path_hash)";
+    }
+
+    /**
+     * Expression reading the data of the {@code value} row aliased {@code alias}, wherever it is
+     * stored: inline in {@code data} or once in {@code value_blob} (see {@code ValueBlobs}). Without
+     * {@code h5m.value-blobs.enabled} every payload is inline, the shared ones are moved back at
+     * startup, so the column is read as is and its indexes apply.
+     */
+    public String valueData(String alias) {
+        if (!valueBlobs) {
+            return alias + ".data";
+        }
+        return "coalesce(" + alias + ".data, (SELECT b.data FROM value_blob b WHERE b.hash = " + alias + ".blob_hash))";
+    }
+
+    /**
+     * PostgreSQL expression reading the value data {@code column} as {@code jsonb}.
+     */
+    public String jsonbData(String column) {
+        return isJsonb() ? column : "convert_from(" + column + ", 'UTF-8')::jsonb";
+    }
+
+    /**
+     * Expression reading the value data {@code column} as UTF-8 JSON bytes.
+     */
+    public String dataBytes(String column) {
+        return isJsonb() ? "convert_to(" + column + "::text, 'UTF-8')" : column;
+    }
+
+    /**
+     * Expression storing or comparing {@code parameter}, bound to UTF-8 JSON bytes, as value data.
+     */
+    public String dataParameter(String parameter) {
+        return isJsonb() ? "convert_from(" + parameter + ", 'UTF-8')::jsonb" : parameter;
+    }
 }
@@ -2,10 +2,14 @@ package io.hyperfoil.tools.h5m.provided;
 
 import org.eclipse.microprofile.config.ConfigProvider;
 import java.util.Optional;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.model.relational.SqlStringGenerationContext;
 import org.hibernate.community.dialect.SQLiteDialect;
 import org.hibernate.dialect.Dialect;
 import org.hibernate.dialect.PostgreSQLDialect;
 import org.hibernate.engine.jdbc.dialect.spi.DialectResolutionInfo;
+import org.hibernate.mapping.ForeignKey;
+import org.hibernate.tool.schema.spi.Exporter;
 
 /**
  * Hibernate dialect that delegates to either {@link SQLiteDialect} or {@link PostgreSQLDialect}
@@ -14,6 +18,10 @@ import org.hibernate.engine.jdbc.dialect.spi.DialectResolutionInfo;
  * Since {@code quarkus.datasource.db-kind} is a build-time property, Quarkus locks the dialect
  * at build time. This wrapper is set via {@code quarkus.hibernate-orm.dialect} and resolves the
  * actual dialect at application startup from the JDBC URL.
+ * <p>
+ * With {@code h5m.postgresql.partitioned} the schema update skips the foreign key from
+ * {@code value_edge.parent_id} to {@code value}, which a partitioned {@code value_edge} cannot
+ * hold (see {@code ValuePartitions}).
  */
 @SuppressWarnings({"deprecation", "removal"})
 public class H5mDialect extends Dialect {
@@ -54,6 +62,35 @@ public class H5mDialect extends Dialect {
         return d != null ? d : CONSTRUCTING.get();
     }
 
+    private static boolean isPartitioned() {
+        return !isSQLite() && ConfigProvider.getConfig()
+                .getOptionalValue("h5m.postgresql.partitioned", Boolean.class).orElse(false);
+    }
+
+    private static boolean isEdgeParentKey(ForeignKey foreignKey) {
+        return "value_edge".equalsIgnoreCase(foreignKey.getTable().getName())
+                && foreignKey.getColumns().stream().anyMatch(column -> "parent_id".equalsIgnoreCase(column.getName()));
+    }
+
+    @Override
+    public Exporter<ForeignKey> getForeignKeyExporter() {
+        Exporter<ForeignKey> exporter = d().getForeignKeyExporter();
+        if (!isPartitioned()) {
+            return exporter;
+        }
+        return new Exporter<>() {
+            @Override
+            public String[] getSqlCreateStrings(ForeignKey foreignKey, Metadata metadata, SqlStringGenerationContext context) {
+                return isEdgeParentKey(foreignKey) ? NO_COMMANDS : exporter.getSqlCreateStrings(foreignKey, metadata, context);
+            }
+
+            @Override
+            public String[] getSqlDropStrings(ForeignKey foreignKey, Metadata metadata, SqlStringGenerationContext context) {
+                return isEdgeParentKey(foreignKey) ? NO_COMMANDS : exporter.getSqlDropStrings(foreignKey, metadata, context);
+            }
+        };
+    }
+
     // --- generated delegate methods ---
 
     @Override public org.hibernate.dialect.DatabaseVersion determineDatabaseVersion(org.hibernate.engine.jdbc.dialect.spi.DialectResolutionInfo a0) { return d().determineDatabaseVersion(a0); }
@@ -221,7 +258,6 @@ public class H5mDialect extends Dialect {
     @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.mapping.UserDefinedType> getUserDefinedTypeExporter() { return d().getUserDefinedTypeExporter(); }
     @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.boot.model.relational.Sequence> getSequenceExporter() { return d().getSequenceExporter(); }
     @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.mapping.Index> getIndexExporter() { return d().getIndexExporter(); }
-    @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.mapping.ForeignKey> getForeignKeyExporter() { return d().getForeignKeyExporter(); }
     @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.mapping.UniqueKey> getUniqueKeyExporter() { return d().getUniqueKeyExporter(); }
     @Override public org.hibernate.tool.schema.spi.Exporter<org.hibernate.boot.model.relational.AuxiliaryDatabaseObject> getAuxiliaryDatabaseObjectExporter() { return d().getAuxiliaryDatabaseObjectExporter(); }
     @Override public org.hibernate.dialect.temptable.TemporaryTableExporter getTemporaryTableExporter() { return d().getTemporaryTableExporter(); }
@@ -0,0 +1,120 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import io.hyperfoil.tools.jjq.jakarta.JqValueJdbcType;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.hibernate.type.descriptor.ValueBinder;
+import org.hibernate.type.descriptor.ValueExtractor;
+import org.hibernate.type.descriptor.WrapperOptions;
+import org.hibernate.type.descriptor.java.JavaType;
+import org.hibernate.type.descriptor.jdbc.BasicBinder;
+import org.hibernate.type.descriptor.jdbc.BasicExtractor;
+import org.hibernate.type.descriptor.jdbc.JdbcType;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * JDBC mapping of {@code value.data}. Delegates to {@link JqValueJdbcType} (UTF-8 JSON bytes)
+ * unless the column is {@code jsonb} (see {@link DatabaseEngine#isJsonb()}). In that case the
+ * JSON text is bound untyped, so PostgreSQL stores it as {@code jsonb}, and it is read as text,
+ * with no {@code BYTEA} conversion on either side.
+ * <p>
+ * In {@code BYTEA} mode the bytes read are passed through {@link ValueDataCodec}, so rows
+ * compressed by {@link io.hyperfoil.tools.h5m.svc.ValueCompression} are inflated transparently.
+ * Values are always written as plain JSON here; compression is applied by the bulk inserter.
+ * <p>
+ * Hibernate creates the type before CDI is running, so the mode is read from the configuration directly.
+ */
+public class JqValueDataJdbcType implements JdbcType {
+
+    private final JdbcType bytes = new JqValueJdbcType();
+    private final boolean jsonb = isJsonb();
+
+    private static boolean isJsonb() {
+        Config config = ConfigProvider.getConfig();
+        String url = config.getOptionalValue("quarkus.datasource.jdbc.url", String.class).orElse("");
+        return !url.startsWith("jdbc:sqlite:") && config.getOptionalValue("h5m.postgresql.jsonb", Boolean.class).orElse(false);
+    }
+
+    @Override
+    public int getJdbcTypeCode() {
+        return bytes.getJdbcTypeCode();
+    }
+
+    @Override
+    public <X> ValueBinder<X> getBinder(JavaType<X> javaType) {
+        if (!jsonb) {
+            return bytes.getBinder(javaType);
+        }
+        return new BasicBinder<>(javaType, this) {
+            @Override
+            protected void doBind(PreparedStatement st, X value, int index, WrapperOptions options) throws SQLException {
+                st.setObject(index, ((JqValue) value).toJsonString(), Types.OTHER);
+            }
+
+            @Override
+            protected void doBind(CallableStatement st, X value, String name, WrapperOptions options) throws SQLException {
+                st.setObject(name, ((JqValue) value).toJsonString(), Types.OTHER);
+            }
+        };
+    }
+
+    @Override
+    public <X> ValueExtractor<X> getExtractor(JavaType<X> javaType) {
+        return jsonb ? jsonbExtractor(javaType) : bytesExtractor(javaType);
+    }
+
+    private <X> ValueExtractor<X> bytesExtractor(JavaType<X> javaType) {
+        return new BasicExtractor<>(javaType, this) {
+            @Override
+            protected X doExtract(ResultSet rs, int paramIndex, WrapperOptions options) throws SQLException {
+                return parse(rs.getBytes(paramIndex), rs.getStatement().getConnection());
+            }
+
+            @Override
+            protected X doExtract(CallableStatement statement, int index, WrapperOptions options) throws SQLException {
+                return parse(statement.getBytes(index), statement.getConnection());
+            }
+
+            @Override
+            protected X doExtract(CallableStatement statement, String name, WrapperOptions options) throws SQLException {
+                return parse(statement.getBytes(name), statement.getConnection());
+            }
+
+            private X parse(byte[] stored, Connection connection) {
+                return stored == null ? null
+                        : getJavaType().getJavaTypeClass().cast(JqValues.parse(ValueDataCodec.decompress(stored, connection)));
+            }
+        };
+    }
+
+    private <X> ValueExtractor<X> jsonbExtractor(JavaType<X> javaType) {
+        return new BasicExtractor<>(javaType, this) {
+            @Override
+            protected X doExtract(ResultSet rs, int paramIndex, WrapperOptions options) throws SQLException {
+                return parse(rs.getString(paramIndex));
+            }
+
+            @Override
+            protected X doExtract(CallableStatement statement, int index, WrapperOptions options) throws SQLException {
+                return parse(statement.getString(index));
+            }
+
+            @Override
+            protected X doExtract(CallableStatement statement, String name, WrapperOptions options) throws SQLException {
+                return parse(statement.getString(name));
+            }
+
+            private X parse(String json) {
+                return json == null ? null : getJavaType().getJavaTypeClass().cast(JqValues.parse(json));
+            }
+        };
+    }
+}
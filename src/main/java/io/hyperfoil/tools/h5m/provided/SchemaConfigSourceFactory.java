@@ -0,0 +1,109 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import io.smallrye.config.ConfigSourceContext;
+import io.smallrye.config.ConfigSourceFactory;
+import io.smallrye.config.ConfigValue;
+import io.smallrye.config.PropertiesConfigSource;
+import org.eclipse.microprofile.config.spi.ConfigSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Skips Hibernate's schema update when the database is already at the schema of this build, so a
+ * start does not introspect every table. The build stores a checksum of the mapped entities in
+ * {@value #CHECKSUM_RESOURCE}; with {@code h5m.schema.fast-start} enabled and the same checksum in
+ * the latest {@code schema_version} row, the schema management strategy is set to {@code none}.
+ * Otherwise Hibernate updates the schema as configured and {@code SchemaVersions} records the new
+ * version. A strategy set in the environment or on the command line still wins.
+ * <p>
+ * Registered in {@code META-INF/services/io.smallrye.config.ConfigSourceFactory}, it runs before
+ * the datasource is started and reads the version over a connection of its own.
+ */
+public class SchemaConfigSourceFactory implements ConfigSourceFactory {
+
+    public static final String CHECKSUM_RESOURCE = "META-INF/h5m-schema.properties";
+    static final String STRATEGY = "quarkus.hibernate-orm.schema-management.strategy";
+    // above application.properties, below environment variables and system properties
+    private static final int ORDINAL = 275;
+
+    @Override
+    public Iterable<ConfigSource> getConfigSources(ConfigSourceContext context) {
+        if (!Boolean.parseBoolean(value(context, "h5m.schema.fast-start"))) {
+            return List.of();
+        }
+        String checksum = buildChecksum();
+        if (checksum == null || !checksum.equals(storedChecksum(value(context, "quarkus.datasource.jdbc.url"),
+                value(context, "quarkus.datasource.username"), value(context, "quarkus.datasource.password")))) {
+            return List.of();
+        }
+        return List.of(new PropertiesConfigSource(Map.of(STRATEGY, "none"), "h5m-schema-version", ORDINAL));
+    }
+
+    private static String value(ConfigSourceContext context, String name) {
+        ConfigValue value = context.getValue(name);
+        return value == null ? null : value.getValue();
+    }
+
+    /**
+     * Checksum of the schema mapped by this build, {@code null} when the build did not record one
+     * (e.g. classes compiled by an IDE).
+     */
+    public static String buildChecksum() {
+        try (InputStream in = SchemaConfigSourceFactory.class.getClassLoader().getResourceAsStream(CHECKSUM_RESOURCE)) {
+            if (in == null) {
+                return null;
+            }
+            Properties properties = new Properties();
+            properties.load(in);
+            String checksum = properties.getProperty("checksum");
+            return checksum == null || checksum.isBlank() || checksum.contains("${") ? null : checksum.trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checksum of the current schema of the database at {@code url}, {@code null} when it cannot be
+     * read. A missing SQLite file is not created.
+     */
+    static String storedChecksum(String url, String username, String password) {
+        if (url == null || url.isBlank()) {
+            return null;
+        }
+        if (url.startsWith("jdbc:sqlite:")) {
+            String file = url.substring("jdbc:sqlite:".length());
+            int query = file.indexOf('?');
+            if (query >= 0) {
+                file = file.substring(0, query);
+            }
+            if (file.isEmpty() || file.startsWith(":") || file.startsWith("file:") || !Files.exists(Path.of(file))) {
+                return null;
+            }
+        }
+        Properties info = new Properties();
+        if (username != null) {
+            info.setProperty("user", username);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        try (Connection connection = new H5mDriver().connect(url, info);
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT checksum FROM schema_version ORDER BY version DESC LIMIT 1")) {
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            // no schema_version table yet, or the database is not reachable: let Hibernate decide
+            return null;
+        }
+    }
+}
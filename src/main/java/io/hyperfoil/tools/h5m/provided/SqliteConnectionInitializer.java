@@ -1,24 +1,31 @@
 package io.hyperfoil.tools.h5m.provided;
 
 import io.agroal.api.AgroalPoolInterceptor;
+import io.quarkus.logging.Log;
 import jakarta.enterprise.context.ApplicationScoped;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 @ApplicationScoped
 public class SqliteConnectionInitializer implements AgroalPoolInterceptor {
 
+    // pragma auto_vacuum of a file that never returns pages to the file system
+    private static final int AUTO_VACUUM_NONE = 0;
+
     @Override
     public void onConnectionCreate(Connection connection) {
         try {
             if ("SQLite".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName())) {
                 try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("pragma busy_timeout=30000");
+                    // applies to a new database file only, an existing one is rebuilt by rebuildForIncrementalVacuum
+                    stmt.execute("pragma auto_vacuum=incremental");
                     stmt.execute("pragma journal_mode=WAL");
                     stmt.execute("pragma synchronous=normal");
                     stmt.execute("pragma temp_store=memory");
-                    stmt.execute("pragma busy_timeout=30000");
                 } catch (SQLException e) {
                     throw new RuntimeException("Failed to initialize SQLite connection", e);
                 }
@@ -26,4 +33,37 @@ public class SqliteConnectionInitializer implements AgroalPoolInterceptor {
         } catch (SQLException ignored) {
         }
     }
+
+    /**
+     * Whether the database file of {@code connection} returns the pages of deleted rows to the
+     * file system. A file created before new files used incremental vacuum does not.
+     */
+    public static boolean usesIncrementalVacuum(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("pragma auto_vacuum")) {
+            return rs.next() && rs.getInt(1) != AUTO_VACUUM_NONE;
+        }
+    }
+
+    /**
+     * Rebuilds a database file created before it used incremental vacuum, the mode of a file
+     * with tables only changes with a VACUUM. The rebuild rewrites the whole file and needs
+     * about as much free disk space again, so it is only run on request
+     * ({@code folder vacuum}). {@code connection} must not be in a transaction.
+     *
+     * @return false if the file already used incremental vacuum
+     */
+    public static boolean rebuildForIncrementalVacuum(Connection connection) throws SQLException {
+        if (usesIncrementalVacuum(connection)) {
+            return false;
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("pragma auto_vacuum=incremental");
+            stmt.execute("VACUUM");
+        }
+        if (!usesIncrementalVacuum(connection)) {
+            Log.warn("The SQLite database still does not use incremental vacuum after the rebuild");
+        }
+        return true;
+    }
 }
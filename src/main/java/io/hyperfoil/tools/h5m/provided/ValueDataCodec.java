@@ -0,0 +1,143 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stored format of compressed {@code value.data}. A compressed payload starts with {@link #MAGIC},
+ * which never starts UTF-8 JSON, followed by a format version, the ID of the
+ * {@code value_dictionary} row it was compressed with and a raw deflate stream using that
+ * dictionary as preset dictionary. Anything else is plain UTF-8 JSON, so compressed and
+ * uncompressed rows can be mixed in one table.
+ * <p>
+ * Dictionary IDs are the hash of the dictionary bytes, so a dictionary read once is cached for
+ * the lifetime of the JVM without ever going stale.
+ */
+public final class ValueDataCodec {
+
+    public static final byte MAGIC = 0x1F;
+    private static final byte VERSION = 1;
+    private static final int HEADER = 2 + Long.BYTES;
+
+    /** deflate only looks back 32KB, a longer preset dictionary is wasted */
+    public static final int MAX_DICTIONARY = 32 * 1024;
+
+    private static final Map<Long, byte[]> DICTIONARIES = new ConcurrentHashMap<>();
+
+    private ValueDataCodec() {}
+
+    public static boolean isCompressed(byte[] stored) {
+        return stored != null && stored.length > HEADER && stored[0] == MAGIC;
+    }
+
+    /**
+     * Builds a preset dictionary from sample payloads, most relevant last: deflate finds the
+     * strings at the end of the dictionary with the shortest back references.
+     */
+    public static byte[] dictionary(List<byte[]> samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] sample : samples) {
+            out.writeBytes(sample);
+        }
+        byte[] all = out.toByteArray();
+        if (all.length <= MAX_DICTIONARY) {
+            return all;
+        }
+        byte[] tail = new byte[MAX_DICTIONARY];
+        System.arraycopy(all, all.length - MAX_DICTIONARY, tail, 0, MAX_DICTIONARY);
+        return tail;
+    }
+
+    /**
+     * Compresses {@code json} with the dictionary {@code dictionaryId}.
+     */
+    public static byte[] compress(byte[] json, long dictionaryId, byte[] dictionary, int level) {
+        DICTIONARIES.putIfAbsent(dictionaryId, dictionary);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(json);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, json.length / 4));
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.writeBytes(ByteBuffer.allocate(Long.BYTES).putLong(dictionaryId).array());
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the UTF-8 JSON of a stored payload, loading dictionaries that are not cached yet
+     * with {@code dictionaries}.
+     */
+    public static byte[] decompress(byte[] stored, LongFunction<byte[]> dictionaries) {
+        if (!isCompressed(stored)) {
+            return stored;
+        }
+        if (stored[1] != VERSION) {
+            throw new IllegalStateException("Unknown value data format version " + stored[1]);
+        }
+        long dictionaryId = ByteBuffer.wrap(stored, 2, Long.BYTES).getLong();
+        byte[] dictionary = DICTIONARIES.get(dictionaryId);
+        if (dictionary == null) {
+            dictionary = dictionaries.apply(dictionaryId);
+            if (dictionary == null) {
+                throw new IllegalStateException("Missing value dictionary " + dictionaryId);
+            }
+            DICTIONARIES.put(dictionaryId, dictionary);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(stored, HEADER, stored.length - HEADER);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated value data for dictionary " + dictionaryId);
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt value data for dictionary " + dictionaryId, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * {@link #decompress} reading missing dictionaries with {@code connection}.
+     */
+    public static byte[] decompress(byte[] stored, Connection connection) {
+        return decompress(stored, id -> {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT data FROM value_dictionary WHERE id = ?")) {
+                ps.setLong(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getBytes(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to read value dictionary " + id, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,234 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out {@code value.id}s in blocks so that values can be inserted in batches.
+ * <p>
+ * Both {@link io.hyperfoil.tools.h5m.entity.ValueIdGenerator} (entities persisted
+ * through Hibernate) and the bulk insert path in
+ * {@link io.hyperfoil.tools.h5m.svc.ValueService#createAll} draw from the same
+ * allocator, so the two can never hand out the same ID.
+ * <ul>
+ *     <li>PostgreSQL: pooled sequence. Each {@code nextval('value_seq')} reserves the
+ *     {@code increment_by} IDs ending at the returned value, the same convention
+ *     Hibernate's pooled optimizer used for this sequence before.</li>
+ *     <li>SQLite: each block is reserved in the {@code id_block} row of {@code value},
+ *     written in the transaction that needs the IDs, so it holds the write lock of the
+ *     file and processes sharing the file (CLI commands, the daemon) reserve one after
+ *     the other. The reservation starts after {@code max(id)} as well, in case rows were
+ *     written without one. The table is created once at startup. Until its transaction
+ *     commits, a block only hands out IDs to that transaction; it is given up if the
+ *     transaction rolls back (or the savepoint of {@link #discard}), since the next
+ *     reservation may hand out the same IDs again. The blocks of other transactions are
+ *     not affected.</li>
+ * </ul>
+ * Unused IDs from a reserved block are lost on restart; gaps are harmless.
+ */
+@ApplicationScoped
+public class ValueIdAllocator {
+
+    static final String SEQUENCE = "value_seq";
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    TransactionSynchronizationRegistry transactions;
+
+    @Inject
+    AgroalDataSource dataSource;
+
+    @ConfigProperty(name = "h5m.value.id-block-size", defaultValue = "1000")
+    int sqliteBlockSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // reserved and committed, not yet handed out ranges as {first, last} (inclusive)
+    private final Deque<long[]> blocks = new ArrayDeque<>();
+    private long sequenceIncrement = 0;
+
+    void onStart(@Observes @Priority(0) StartupEvent ev) throws SQLException {
+        if (!db.isSQLite()) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            createBlockTable(connection);
+        }
+    }
+
+    /**
+     * Creates the {@code id_block} table of SQLite reservations, outside of a transaction that
+     * could roll it back.
+     */
+    void createBlockTable(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS id_block (name TEXT PRIMARY KEY, last_id INTEGER NOT NULL)");
+        }
+    }
+
+    /**
+     * Returns the next free ID, reserving a new block through {@code connection} if needed.
+     */
+    public long next(Connection connection) throws SQLException {
+        return allocate(connection, 1)[0];
+    }
+
+    /**
+     * Returns {@code count} free IDs, reserving as many blocks as needed with at most one
+     * database round trip.
+     */
+    public long[] allocate(Connection connection, int count) throws SQLException {
+        long[] ids = new long[count];
+        lock.lock();
+        try {
+            // blocks reserved by this transaction, or by this allocation if it cannot be watched
+            Deque<long[]> own = uncommittedBlocks(connection);
+            int filled = 0;
+            while (filled < count) {
+                Deque<long[]> from = own != null && !own.isEmpty() ? own : blocks;
+                long[] block = from.peekFirst();
+                if (block == null) {
+                    reserve(connection, count - filled, own);
+                    continue;
+                }
+                while (filled < count && block[0] <= block[1]) {
+                    ids[filled++] = block[0]++;
+                }
+                if (block[0] > block[1]) {
+                    from.pollFirst();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return ids;
+    }
+
+    /**
+     * Gives up the blocks reserved in the current transaction, after the work that reserved
+     * them was rolled back to a savepoint. Committed blocks stay.
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            @SuppressWarnings("unchecked")
+            Deque<long[]> own = transactions.getTransactionKey() == null ? null
+                    : (Deque<long[]>) transactions.getResource(ValueIdAllocator.class);
+            if (own != null) {
+                own.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns where the SQLite blocks reserved through {@code connection} go until they are
+     * committed, {@code null} if reservations commit at once (auto-commit, or PostgreSQL whose
+     * sequence never rolls back).
+     */
+    private Deque<long[]> uncommittedBlocks(Connection connection) throws SQLException {
+        if (!db.isSQLite() || connection.getAutoCommit()) {
+            return null;
+        }
+        if (transactions == null || transactions.getTransactionKey() == null) {
+            return new ArrayDeque<>();
+        }
+        @SuppressWarnings("unchecked")
+        Deque<long[]> own = (Deque<long[]>) transactions.getResource(ValueIdAllocator.class);
+        if (own != null) {
+            return own;
+        }
+        Deque<long[]> reserved = new ArrayDeque<>();
+        try {
+            transactions.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {}
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        lock.lock();
+                        try {
+                            blocks.addAll(reserved);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            });
+        } catch (IllegalStateException e) {
+            // the transaction is completing already, keep the blocks to this allocation
+            return reserved;
+        }
+        transactions.putResource(ValueIdAllocator.class, reserved);
+        return reserved;
+    }
+
+    private void reserve(Connection connection, int needed, Deque<long[]> own) throws SQLException {
+        switch (db.kind()) {
+            case SQLITE -> (own != null ? own : blocks).addLast(reserveSqlite(connection, needed));
+            case POSTGRESQL -> reservePostgres(connection, needed);
+        }
+    }
+
+    private long[] reserveSqlite(Connection connection, int needed) throws SQLException {
+        long size = Math.max(sqliteBlockSize, needed);
+        try (PreparedStatement ps = connection.prepareStatement("""
+                INSERT INTO id_block (name, last_id) VALUES ('value', (SELECT coalesce(max(id), 0) FROM value) + ?)
+                ON CONFLICT (name) DO UPDATE SET last_id = max(id_block.last_id, (SELECT coalesce(max(id), 0) FROM value)) + ?
+                """)) {
+            ps.setLong(1, size);
+            ps.setLong(2, size);
+            ps.executeUpdate();
+        }
+        long last;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT last_id FROM id_block WHERE name = 'value'")) {
+            rs.next();
+            last = rs.getLong(1);
+        }
+        return new long[]{last - size + 1, last};
+    }
+
+    private void reservePostgres(Connection connection, int needed) throws SQLException {
+        if (sequenceIncrement == 0) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE SEQUENCE IF NOT EXISTS " + SEQUENCE + " INCREMENT BY 50");
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT increment_by FROM pg_sequences WHERE sequencename = '" + SEQUENCE + "'")) {
+                    sequenceIncrement = rs.next() ? rs.getLong(1) : 1;
+                }
+            }
+        }
+        long count = (needed + sequenceIncrement - 1) / sequenceIncrement;
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT nextval('" + SEQUENCE + "') FROM generate_series(1, ?)")) {
+            ps.setLong(1, count);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long hi = rs.getLong(1);
+                    blocks.addLast(new long[]{Math.max(1, hi - sequenceIncrement + 1), hi});
+                }
+            }
+        }
+    }
+}
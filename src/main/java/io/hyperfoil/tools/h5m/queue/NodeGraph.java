@@ -0,0 +1,302 @@
+package io.hyperfoil.tools.h5m.queue;
+
+import io.hyperfoil.tools.h5m.api.EphemeralMode;
+import io.hyperfoil.tools.h5m.api.NodeType;
+
+import java.util.*;
+
+/**
+ * Immutable compiled form of the nodes of one node group, so the graph questions asked for every
+ * work item (what does a node depend on, which nodes use it, is its data discarded) are answered
+ * without touching the lazy {@code NodeEntity.sources} or the database. Nodes are kept in
+ * topological order (sources first) and addressed by their position in it; the ancestors of each
+ * node are a {@link BitSet} of positions. Positions are looked up by binary search in the sorted
+ * ids, so the lookups of every work item do not box the ids.
+ * <p>
+ * A graph is never changed: {@code NodeGraphs} compiles a new one with a higher {@link #version()}
+ * when nodes change. Sources outside of the group are not part of the graph.
+ */
+public final class NodeGraph {
+
+    public record Node(long id, NodeType type, EphemeralMode ephemeral) {}
+
+    /**
+     * {@code parent} is a source of {@code child}, edges of a child are in source order.
+     */
+    public record Edge(long child, long parent) {}
+
+    private static final int[] NONE = new int[0];
+
+    private final long groupId;
+    private final long version;
+    // topological order, sources before the nodes using them
+    private final long[] ids;
+    // node ids in ascending order and the position of each
+    private final long[] sortedIds;
+    private final int[] sortedPositions;
+    private final int[][] sources;
+    private final int[][] children;
+    private final BitSet[] ancestors;
+    private final boolean[] ephemeral;
+
+    public NodeGraph(long groupId, long version, List<Node> nodes, List<Edge> edges) {
+        this.groupId = groupId;
+        this.version = version;
+        int size = nodes.size();
+        Map<Long, Integer> loaded = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            loaded.put(nodes.get(i).id(), i);
+        }
+        List<List<Integer>> loadedSources = new ArrayList<>(size);
+        List<List<Integer>> loadedChildren = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            loadedSources.add(new ArrayList<>(2));
+            loadedChildren.add(new ArrayList<>(2));
+        }
+        for (Edge edge : edges) {
+            Integer child = loaded.get(edge.child());
+            Integer parent = loaded.get(edge.parent());
+            if (child != null && parent != null) {
+                loadedSources.get(child).add(parent);
+                loadedChildren.get(parent).add(child);
+            }
+        }
+
+        // Kahn's algorithm, ties keep the order of the nodes
+        int[] order = new int[size];
+        int[] inDegree = new int[size];
+        Queue<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < size; i++) {
+            inDegree[i] = loadedSources.get(i).size();
+            if (inDegree[i] == 0) {
+                ready.add(i);
+            }
+        }
+        int sorted = 0;
+        while (!ready.isEmpty()) {
+            int node = ready.poll();
+            order[sorted++] = node;
+            for (int child : loadedChildren.get(node)) {
+                if (--inDegree[child] == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        if (sorted != size) {
+            throw new IllegalStateException("Cycle detected in the nodes of group " + groupId);
+        }
+
+        int[] position = new int[size];
+        for (int i = 0; i < size; i++) {
+            position[order[i]] = i;
+        }
+        ids = new long[size];
+        sources = new int[size][];
+        children = new int[size][];
+        ancestors = new BitSet[size];
+        ephemeral = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            int node = order[i];
+            ids[i] = nodes.get(node).id();
+            sources[i] = toPositions(loadedSources.get(node), position, false);
+            children[i] = toPositions(loadedChildren.get(node), position, true);
+            BitSet found = new BitSet(size);
+            for (int source : sources[i]) {
+                found.or(ancestors[source]);
+                found.set(source);
+            }
+            ancestors[i] = found;
+        }
+        for (int i = 0; i < size; i++) {
+            ephemeral[i] = isEphemeral(nodes.get(order[i]), children[i], nodes, order);
+        }
+        sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        sortedPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedPositions[Arrays.binarySearch(sortedIds, ids[i])] = i;
+        }
+    }
+
+    // position of nodeId in the topological order, -1 when it is not in the graph
+    private int position(long nodeId) {
+        int found = Arrays.binarySearch(sortedIds, nodeId);
+        return found < 0 ? -1 : sortedPositions[found];
+    }
+
+    private static int[] toPositions(List<Integer> nodes, int[] position, boolean sort) {
+        if (nodes.isEmpty()) {
+            return NONE;
+        }
+        int[] rtrn = new int[nodes.size()];
+        for (int i = 0; i < rtrn.length; i++) {
+            rtrn[i] = position[nodes.get(i)];
+        }
+        if (sort) {
+            Arrays.sort(rtrn);
+        }
+        return rtrn;
+    }
+
+    // same rule as the query in NodeService.isEphemeral
+    private static boolean isEphemeral(Node node, int[] children, List<Node> nodes, int[] order) {
+        if (node.type() == NodeType.ROOT || (node.type() != null && node.type().isAnalysis())) {
+            return false;
+        }
+        EphemeralMode mode = node.ephemeral() == null ? EphemeralMode.AUTO : node.ephemeral();
+        if (mode == EphemeralMode.DISCARD) {
+            return true;
+        }
+        if (mode != EphemeralMode.AUTO) {
+            return false;
+        }
+        for (int child : children) {
+            NodeType type = nodes.get(order[child]).type();
+            if (type == null || !type.isAnalysis()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long groupId() {
+        return groupId;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean contains(Long nodeId) {
+        return nodeId != null && position(nodeId) >= 0;
+    }
+
+    /**
+     * Node ids in topological order, the sources of a node come before it.
+     */
+    public List<Long> topologicalOrder() {
+        return Arrays.stream(ids).boxed().toList();
+    }
+
+    /**
+     * Sources of {@code nodeId} in source order, empty when the node is not in the graph.
+     */
+    public List<Long> sources(long nodeId) {
+        int position = position(nodeId);
+        return position < 0 ? List.of() : ids(sources[position]);
+    }
+
+    /**
+     * Nodes using {@code nodeId} as a source in topological order, empty when the node is not in
+     * the graph.
+     */
+    public List<Long> children(long nodeId) {
+        int position = position(nodeId);
+        return position < 0 ? List.of() : ids(children[position]);
+    }
+
+    /**
+     * Whether {@code nodeId} transitively depends on {@code ancestorId}.
+     */
+    public boolean dependsOn(long nodeId, long ancestorId) {
+        int node = position(nodeId);
+        int ancestor = position(ancestorId);
+        return node >= 0 && ancestor >= 0 && ancestors[node].get(ancestor);
+    }
+
+    /**
+     * Union of the ancestors of {@code nodeIds}, to be tested with {@link #isIn}, or {@code null}
+     * when a node is not in the graph. The set of a single node is the one of the graph, shared by
+     * all the work for that node, and must not be modified.
+     */
+    public BitSet ancestors(long... nodeIds) {
+        if (nodeIds.length == 1) {
+            int position = position(nodeIds[0]);
+            return position < 0 ? null : ancestors[position];
+        }
+        BitSet rtrn = new BitSet(ids.length);
+        for (long nodeId : nodeIds) {
+            int position = position(nodeId);
+            if (position < 0) {
+                return null;
+            }
+            rtrn.or(ancestors[position]);
+        }
+        return rtrn;
+    }
+
+    /**
+     * {@link #ancestors(long...)} of {@code nodeIds}, {@code null} when one of them is {@code null}.
+     */
+    public BitSet ancestors(Collection<Long> nodeIds) {
+        long[] found = new long[nodeIds.size()];
+        int i = 0;
+        for (Long nodeId : nodeIds) {
+            if (nodeId == null) {
+                return null;
+            }
+            found[i++] = nodeId;
+        }
+        return ancestors(found);
+    }
+
+    /**
+     * Whether {@code nodeId} is in a set returned by {@link #ancestors(long...)} of this graph.
+     */
+    public boolean isIn(BitSet nodes, long nodeId) {
+        int position = position(nodeId);
+        return position >= 0 && nodes.get(position);
+    }
+
+    /**
+     * Whether the data of {@code nodeId} is discarded once its dependents are calculated: not a
+     * root or analysis node, and either {@link EphemeralMode#DISCARD} or {@link EphemeralMode#AUTO}
+     * with a child that is not an analysis node.
+     */
+    public boolean isEphemeral(long nodeId) {
+        int position = position(nodeId);
+        return position >= 0 && ephemeral[position];
+    }
+
+    /**
+     * The ephemeral nodes that have to be calculated again before {@code nodeId} can be: its
+     * ephemeral sources, their ephemeral sources and so on.
+     */
+    public Set<Long> ephemeralSources(long nodeId) {
+        int position = position(nodeId);
+        if (position < 0) {
+            return Set.of();
+        }
+        Set<Long> rtrn = new LinkedHashSet<>();
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int source : sources[position]) {
+            queue.add(source);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            if (ephemeral[node] && rtrn.add(ids[node])) {
+                for (int source : sources[node]) {
+                    queue.add(source);
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private List<Long> ids(int[] nodePositions) {
+        List<Long> rtrn = new ArrayList<>(nodePositions.length);
+        for (int position : nodePositions) {
+            rtrn.add(ids[position]);
+        }
+        return rtrn;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeGraph<" + groupId + ">[ version=" + version + " nodes=" + ids.length + " ]";
+    }
+}
@@ -6,15 +6,17 @@ import io.hyperfoil.tools.h5m.api.Folder;
 import io.hyperfoil.tools.h5m.api.FolderSummary;
 import io.hyperfoil.tools.h5m.api.Processing;
 import io.hyperfoil.tools.h5m.api.svc.FolderServiceInterface;
-import io.hyperfoil.tools.h5m.api.svc.ValueServiceInterface;
 import io.hyperfoil.tools.h5m.api.svc.ProcessingServiceInterface;
+import io.hyperfoil.tools.h5m.svc.ValueService;
 import io.quarkus.runtime.configuration.MemorySize;
 import io.quarkus.security.Authenticated;
 import jakarta.annotation.security.PermitAll;
+import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import jakarta.validation.constraints.NotNull;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
@@ -47,7 +49,7 @@ public class FolderResource {
     FolderServiceInterface folderService;
 
     @Inject
-    ValueServiceInterface valueService;
+    ValueService valueService;
 
     @Inject
     ProcessingServiceInterface processingService;
@@ -83,6 +85,14 @@ public class FolderResource {
         return folderService.getFolderUploadCount();
     }
 
+    @POST
+    @Path("stats/rebuild")
+    @RolesAllowed("admin")
+    @Operation(description = "Recount the upload, node and change statistics of every folder")
+    public int rebuildStats() {
+        return folderService.rebuildStats();
+    }
+
     @POST
     @Authenticated
     @Operation(description = "Create a new folder")
@@ -156,16 +166,54 @@ public class FolderResource {
         return folderService.structure(id);
     }
 
+    @POST
+    @Path("{id}/structure/rebuild")
+    @Authenticated
+    @Operation(description = "Rebuild the structure of a folder from its uploads, optionally from a sample of the most recent ones")
+    public JqValue rebuildStructure(@PathParam("id") long id, @QueryParam("sample") Integer sample) {
+        return folderService.rebuildStructure(id, sample);
+    }
+
+    @POST
+    @Path("{id}/compress")
+    @RolesAllowed("admin")
+    @Operation(description = "Rewrite the stored uploads of a folder with a dictionary trained from its recent uploads")
+    public int compress(@PathParam("id") long id) {
+        return folderService.compress(id);
+    }
+
+    @PUT
+    @Path("{id}/retention")
+    @RolesAllowed("admin")
+    @Operation(description = "Set how long the upload payloads of a folder stay in the database before they are archived, by age in days and/or number of most recent uploads")
+    public void setRetention(@PathParam("id") long id, @QueryParam("days") Integer days, @QueryParam("uploads") Integer uploads) {
+        folderService.setRetention(id, days, uploads);
+    }
+
+    @POST
+    @Path("{id}/archive")
+    @RolesAllowed("admin")
+    @Operation(description = "Archive the upload payloads of a folder that are outside of its retention policy now")
+    public int archive(@PathParam("id") long id) {
+        return folderService.archive(id);
+    }
+
     @GET
     @Path("{id}/labelValues")
     @PermitAll
-    @Operation(description = "Get metrics labels Values")
-    public List<JqValue>getLabelValues(
+    @Operation(description = "Get metrics labels Values. With limit, rows are paged in upload order and carry their _rootId for the after cursor")
+    public StreamingOutput getLabelValues(
                     @PathParam("id") Long folderId,
                     @QueryParam("groupById") Long groupById,
                     @QueryParam("nodeIds") List<Long> nodeIds,
-                    @QueryParam("sortById") Long sortById)
+                    @QueryParam("sortById") Long sortById,
+                    @QueryParam("after") Long after,
+                    @QueryParam("limit") Integer limit)
             {
-                return valueService.getLabelValues(folderId, groupById,nodeIds,sortById);
+                Long rootNodeId = valueService.getFolderRootNodeId(folderId);
+                if (after != null && sortById != null) {
+                    throw new BadRequestException("after can only be used without sortById");
+                }
+                return new JsonRows(rows -> valueService.streamLabelValues(rootNodeId, groupById, nodeIds, sortById, after, limit, rows), limit != null);
             }
 }
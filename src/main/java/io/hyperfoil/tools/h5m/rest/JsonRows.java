@@ -0,0 +1,73 @@
+package io.hyperfoil.tools.h5m.rest;
+
+import io.hyperfoil.tools.h5m.svc.ValueService;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Writes grouped rows as a JSON array while they are read from the database, so the response
+ * does not hold the whole result in memory and the first row is sent as soon as it is read.
+ * The rows are already JSON text and are copied without parsing.
+ * <p>
+ * For paged requests each row also gets a {@code _rootId} field: the ID of its upload, to be
+ * passed back as {@code after} for the next page.
+ */
+final class JsonRows implements StreamingOutput {
+
+    private final Consumer<Consumer<ValueService.JsonRow>> source;
+    private final boolean withRootId;
+
+    JsonRows(Consumer<Consumer<ValueService.JsonRow>> source, boolean withRootId) {
+        this.source = source;
+        this.withRootId = withRootId;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        writer.write('[');
+        int[] count = {0};
+        try {
+            source.accept(row -> {
+                try {
+                    if (count[0]++ > 0) {
+                        writer.write(',');
+                    }
+                    writeRow(writer, row);
+                    if (count[0] == 1) {
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    private void writeRow(Writer writer, ValueService.JsonRow row) throws IOException {
+        String json = row.json();
+        if (!withRootId || !json.startsWith("{")) {
+            writer.write(json);
+            return;
+        }
+        writer.write("{\"_rootId\":");
+        writer.write(Long.toString(row.rootId()));
+        // json is at least "{}"
+        if (json.length() > 2) {
+            writer.write(',');
+        }
+        writer.write(json, 1, json.length() - 1);
+    }
+}
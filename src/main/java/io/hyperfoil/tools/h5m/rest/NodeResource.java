@@ -5,7 +5,6 @@ import io.hyperfoil.tools.h5m.api.Node;
 import io.hyperfoil.tools.h5m.api.NodeType;
 import io.hyperfoil.tools.h5m.api.Processing;
 import io.hyperfoil.tools.h5m.api.node.NodeConfiguration;
-import io.hyperfoil.tools.h5m.api.svc.NodeServiceInterface;
 import io.hyperfoil.tools.h5m.api.svc.ProcessingServiceInterface;
 import io.hyperfoil.tools.h5m.entity.FolderEntity;
 import io.hyperfoil.tools.h5m.entity.NodeEntity;
@@ -14,6 +13,7 @@ import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
 import io.hyperfoil.tools.h5m.entity.mapper.CycleAvoidingContext;
 import io.hyperfoil.tools.h5m.svc.NodeService;
 import io.hyperfoil.tools.h5m.svc.ValueService;
+import io.hyperfoil.tools.h5m.svc.ViewService;
 import io.quarkus.security.Authenticated;
 import jakarta.annotation.security.PermitAll;
 import jakarta.inject.Inject;
@@ -36,10 +36,7 @@ import java.util.Objects;
 public class NodeResource {
 
     @Inject
-    NodeServiceInterface nodeService;
-
-    @Inject
-    NodeService nodeServiceImpl; // for update() which is not on the interface
+    NodeService nodeService;
 
     @Inject
     ProcessingServiceInterface processingService;
@@ -47,6 +44,9 @@ public class NodeResource {
     @Inject
     ValueService valueService;
 
+    @Inject
+    ViewService viewService;
+
     @Inject
     ApiMapper apiMapper;
 
@@ -102,7 +102,7 @@ public class NodeResource {
         if (operation != null) {
             existing.operation = newOperation;
         }
-        nodeServiceImpl.update(existing);
+        nodeService.update(existing);
 
         if (operationChanged && existing.group != null) {
             processingService.recalculateNode(id);
@@ -156,6 +156,7 @@ public class NodeResource {
                     : 0;
             if (inFlight == 0) {
                 valueService.nullifyNodeData(nodeId);
+                viewService.rebuildViews(List.of(nodeId));
             }
             // If ingestion is in progress, data will be nullified when it completes
             // via nullifyEphemeralData() in the afterCleanup callback
@@ -2,7 +2,6 @@ package io.hyperfoil.tools.h5m.rest;
 
 import io.hyperfoil.tools.jjq.value.JqValue;
 import io.hyperfoil.tools.h5m.api.Value;
-import io.hyperfoil.tools.h5m.api.svc.ValueServiceInterface;
 import io.hyperfoil.tools.h5m.entity.ValueEntity;
 import io.hyperfoil.tools.h5m.svc.ValueService;
 import jakarta.annotation.security.PermitAll;
@@ -10,6 +9,7 @@ import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
@@ -21,10 +21,8 @@ import java.util.List;
 public class ValueResource {
 
     @Inject
-    ValueServiceInterface valueService;
+    ValueService valueService;
 
-    @Inject
-    ValueService valueServiceImpl;
 
     @DELETE
     @RolesAllowed("admin")
@@ -38,7 +36,7 @@ public class ValueResource {
     @PermitAll
     @Operation(description = "Get a value's data by its ID")
     public JqValue getValueData(@PathParam("id") Long id) {
-        JqValue data = valueServiceImpl.getValueData(id);
+        JqValue data = valueService.getValueData(id);
         if (data == null) {
             throw new NotFoundException("Value not found: " + id);
         }
@@ -54,17 +52,17 @@ public class ValueResource {
             @PathParam("id") Long id,
             @QueryParam("detection") @DefaultValue("false") boolean detectionOnly,
             @QueryParam("node") List<Long> nodes) {
-        if(valueServiceImpl.byId(id) == null){
+        if(valueService.byId(id) == null){
             throw new  NotFoundException("Value not found: " + id);
         }
         if (detectionOnly) {
-            return valueServiceImpl.getDetectionDescendants(id);
+            return valueService.getDetectionDescendants(id);
         }
         if (nodes != null && !nodes.isEmpty()) {
-            return valueServiceImpl.getDescendantValues(id,nodes);
+            return valueService.getDescendantValues(id,nodes);
         }
         // General descendants — delegate to ValueService
-        return valueServiceImpl.getAllDescendants(id);
+        return valueService.getAllDescendants(id);
     }
 
     @GET
@@ -78,9 +76,11 @@ public class ValueResource {
     @GET
     @Path("node/{nodeId}/grouped")
     @PermitAll
-    @Operation(description = "Get grouped values for a specific node")
-    public List<JqValue> getGroupedValues(@PathParam("nodeId") Long nodeId) {
-        return valueService.getGroupedValues(nodeId);
+    @Operation(description = "Get grouped values for a specific node. With limit, rows are paged in upload order and carry their _rootId for the after cursor")
+    public StreamingOutput getGroupedValues(@PathParam("nodeId") Long nodeId,
+                                            @QueryParam("after") Long after,
+                                            @QueryParam("limit") Integer limit) {
+        return new JsonRows(rows -> valueService.streamGroupedValues(nodeId, null, null, after, limit, rows), limit != null);
     }
 
     @GET
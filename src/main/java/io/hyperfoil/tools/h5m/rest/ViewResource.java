@@ -1,13 +1,13 @@
 package io.hyperfoil.tools.h5m.rest;
 
-import io.hyperfoil.tools.jjq.value.JqValue;
 import io.hyperfoil.tools.h5m.api.View;
-import io.hyperfoil.tools.h5m.api.svc.ViewServiceInterface;
+import io.hyperfoil.tools.h5m.svc.ViewService;
 import io.quarkus.security.Authenticated;
 import jakarta.annotation.security.PermitAll;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
@@ -19,7 +19,8 @@ import java.util.List;
 public class ViewResource {
 
     @Inject
-    ViewServiceInterface viewService;
+    ViewService viewService;
+
 
     @GET
     @Path("/")
@@ -63,8 +64,14 @@ public class ViewResource {
     @GET
     @Path("/{viewId}/data")
     @PermitAll
-    @Operation(description = "Get filtered pivoted data for a view")
-    public List<JqValue> getViewData(@PathParam("folderId") long folderId, @PathParam("viewId") Long viewId) {
-        return viewService.getViewData(folderId, viewId);
+    @Operation(description = "Get filtered pivoted data for a view. With limit, rows are paged in upload order and carry their _rootId for the after cursor")
+    public StreamingOutput getViewData(@PathParam("folderId") long folderId, @PathParam("viewId") Long viewId,
+                                       @QueryParam("after") Long after, @QueryParam("limit") Integer limit) {
+        boolean hasData = viewService.prepareViewData(folderId, viewId);
+        return new JsonRows(rows -> {
+            if (hasData) {
+                viewService.streamViewData(viewId, after, limit, rows);
+            }
+        }, limit != null);
     }
 }
@@ -1,8 +1,7 @@
 package io.hyperfoil.tools.h5m.server;
 
 import io.hyperfoil.tools.h5m.api.Role;
-import io.hyperfoil.tools.h5m.api.User;
-import io.hyperfoil.tools.h5m.svc.UserService;
+import io.hyperfoil.tools.h5m.svc.AuthorizationService;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -17,7 +16,7 @@ import org.eclipse.microprofile.jwt.JsonWebToken;
 public class H5mRolesAugmentor implements SecurityIdentityAugmentor {
 
     @Inject
-    UserService userService;
+    AuthorizationService authService;
 
     @Override
     public Uni<SecurityIdentity> augment(SecurityIdentity identity, AuthenticationRequestContext context) {
@@ -28,16 +27,16 @@ public class H5mRolesAugmentor implements SecurityIdentityAugmentor {
     }
 
     private SecurityIdentity addRoles(SecurityIdentity identity) {
-        User user = switch (identity.getPrincipal()) {
-            case JsonWebToken jwt -> userService.bySub(jwt.getSubject(), jwt.getIssuer());
-            default -> userService.byUsername(identity.getPrincipal().getName());
+        String username = switch (identity.getPrincipal()) {
+            case JsonWebToken jwt -> authService.usernameOfSubject(jwt.getSubject(), jwt.getIssuer());
+            default -> identity.getPrincipal().getName();
         };
-        if (user == null) {
+        if (username == null || !authService.isKnownUser(username)) {
             return identity;
         }
         QuarkusSecurityIdentity.Builder builder = QuarkusSecurityIdentity.builder(identity);
         builder.addRole("user");
-        if (user.role() == Role.ADMIN) {
+        if (authService.roleOf(username) == Role.ADMIN) {
             builder.addRole("admin");
         }
         return builder.build();
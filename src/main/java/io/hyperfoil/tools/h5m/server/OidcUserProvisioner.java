@@ -1,6 +1,7 @@
 package io.hyperfoil.tools.h5m.server;
 
 import io.hyperfoil.tools.h5m.api.Role;
+import io.hyperfoil.tools.h5m.svc.AuthorizationService;
 import io.hyperfoil.tools.h5m.svc.UserService;
 import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -20,6 +21,9 @@ public class OidcUserProvisioner implements SecurityIdentityAugmentor {
     @Inject
     UserService userService;
 
+    @Inject
+    AuthorizationService authService;
+
     @Override
     public Uni<SecurityIdentity> augment(SecurityIdentity identity, AuthenticationRequestContext context) {
         if (identity.isAnonymous()) {
@@ -38,7 +42,7 @@ public class OidcUserProvisioner implements SecurityIdentityAugmentor {
     private SecurityIdentity provisionOidc(SecurityIdentity identity, JsonWebToken jwt) {
         String sub = jwt.getSubject();
         String iss = jwt.getIssuer();
-        if (userService.bySub(sub, iss) != null) {
+        if (authService.isKnownSubject(sub, iss)) {
             return identity;
         }
         String username = jwt.getClaim("preferred_username");
@@ -56,7 +60,7 @@ public class OidcUserProvisioner implements SecurityIdentityAugmentor {
 
     private SecurityIdentity provisionByUsername(SecurityIdentity identity) {
         String username = identity.getPrincipal().getName();
-        if (userService.byUsername(username) != null) {
+        if (authService.isKnownUser(username)) {
             return identity;
         }
         Role role = userService.count() == 0 ? Role.ADMIN : Role.USER;
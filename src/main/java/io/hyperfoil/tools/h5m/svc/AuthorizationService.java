@@ -1,54 +1,105 @@
 package io.hyperfoil.tools.h5m.svc;
 
 import io.hyperfoil.tools.h5m.api.Role;
-import io.hyperfoil.tools.h5m.api.User;
 import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.event.AuthorizationChangedEvent;
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.event.TransactionPhase;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
-import jakarta.transaction.Transactional;
+import jakarta.transaction.TransactionSynchronizationRegistry;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers authorization questions from an immutable in-memory snapshot of users
+ * and team memberships.
+ * <p>
+ * The snapshot is loaded lazily on first use and discarded whenever an
+ * {@link AuthorizationChangedEvent} is fired by {@link UserService} or {@link TeamService}.
+ * Checks are plain map lookups against a volatile reference, so they take no lock.
+ * <p>
+ * Every change also bumps the shared {@code authorization} counter of {@link CacheVersions} in
+ * the changing transaction. A snapshot older than {@code h5m.security.snapshot-recheck} compares
+ * the counter with the one it was loaded under and reloads if another instance sharing the
+ * database changed users or teams, so a revoked role or membership is dropped everywhere within
+ * that interval.
+ * <p>
+ * A transaction that changed authorization data loads a snapshot of its own uncommitted state
+ * for each check and never publishes it to other callers.
+ */
 @ApplicationScoped
 public class AuthorizationService {
 
+    /**
+     * Point-in-time view of the authorization data.
+     *
+     * @param roles        role by username
+     * @param subjects     username by OIDC identity, keyed by {@link #subjectKey(String, String)}
+     * @param memberships  team IDs by member username
+     * @param generation   value of the invalidation counter when loading started
+     * @param version      value of the shared counter the snapshot was loaded under
+     * @param checkedAt    {@link System#nanoTime()} when the shared counter was last compared
+     */
+    record Snapshot(Map<String, Role> roles, Map<String, String> subjects,
+                    Map<String, Set<Long>> memberships, long generation, long version, long checkedAt) {
+
+        Snapshot checked(long at) {
+            return new Snapshot(roles, subjects, memberships, generation, version, at);
+        }
+    }
+
+    // name of the shared counter in cache_version
+    static final String VERSION = "authorization";
+
     @ConfigProperty(name = "h5m.security.enabled", defaultValue = "false")
     boolean securityEnabled;
 
-    @Inject
-    UserService userService;
+    @ConfigProperty(name = "h5m.security.snapshot-recheck", defaultValue = "PT1S")
+    Duration recheck;
 
     @Inject
     EntityManager em;
 
+    @Inject
+    CacheVersions versions;
+
+    @Inject
+    TransactionSynchronizationRegistry registry;
+
+    // Bumped on every change; a snapshot loaded under an older generation is
+    // ignored, so a slow reload racing with a change can never be served.
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Snapshot snapshot;
+
     public boolean isLocalMode() {
         return !securityEnabled;
     }
 
-    @Transactional
     public boolean isAdmin(String username) {
         if (isLocalMode()) {
             return true;
         }
-        User user = userService.byUsername(username);
-        return user != null && user.role() == Role.ADMIN;
+        return snapshot().roles().get(username) == Role.ADMIN;
     }
 
-    @Transactional
     public boolean isMemberOfTeam(String username, long teamId) {
         if (isLocalMode()) {
             return true;
         }
-        Long count = em.createQuery(
-                "SELECT COUNT(m) FROM team t JOIN t.members m WHERE t.id = :teamId AND m.username = :username",
-                Long.class)
-                .setParameter("teamId", teamId)
-                .setParameter("username", username)
-                .getSingleResult();
-        return count > 0;
+        return snapshot().memberships().getOrDefault(username, Set.of()).contains(teamId);
     }
 
-    @Transactional
     public boolean canModifyFolder(String username, FolderEntity folder) {
         if (isLocalMode()) {
             return true;
@@ -62,6 +113,34 @@ public class AuthorizationService {
         return isMemberOfTeam(username, folder.team.id);
     }
 
+    /**
+     * Returns the role of a known user, or {@code null} if no user has that username.
+     */
+    public Role roleOf(String username) {
+        return snapshot().roles().get(username);
+    }
+
+    /**
+     * Returns the username provisioned for an OIDC subject and issuer, or {@code null} if there is none.
+     */
+    public String usernameOfSubject(String sub, String iss) {
+        return snapshot().subjects().get(subjectKey(sub, iss));
+    }
+
+    /**
+     * Returns true if a user with the given username has already been provisioned.
+     */
+    public boolean isKnownUser(String username) {
+        return snapshot().roles().containsKey(username);
+    }
+
+    /**
+     * Returns true if a user with the given OIDC subject and issuer has already been provisioned.
+     */
+    public boolean isKnownSubject(String sub, String iss) {
+        return snapshot().subjects().containsKey(subjectKey(sub, iss));
+    }
+
     public void requireAdmin(String username) {
         if (!isAdmin(username)) {
             throw new SecurityException("Admin access required");
@@ -74,4 +153,89 @@ public class AuthorizationService {
                     "User " + username + " is not a member of team " + folder.team.name);
         }
     }
+
+    /**
+     * Discards the current snapshot. Called by test infrastructure after database
+     * truncation, which bypasses the services that fire change events.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Discards the snapshot as soon as a change is made and bumps the shared counter in the
+     * changing transaction. Later checks in the same transaction load its uncommitted state
+     * without publishing it.
+     */
+    void onAuthorizationChanged(@Observes AuthorizationChangedEvent event) {
+        invalidate();
+        if (registry.getTransactionKey() != null) {
+            registry.putResource(AuthorizationService.class, Boolean.TRUE);
+        }
+        QuarkusTransaction.joiningExisting().run(() -> versions.bump(VERSION));
+    }
+
+    /**
+     * Discards the snapshot again once the changing transaction ends, in case
+     * another caller reloaded it from uncommitted or rolled-back state meanwhile.
+     */
+    void afterAuthorizationChanged(@Observes(during = TransactionPhase.AFTER_COMPLETION) AuthorizationChangedEvent event) {
+        invalidate();
+    }
+
+    private Snapshot snapshot() {
+        if (changedInTransaction()) {
+            return load(generation.get(), -1, System.nanoTime());
+        }
+        Snapshot current = snapshot;
+        long now = System.nanoTime();
+        if (current == null || current.generation() != generation.get() || now - current.checkedAt() >= recheck.toNanos()) {
+            long loading = generation.get();
+            Snapshot known = current;
+            current = QuarkusTransaction.joiningExisting().call(() -> {
+                // the counter is read first, so the data loaded after it is at least as new
+                long version = versions.read(VERSION);
+                if (known != null && known.generation() == loading && known.version() == version) {
+                    return known.checked(now);
+                }
+                return load(loading, version, now);
+            });
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private boolean changedInTransaction() {
+        return registry.getTransactionKey() != null && registry.getResource(AuthorizationService.class) != null;
+    }
+
+    private Snapshot load(long loading, long version, long checkedAt) {
+        Map<String, Role> roles = new HashMap<>();
+        Map<String, String> subjects = new HashMap<>();
+        List<Object[]> users = em.createQuery(
+                "SELECT u.username, u.sub, u.iss, u.role FROM h5m_user u", Object[].class)
+                .getResultList();
+        for (Object[] row : users) {
+            roles.put((String) row[0], (Role) row[3]);
+            if (row[1] != null) {
+                subjects.put(subjectKey((String) row[1], (String) row[2]), (String) row[0]);
+            }
+        }
+
+        Map<String, Set<Long>> memberships = new HashMap<>();
+        List<Object[]> members = em.createQuery(
+                "SELECT m.username, t.id FROM team t JOIN t.members m", Object[].class)
+                .getResultList();
+        for (Object[] row : members) {
+            memberships.computeIfAbsent((String) row[0], k -> new HashSet<>()).add((Long) row[1]);
+        }
+        memberships.replaceAll((username, teams) -> Set.copyOf(teams));
+
+        return new Snapshot(Collections.unmodifiableMap(roles), Map.copyOf(subjects),
+                Map.copyOf(memberships), loading, version, checkedAt);
+    }
+
+    private static String subjectKey(String sub, String iss) {
+        return sub + '\n' + iss;
+    }
 }
@@ -0,0 +1,53 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Shared change counters in {@code cache_version} for the in-memory caches that instances sharing
+ * a database keep ({@link AuthorizationService}, {@link NodeGraphs} in cluster mode). A change bumps the counter
+ * of its cache in the transaction that makes it, so the new value is visible exactly when the
+ * change is. A cache remembers the counter it was loaded under and reloads once it differs.
+ * <p>
+ * The rows are written over JDBC: a native DML query would evict the second-level cache.
+ */
+@ApplicationScoped
+public class CacheVersions {
+
+    @Inject
+    EntityManager em;
+
+    /**
+     * Current counter of {@code name}, 0 until it is first bumped.
+     */
+    long read(String name) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT version FROM cache_version WHERE name = ?")) {
+                ps.setString(1, name);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }
+        });
+    }
+
+    /**
+     * Bumps the counter of {@code name} in the current transaction.
+     */
+    void bump(String name) {
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    INSERT INTO cache_version (name, version) VALUES (?, 1)
+                    ON CONFLICT (name) DO UPDATE SET version = cache_version.version + 1
+                    """)) {
+                ps.setString(1, name);
+                ps.executeUpdate();
+            }
+        });
+    }
+}
@@ -0,0 +1,319 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.agroal.api.AgroalDataSource;
+import io.hyperfoil.tools.h5m.entity.FolderDeletionEntity;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.SqliteConnectionInitializer;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.RollbackException;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims the rows of deleted folders in the background. {@link FolderService#delete} only
+ * tombstones a folder ({@link #tombstone}), so the delete returns at once however many values
+ * the folder has. A reaper thread then deletes the folder's uploads and everything calculated
+ * from them {@code h5m.folder-reaper.batch-size} uploads at a time, each batch in short
+ * transactions of its own, and pauses {@code h5m.folder-reaper.pause} between batches so the
+ * deletion does not starve other writers. With partitioned values (see {@link ValuePartitions}) the
+ * folder's partitions are dropped instead. The views, the archived uploads and the folder row go last.
+ * <p>
+ * Progress is kept in {@code folder_deletion}, and the values still in the database are the
+ * work left, so a deletion interrupted by a restart resumes where it stopped.
+ * <p>
+ * The command line exits before the reaper thread gets far, so it reclaims deleted folders on
+ * its own thread instead ({@link #reap}, {@link #reapAll}).
+ * <p>
+ * A SQLite file created before new files used incremental vacuum keeps the pages of reclaimed
+ * folders until it is rebuilt once on request ({@link #vacuum}).
+ */
+@ApplicationScoped
+public class FolderReaper {
+
+    // how long an idle reaper waits before looking for tombstones written by another instance
+    private static final Duration IDLE_POLL = Duration.ofMinutes(1);
+
+    @ConfigProperty(name = "h5m.folder-reaper.batch-size", defaultValue = "100")
+    int batchSize;
+
+    @ConfigProperty(name = "h5m.folder-reaper.pause", defaultValue = "PT0.1S")
+    Duration pause;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    ValueService valueService;
+
+    @Inject
+    ValueBlobs blobs;
+
+    @Inject
+    UploadArchive archive;
+
+    @Inject
+    ValuePartitions partitions;
+
+    @Inject
+    AgroalDataSource dataSource;
+
+    private final Semaphore wakeUp = new Semaphore(0);
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    void onStart(@Observes @Priority(3) StartupEvent ev) {
+        if (db.isSQLite()) {
+            try (Connection connection = dataSource.getConnection()) {
+                if (!SqliteConnectionInitializer.usesIncrementalVacuum(connection)) {
+                    Log.warn("The SQLite database keeps the space of deleted folders, run 'folder vacuum' once to rebuild it");
+                }
+            } catch (SQLException e) {
+                Log.debugf(e, "Could not read the vacuum mode of the SQLite database");
+            }
+        }
+        start();
+    }
+
+    /**
+     * Rebuilds a SQLite file that does not return the pages of deleted folders to the file system
+     * yet. The rebuild rewrites the whole file, takes the write lock until it is done and needs
+     * about the size of the file in free disk space.
+     *
+     * @return false if there was nothing to rebuild
+     */
+    public boolean vacuum() {
+        if (!db.isSQLite()) {
+            return false;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            if (SqliteConnectionInitializer.usesIncrementalVacuum(connection)) {
+                return false;
+            }
+            long pages = pageCount(connection);
+            Log.infof("Rebuilding the SQLite database (%d pages), this needs about as much free disk space again", pages);
+            long start = System.nanoTime();
+            SqliteConnectionInitializer.rebuildForIncrementalVacuum(connection);
+            Log.infof("Rebuilt the SQLite database in %d s: %d -> %d pages",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), pages, pageCount(connection));
+            return true;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Rebuilding the SQLite database failed, its file is unchanged", e);
+        }
+    }
+
+    private static long pageCount(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("pragma page_count")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            Thread started = new Thread(this::run, "h5m-folder-reaper");
+            started.setDaemon(true);
+            thread = started;
+            started.start();
+        }
+    }
+
+    /**
+     * Tombstones {@code folder} in the caller's transaction: the folder is hidden, its name can be
+     * used again and the reaper starts on it once the transaction commits.
+     */
+    void tombstone(FolderEntity folder) {
+        LocalDateTime now = LocalDateTime.now();
+        FolderDeletionEntity deletion = new FolderDeletionEntity();
+        deletion.folderId = folder.id;
+        deletion.name = folder.name;
+        deletion.requestedAt = now;
+        deletion.persist();
+        folder.name = null;
+        folder.deletedAt = now;
+        // the name has to be released before a folder with the same name is inserted in this transaction
+        em.flush();
+        try {
+            tm.getTransaction().registerSynchronization(new Synchronization() {
+                @Override public void beforeCompletion() {}
+                @Override public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        wakeUp.release();
+                    }
+                }
+            });
+        } catch (RollbackException | SystemException e) {
+            // picked up by the next poll
+            Log.debugf(e, "Reaper not woken up for folder %d", folder.id);
+        }
+    }
+
+    /**
+     * Reclaims the rows of {@code folderId} on the caller's thread, without pausing between
+     * batches.
+     *
+     * @return the number of values deleted
+     */
+    public long reap(long folderId) {
+        long deleted = 0;
+        while (true) {
+            long batch = reapBatch(folderId);
+            if (batch < 0) {
+                return deleted;
+            }
+            deleted += batch;
+        }
+    }
+
+    /**
+     * Reclaims the rows of every tombstoned folder on the caller's thread, including the
+     * deletions an earlier process left unfinished.
+     *
+     * @return the number of folders reclaimed
+     */
+    public int reapAll() {
+        int folders = 0;
+        Long folderId;
+        while ((folderId = QuarkusTransaction.requiringNew().call(this::next)) != null) {
+            reap(folderId);
+            folders++;
+        }
+        return folders;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Long folderId = QuarkusTransaction.requiringNew().call(this::next);
+                if (folderId == null) {
+                    wakeUp.tryAcquire(IDLE_POLL.toMillis(), TimeUnit.MILLISECONDS);
+                    wakeUp.drainPermits();
+                    continue;
+                }
+                reapBatch(folderId);
+                Thread.sleep(pause.toMillis());
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                Log.errorf(t, "Folder reaper failed, retrying in %s", IDLE_POLL);
+                try {
+                    Thread.sleep(IDLE_POLL.toMillis());
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private Long next() {
+        List<Long> pending = em.createQuery(
+                "SELECT d.folderId FROM folder_deletion d ORDER BY d.requestedAt", Long.class)
+                .setMaxResults(1).getResultList();
+        return pending.isEmpty() ? null : pending.getFirst();
+    }
+
+    /**
+     * Deletes the next batch of uploads of {@code folderId} with their view rows and descendants,
+     * or the rest of the folder once no values are left. Partitions are dropped whole.
+     *
+     * @return the number of values deleted, {@code -1} when the folder is gone
+     */
+    private synchronized long reapBatch(long folderId) {
+        long dropped = partitions.drop(folderId);
+        if (dropped >= 0) {
+            progress(folderId, dropped);
+            return dropped;
+        }
+        @SuppressWarnings("unchecked")
+        List<Long> batch = ((List<Number>) QuarkusTransaction.requiringNew().call(() -> em.createNativeQuery(
+                "SELECT id FROM value WHERE folder_id = :folderId ORDER BY id")
+                .setParameter("folderId", folderId)
+                .setMaxResults(batchSize)
+                .getResultList())).stream().map(Number::longValue).toList();
+        if (batch.isEmpty()) {
+            finish(folderId);
+            return -1;
+        }
+        int deleted = valueService.deleteWithDescendants(batch);
+        progress(folderId, deleted);
+        return deleted;
+    }
+
+    private void progress(long folderId, long deleted) {
+        workService.runInNewTransaction(() -> em.createNativeQuery(
+                "UPDATE folder_deletion SET values_deleted = values_deleted + :deleted, updated_at = :now WHERE folder_id = :folderId")
+                .setParameter("deleted", deleted)
+                .setParameter("now", LocalDateTime.now())
+                .setParameter("folderId", folderId)
+                .executeUpdate());
+    }
+
+    private void finish(long folderId) {
+        FolderDeletionEntity deletion = workService.callInNewTransaction(() -> {
+            FolderDeletionEntity found = FolderDeletionEntity.findById(folderId);
+            em.createNativeQuery("DELETE FROM folder_view_row WHERE view_id IN (SELECT id FROM folder_view WHERE folder_id = :fid)")
+                    .setParameter("fid", folderId).executeUpdate();
+            em.createNativeQuery("DELETE FROM folder_view_component WHERE view_id IN (SELECT id FROM folder_view WHERE folder_id = :fid)")
+                    .setParameter("fid", folderId).executeUpdate();
+            em.createNativeQuery("DELETE FROM folder_view WHERE folder_id = :fid")
+                    .setParameter("fid", folderId).executeUpdate();
+            em.createNativeQuery("DELETE FROM folder WHERE id = :fid")
+                    .setParameter("fid", folderId).executeUpdate();
+            FolderDeletionEntity.deleteById(folderId);
+            return found;
+        });
+        blobs.sweep();
+        archive.deleteFolder(folderId);
+        if (db.isSQLite()) {
+            // the freed pages are cut off the end of the file when the transaction commits
+            workService.runInNewTransaction(() -> em.unwrap(Session.class).doWork(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("pragma incremental_vacuum");
+                }
+            }));
+        }
+        if (deletion != null) {
+            Log.infof("Reclaimed folder %s (%d): %d values deleted", deletion.name, folderId, deletion.valuesDeleted);
+        }
+    }
+}
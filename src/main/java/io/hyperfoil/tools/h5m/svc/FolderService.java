@@ -15,15 +15,16 @@ import io.hyperfoil.tools.h5m.entity.FolderEntity;
 import io.hyperfoil.tools.h5m.entity.NodeEntity;
 import io.hyperfoil.tools.h5m.entity.NodeGroupEntity;
 import io.hyperfoil.tools.h5m.entity.TeamEntity;
-import io.hyperfoil.tools.h5m.entity.ValueEntity;
 import io.hyperfoil.tools.h5m.entity.ViewEntity;
 import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
 import io.hyperfoil.tools.h5m.entity.node.*;
 import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.WebApplicationException;
 import org.hibernate.query.NativeQuery;
@@ -51,12 +52,11 @@ public class FolderService implements FolderServiceInterface {
     EntityManager em;
     @Inject
     ValueService valueService;
-
     @Inject
-    ProcessingService processingService;
+    FolderStatsService folderStats;
 
     @Inject
-    AuthorizationService authService;
+    ProcessingService processingService;
 
     @Inject
     ApiMapper apiMapper;
@@ -65,6 +65,19 @@ public class FolderService implements FolderServiceInterface {
     NotificationService notificationService;
 
 
+    @Inject
+    ValueCompression compression;
+
+    @Inject
+    FolderReaper reaper;
+
+    @Inject
+    UploadArchive archive;
+
+    @Inject
+    ValuePartitions partitions;
+
+
 
     @Override
     @Transactional
@@ -76,6 +89,8 @@ public class FolderService implements FolderServiceInterface {
         entity.name = name;
         entity.group = new NodeGroupEntity(name); //TODO do we auto-create a nodeGroup?
         FolderEntity.persist(entity);
+        partitions.create(entity.id);
+        folderStats.refresh(entity.id);
         createDefaultView(entity);
         return apiMapper.toFolder(entity);
     }
@@ -87,6 +102,8 @@ public class FolderService implements FolderServiceInterface {
         } else if(!entity.isPersistent()) {
             entity = em.merge(entity);
         }
+        partitions.create(entity.id);
+        folderStats.refresh(entity.id);
         return entity.id;
     }
 
@@ -131,25 +148,15 @@ public class FolderService implements FolderServiceInterface {
     @Transactional
     @SuppressWarnings("unchecked")
     public List<FolderSummary> getDashboardSummaries() {
+        // rows are written when folders are created, a folder without one yet shows as empty
         List<Object[]> rows = em.createNativeQuery("""
-            SELECT
-                f.id,
-                f.name,
-                COUNT(DISTINCT rv.id) AS upload_count,
-                COUNT(DISTINCT n.id) AS node_count,
-                COUNT(DISTINCT dv.id) AS change_count,
-                MAX(rv.created_at) AS last_upload,
-                MAX(dv.created_at) AS last_change
+            SELECT f.id, f.name, coalesce(s.upload_count, 0), coalesce(s.node_count, 0), coalesce(s.change_count, 0),
+                s.last_upload, s.last_change
             FROM folder f
-            JOIN node_group g ON f.group_id = g.id
-            JOIN node r ON r.id = g.root_id
-            LEFT JOIN value rv ON rv.node_id = r.id
-            LEFT JOIN node n ON n.group_id = g.id AND n.id != r.id
-            LEFT JOIN node dn ON dn.group_id = g.id AND dn.type IN DETECTION_NODES
-            LEFT JOIN value dv ON dv.node_id = dn.id
-            GROUP BY f.id, f.name
+            LEFT JOIN folder_stats s ON s.folder_id = f.id
+            WHERE f.deleted_at IS NULL
             ORDER BY f.name
-            """.replaceAll("DETECTION_NODES", NodeService.DETECTION_NODES)).getResultList();
+            """).getResultList();
 
         List<FolderSummary> summaries = new ArrayList<>();
         for (Object[] row : rows) {
@@ -170,12 +177,10 @@ public class FolderService implements FolderServiceInterface {
     @Transactional
     public Map<String,Integer> getFolderUploadCount(){
         Map<String,Integer> rtrn = new HashMap<>();
-
         NativeQuery query = (NativeQuery) em.createNativeQuery(
             """
-            select f.name as name, count(v.id) as count
-            from folder f join node_group g on f.group_id = g.id join node r on r.id = g.root_id left join value v on v.node_id = r.id 
-            group by f.name 
+            select f.name as name, s.upload_count as count
+            from folder f join folder_stats s on s.folder_id = f.id
             """
         );
         List<Object[]> found = query
@@ -189,12 +194,54 @@ public class FolderService implements FolderServiceInterface {
         return rtrn;
     }
 
+    @Override
+    @Transactional
+    public int rebuildStats() {
+        return folderStats.rebuild();
+    }
+
+    @Override
+    public int compress(long folderId) {
+        // not transactional: the uploads are rewritten in batches with a transaction each
+        List<Long> root = QuarkusTransaction.requiringNew().call(() ->
+                em.createQuery("SELECT g.root.id FROM folder f JOIN f.group g WHERE f.id = :id", Long.class)
+                        .setParameter("id", folderId).getResultList());
+        if (root.isEmpty()) {
+            throw new NotFoundException("Folder not found: " + folderId);
+        }
+        return compression.recompress(root.getFirst());
+    }
+
+    @Override
+    @Transactional
+    public void setRetention(long folderId, Integer days, Integer uploads) {
+        if ((days != null && days < 0) || (uploads != null && uploads < 0)) {
+            throw new BadRequestException("Retention limits cannot be negative");
+        }
+        FolderEntity folder = FolderEntity.findById(folderId);
+        if (folder == null) {
+            throw new NotFoundException("Folder not found: " + folderId);
+        }
+        folder.retentionDays = days;
+        folder.retentionUploads = uploads;
+    }
+
+    @Override
+    public int archive(long folderId) {
+        // not transactional: the uploads are archived in batches with a transaction each
+        return archive.archive(folderId);
+    }
+
     @Transactional
     public long update(FolderEntity folder){
         FolderEntity.persist(folder);
         return folder.id;
     }
 
+    /**
+     * Tombstones the folder: it disappears from the API at once and its values, views and row are
+     * reclaimed in the background by {@link FolderReaper}.
+     */
     @Override
     @Transactional
     public void delete(long id){
@@ -203,35 +250,27 @@ public class FolderService implements FolderServiceInterface {
             throw new NotFoundException("Folder not found: " + id);
         }
 
-        valueService.deleteForFolder(id);
+        folderStats.delete(id);
         notificationService.deleteForFolder(id);
         processingService.deleteForFolder(id);
-
-        em.createNativeQuery("DELETE FROM folder_view_component WHERE view_id IN (SELECT id FROM folder_view WHERE folder_id = :fid)")
-                .setParameter("fid", id).executeUpdate();
-        em.createNativeQuery("DELETE FROM folder_view WHERE folder_id = :fid")
-                .setParameter("fid", id).executeUpdate();
-        FolderEntity.delete("id", id);
+        reaper.tombstone(folder);
     }
 
     @Override
     @Transactional
     public JqValue structure(long folderId) {
-        FolderEntity folder = em.createQuery(
-                "SELECT f FROM folder f JOIN FETCH f.group g LEFT JOIN FETCH g.sources LEFT JOIN FETCH g.root WHERE f.id = :id",
-                FolderEntity.class
-        ).setParameter("id", folderId).getSingleResult();
+        // fails with NoResultException for an unknown folder
+        em.createQuery("SELECT f.id FROM folder f WHERE f.id = :id", Long.class)
+                .setParameter("id", folderId).getSingleResult();
+        return folderStats.structure(folderId);
+    }
 
-        NodeEntity root = folder.group.root;
-        List<ValueEntity> uploads = valueService.getValues(root);
-        JqValue merged = JqObject.EMPTY;
-        for (ValueEntity upload : uploads) {
-            if (upload.data != null) {
-                JqValue schema = JqValues.typeStructure(upload.data);
-                merged = JqValues.mergeTypeStructures(merged, schema);
-            }
-        }
-        return merged;
+    @Override
+    @Transactional
+    public JqValue rebuildStructure(long folderId, Integer sample) {
+        em.createQuery("SELECT f.id FROM folder f WHERE f.id = :id", Long.class)
+                .setParameter("id", folderId).getSingleResult();
+        return folderStats.rebuildStructure(folderId, sample);
     }
 
     /**
@@ -378,6 +417,7 @@ public class FolderService implements FolderServiceInterface {
 
         em.flush();
         em.merge(group);
+        folderStats.refresh(folder.id);
 
         Log.infof("Imported folder '%s' with %d nodes from %s", folderName, nodeArray.length(), inputPath);
         return apiMapper.toFolder(folder);
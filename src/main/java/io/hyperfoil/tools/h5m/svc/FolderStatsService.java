@@ -0,0 +1,420 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.FolderStatsEntity;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.ValueDataCodec;
+import io.hyperfoil.tools.jjq.value.JqObject;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import jakarta.transaction.Transactional;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Maintains {@link FolderStatsEntity} rows so the dashboard and folder listings read one row
+ * per folder instead of counting the folder's values.
+ * <ul>
+ *     <li>Uploads and new detection values increment the counters in the transaction that
+ *     writes them ({@link #uploadAdded}, {@link #changesAdded}).</li>
+ *     <li>Every deleted upload or detection value decrements them ({@link #valuesDeleted}).
+ *     The last upload and last change timestamps are not moved back by deletes.</li>
+ *     <li>Node changes recount the folder's nodes ({@link #nodesChanged}), which is cheap.</li>
+ *     <li>The merged type structure of the uploads is merged in the background: committed
+ *     uploads are queued and the {@code h5m-folder-structure} thread merges them in batches,
+ *     so uploads to a folder do not wait on each other for the structure row. A folder without
+ *     a structure is built from its uploads on that thread too. {@link #structure} merges the
+ *     queued uploads of the folder into the stored structure without writing it. The structure
+ *     only grows: deleted uploads stay in it until {@link #rebuildStructure} is called. Uploads
+ *     still queued when the process stops are missing from it until then as well.</li>
+ *     <li>A folder is counted from scratch when it is created ({@link #refresh}), folders of an
+ *     older database without a row are counted once at startup, and {@link #rebuild} recounts
+ *     every folder to repair drift from writes that bypass the services. Reads never write.</li>
+ * </ul>
+ * The rows are written with native DML synchronized on {@code folder_stats} only, a native DML
+ * query without query spaces would evict the whole second-level cache.
+ */
+@ApplicationScoped
+public class FolderStatsService {
+
+    // uploads read ahead per round trip when rebuilding a structure
+    private static final int STRUCTURE_FETCH_SIZE = 50;
+    // queued uploads merged per transaction
+    private static final int UPLOADS_PER_MERGE = 100;
+
+    // SQLite needs a WHERE on an INSERT ... SELECT ... ON CONFLICT to parse the upsert
+    private static final String COUNT_FOLDERS = """
+            INSERT INTO folder_stats (folder_id, upload_count, node_count, change_count, last_upload, last_change)
+            SELECT f.id,
+                (SELECT count(*) FROM value v WHERE v.node_id = g.root_id),
+                (SELECT count(*) FROM node n WHERE n.group_id = g.id AND n.id != g.root_id),
+                (SELECT count(*) FROM value v JOIN node n ON v.node_id = n.id WHERE n.group_id = g.id AND n.type IN DETECTION_NODES),
+                (SELECT max(v.created_at) FROM value v WHERE v.node_id = g.root_id),
+                (SELECT max(v.created_at) FROM value v JOIN node n ON v.node_id = n.id WHERE n.group_id = g.id AND n.type IN DETECTION_NODES)
+            FROM folder f JOIN node_group g ON f.group_id = g.id
+            WHERE f.deleted_at IS NULL AND FOLDER_FILTER
+            ON CONFLICT (folder_id) DO UPDATE SET
+                upload_count = excluded.upload_count, node_count = excluded.node_count, change_count = excluded.change_count,
+                last_upload = excluded.last_upload, last_change = excluded.last_change
+            """.replace("DETECTION_NODES", NodeService.DETECTION_NODES);
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    UploadArchive archive;
+
+    @Inject
+    TransactionSynchronizationRegistry registry;
+
+    // committed uploads not merged into the structure yet by folder, an empty set for a folder
+    // whose structure has to be built
+    private final Map<Long, Set<Long>> queued = new ConcurrentHashMap<>();
+    private ExecutorService merger;
+
+    void onStart(@Observes @Priority(1) StartupEvent ev) {
+        QuarkusTransaction.requiringNew().run(this::ensureAll);
+        QuarkusTransaction.requiringNew().run(() -> em.createNativeQuery(
+                        "SELECT folder_id FROM folder_stats WHERE structure IS NULL AND upload_count > 0")
+                .getResultList()
+                .forEach(folderId -> queued.putIfAbsent(((Number) folderId).longValue(), ConcurrentHashMap.newKeySet())));
+        merger = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "h5m-folder-structure");
+            thread.setDaemon(true);
+            return thread;
+        });
+        merger.execute(this::mergeQueued);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (merger != null) {
+            merger.shutdownNow();
+        }
+    }
+
+    private NativeQuery<?> update(String sql) {
+        return em.createNativeQuery(sql).unwrap(NativeQuery.class).addSynchronizedQuerySpace("folder_stats");
+    }
+
+    /**
+     * Counts upload {@code uploadId} added to {@code folderId} at {@code at} and queues it to be
+     * merged into the folder's structure once the transaction commits.
+     */
+    @Transactional
+    public void uploadAdded(long folderId, LocalDateTime at, long uploadId) {
+        int updated = update("""
+                UPDATE folder_stats SET upload_count = upload_count + 1,
+                    last_upload = CASE WHEN last_upload IS NULL OR last_upload < :at THEN :at ELSE last_upload END
+                WHERE folder_id = :folderId
+                """)
+                .setParameter("at", at)
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+        if (updated == 0) {
+            // counted from scratch with an unknown structure, built by the merge
+            refresh(folderId);
+        }
+        queueOnCommit(folderId, uploadId);
+    }
+
+    private void queueOnCommit(long folderId, long uploadId) {
+        @SuppressWarnings("unchecked")
+        Map<Long, List<Long>> uploads = (Map<Long, List<Long>>) registry.getResource(FolderStatsService.class);
+        if (uploads == null) {
+            Map<Long, List<Long>> added = new HashMap<>();
+            registry.putResource(FolderStatsService.class, added);
+            registry.registerInterposedSynchronization(new Synchronization() {
+                @Override public void beforeCompletion() {}
+                @Override public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        added.forEach((folder, ids) -> queued.computeIfAbsent(folder, k -> ConcurrentHashMap.newKeySet()).addAll(ids));
+                        if (merger != null) {
+                            merger.execute(FolderStatsService.this::mergeQueued);
+                        }
+                    }
+                }
+            });
+            uploads = added;
+        }
+        uploads.computeIfAbsent(folderId, k -> new ArrayList<>()).add(uploadId);
+    }
+
+    /**
+     * Merges the queued uploads of every folder into the stored structures, a batch per transaction.
+     */
+    void mergeQueued() {
+        for (Long folderId : List.copyOf(queued.keySet())) {
+            try {
+                Set<Long> uploads = queued.get(folderId);
+                if (uploads == null) {
+                    continue;
+                }
+                List<Long> ids = List.copyOf(uploads);
+                int from = 0;
+                do {
+                    List<Long> batch = ids.subList(from, Math.min(ids.size(), from + UPLOADS_PER_MERGE));
+                    QuarkusTransaction.requiringNew().run(() -> merge(folderId, batch));
+                    // dequeued only once merged, so reads see the uploads either way
+                    queued.computeIfPresent(folderId, (k, remaining) -> {
+                        remaining.removeAll(batch);
+                        return remaining.isEmpty() ? null : remaining;
+                    });
+                    from += UPLOADS_PER_MERGE;
+                } while (from < ids.size());
+            } catch (Throwable t) {
+                // still queued, the next upload of the folder or the next start carries on
+                Log.errorf(t, "Merging the structure of folder %d failed", folderId);
+            }
+        }
+    }
+
+    private void merge(long folderId, List<Long> uploadIds) {
+        // lock the row so an explicit rebuild does not interleave
+        if (update("UPDATE folder_stats SET structure = structure WHERE folder_id = :folderId")
+                .setParameter("folderId", folderId).executeUpdate() == 0) {
+            return;
+        }
+        String stored = (String) em.createNativeQuery("SELECT structure FROM folder_stats WHERE folder_id = :folderId")
+                .setParameter("folderId", folderId)
+                .getSingleResult();
+        if (stored == null) {
+            buildStructure(folderId, null);
+        } else if (!uploadIds.isEmpty()) {
+            writeStructure(folderId, mergeUploads(JqValues.parse(stored), uploadIds));
+        }
+    }
+
+    private JqValue mergeUploads(JqValue structure, List<Long> uploadIds) {
+        // read the payloads directly to keep them out of the second-level cache
+        @SuppressWarnings("unchecked")
+        List<Object[]> uploads = em.unwrap(Session.class).createNativeQuery("""
+                SELECT v.id, DATA_BYTES FROM value v WHERE v.id IN (:ids)
+                """.replace("DATA_BYTES", db.dataBytes("v.data")), Object[].class)
+                .setParameter("ids", uploadIds)
+                .getResultList();
+        for (Object[] upload : uploads) {
+            structure = merge(structure, upload);
+        }
+        return structure;
+    }
+
+    // merges one (id, data) upload row, archived uploads (null data) are read back from their segment
+    private JqValue merge(JqValue structure, Object[] upload) {
+        byte[] data = upload[1] != null
+                ? decompress((byte[]) upload[1])
+                : archive.payload(((Number) upload[0]).longValue());
+        return data == null ? structure : JqValues.mergeTypeStructures(structure, JqValues.typeStructure(JqValues.parse(data)));
+    }
+
+    /**
+     * Counts {@code count} detection values added to {@code folderId} at {@code at}.
+     */
+    @Transactional
+    public void changesAdded(long folderId, int count, LocalDateTime at) {
+        if (count == 0) {
+            return;
+        }
+        int updated = update("""
+                UPDATE folder_stats SET change_count = change_count + :count,
+                    last_change = CASE WHEN last_change IS NULL OR last_change < :at THEN :at ELSE last_change END
+                WHERE folder_id = :folderId
+                """)
+                .setParameter("count", count)
+                .setParameter("at", at)
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+        if (updated == 0) {
+            refresh(folderId);
+        }
+    }
+
+    /**
+     * Uncounts {@code count} deleted values of {@code nodeId} in {@code folderId} if they were
+     * uploads or detection values.
+     */
+    @Transactional
+    public void valuesDeleted(long folderId, long nodeId, int count) {
+        update("""
+                UPDATE folder_stats SET
+                    upload_count = upload_count - :count * (SELECT count(*) FROM node n WHERE n.id = :nodeId AND n.type = 'root'),
+                    change_count = change_count - :count * (SELECT count(*) FROM node n WHERE n.id = :nodeId AND n.type IN DETECTION_NODES)
+                WHERE folder_id = :folderId
+                """.replace("DETECTION_NODES", NodeService.DETECTION_NODES))
+                .setParameter("count", count)
+                .setParameter("nodeId", nodeId)
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+    }
+
+    /**
+     * Returns the merged type structure of the uploads of {@code folderId}, including the uploads
+     * still queued for the merge. A folder whose structure is not built yet is queued to be built
+     * and only shows its queued uploads until then.
+     */
+    @Transactional
+    public JqValue structure(long folderId) {
+        List<?> found = em.createNativeQuery("SELECT structure FROM folder_stats WHERE folder_id = :folderId")
+                .setParameter("folderId", folderId)
+                .getResultList();
+        String stored = found.isEmpty() ? null : (String) found.getFirst();
+        Set<Long> uploads = queued.get(folderId);
+        if (stored == null && uploads == null && merger != null) {
+            queued.putIfAbsent(folderId, ConcurrentHashMap.newKeySet());
+            merger.execute(this::mergeQueued);
+        }
+        JqValue structure = stored == null ? JqObject.EMPTY : JqValues.parse(stored);
+        return uploads == null || uploads.isEmpty() ? structure : mergeUploads(structure, List.copyOf(uploads));
+    }
+
+    /**
+     * Rebuilds the type structure of {@code folderId} from its uploads.
+     *
+     * @param sample only merge the most recent uploads, {@code null} for all of them. Types that
+     *               only occur in older uploads are dropped.
+     */
+    @Transactional
+    public JqValue rebuildStructure(long folderId, Integer sample) {
+        // lock the row first so uploads committed while reading are merged after the rebuild
+        if (update("UPDATE folder_stats SET structure = NULL WHERE folder_id = :folderId")
+                .setParameter("folderId", folderId).executeUpdate() == 0) {
+            refresh(folderId);
+        }
+        return buildStructure(folderId, sample);
+    }
+
+    private JqValue buildStructure(long folderId, Integer sample) {
+        // read the payloads directly to keep them out of the second-level cache
+        var query = em.unwrap(Session.class).createNativeQuery("""
+                SELECT v.id, DATA_BYTES FROM value v JOIN node_group g ON v.node_id = g.root_id JOIN folder f ON f.group_id = g.id
+                WHERE f.id = :folderId
+                ORDER BY v.id DESC LIMIT_ROWS
+                """.replace("DATA_BYTES", db.dataBytes("v.data"))
+                .replace("LIMIT_ROWS", sample != null ? "LIMIT :sample" : ""), Object[].class)
+                .setParameter("folderId", folderId);
+        if (sample != null) {
+            query.setParameter("sample", sample);
+        }
+        JqValue merged = JqObject.EMPTY;
+        try (Stream<Object[]> uploads = query.setFetchSize(STRUCTURE_FETCH_SIZE).getResultStream()) {
+            for (Object[] upload : (Iterable<Object[]>) uploads::iterator) {
+                merged = merge(merged, upload);
+            }
+        }
+        writeStructure(folderId, merged);
+        return merged;
+    }
+
+    // uploads can be compressed (see ValueCompression)
+    private byte[] decompress(byte[] data) {
+        if (!ValueDataCodec.isCompressed(data)) {
+            return data;
+        }
+        return em.unwrap(Session.class).doReturningWork(connection -> ValueDataCodec.decompress(data, connection));
+    }
+
+    private void writeStructure(long folderId, JqValue structure) {
+        update("UPDATE folder_stats SET structure = :structure WHERE folder_id = :folderId")
+                .setParameter("structure", structure.toJsonString())
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+    }
+
+    /**
+     * Recounts the nodes of the folders that use node group {@code groupId}.
+     */
+    @Transactional
+    public void nodesChanged(long groupId) {
+        update("""
+                UPDATE folder_stats SET node_count = (
+                    SELECT count(*) FROM folder f JOIN node_group g ON f.group_id = g.id JOIN node n ON n.group_id = g.id
+                    WHERE f.id = folder_stats.folder_id AND n.id != g.root_id)
+                WHERE folder_id IN (SELECT f.id FROM folder f WHERE f.group_id = :groupId)
+                """)
+                .setParameter("groupId", groupId)
+                .executeUpdate();
+    }
+
+    /**
+     * Counts {@code folderId} from scratch.
+     */
+    @Transactional
+    public void refresh(long folderId) {
+        // the count reads tables outside of the query space, a new folder has to be written first
+        em.flush();
+        update(COUNT_FOLDERS.replace("FOLDER_FILTER", "f.id = :folderId"))
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+    }
+
+    /**
+     * Counts the folders that have no stats row yet, without taking a write lock if there are none.
+     */
+    @Transactional
+    public void ensureAll() {
+        if (em.createNativeQuery("""
+                SELECT 1 FROM folder f WHERE f.deleted_at IS NULL
+                AND NOT EXISTS (SELECT 1 FROM folder_stats s WHERE s.folder_id = f.id)
+                """).setMaxResults(1).getResultList().isEmpty()) {
+            return;
+        }
+        update(COUNT_FOLDERS.replace("FOLDER_FILTER",
+                "NOT EXISTS (SELECT 1 FROM folder_stats s WHERE s.folder_id = f.id)"))
+                .executeUpdate();
+    }
+
+    /**
+     * Recounts every folder and drops the rows of folders that no longer exist.
+     *
+     * @return the number of folders counted
+     */
+    @Transactional
+    public int rebuild() {
+        update("DELETE FROM folder_stats").executeUpdate();
+        return update(COUNT_FOLDERS.replace("FOLDER_FILTER", "1 = 1")).executeUpdate();
+    }
+
+    /**
+     * Resets the counters of every folder after all values were purged.
+     */
+    @Transactional
+    public void valuesPurged() {
+        queued.clear();
+        update("""
+                UPDATE folder_stats SET upload_count = 0, change_count = 0, last_upload = NULL, last_change = NULL, structure = NULL
+                """).executeUpdate();
+    }
+
+    @Transactional
+    public void delete(long folderId) {
+        queued.remove(folderId);
+        update("DELETE FROM folder_stats WHERE folder_id = :folderId")
+                .setParameter("folderId", folderId)
+                .executeUpdate();
+    }
+}
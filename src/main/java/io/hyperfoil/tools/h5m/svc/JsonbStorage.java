@@ -0,0 +1,102 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts {@code value.data} on PostgreSQL to the storage selected by {@code h5m.postgresql.jsonb}
+ * before any work runs. Hibernate creates the column as {@code BYTEA}; with the option enabled it is
+ * rewritten as {@code jsonb}, and disabling the option converts it back. The conversion rewrites the
+ * whole table under an exclusive lock, so it is a one-off cost of switching modes. Compressed uploads
+ * (see {@link ValueCompression}) cannot be converted and have to be rewritten as plain JSON first.
+ * The payloads shared through {@code value_blob} (see {@link ValueBlobs}) are converted with them.
+ * <p>
+ * A {@code jsonb} column also gets the indexes that only apply to it (see {@link #INDEXES}); they
+ * are created on every start so that a database converted before they existed gets them too, and
+ * dropped before converting back to {@code BYTEA}.
+ */
+@ApplicationScoped
+public class JsonbStorage {
+
+    // shared payloads are read in place of value.data, so both columns need the same type
+    private static final List<String> TABLES = List.of("value", "value_blob");
+
+    /**
+     * Indexes on {@code value.data} as {@code jsonb}, by name: the JSON type of the values without
+     * domain sort keys, so that filling the keys (see {@code ValueService#fillDomainKeys}) skips
+     * the objects and arrays that never get one.
+     */
+    static final Map<String, String> INDEXES = Map.of(
+            "value_data_type", """
+                    CREATE INDEX IF NOT EXISTS value_data_type ON value (node_id, jsonb_typeof(data))
+                    WHERE domain_int IS NULL AND domain_txt IS NULL
+                    """);
+
+    // created by earlier versions, no query used them
+    private static final List<String> UNUSED_INDEXES = List.of("value_data_gin", "value_data_unhashed");
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    void onStart(@Observes @Priority(0) StartupEvent ev) {
+        if (db.isSQLite()) {
+            return;
+        }
+        QuarkusTransaction.requiringNew().run(this::convert);
+    }
+
+    void convert() {
+        List<?> found = em.createNativeQuery("""
+                SELECT data_type FROM information_schema.columns
+                WHERE table_schema = current_schema() AND table_name = 'value' AND column_name = 'data'
+                """).getResultList();
+        if (found.isEmpty()) {
+            return;
+        }
+        String type = (String) found.getFirst();
+        if (db.isJsonb() && "bytea".equals(type)) {
+            if (!em.createNativeQuery("SELECT 1 FROM value WHERE substring(data from 1 for 1) = '\\x1f'::bytea LIMIT 1")
+                    .getResultList().isEmpty()) {
+                throw new IllegalStateException("Value data is compressed: disable h5m.compression.enabled and run 'folder compress' "
+                        + "on the compressed folders before enabling h5m.postgresql.jsonb");
+            }
+            Log.info("Converting value data from BYTEA to jsonb");
+            for (String table : TABLES) {
+                em.createNativeQuery("ALTER TABLE " + table + " ALTER COLUMN data TYPE jsonb USING convert_from(data, 'UTF-8')::jsonb")
+                        .executeUpdate();
+            }
+        } else if (!db.isJsonb() && "jsonb".equals(type)) {
+            Log.info("Converting value data from jsonb to BYTEA");
+            // the operator classes of these indexes do not exist for BYTEA
+            for (String index : INDEXES.keySet()) {
+                em.createNativeQuery("DROP INDEX IF EXISTS " + index).executeUpdate();
+            }
+            for (String table : TABLES) {
+                em.createNativeQuery("ALTER TABLE " + table + " ALTER COLUMN data TYPE bytea USING convert_to(data::text, 'UTF-8')")
+                        .executeUpdate();
+            }
+        }
+        if (db.isJsonb()) {
+            for (String index : UNUSED_INDEXES) {
+                em.createNativeQuery("DROP INDEX IF EXISTS " + index).executeUpdate();
+            }
+            // ValuePartitions carries them over when it rebuilds the table
+            for (String ddl : INDEXES.values()) {
+                em.createNativeQuery(ddl).executeUpdate();
+            }
+        }
+    }
+}
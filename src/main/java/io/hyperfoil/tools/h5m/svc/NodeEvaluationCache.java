@@ -0,0 +1,252 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.ValueHashes;
+import io.hyperfoil.tools.jjq.value.JqArray;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Remembers the output of jq, JS and JSONata nodes by the node's operation and the content of
+ * its inputs, so identical sub-documents shared by many runs (config blocks, environment
+ * descriptions, fingerprint inputs) are only evaluated once.
+ * <p>
+ * The key is a SHA-256 over the node type, the operation text, the source node names and the
+ * {@code data_hash} of each source value (see {@link ValueHashes}); node IDs are not part of it,
+ * so the same operation over the same data is shared between folders. Editing a node changes its
+ * operation and therefore its keys.
+ * <p>
+ * Disabled by default ({@code h5m.eval-cache.enabled}) because a JS function that is not a pure
+ * function of its inputs (e.g. uses the current time) would be frozen at its first result.
+ * At most {@code h5m.eval-cache.max-entries} results are kept in memory, least recently used
+ * first out. If {@code h5m.eval-cache.spill-dir} is set, evicted results are written there as
+ * JSON and read back on a miss. Hits, misses and the hit ratio are reported as
+ * {@code h5m.eval.cache.*} metrics.
+ */
+@ApplicationScoped
+public class NodeEvaluationCache {
+
+    /** 128 bits of the SHA-256 over the operation and input hashes */
+    public record Key(long high, long low) {
+        String fileName() {
+            return HexFormat.of().toHexDigits(high) + HexFormat.of().toHexDigits(low) + ".json";
+        }
+    }
+
+    @ConfigProperty(name = "h5m.eval-cache.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "h5m.eval-cache.max-entries", defaultValue = "10000")
+    int maxEntries;
+
+    @ConfigProperty(name = "h5m.eval-cache.spill-dir")
+    Optional<Path> spillDir;
+
+    @Inject
+    MeterRegistry registry;
+
+    private Map<Key, List<JqValue>> entries;
+    // entries evicted under the lock of entries, spilled once it is released
+    private final List<Map.Entry<Key, List<JqValue>>> evicted = new ArrayList<>();
+    private Counter hits;
+    private Counter misses;
+    private Counter spillHits;
+
+    @PostConstruct
+    void init() {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<JqValue>> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                if (spillDir.isPresent()) {
+                    evicted.add(Map.entry(eldest.getKey(), eldest.getValue()));
+                }
+                return true;
+            }
+        };
+        hits = Counter.builder("h5m.eval.cache.hits").description("node evaluations served from the cache").register(registry);
+        misses = Counter.builder("h5m.eval.cache.misses").description("node evaluations that had to run").register(registry);
+        spillHits = Counter.builder("h5m.eval.cache.spill.hits").description("cache hits read back from the spill directory").register(registry);
+        Gauge.builder("h5m.eval.cache.hit.ratio", this, NodeEvaluationCache::hitRatio).register(registry);
+        Gauge.builder("h5m.eval.cache.size", this, c -> c.size()).register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the key for evaluating {@code node} with {@code sourceValues} (keyed by source node ID,
+     * as passed to {@link NodeService#calculateNodeValues}).
+     */
+    public Key key(NodeEntity node, Map<Long, ValueEntity> sourceValues) {
+        MessageDigest md = sha256();
+        md.update(node.type().display().getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(node.operation == null ? new byte[0] : node.operation.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1);
+        if (node.sources.isEmpty()) {
+            for (ValueEntity value : sourceValues.values()) {
+                updateInput(md, buffer, value.node != null ? value.node.name : null, value);
+            }
+        } else {
+            for (NodeEntity source : node.sources) {
+                updateInput(md, buffer, source.name, sourceValues.get(source.getId()));
+            }
+        }
+        ByteBuffer digest = ByteBuffer.wrap(md.digest());
+        return new Key(digest.getLong(), digest.getLong());
+    }
+
+    /**
+     * Returns the cached outputs for {@code key}, or {@code null} if the node has to be evaluated.
+     */
+    public List<JqValue> get(Key key) {
+        List<JqValue> found;
+        synchronized (entries) {
+            found = entries.get(key);
+        }
+        if (found == null && spillDir.isPresent()) {
+            found = readSpilled(key);
+            if (found != null) {
+                spillHits.increment();
+                List<Map.Entry<Key, List<JqValue>>> toSpill;
+                synchronized (entries) {
+                    entries.put(key, found);
+                    toSpill = drainEvicted();
+                }
+                spill(toSpill);
+            }
+        }
+        if (found == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return found;
+    }
+
+    public void put(Key key, List<JqValue> outputs) {
+        List<Map.Entry<Key, List<JqValue>>> toSpill;
+        synchronized (entries) {
+            entries.put(key, List.copyOf(outputs));
+            toSpill = drainEvicted();
+        }
+        spill(toSpill);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Drops all in-memory entries. Spilled entries are content addressed and stay valid.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    private static void updateInput(MessageDigest md, ByteBuffer buffer, String name, ValueEntity value) {
+        md.update(name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8));
+        buffer.clear();
+        if (value == null) {
+            buffer.put((byte) 0).putLong(0);
+        } else if (value.data == null) {
+            buffer.put((byte) 1).putLong(0);
+        } else {
+            // data_hash is stored on persisted values; compute it for anything else
+            Long dataHash = value.dataHash != null ? value.dataHash : ValueHashes.dataHash(JqValues.serializeToBytes(value.data));
+            buffer.put((byte) 2).putLong(dataHash);
+        }
+        buffer.flip();
+        md.update(buffer);
+    }
+
+    // called holding the lock of entries
+    private List<Map.Entry<Key, List<JqValue>>> drainEvicted() {
+        if (evicted.isEmpty()) {
+            return List.of();
+        }
+        List<Map.Entry<Key, List<JqValue>>> drained = List.copyOf(evicted);
+        evicted.clear();
+        return drained;
+    }
+
+    // writes outside of the lock of entries, so evaluations do not wait for the IO
+    private void spill(List<Map.Entry<Key, List<JqValue>>> toSpill) {
+        if (toSpill.isEmpty() || spillDir.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Key, List<JqValue>> entry : toSpill) {
+            try {
+                Files.createDirectories(spillDir.get());
+                Files.writeString(spillDir.get().resolve(entry.getKey().fileName()),
+                        JqValues.toPrettyJsonString(JqArray.of(entry.getValue().toArray(new JqValue[0]))));
+            } catch (IOException e) {
+                Log.warnf("failed to spill node evaluation to %s: %s", spillDir.get(), e.getMessage());
+            }
+        }
+    }
+
+    private List<JqValue> readSpilled(Key key) {
+        try {
+            JqValue read = JqValues.parse(Files.readString(spillDir.get().resolve(key.fileName())));
+            if (read instanceof JqArray array) {
+                List<JqValue> outputs = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    outputs.add(array.get(i));
+                }
+                return List.copyOf(outputs);
+            }
+        } catch (NoSuchFileException e) {
+            // not spilled
+        } catch (IOException | RuntimeException e) {
+            Log.warnf("failed to read spilled node evaluation %s: %s", key.fileName(), e.getMessage());
+        }
+        return null;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
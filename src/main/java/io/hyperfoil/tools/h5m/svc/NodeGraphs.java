@@ -0,0 +1,211 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.api.EphemeralMode;
+import io.hyperfoil.tools.h5m.api.NodeType;
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.spi.CDI;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the compiled {@link NodeGraph} of each node group, so the work queue, the cascade and the
+ * recalculations answer graph questions from memory. A graph is compiled on first use, in the
+ * caller's transaction so that no second connection is needed. The graphs are dropped whenever a
+ * node is persisted, updated or removed ({@link Listener}) or its sources are changed, both at once
+ * and when the changing transaction completes; a graph compiled meanwhile is not kept.
+ * <p>
+ * The transaction changing nodes does not see its own changes in the graphs, so it gets
+ * {@code null} and the callers fall back to walking the entities.
+ * <p>
+ * In cluster mode ({@link WorkCluster}) other instances change nodes too. A change bumps the
+ * shared {@code node_graph} counter of {@link CacheVersions} in its transaction, and each
+ * transaction asking for a graph compares the counter once and drops the graphs if it moved.
+ */
+@ApplicationScoped
+public class NodeGraphs {
+
+    // -1 in groups: the node is not in a group
+    private static final long NO_GROUP = -1;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionSynchronizationRegistry registry;
+
+    @Inject
+    WorkCluster cluster;
+
+    @Inject
+    CacheVersions versions;
+
+    // name of the shared counter in cache_version
+    static final String VERSION = "node_graph";
+    // transaction resource: the shared counter was compared in this transaction
+    private static final Object SHARED_CHECKED = new Object();
+
+    private final ConcurrentHashMap<Long, NodeGraph> graphs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Long> groups = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    // shared counter the graphs were compiled under, -1 before it was first read
+    private final AtomicLong shared = new AtomicLong(-1);
+
+    /**
+     * Graph of the group holding {@code nodeId}, {@code null} when the node is not in a group or
+     * this transaction changed nodes.
+     */
+    public NodeGraph forNode(Long nodeId) {
+        if (nodeId == null || changedInTransaction()) {
+            return null;
+        }
+        checkShared();
+        Long groupId = groups.get(nodeId);
+        if (groupId == null) {
+            long current = version.get();
+            groupId = QuarkusTransaction.joiningExisting().call(() -> findGroup(nodeId));
+            if (version.get() == current) {
+                groups.put(nodeId, groupId);
+            }
+        }
+        return groupId == NO_GROUP ? null : forGroup(groupId);
+    }
+
+    /**
+     * Graph of the group {@code groupId}, {@code null} when this transaction changed nodes.
+     */
+    public NodeGraph forGroup(long groupId) {
+        if (changedInTransaction()) {
+            return null;
+        }
+        checkShared();
+        NodeGraph graph = graphs.get(groupId);
+        if (graph != null) {
+            return graph;
+        }
+        long current = version.get();
+        NodeGraph compiled = QuarkusTransaction.joiningExisting().call(() -> compile(groupId, current));
+        if (version.get() == current) {
+            graph = graphs.putIfAbsent(groupId, compiled);
+            if (graph == null) {
+                compiled.topologicalOrder().forEach(id -> groups.putIfAbsent(id, groupId));
+                Log.debugf("Compiled %s", compiled);
+            }
+        }
+        return graph != null ? graph : compiled;
+    }
+
+    /**
+     * Drops the graphs when the nodes are changed by the current transaction: now, for the other
+     * transactions compiling meanwhile, and once it completes.
+     */
+    public void changed() {
+        invalidate();
+        if (registry.getTransactionKey() == null || registry.getResource(NodeGraphs.class) != null) {
+            return;
+        }
+        registry.putResource(NodeGraphs.class, Boolean.TRUE);
+        if (cluster.isActive()) {
+            // the other instances drop their graphs once this transaction commits
+            versions.bump(VERSION);
+        }
+        try {
+            registry.registerInterposedSynchronization(new Synchronization() {
+                @Override public void beforeCompletion() {}
+                @Override public void afterCompletion(int status) {
+                    invalidate();
+                }
+            });
+        } catch (IllegalStateException e) {
+            // the transaction is completing, the graphs were dropped above
+            Log.debugf(e, "Node graphs not dropped after completion");
+        }
+    }
+
+    private void invalidate() {
+        version.incrementAndGet();
+        graphs.clear();
+        groups.clear();
+    }
+
+    /**
+     * Drops the graphs if another instance changed nodes, comparing the shared counter once per
+     * transaction.
+     */
+    private void checkShared() {
+        if (!cluster.isActive()) {
+            return;
+        }
+        boolean inTransaction = registry.getTransactionKey() != null;
+        if (inTransaction && registry.getResource(SHARED_CHECKED) != null) {
+            return;
+        }
+        long current = QuarkusTransaction.joiningExisting().call(() -> versions.read(VERSION));
+        if (inTransaction) {
+            registry.putResource(SHARED_CHECKED, Boolean.TRUE);
+        }
+        if (shared.getAndSet(current) != current) {
+            invalidate();
+        }
+    }
+
+    private boolean changedInTransaction() {
+        return registry.getTransactionKey() != null && registry.getResource(NodeGraphs.class) != null;
+    }
+
+    private long findGroup(long nodeId) {
+        List<?> found = em.createNativeQuery("""
+                SELECT coalesce(n.group_id, (SELECT g.id FROM node_group g WHERE g.root_id = n.id))
+                FROM node n WHERE n.id = :id
+                """).setParameter("id", nodeId).getResultList();
+        return found.isEmpty() || found.getFirst() == null ? NO_GROUP : ((Number) found.getFirst()).longValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private NodeGraph compile(long groupId, long version) {
+        List<NodeGraph.Node> nodes = new ArrayList<>();
+        for (Object[] row : (List<Object[]>) em.createNativeQuery("""
+                SELECT id, type, ephemeral FROM node
+                WHERE group_id = :groupId OR id = (SELECT root_id FROM node_group WHERE id = :groupId)
+                ORDER BY id
+                """).setParameter("groupId", groupId).getResultList()) {
+            nodes.add(new NodeGraph.Node(((Number) row[0]).longValue(), NodeType.fromDisplay((String) row[1]),
+                    row[2] == null ? null : EphemeralMode.valueOf((String) row[2])));
+        }
+        List<NodeGraph.Edge> edges = new ArrayList<>();
+        for (Object[] row : (List<Object[]>) em.createNativeQuery("""
+                SELECT e.child_id, e.parent_id FROM node_edge e JOIN node n ON n.id = e.child_id
+                WHERE n.group_id = :groupId
+                ORDER BY e.child_id, e.idx
+                """).setParameter("groupId", groupId).getResultList()) {
+            edges.add(new NodeGraph.Edge(((Number) row[0]).longValue(), ((Number) row[1]).longValue()));
+        }
+        return new NodeGraph(groupId, version, nodes, edges);
+    }
+
+    /**
+     * Drops the graphs when a node row changes. Changes to the sources alone do not reach the
+     * listener, {@link NodeService} reports them with {@link #changed()}.
+     */
+    public static class Listener {
+        @PostPersist
+        @PostUpdate
+        @PostRemove
+        void changed(NodeEntity node) {
+            CDI.current().select(NodeGraphs.class).get().changed();
+        }
+    }
+}
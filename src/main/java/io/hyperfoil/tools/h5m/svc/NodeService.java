@@ -23,6 +23,8 @@ import io.hyperfoil.tools.h5m.entity.node.*;
 import io.hyperfoil.tools.h5m.pasted.ProxyJq;
 import io.hyperfoil.tools.h5m.pasted.ProxyJqObject;
 import io.hyperfoil.tools.h5m.pasted.Util;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import io.quarkus.logging.Log;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -85,6 +87,14 @@ public class NodeService implements NodeServiceInterface {
     NodeGroupService nodeGroupService;
     @Inject
     FolderService folderService;
+    @Inject
+    NodeEvaluationCache evaluationCache;
+    @Inject
+    FolderStatsService folderStats;
+    @Inject
+    NodeGraphs graphs;
+    @Inject
+    ViewService viewService;
 
 
     @Transactional
@@ -93,6 +103,9 @@ public class NodeService implements NodeServiceInterface {
         if(!node.isPersistent()){
             node.id = null;
             em.persist(node);
+            if(node.group != null && node.group.id != null){
+                folderStats.nodesChanged(node.group.id);
+            }
         }
         return node;
     }
@@ -112,6 +125,7 @@ public class NodeService implements NodeServiceInterface {
             node.sources.add(node.group.root);
         }
         em.persist(node);
+        folderStats.nodesChanged(groupId);
         return apiMapper.toNode(node, new CycleAvoidingContext());
     }
 
@@ -130,6 +144,7 @@ public class NodeService implements NodeServiceInterface {
         node.sources = NodeEntity.findByIds(sources);
 
         em.persist(node);
+        folderStats.nodesChanged(groupId);
         return apiMapper.toNode(node, new CycleAvoidingContext());
     }
 
@@ -169,6 +184,8 @@ public class NodeService implements NodeServiceInterface {
 
         }else{
             NodeEntity existing = NodeEntity.findById(node.id);
+            // the sources may change without the node row
+            graphs.changed();
             if(!existing.name.equals(node.name)){
                 Map<String,String> changes = Map.of(existing.name,node.name);
                 //change ecma
@@ -217,6 +234,14 @@ public class NodeService implements NodeServiceInterface {
      */
     @Transactional
     public Set<NodeEntity> getEphemeralSources(NodeEntity node){
+        NodeGraph graph = graphs.forNode(node.id);
+        if (graph != null && graph.contains(node.id)) {
+            Set<NodeEntity> rtrn = new HashSet<>();
+            for (Long id : graph.ephemeralSources(node.id)) {
+                rtrn.add(em.find(NodeEntity.class, id));
+            }
+            return rtrn;
+        }
         Set<NodeEntity> rtrn = new HashSet<>();
         Set<NodeEntity> seen = new HashSet<>();
         Queue<NodeEntity> queue = new LinkedList<>(node.sources);
@@ -234,6 +259,10 @@ public class NodeService implements NodeServiceInterface {
 
     @Transactional
     public boolean isEphemeral(NodeEntity node){
+        NodeGraph graph = graphs.forNode(node.id);
+        if (graph != null && graph.contains(node.id)) {
+            return graph.isEphemeral(node.id);
+        }
         Boolean result = (Boolean) em.createNativeQuery("""
             select exists(
                 select 1
@@ -273,31 +302,60 @@ public class NodeService implements NodeServiceInterface {
         return EdgeQueries.getParentCounts(em, "node_edge", childIds);
     }
 
+    /**
+     * Deletes the node, the dependent nodes whose sources are all deleted with it, and their
+     * values. The values are deleted in chunks first (see {@link ValueService#deleteNodeValues}),
+     * so a busy node does not hold its locks for the whole delete; values written meanwhile are
+     * deleted with the nodes. The views showing a deleted node are rebuilt without its values.
+     */
     @Override
-    @Transactional
     public void delete(Long nodeId){
         if(nodeId!=null) {
-            NodeEntity node = NodeEntity.findById(nodeId);
-            if(node == null) return;
-            List<NodeEntity> dependents = getDependentNodes(node);
-            for(NodeEntity dependent : dependents){
-                long parentCount = getNodeParentCount(dependent);
-                if(parentCount <= 1){
-                    delete(dependent.id);
+            List<Long> deleted = QuarkusTransaction.joiningExisting().call(() -> deletedWith(nodeId));
+            if(deleted.isEmpty()) return;
+            graphs.changed();
+            valueService.deleteNodeValues(deleted);
+            QuarkusTransaction.joiningExisting().run(() -> {
+                valueService.deleteNodeValues(deleted);
+                viewService.rebuildViews(deleted);
+                Set<Long> groupIds = new HashSet<>();
+                // dependents first, the way they were found
+                for(Long id : deleted.reversed()){
+                    NodeEntity node = NodeEntity.findById(id);
+                    if(node == null) continue;
+                    if(node.group != null){
+                        groupIds.add(node.group.id);
+                    }
+                    EdgeQueries.deleteChildEdges(em, "node_edge", id);
+                    // clean up edge rows where this node is a parent (inverse side not managed by JPA)
+                    EdgeQueries.deleteParentEdges(em, "node_edge", id);
+                    em.flush();
+                    em.clear();
+                    NodeEntity.deleteById(id);
                 }
-            }
+                groupIds.forEach(folderStats::nodesChanged);
+            });
+        }
+    }
 
-            List<ValueEntity> nodeValues = ValueEntity.find("node.id", nodeId).list();
-            for (ValueEntity v : nodeValues) {
-                valueService.delete(v);
+    /**
+     * Returns {@code nodeId} followed by the dependent nodes whose sources are all in the list,
+     * or nothing if the node does not exist.
+     */
+    private List<Long> deletedWith(Long nodeId){
+        NodeEntity node = NodeEntity.findById(nodeId);
+        if(node == null) return List.of();
+        List<NodeEntity> deleted = new ArrayList<>(List.of(node));
+        Set<Long> ids = new HashSet<>(Set.of(nodeId));
+        for(int i = 0; i < deleted.size(); i++){
+            for(NodeEntity dependent : getDependentNodes(deleted.get(i))){
+                if(!ids.contains(dependent.id) && dependent.sources.stream().allMatch(source -> ids.contains(source.id))){
+                    ids.add(dependent.id);
+                    deleted.add(dependent);
+                }
             }
-            EdgeQueries.deleteChildEdges(em, "node_edge", node.id);
-            // clean up edge rows where this node is a parent (inverse side not managed by JPA)
-            EdgeQueries.deleteParentEdges(em, "node_edge", nodeId);
-            em.flush();
-            em.clear();
-            NodeEntity.deleteById(nodeId);
         }
+        return deleted.stream().map(n -> n.id).toList();
     }
 
     /**
@@ -1064,12 +1122,22 @@ public class NodeService implements NodeServiceInterface {
         List<ValueEntity> rtrn = new ArrayList<>();
 
         try {
-            // JSONata compiled to jq via jjq-jsonata — executes natively on JqValue
-            JqProgram program = compileJsonata(node.operation);
-            JqValue jqInput = input != null && input.data != null ? input.data : JqNull.NULL;
-            JqValue result = program.apply(jqInput);
-            if (result == null) {
-                result = JqNull.NULL;
+            NodeEvaluationCache.Key key = evaluationCache.isEnabled() ? evaluationCache.key(node, sourceValues) : null;
+            List<JqValue> cached = key != null ? evaluationCache.get(key) : null;
+            JqValue result;
+            if (cached != null) {
+                result = cached.getFirst();
+            } else {
+                // JSONata compiled to jq via jjq-jsonata — executes natively on JqValue
+                JqProgram program = compileJsonata(node.operation);
+                JqValue jqInput = input != null && input.data != null ? input.data : JqNull.NULL;
+                result = program.apply(jqInput);
+                if (result == null) {
+                    result = JqNull.NULL;
+                }
+                if (key != null) {
+                    evaluationCache.put(key, List.of(result));
+                }
             }
 
             ValueEntity newValue = new ValueEntity();
@@ -1178,6 +1246,13 @@ public class NodeService implements NodeServiceInterface {
                 namedSourceValues.put(v.node != null ? v.node.name : String.valueOf(v.id), v);
             }
         }
+        NodeEvaluationCache.Key key = evaluationCache.isEnabled() ? evaluationCache.key(node, sourceValues) : null;
+        List<JqValue> cached = key != null ? evaluationCache.get(key) : null;
+        if (cached != null) {
+            cached.forEach(data -> rtrn.add(newJsValue(node, sourceValues, startingOrdinal + rtrn.size() + 1, data)));
+            return rtrn;
+        }
+        List<JqValue> outputs = new ArrayList<>();
         List<JqValue> input = JsNode.createParameters(node.operation, namedSourceValues,
                 node.sources.isEmpty() ? sourceValues.size() : node.sources.size());
         try(Context context = Context.newBuilder("js").engine(JS_ENGINE)
@@ -1217,12 +1292,8 @@ public class NodeService implements NodeServiceInterface {
 
                         //File valuePath = JqNode.outputPath().resolve(node.name + "." + (startingOrdinal+1)+".jq").toFile();
                         if(data!=null) {
-                            ValueEntity newValue = new ValueEntity();
-                            newValue.idx = startingOrdinal+rtrn.size()+1;
-                            newValue.node = node;
-                            newValue.data = data;
-                            newValue.sources = node.sources.stream().filter(n->sourceValues.containsKey(n.getId())).map(n -> sourceValues.get(n.getId())).collect(Collectors.toList());
-                            rtrn.add(newValue);
+                            outputs.add(data);
+                            rtrn.add(newJsValue(node, sourceValues, startingOrdinal+rtrn.size()+1, data));
                         }else{
                             Log.debugf("null data from value %s from node=%s", resolvedValue, node.name);
                         }
@@ -1230,6 +1301,9 @@ public class NodeService implements NodeServiceInterface {
                         System.err.println("exception jsNode "+node.name+" sourceValues="+sourceValues+"\n"+pe.getMessage());
                     }
                 }
+                if (key != null) {
+                    evaluationCache.put(key, outputs);
+                }
             }catch(PolyglotException e){
                 System.err.println("exception jsNode "+node.name+" sourceValues="+sourceValues+"\n"+e.getMessage());
             } finally {
@@ -1238,6 +1312,15 @@ public class NodeService implements NodeServiceInterface {
         }
         return rtrn;
     }
+
+    private static ValueEntity newJsValue(JsNode node, Map<Long, ValueEntity> sourceValues, int idx, JqValue data) {
+        ValueEntity newValue = new ValueEntity();
+        newValue.idx = idx;
+        newValue.node = node;
+        newValue.data = data;
+        newValue.sources = node.sources.stream().filter(n->sourceValues.containsKey(n.getId())).map(n -> sourceValues.get(n.getId())).collect(Collectors.toList());
+        return newValue;
+    }
     //io.hyperfoil.tools.horreum.exp.data.LabelReducerDao#resolvePromise
     public static List<org.graalvm.polyglot.Value> resolvePromiseOrGenerator(org.graalvm.polyglot.Value value) {
         List<org.graalvm.polyglot.Value> rtrn = new  ArrayList<>();
@@ -1340,6 +1423,13 @@ public class NodeService implements NodeServiceInterface {
     public List<ValueEntity> calculateJqValues(JqNode node, Map<Long, ValueEntity> sourceValues, int startingOrdinal) throws IOException {
         List<ValueEntity> rtrn = new ArrayList<>();
 
+        NodeEvaluationCache.Key key = evaluationCache.isEnabled() ? evaluationCache.key(node, sourceValues) : null;
+        List<JqValue> cached = key != null ? evaluationCache.get(key) : null;
+        if (cached != null) {
+            addJqResults(node, sourceValues, startingOrdinal, cached, rtrn);
+            return rtrn;
+        }
+
         boolean isNullInput = JqNode.isNullInput(node.operation);
 
         JqProgram program;
@@ -1380,20 +1470,10 @@ public class NodeService implements NodeServiceInterface {
                 JqValue input = sourceData.isEmpty() ? JqNull.NULL : sourceData.getFirst();
                 results = program.applyAll(input);
             }
-            int order = startingOrdinal;
-            for (JqValue jqResult : results) {
-                if (!jqResult.isNull()) {
-                    ValueEntity newValue = new ValueEntity();
-                    newValue.idx = order++;
-                    newValue.node = node;
-                    newValue.data = jqResult;
-                    newValue.sources = node.sources.stream()
-                            .filter(n -> sourceValues.containsKey(n.getId()))
-                            .map(n -> sourceValues.get(n.getId()))
-                            .collect(Collectors.toList());
-                    rtrn.add(newValue);
-                }
+            if (key != null) {
+                evaluationCache.put(key, results);
             }
+            addJqResults(node, sourceValues, startingOrdinal, results, rtrn);
         } catch (Exception e) {
             System.err.println("Error processing " + node.id + " " + node.name
                     + "\n  values: " + sourceValues.entrySet().stream()
@@ -1405,6 +1485,23 @@ public class NodeService implements NodeServiceInterface {
         return rtrn;
     }
 
+    private static void addJqResults(JqNode node, Map<Long, ValueEntity> sourceValues, int startingOrdinal, List<JqValue> results, List<ValueEntity> rtrn) {
+        int order = startingOrdinal;
+        for (JqValue jqResult : results) {
+            if (!jqResult.isNull()) {
+                ValueEntity newValue = new ValueEntity();
+                newValue.idx = order++;
+                newValue.node = node;
+                newValue.data = jqResult;
+                newValue.sources = node.sources.stream()
+                        .filter(n -> sourceValues.containsKey(n.getId()))
+                        .map(n -> sourceValues.get(n.getId()))
+                        .collect(Collectors.toList());
+                rtrn.add(newValue);
+            }
+        }
+    }
+
     /**
      * find a NodeEntity based on the groupName:nodeName
      * @param name
@@ -21,12 +21,15 @@ import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Handles pipeline processing lifecycle: recalculation, selective node
@@ -40,6 +43,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>Ingestion starts in {@link ValueService#createRootValue} which delegates
  * tracker creation and lifecycle to this service. Recalculation is exposed
  * directly via {@link io.hyperfoil.tools.h5m.rest.NodeResource}.</p>
+ *
+ * <p>In cluster mode ({@link WorkCluster}) the work runs on the members that claim it, which
+ * track the root values they claimed; the instance starting an upload or a recalculation
+ * does not, and status queries read the processing records instead.</p>
  */
 @ApplicationScoped
 public class ProcessingService implements ProcessingServiceInterface {
@@ -48,6 +55,8 @@ public class ProcessingService implements ProcessingServiceInterface {
 
     private static final long RETENTION_MS = 10 * 60 * 1000;
 
+    private static final long AWAIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     /**
      * Per-root-value trackers for work-item accounting. Each root value ID maps
      * to a tracker whose pendingCount is incremented/decremented as work items
@@ -70,6 +79,12 @@ public class ProcessingService implements ProcessingServiceInterface {
     WorkService workService;
     @Inject
     NodeService nodeService;
+    @Inject
+    ViewService viewService;
+    @Inject
+    WorkJournal workJournal;
+    @Inject
+    WorkCluster cluster;
 
     // --- Tracker lifecycle ---
 
@@ -78,13 +93,19 @@ public class ProcessingService implements ProcessingServiceInterface {
      * The tracker is indexed by root value ID for both work-item accounting
      * and status queries.
      *
-     * @return the activity tracker (callers can get the future from it)
+     * @return the activity tracker (callers can get the future from it), {@code null} in
+     *         cluster mode where the members claiming the work track it ({@link #trackClaimed})
      */
     ActivityTracker createForIngestion(long nodeId, long rootValueId, String folderName) {
+        if (cluster.isActive()) {
+            return null;
+        }
         ActivityTracker tracker = byRootValueId.computeIfAbsent(rootValueId, _ -> new ActivityTracker(nodeId, List.of(rootValueId), folderName, 1));
         tracker.afterCleanup = tracker.future.whenComplete((_, t) -> {
             byRootValueId.remove(rootValueId);
             workService.runInNewTransaction(() -> completeIngestion(rootValueId, t));
+            // also after a failure, the rows show the values that were calculated
+            refreshViews(List.of(rootValueId), null);
         });
         return tracker;
     }
@@ -98,10 +119,10 @@ public class ProcessingService implements ProcessingServiceInterface {
                 entity.completed = true;
             }
         }
+        // evicts the nulled values from the 2LC itself
         int nullified = valueService.nullifyEphemeralData(rootValueId);
         if (nullified > 0) {
             Log.debugf("Nullified data for %d ephemeral values (root value %d)", nullified, rootValueId);
-            em.getEntityManagerFactory().getCache().evict(ValueEntity.class);
         }
     }
 
@@ -131,19 +152,83 @@ public class ProcessingService implements ProcessingServiceInterface {
         return main;
     }
 
+    /**
+     * Creates trackers for the root values a {@link WorkCluster} member claimed work of. Once
+     * the member ran out of work for a root value, {@link #completeClaimed} completes the
+     * processing if no member has work left for it.
+     */
+    void trackClaimed(Collection<Long> rootValueIds) {
+        for (long rootValueId : rootValueIds) {
+            byRootValueId.computeIfAbsent(rootValueId, _ -> {
+                ActivityTracker tracker = new ActivityTracker(0, List.of(rootValueId), null, 1);
+                tracker.afterCleanup = tracker.future.whenComplete((_, t) -> {
+                    byRootValueId.remove(rootValueId);
+                    completeClaimed(rootValueId, t);
+                });
+                return tracker;
+            });
+        }
+    }
+
+    /**
+     * Completes the ingestion of {@code rootValueId} when the journal has no work left for it,
+     * and the recalculations of its folder when there is none left for the folder. Members
+     * check after committing their last work, so the one finishing last sees no work left.
+     * Claimed work that failed is released or dropped by {@link WorkCluster#failed}, an error
+     * reaching the tracker is recorded here; either way the processing completes as failed
+     * once no work is left.
+     */
+    void completeClaimed(long rootValueId, Throwable error) {
+        if (error != null) {
+            Log.errorf(error, "Processing of root value %d failed", rootValueId);
+            workService.runInNewTransaction(() -> recordFailure(rootValueId,
+                    error.getMessage() == null ? error.toString() : error.getMessage()));
+        }
+        boolean completed = workService.callInNewTransaction(() -> {
+            if (workJournal.outstanding(rootValueId) > 0) {
+                // claimed by another member, or waiting for the next claim
+                return false;
+            }
+            completeIngestion(rootValueId, null);
+            ValueEntity rootValue = ValueEntity.findById(rootValueId);
+            if (rootValue != null && rootValue.folder != null && workJournal.outstandingInFolder(rootValue.folder.id) == 0) {
+                ProcessingEntity.<ProcessingEntity>list("folderId = ?1 and nodeId is not null and completed = false", rootValue.folder.id)
+                        .forEach(recalculation -> recalculation.completed = true);
+            }
+            return true;
+        });
+        if (completed) {
+            refreshViews(List.of(rootValueId), null);
+        }
+    }
+
+    /**
+     * Records {@code error} on the incomplete ingestion of {@code rootValueId}, or on the
+     * recalculations of its folder when the work belongs to one. The record completes as failed
+     * once the journal has no work left for it.
+     */
+    void recordFailure(long rootValueId, String error) {
+        List<ProcessingEntity> records = ProcessingEntity.list("valueId = ?1 and completed = false", rootValueId);
+        if (records.isEmpty()) {
+            ValueEntity rootValue = ValueEntity.findById(rootValueId);
+            if (rootValue != null && rootValue.folder != null) {
+                records = ProcessingEntity.list("folderId = ?1 and nodeId is not null and completed = false", rootValue.folder.id);
+            }
+        }
+        records.forEach(record -> record.error = error);
+    }
+
     // --- Work-item accounting (called by WorkService) ---
 
     List<ActivityTracker> findTrackers(Work work) {
-        if (work.getSourceValueIds() == null || byRootValueId.isEmpty()) {
+        if (work.getSourceValueIds().length == 0 || byRootValueId.isEmpty()) {
             return List.of();
         }
         List<ActivityTracker> found = new ArrayList<>();
-        for (Long valueId : work.getSourceValueIds()) {
-            if (valueId != null) {
-                ActivityTracker tracker = byRootValueId.get(valueId);
-                if (tracker != null && !found.contains(tracker)) {
-                    found.add(tracker);
-                }
+        for (long valueId : work.getSourceValueIds()) {
+            ActivityTracker tracker = byRootValueId.get(valueId);
+            if (tracker != null && !found.contains(tracker)) {
+                found.add(tracker);
             }
         }
         return found;
@@ -173,11 +258,20 @@ public class ProcessingService implements ProcessingServiceInterface {
     @Transactional
     public Processing getIngestionStatus(long rootValueId) {
         ActivityTracker tracker = byRootValueId.get(rootValueId);
-        if (tracker != null) {
+        if (tracker != null && !cluster.isActive()) {
             return tracker.toStatus();
         }
         ValueEntity rootValue = ValueEntity.findById(rootValueId);
         if (rootValue != null && rootValue.node != null && rootValue.node.type() == NodeType.ROOT) {
+            ProcessingEntity latest = cluster.isActive()
+                    ? ProcessingEntity.find("valueId = ?1 order by id desc", rootValueId).firstResult()
+                    : null;
+            if (latest != null && !latest.completed) {
+                return new Processing(rootValue.node.id, List.of(rootValueId), null, 1, 0, Processing.State.RUNNING, latest.error, elapsed(latest));
+            }
+            if (latest != null && latest.error != null) {
+                return new Processing(rootValue.node.id, List.of(rootValueId), null, 1, 1, Processing.State.FAILED, latest.error, elapsed(latest));
+            }
             return new Processing(rootValue.node.id, List.of(rootValueId), null, 1, 1, Processing.State.COMPLETED, null, 0);
         }
         return null;
@@ -185,12 +279,22 @@ public class ProcessingService implements ProcessingServiceInterface {
 
     @Override
     public Processing getRecalculationStatus(long nodeId) {
+        if (cluster.isActive()) {
+            return QuarkusTransaction.requiringNew().call(() -> {
+                ProcessingEntity latest = ProcessingEntity.find("nodeId = ?1 order by id desc", nodeId).firstResult();
+                return latest == null ? null : new Processing(nodeId, List.of(), null, 0, 0,
+                        state(latest), latest.error, elapsed(latest));
+            });
+        }
         ActivityTracker tracker = getByNodeId(nodeId);
         return tracker != null ? tracker.toStatus() : null;
     }
 
     @Override
     public boolean awaitIngestion(long rootValueId, long timeout, TimeUnit unit) {
+        if (cluster.isActive()) {
+            return awaitRecords("valueId = ?1 and completed = false", rootValueId, timeout, unit);
+        }
         ActivityTracker tracker = getByRootValueId(rootValueId);
         if (tracker == null) {
             return true;
@@ -207,6 +311,9 @@ public class ProcessingService implements ProcessingServiceInterface {
 
     @Override
     public boolean awaitRecalculation(long nodeId, long timeout, TimeUnit unit) {
+        if (cluster.isActive()) {
+            return awaitRecords("nodeId = ?1 and completed = false", nodeId, timeout, unit);
+        }
         ActivityTracker tracker = getByNodeId(nodeId);
         if (tracker == null) {
             return true;
@@ -221,6 +328,34 @@ public class ProcessingService implements ProcessingServiceInterface {
         }
     }
 
+    /**
+     * Waits for the processing records matching {@code query} to complete, wherever their work runs.
+     */
+    private boolean awaitRecords(String query, long id, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (QuarkusTransaction.requiringNew().call(() -> ProcessingEntity.count(query, id)) > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(AWAIT_POLL_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long elapsed(ProcessingEntity entity) {
+        return entity.createdAt == null ? 0 : Duration.between(entity.createdAt, LocalDateTime.now()).toMillis();
+    }
+
+    private static Processing.State state(ProcessingEntity entity) {
+        if (!entity.completed) {
+            return Processing.State.RUNNING;
+        }
+        return entity.error != null ? Processing.State.FAILED : Processing.State.COMPLETED;
+    }
+
     ActivityTracker getByNodeId(long nodeId) {
         ActivityTracker tracker = byNodeId.get(nodeId);
         if (tracker != null && tracker.state != Processing.State.RUNNING) {
@@ -245,6 +380,10 @@ public class ProcessingService implements ProcessingServiceInterface {
      * deduplication logic in execute() skips already-computed values while
      * ensuring missing children are still calculated.
      * <p>
+     * Records that are {@link ProcessingEntity#isJournaled() journaled} resume only the work left
+     * in the {@link WorkJournal} instead, with its cascade, and complete at once when none is
+     * left. Journal rows no incomplete record would resume are removed first.
+     * <p>
      * Recovery is split into two phases to avoid SQLITE_BUSY_SNAPSHOT errors.
      * <ul>
      *   <li>Phase 1 (inside the transaction): reads incomplete trackers, updates
@@ -262,6 +401,10 @@ public class ProcessingService implements ProcessingServiceInterface {
         if(!ConfigUtils.getProfiles().contains("cli") || ev == null) {
             List<Runnable> deferred = new ArrayList<>();
             QuarkusTransaction.requiringNew().run(() -> {
+                int orphans = workJournal.purgeOrphans();
+                if (orphans > 0) {
+                    Log.infof("Removed %d work journal entries no processing operation will resume", orphans);
+                }
                 List<ProcessingEntity> incomplete = ProcessingEntity.find("completed", false).list();
                 if (!incomplete.isEmpty()) {
                     Log.infof("Found %d incomplete processing operations to recover", incomplete.size());
@@ -305,6 +448,27 @@ public class ProcessingService implements ProcessingServiceInterface {
             tracking.delete();
             return;
         }
+        if (tracking.isJournaled()) {
+            if (cluster.isActive() && workJournal.outstanding(rootValue.id) > 0) {
+                // the work is in the shared queue, members claim it once the claims of a stopped one are released
+                return;
+            }
+            List<Work> works = workJournal.resume(workJournal.forUpload(rootValue.id));
+            Log.infof("Resuming %d work items of the ingestion of root value %d in folder %d", works.size(), tracking.valueId, tracking.folderId);
+            if (works.isEmpty()) {
+                // everything was calculated, only the completion is missing
+                deferred.add(() -> {
+                    workService.runInNewTransaction(() -> completeIngestion(rootValue.id, null));
+                    refreshViews(List.of(rootValue.id), null);
+                });
+            } else {
+                deferred.add(() -> {
+                    createForIngestion(folder.group.root.id, rootValue.id, folder.name);
+                    workService.create(works);
+                });
+            }
+            return;
+        }
         Log.infof("Re-triggering ingestion for root value %d in folder %d", tracking.valueId, tracking.folderId);
         // Use all source nodes (not just top-level) to handle mid-cascade crashes
         List<Work> works = List.copyOf(folder.group.sources).stream()
@@ -341,6 +505,10 @@ public class ProcessingService implements ProcessingServiceInterface {
             tracking.delete();
             return;
         }
+        if (tracking.isJournaled()) {
+            resumeRecalculateNode(tracking, folder, deferred);
+            return;
+        }
         // Recovery queues ALL source nodes (not just top-level or the specific node).
         //
         // Why not use recalculate() (top-level + cascade):
@@ -387,25 +555,73 @@ public class ProcessingService implements ProcessingServiceInterface {
             long recoveryTrackerId = recoveryTracker.id;
             // Defer work creation until after the recovery transaction commits — createTracked opens its own transaction via afterCompletion
             deferred.add(() -> {
+                if (cluster.isActive()) {
+                    // the member finishing the work completes the recovery record
+                    workService.create(works);
+                    return;
+                }
                 ActivityTracker tracker = createForRecalculation(node.id, rootValueIds, folder.name);
                 workService.create(works);
-                tracker.afterCleanup = tracker.getFuture().whenComplete((_, _) -> workService.runInNewTransaction(() -> {
-                    ProcessingEntity entity = ProcessingEntity.findById(recoveryTrackerId);
-                    if (entity != null) {
-                        entity.completed = true;
-                    }
-                    for (ValueEntity rootValue : rootValues) {
-                        valueService.nullifyEphemeralData(rootValue.id);
-                    }
-                    // Evict cached ValueEntity instances since data was nullified via native SQL
-                    em.getEntityManagerFactory().getCache().evict(ValueEntity.class);
-                }));
+                tracker.afterCleanup = tracker.getFuture().whenComplete((_, _) ->
+                        completeRecovery(recoveryTrackerId, rootValueIds));
             });
         } else {
             recoveryTracker.completed = true;
         }
     }
 
+    /**
+     * Resumes the work of a journaled recalculation that is still outstanding. The record stays
+     * incomplete until that work is done, so a crash meanwhile resumes it again.
+     */
+    private void resumeRecalculateNode(ProcessingEntity tracking, FolderEntity folder, List<Runnable> deferred) {
+        if (cluster.isActive() && workJournal.outstandingInFolder(folder.id) > 0) {
+            // the work is in the shared queue, the member finishing it completes the record
+            return;
+        }
+        List<Work> works = workJournal.resume(workJournal.forFolder(folder.id));
+        Log.infof("Resuming %d work items of the recalculation of node %d in folder %d", works.size(), tracking.nodeId, tracking.folderId);
+        Set<Long> allRootValueIds = new HashSet<>();
+        for (ValueEntity rootValue : valueService.getValues(folder.group.root)) {
+            allRootValueIds.add(rootValue.id);
+        }
+        long trackingId = tracking.id;
+        long nodeId = tracking.nodeId;
+        if (works.isEmpty()) {
+            // everything was calculated, only the completion is missing
+            deferred.add(() -> completeRecovery(trackingId, allRootValueIds));
+            return;
+        }
+        // sub-trackers complete with their work, so only root values with work left get one
+        Set<Long> rootValueIds = new HashSet<>();
+        for (Work work : works) {
+            rootValueIds.add(work.getSourceValueIds()[0]);
+        }
+        deferred.add(() -> {
+            ActivityTracker tracker = createForRecalculation(nodeId, rootValueIds, folder.name);
+            workService.create(works);
+            tracker.afterCleanup = tracker.getFuture().whenComplete((_, _) ->
+                    completeRecovery(trackingId, allRootValueIds));
+        });
+    }
+
+    /**
+     * Marks a recovered recalculation completed and discards the ephemeral data of its root values.
+     */
+    private void completeRecovery(long trackingId, Set<Long> rootValueIds) {
+        workService.runInNewTransaction(() -> {
+            ProcessingEntity entity = ProcessingEntity.findById(trackingId);
+            if (entity != null) {
+                entity.completed = true;
+            }
+            // nullifyEphemeralData evicts only the values it nulled from the 2LC
+            for (Long rootValueId : rootValueIds) {
+                valueService.nullifyEphemeralData(rootValueId);
+            }
+        });
+        refreshViews(rootValueIds, null);
+    }
+
     // --- Folder lookup helpers ---
 
     private FolderEntity findFolderById(long folderId) {
@@ -425,6 +641,19 @@ public class ProcessingService implements ProcessingServiceInterface {
                 .orElseThrow(() -> new IllegalArgumentException("No folder found for group " + groupId));
     }
 
+    /**
+     * Rebuilds the materialized view rows of the given root values in a separate transaction,
+     * once their values were calculated and the ephemeral ones nulled. A failure is logged and
+     * leaves the rows as they were until the next refresh of the root values.
+     */
+    private void refreshViews(Collection<Long> rootValueIds, Long nodeId) {
+        try {
+            workService.runInNewTransaction(() -> viewService.refreshRows(rootValueIds, nodeId));
+        } catch (RuntimeException e) {
+            Log.errorf(e, "Failed to refresh view rows for %d root values", rootValueIds.size());
+        }
+    }
+
     // --- Recalculation ---
 
     /**
@@ -480,10 +709,17 @@ public class ProcessingService implements ProcessingServiceInterface {
                 return new Processing(nodeId, List.of(), folder.name, 0, 0, Processing.State.COMPLETED, null, 0);
             }
 
-            // Track for crash recovery
+            // Track for crash recovery, the work is journaled in this transaction
             ProcessingEntity tracking = new ProcessingEntity(folder.id, nodeId, null);
+            tracking.journaled = workJournal.isEnabled();
             tracking.persist();
 
+            if (cluster.isActive()) {
+                // the member finishing the last work of the folder completes the record
+                workService.create(todo);
+                return new Processing(nodeId, List.copyOf(rootValueIds), folder.name, rootValueIds.size(), 0, Processing.State.RUNNING, null, 0);
+            }
+
             ActivityTracker tracker = createForRecalculation(nodeId, rootValueIds, folder.name);
             workService.create(todo);
 
@@ -495,7 +731,7 @@ public class ProcessingService implements ProcessingServiceInterface {
                     Log.errorf(t, "Recalculation failed for folder '%s' (nodeId=%d)", folder.name, nodeId);
                 }
                 // Mark tracker completed even on failure to prevent infinite retry on restart.
-                // On success, also nullify ephemeral data and evict the 2LC.
+                // On success, also nullify ephemeral data (which evicts the nulled values from the 2LC).
                 workService.runInNewTransaction(() -> {
                     ProcessingEntity entity = ProcessingEntity.findById(tracking.id);
                     if (entity != null) {
@@ -508,9 +744,9 @@ public class ProcessingService implements ProcessingServiceInterface {
                                 Log.debugf("Nullified data for %d ephemeral values (root %d)", nullified, rootValue.id);
                             }
                         }
-                        em.getEntityManagerFactory().getCache().evict(ValueEntity.class);
                     }
                 });
+                refreshViews(rootValueIds, nodeId);
             });
             return tracker.toStatus();
         });
@@ -0,0 +1,61 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.SchemaVersionEntity;
+import io.hyperfoil.tools.h5m.provided.SchemaConfigSourceFactory;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.panache.common.Sort;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+/**
+ * Records in {@code schema_version} the schema Hibernate migrated the database to, once the
+ * startup conversions ({@link JsonbStorage}, {@link ValuePartitions}) are done. A version is
+ * added when the checksum of the build differs from the current one, so that the next start with
+ * {@code h5m.schema.fast-start} can skip the update (see {@link SchemaConfigSourceFactory}).
+ */
+@ApplicationScoped
+public class SchemaVersions {
+
+    // the strategies after which the database matches the mapping
+    private static final Set<String> MIGRATING = Set.of("update", "create", "drop-and-create");
+
+    @ConfigProperty(name = "quarkus.hibernate-orm.schema-management.strategy", defaultValue = "none")
+    String strategy;
+
+    @ConfigProperty(name = "quarkus.application.version", defaultValue = "")
+    String applicationVersion;
+
+    void onStart(@Observes @Priority(5) StartupEvent ev) {
+        String checksum = SchemaConfigSourceFactory.buildChecksum();
+        if (checksum == null || !MIGRATING.contains(strategy)) {
+            return;
+        }
+        try {
+            QuarkusTransaction.requiringNew().run(() -> record(checksum));
+        } catch (RuntimeException e) {
+            // another instance recorded the same version, or the next start updates again
+            Log.debugf(e, "Schema version %s not recorded", checksum);
+        }
+    }
+
+    void record(String checksum) {
+        SchemaVersionEntity current = SchemaVersionEntity.findAll(Sort.descending("version")).firstResult();
+        if (current != null && checksum.equals(current.checksum)) {
+            return;
+        }
+        SchemaVersionEntity next = new SchemaVersionEntity();
+        next.version = current == null ? 1 : current.version + 1;
+        next.checksum = checksum;
+        next.applicationVersion = applicationVersion.isEmpty() ? null : applicationVersion;
+        next.appliedAt = LocalDateTime.now();
+        next.persist();
+        Log.infof("Database schema at version %d (%s)", next.version, checksum);
+    }
+}
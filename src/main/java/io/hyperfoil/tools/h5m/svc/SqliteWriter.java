@@ -0,0 +1,287 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.ValueIdAllocator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.RollbackException;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the write transactions of a SQLite database on one thread. SQLite allows a single writer
+ * at a time, so work runners that commit on their own threads mostly wait on each other's locks
+ * and retry with backoff. With {@code h5m.sqlite.single-writer} enabled, callers hand their
+ * writes to {@link #call} and the writer commits everything that queued up while the previous
+ * transaction was running in one transaction (at most {@code h5m.sqlite.writer.max-batch}
+ * actions), so one fsync covers the results of several runners. Reads stay on the callers'
+ * threads: in WAL mode they use their own connections and do not block the writer.
+ * <p>
+ * Each action of a batch runs behind a savepoint with a persistence context of its own: an
+ * action that fails is rolled back to its savepoint and reports the error, the others are
+ * committed. Synchronizations an action registers through {@link #registerSynchronization}
+ * complete with the action, with the commit of the batch or at once when the action is rolled
+ * back, so the work it queued is only accounted for once. If the shared transaction still
+ * fails (the commit itself, or an action that marked it rollback-only), the actions that had
+ * succeeded are run again in a transaction of their own. Actions must therefore leave no side
+ * effects behind when their transaction rolls back. The batch sizes are reported as the
+ * {@code h5m.sqlite.writer.batch} metric.
+ */
+@ApplicationScoped
+public class SqliteWriter {
+
+    private record Task<T>(Callable<T> action, CompletableFuture<T> result, List<Synchronization> synchronizations) {
+        Task(Callable<T> action, CompletableFuture<T> result) {
+            this(action, result, new ArrayList<>());
+        }
+
+        void complete(Object value) {
+            @SuppressWarnings("unchecked")
+            T cast = (T) value;
+            result.complete(cast);
+        }
+
+        void completed(int status) {
+            for (Synchronization synchronization : synchronizations) {
+                try {
+                    synchronization.afterCompletion(status);
+                } catch (RuntimeException e) {
+                    Log.errorf(e, "Completing a write action failed");
+                }
+            }
+            synchronizations.clear();
+        }
+    }
+
+    @ConfigProperty(name = "h5m.sqlite.single-writer", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "h5m.sqlite.writer.max-batch", defaultValue = "32")
+    int maxBatch;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    ValueIdAllocator idAllocator;
+
+    private final BlockingQueue<Task<?>> tasks = new LinkedBlockingQueue<>();
+    private DistributionSummary batchSizes;
+    private volatile Thread thread;
+    // the action running on the writer thread
+    private Task<?> current;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    void init() {
+        batchSizes = DistributionSummary.builder("h5m.sqlite.writer.batch")
+                .description("write actions committed per SQLite transaction").register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * Whether writes go through the writer thread: the option is enabled and the database is SQLite.
+     */
+    public boolean isActive() {
+        return enabled && db.isSQLite();
+    }
+
+    /**
+     * Runs {@code action} in a write transaction on the writer thread and waits for it to commit.
+     * Called from the writer thread itself (an action that writes through this method again), the
+     * action joins the running transaction.
+     */
+    public <T> T call(Callable<T> action) {
+        if (Thread.currentThread() == thread) {
+            try {
+                return action.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        start();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(new Task<>(action, result));
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the SQLite writer", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers {@code synchronization} for the end of the current write. On the writer thread
+     * it completes with the running action (see the class description), elsewhere with the
+     * transaction of the caller.
+     */
+    public void registerSynchronization(Synchronization synchronization) throws RollbackException, SystemException {
+        Task<?> running = Thread.currentThread() == thread ? current : null;
+        if (running != null) {
+            running.synchronizations().add(synchronization);
+        } else {
+            tm.getTransaction().registerSynchronization(synchronization);
+        }
+    }
+
+    /**
+     * The number of actions waiting for the writer.
+     */
+    int waiting() {
+        return tasks.size();
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            Thread started = new Thread(this::run, "h5m-sqlite-writer");
+            started.setDaemon(true);
+            thread = started;
+            started.start();
+        }
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Task<?> first = tasks.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                tasks.drainTo(batch, maxBatch - 1);
+                batchSizes.record(batch.size());
+                commit(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                // commit completes every future, this only guards the thread itself
+                Log.errorf(t, "SQLite writer failed on a batch of %d", batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+        Task<?> left;
+        while ((left = tasks.poll()) != null) {
+            left.result().completeExceptionally(new IllegalStateException("SQLite writer stopped"));
+        }
+    }
+
+    private void commit(List<Task<?>> batch) {
+        List<Task<?>> succeeded = new ArrayList<>(batch.size());
+        List<Object> results = new ArrayList<>(batch.size());
+        try {
+            QuarkusTransaction.requiringNew().call(() -> {
+                for (Task<?> task : batch) {
+                    if (run(task, results)) {
+                        succeeded.add(task);
+                    } else if (tm.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
+                        throw new IllegalStateException("A write action marked the transaction for rollback");
+                    }
+                }
+                return null;
+            });
+        } catch (Throwable t) {
+            for (Task<?> task : succeeded) {
+                task.completed(Status.STATUS_ROLLEDBACK);
+            }
+            if (batch.size() == 1) {
+                batch.getFirst().result().completeExceptionally(t);
+            } else {
+                Log.debugf(t, "SQLite writer batch of %d failed, committing its actions one by one", batch.size());
+                for (Task<?> task : batch) {
+                    if (!task.result().isDone()) {
+                        commit(List.of(task));
+                    }
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < succeeded.size(); i++) {
+            Task<?> task = succeeded.get(i);
+            task.completed(Status.STATUS_COMMITTED);
+            task.complete(results.get(i));
+        }
+    }
+
+    /**
+     * Runs the action of {@code task} behind a savepoint and adds its result to {@code results}.
+     * A failing action is rolled back to the savepoint and fails its task.
+     *
+     * @return whether the action succeeded
+     */
+    private boolean run(Task<?> task, List<Object> results) {
+        Session session = em.unwrap(Session.class);
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+        current = task;
+        try {
+            Object result = task.action().call();
+            // written before the next savepoint, and not seen by the next action
+            em.flush();
+            em.clear();
+            session.doWork(connection -> connection.releaseSavepoint(savepoint));
+            results.add(result);
+            return true;
+        } catch (Throwable t) {
+            em.clear();
+            try {
+                session.doWork(connection -> connection.rollback(savepoint));
+            } catch (RuntimeException e) {
+                t.addSuppressed(e);
+            }
+            // ID blocks reserved by the action were given up with it
+            idAllocator.discard();
+            task.completed(Status.STATUS_ROLLEDBACK);
+            task.result().completeExceptionally(t);
+            return false;
+        } finally {
+            current = null;
+        }
+    }
+}
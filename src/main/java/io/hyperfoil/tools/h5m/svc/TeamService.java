@@ -5,7 +5,9 @@ import io.hyperfoil.tools.h5m.api.svc.TeamServiceInterface;
 import io.hyperfoil.tools.h5m.entity.TeamEntity;
 import io.hyperfoil.tools.h5m.entity.UserEntity;
 import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
+import io.hyperfoil.tools.h5m.event.AuthorizationChangedEvent;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 
@@ -17,11 +19,15 @@ public class TeamService implements TeamServiceInterface {
     @Inject
     ApiMapper apiMapper;
 
+    @Inject
+    Event<AuthorizationChangedEvent> authorizationChanged;
+
     @Override
     @Transactional
     public long create(String name) {
         TeamEntity team = new TeamEntity(name);
         team.persist();
+        authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.TEAM));
         return team.id;
     }
 
@@ -29,6 +35,7 @@ public class TeamService implements TeamServiceInterface {
     @Transactional
     public void delete(long teamId) {
         TeamEntity.deleteById(teamId);
+        authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.TEAM));
     }
 
     @Override
@@ -52,6 +59,7 @@ public class TeamService implements TeamServiceInterface {
         UserEntity user = UserEntity.findById(userId);
         if (team != null && user != null && !team.members.contains(user)) {
             team.members.add(user);
+            authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.MEMBERSHIP));
         }
     }
 
@@ -62,6 +70,7 @@ public class TeamService implements TeamServiceInterface {
         UserEntity user = UserEntity.findById(userId);
         if (team != null && user != null) {
             team.members.remove(user);
+            authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.MEMBERSHIP));
         }
     }
 }
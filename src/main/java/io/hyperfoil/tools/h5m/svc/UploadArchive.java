@@ -0,0 +1,407 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.api.NodeType;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.ValueDataCodec;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves the payloads of old uploads out of the database according to the retention policy of
+ * their folder ({@code folder.retention_days} and {@code folder.retention_uploads}). Uploads
+ * older than the given number of days, or beyond the newest given number of uploads, are
+ * appended to a segment file under {@code h5m.archive.dir} once their ingestion completed.
+ * Each payload is a gzip member of its own, so a segment is also a valid gzip file of JSON
+ * lines. The location is recorded in {@code value_archive} and {@code value.data} is set to
+ * null; the rows and edges stay, so lineage queries and everything calculated from the uploads
+ * keep working.
+ * <p>
+ * Work loading an archived upload as a source (a recalculation) and the readers of upload data
+ * read the payload back from its segment with {@link #rehydrate} or {@link #payload}, without
+ * writing it to the database again. Policies are applied every {@code h5m.archive.interval} and
+ * on request ({@link #archive}). A run holds a lease on its folder in {@code archive_lease}, so
+ * instances sharing the database never archive the same folder at the same time.
+ */
+@ApplicationScoped
+public class UploadArchive {
+
+    // uploads moved per transaction
+    private static final int BATCH = 100;
+    // a lease not renewed for this long belongs to a run that stopped
+    private static final Duration LEASE_TIMEOUT = Duration.ofMinutes(10);
+
+    @ConfigProperty(name = "h5m.archive.dir", defaultValue = "${user.home}/.h5m/archive")
+    String dir;
+
+    @ConfigProperty(name = "h5m.archive.interval", defaultValue = "PT1H")
+    Duration interval;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    ValueService valueService;
+
+    private ScheduledExecutorService scheduler;
+
+    void onStart(@Observes @Priority(4) StartupEvent ev) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "h5m-upload-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::archiveAll, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void archiveAll() {
+        try {
+            List<Long> folderIds = QuarkusTransaction.requiringNew().call(() -> em.createQuery(
+                    "SELECT f.id FROM folder f WHERE f.retentionDays IS NOT NULL OR f.retentionUploads IS NOT NULL", Long.class)
+                    .getResultList());
+            for (Long folderId : folderIds) {
+                archive(folderId);
+            }
+        } catch (Throwable t) {
+            Log.errorf(t, "Applying the upload retention policies failed");
+        }
+    }
+
+    /**
+     * Archives the uploads of {@code folderId} that are outside of its retention policy.
+     *
+     * @return the number of uploads archived
+     */
+    public int archive(long folderId) {
+        Object[] policy = QuarkusTransaction.requiringNew().call(() -> em.createQuery(
+                "SELECT g.root.id, f.retentionDays, f.retentionUploads FROM folder f JOIN f.group g WHERE f.id = :id", Object[].class)
+                .setParameter("id", folderId).getResultStream().findFirst().orElse(null));
+        if (policy == null || (policy[1] == null && policy[2] == null)) {
+            return 0;
+        }
+        long rootId = (Long) policy[0];
+        Integer days = (Integer) policy[1];
+        Integer uploads = (Integer) policy[2];
+        String owner = UUID.randomUUID().toString();
+        if (!lease(folderId, owner, true)) {
+            Log.infof("Uploads of folder %d are being archived by another run", folderId);
+            return 0;
+        }
+        String file = "folder-" + folderId + "/" + System.currentTimeMillis() + ".json.gz";
+        Path segment = Path.of(dir).resolve(file);
+        int archived = 0;
+        try {
+            Files.createDirectories(segment.getParent());
+            try (FileChannel out = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (true) {
+                    Map<Long, byte[]> payloads = QuarkusTransaction.requiringNew().call(() -> lease(folderId, owner, false)
+                            ? em.unwrap(Session.class).doReturningWork(connection -> expired(connection, folderId, rootId, days, uploads))
+                            : null);
+                    if (payloads == null) {
+                        Log.warnf("Lost the archive lease of folder %d, another run carries on", folderId);
+                        break;
+                    }
+                    if (payloads.isEmpty()) {
+                        break;
+                    }
+                    archived += write(out, file, payloads);
+                }
+            }
+            if (Files.size(segment) == 0) {
+                Files.delete(segment);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to archive the uploads of folder " + folderId + " to " + segment, e);
+        } finally {
+            release(folderId, owner);
+        }
+        if (archived > 0) {
+            Log.infof("Archived %d uploads of folder %d to %s", archived, folderId, segment);
+        }
+        return archived;
+    }
+
+    /**
+     * Takes the lease of {@code folderId} for {@code owner}, or renews it.
+     *
+     * @param take true to take a lease that is free or expired, false to renew the lease of {@code owner}
+     * @return whether {@code owner} holds the lease
+     */
+    private boolean lease(long folderId, String owner, boolean take) {
+        LocalDateTime now = LocalDateTime.now();
+        return QuarkusTransaction.joiningExisting().call(() -> em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(take ? """
+                    INSERT INTO archive_lease (folder_id, owner, renewed_at) VALUES (?, ?, ?)
+                    ON CONFLICT (folder_id) DO UPDATE SET owner = excluded.owner, renewed_at = excluded.renewed_at
+                    WHERE archive_lease.renewed_at < ?
+                    """ : "UPDATE archive_lease SET renewed_at = ? WHERE folder_id = ? AND owner = ?")) {
+                if (take) {
+                    ps.setLong(1, folderId);
+                    ps.setString(2, owner);
+                    ps.setTimestamp(3, Timestamp.valueOf(now));
+                    ps.setTimestamp(4, Timestamp.valueOf(now.minus(LEASE_TIMEOUT)));
+                } else {
+                    ps.setTimestamp(1, Timestamp.valueOf(now));
+                    ps.setLong(2, folderId);
+                    ps.setString(3, owner);
+                }
+                return ps.executeUpdate() == 1;
+            }
+        }));
+    }
+
+    private void release(long folderId, String owner) {
+        try {
+            QuarkusTransaction.requiringNew().run(() -> em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement("DELETE FROM archive_lease WHERE folder_id = ? AND owner = ?")) {
+                    ps.setLong(1, folderId);
+                    ps.setString(2, owner);
+                    ps.executeUpdate();
+                }
+            }));
+        } catch (RuntimeException e) {
+            Log.warnf(e, "Failed to release the archive lease of folder %d, it expires in %s", folderId, LEASE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Reads the next batch of uploads outside of the policy whose ingestion completed, as UTF-8 JSON.
+     */
+    private Map<Long, byte[]> expired(Connection connection, long folderId, long rootId, Integer days, Integer uploads) throws SQLException {
+        List<String> limits = new ArrayList<>();
+        if (days != null) {
+            limits.add("v.created_at < ?");
+        }
+        if (uploads != null) {
+            limits.add("v.id NOT IN (SELECT n.id FROM value n WHERE n.node_id = ? ORDER BY n.created_at DESC, n.id DESC LIMIT ?)");
+        }
+        Map<Long, byte[]> payloads = new LinkedHashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement("""
+                SELECT v.id, DATA FROM value v
+                WHERE v.node_id = ? AND v.folder_id = ? AND v.data IS NOT NULL AND (LIMITS)
+                  AND NOT EXISTS (SELECT 1 FROM processing p WHERE p.value_id = v.id AND p.completed = false)
+                ORDER BY v.id LIMIT ?
+                """.replace("DATA", db.dataBytes("v.data")).replace("LIMITS", String.join(" OR ", limits)))) {
+            int i = 1;
+            ps.setLong(i++, rootId);
+            ps.setLong(i++, folderId);
+            if (days != null) {
+                ps.setTimestamp(i++, Timestamp.valueOf(LocalDateTime.now().minusDays(days)));
+            }
+            if (uploads != null) {
+                ps.setLong(i++, rootId);
+                ps.setInt(i++, uploads);
+            }
+            ps.setInt(i, BATCH);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    payloads.put(rs.getLong(1), ValueDataCodec.decompress(rs.getBytes(2), connection));
+                }
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Appends {@code payloads} to the segment and, once they are on disk, records their location
+     * and clears their data.
+     */
+    private int write(FileChannel out, String file, Map<Long, byte[]> payloads) throws IOException {
+        Map<Long, long[]> locations = new LinkedHashMap<>();
+        for (Map.Entry<Long, byte[]> payload : payloads.entrySet()) {
+            byte[] member = gzip(payload.getValue());
+            long offset = out.size();
+            ByteBuffer buffer = ByteBuffer.wrap(member);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            locations.put(payload.getKey(), new long[]{ offset, member.length });
+        }
+        out.force(true);
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        int archived = workService.callInNewTransaction(() -> em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement insert = connection.prepareStatement("""
+                    INSERT INTO value_archive (value_id, file, file_offset, file_length, archived_at) VALUES (?, ?, ?, ?, ?)
+                    ON CONFLICT (value_id) DO UPDATE SET file = excluded.file, file_offset = excluded.file_offset,
+                        file_length = excluded.file_length, archived_at = excluded.archived_at
+                    """);
+                 PreparedStatement clear = connection.prepareStatement("UPDATE value SET data = NULL WHERE id = ?")) {
+                for (Map.Entry<Long, long[]> location : locations.entrySet()) {
+                    insert.setLong(1, location.getKey());
+                    insert.setString(2, file);
+                    insert.setLong(3, location.getValue()[0]);
+                    insert.setInt(4, (int) location.getValue()[1]);
+                    insert.setTimestamp(5, now);
+                    insert.addBatch();
+                    clear.setLong(1, location.getKey());
+                    clear.addBatch();
+                }
+                insert.executeBatch();
+                clear.executeBatch();
+            }
+            return locations.size();
+        }));
+        valueService.evictValues(locations.keySet());
+        return archived;
+    }
+
+    /**
+     * Fills in the data of the archived uploads among {@code values} from their segments. The
+     * values are made read-only first, so the payloads are not written back to the database.
+     */
+    void rehydrate(List<ValueEntity> values) {
+        Map<Long, ValueEntity> archived = new HashMap<>();
+        for (ValueEntity value : values) {
+            if (value.node != null && value.node.type() == NodeType.ROOT && value.data == null) {
+                archived.put(value.id, value);
+            }
+        }
+        if (archived.isEmpty()) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> locations = em.createNativeQuery(
+                "SELECT value_id, file, file_offset, file_length FROM value_archive WHERE value_id IN (:ids)")
+                .setParameter("ids", archived.keySet()).getResultList();
+        Session session = em.unwrap(Session.class);
+        for (Object[] location : locations) {
+            ValueEntity value = archived.get(((Number) location[0]).longValue());
+            byte[] json = read((String) location[1], ((Number) location[2]).longValue(), ((Number) location[3]).intValue());
+            session.setReadOnly(value, true);
+            value.data = JqValues.parse(json);
+        }
+    }
+
+    /**
+     * Returns the payload of the archived upload {@code valueId} as UTF-8 JSON, {@code null} if it
+     * is not archived.
+     */
+    byte[] payload(long valueId) {
+        List<?> found = em.createNativeQuery(
+                "SELECT file, file_offset, file_length FROM value_archive WHERE value_id = :id")
+                .setParameter("id", valueId).getResultList();
+        if (found.isEmpty()) {
+            return null;
+        }
+        Object[] location = (Object[]) found.getFirst();
+        return read((String) location[0], ((Number) location[1]).longValue(), ((Number) location[2]).intValue());
+    }
+
+    private byte[] read(String file, long offset, int length) {
+        Path segment = Path.of(dir).resolve(file);
+        try (RandomAccessFile in = new RandomAccessFile(segment.toFile(), "r")) {
+            byte[] member = new byte[length];
+            in.seek(offset);
+            in.readFully(member);
+            try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(member))) {
+                byte[] json = gzip.readAllBytes();
+                // each payload is stored as one JSON line
+                return json.length > 0 && json[json.length - 1] == '\n' ? Arrays.copyOf(json, json.length - 1) : json;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived upload from " + segment + " at " + offset, e);
+        }
+    }
+
+    private static byte[] gzip(byte[] json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, json.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(json);
+            gzip.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deletes the segments of a folder whose rows are gone.
+     */
+    void deleteFolder(long folderId) {
+        deleteTree(Path.of(dir).resolve("folder-" + folderId));
+    }
+
+    /**
+     * Deletes every segment after all values were purged.
+     */
+    void purge() {
+        Path root = Path.of(dir);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> folders = Files.list(root)) {
+            folders.filter(p -> p.getFileName().toString().startsWith("folder-")).forEach(UploadArchive::deleteTree);
+        } catch (IOException e) {
+            Log.warnf(e, "Failed to delete the upload archive in %s", root);
+        }
+    }
+
+    private static void deleteTree(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> tree = Files.walk(path)) {
+            List<Path> paths = new ArrayList<>(tree.toList());
+            Collections.sort(paths, Comparator.reverseOrder());
+            for (Path p : paths) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            Log.warnf(e, "Failed to delete archived uploads in %s", path);
+        }
+    }
+}
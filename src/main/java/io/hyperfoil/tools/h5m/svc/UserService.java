@@ -5,7 +5,9 @@ import io.hyperfoil.tools.h5m.api.User;
 import io.hyperfoil.tools.h5m.api.svc.UserServiceInterface;
 import io.hyperfoil.tools.h5m.entity.UserEntity;
 import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
+import io.hyperfoil.tools.h5m.event.AuthorizationChangedEvent;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 
@@ -17,11 +19,15 @@ public class UserService implements UserServiceInterface {
     @Inject
     ApiMapper apiMapper;
 
+    @Inject
+    Event<AuthorizationChangedEvent> authorizationChanged;
+
     @Override
     @Transactional
     public long create(String username, Role role) {
         UserEntity user = new UserEntity(username, role);
         user.persist();
+        authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.USER));
         return user.id;
     }
 
@@ -30,6 +36,7 @@ public class UserService implements UserServiceInterface {
     public long create(String sub, String iss, String username, Role role) {
         UserEntity user = new UserEntity(sub, iss, username, role);
         user.persist();
+        authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.USER));
         return user.id;
     }
 
@@ -60,6 +67,7 @@ public class UserService implements UserServiceInterface {
         UserEntity user = UserEntity.findById(userId);
         if (user != null) {
             user.role = role;
+            authorizationChanged.fire(new AuthorizationChangedEvent(AuthorizationChangedEvent.Kind.USER));
         }
     }
 
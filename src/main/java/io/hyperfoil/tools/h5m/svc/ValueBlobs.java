@@ -0,0 +1,125 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.api.NodeType;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Content-addressed storage of calculated value payloads. With {@code h5m.value-blobs.enabled},
+ * a payload of at least {@code h5m.value-blobs.min-size} bytes is written once to
+ * {@code value_blob}, keyed by its data hash, and the values carrying it only store the hash in
+ * {@code blob_hash}. Repeated configuration objects, environment blocks and fingerprints are then
+ * stored once no matter how many uploads produce them.
+ * <ul>
+ *     <li>Reads are unaffected: {@link ValueEntity#data} and the native queries (see
+ *     {@link io.hyperfoil.tools.h5m.provided.DatabaseEngine#valueData}) read the blob in place of
+ *     a {@code NULL} data, so inline and shared rows can be mixed. The option can be turned off
+ *     at any time: the next start moves the shared payloads back inline ({@link #inline}) and the
+ *     native queries then read {@code data} alone.</li>
+ *     <li>Uploads are never shared, they are unique and can be compressed instead
+ *     (see {@link ValueCompression}).</li>
+ *     <li>Blobs are not reference counted. {@link #sweep} deletes the blobs no value refers to
+ *     any more; it runs at startup and after a folder is deleted. A blob written again within
+ *     {@code h5m.value-blobs.sweep-grace} is kept, so a transaction that reuses it cannot lose it
+ *     to a concurrent sweep: the grace must be longer than the transaction timeout.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class ValueBlobs {
+
+    /** how stale {@code used_at} gets before writing the blob again refreshes it */
+    static final Duration TOUCH_INTERVAL = Duration.ofMinutes(1);
+
+    @ConfigProperty(name = "h5m.value-blobs.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "h5m.value-blobs.min-size", defaultValue = "256")
+    int minSize;
+
+    @ConfigProperty(name = "h5m.value-blobs.sweep-grace", defaultValue = "PT15M")
+    Duration grace;
+
+    @Inject
+    EntityManager em;
+
+    // before any work reads value data
+    void onStart(@Observes @Priority(0) StartupEvent ev) {
+        QuarkusTransaction.requiringNew().run(() -> {
+            if (!enabled) {
+                inline();
+            }
+            sweep();
+        });
+    }
+
+    /**
+     * Whether the serialized {@code data} of the new {@code value} is stored in {@code value_blob}.
+     */
+    boolean shares(ValueEntity value, byte[] data) {
+        return enabled && data.length >= minSize && value.node.type() != NodeType.ROOT;
+    }
+
+    /**
+     * Copies the shared payloads back into the {@code data} of the values referring to them, the
+     * blobs are left to {@link #sweep}.
+     *
+     * @return the number of values updated
+     */
+    @Transactional
+    public int inline() {
+        int updated = em.createNativeQuery("""
+                UPDATE value SET data = (SELECT b.data FROM value_blob b WHERE b.hash = value.blob_hash), blob_hash = NULL
+                WHERE blob_hash IS NOT NULL
+                """).executeUpdate();
+        if (updated > 0) {
+            Log.infof("Moved the shared payloads of %d values back inline", updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Deletes the blobs that no value refers to and that were not written within the grace period.
+     *
+     * @return the number of blobs deleted
+     */
+    @Transactional
+    public int sweep() {
+        Timestamp cutoff = Timestamp.valueOf(LocalDateTime.now().minus(grace.plus(TOUCH_INTERVAL)));
+        int deleted = em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    DELETE FROM value_blob WHERE used_at < ?
+                        AND NOT EXISTS (SELECT 1 FROM value v WHERE v.blob_hash = value_blob.hash)
+                    """)) {
+                ps.setTimestamp(1, cutoff);
+                return ps.executeUpdate();
+            }
+        });
+        if (deleted > 0) {
+            Log.debugf("Deleted %d unused value blobs", deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes every blob after all values were purged.
+     */
+    @Transactional
+    public void purge() {
+        em.createNativeQuery("DELETE FROM value_blob").executeUpdate();
+    }
+}
@@ -0,0 +1,317 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.ValueHashes;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.jjq.value.JqValues;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes new {@code value} and {@code value_edge} rows with plain JDBC, bypassing
+ * the per-entity merge and identity round trip of Hibernate.
+ * <p>
+ * SQLite gets multi-row {@code INSERT ... VALUES (...),(...)} statements (one statement
+ * per chunk of rows), PostgreSQL gets JDBC batches of single-row inserts.
+ * Every value must already have its {@code id} assigned; {@code data_hash} and
+ * {@code path_hash} are computed here (see {@link ValueHashes}), so sources have to come
+ * before the values that use them.
+ */
+class ValueBulkInserter {
+
+    // value has 14 columns: 500 rows stay far below SQLite's bound parameter limit
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    private static final String VALUE_COLUMNS = "INSERT INTO value (id, data, idx, node_id, folder_id, created_at, last_updated, path_hash, data_hash, domain_num, domain_txt, blob_hash, root_folder_id, domain_int) VALUES ";
+    private static final String VALUE_ROW = "(?,DATA,?,?,?,?,?,?,?,?,?,?,?,?)";
+    // a row that conflicts on (node_id, path_hash) is the same value from an earlier
+    // calculation: only touch it if the data changed or was nulled as ephemeral
+    private static final String UPSERT_SUFFIX = """
+             ON CONFLICT CONFLICT_TARGET DO UPDATE
+            SET data = excluded.data, data_hash = excluded.data_hash, last_updated = excluded.last_updated,
+                domain_num = excluded.domain_num, domain_int = excluded.domain_int, domain_txt = excluded.domain_txt, blob_hash = excluded.blob_hash
+            WHERE value.data_hash DISTINCT_FROM excluded.data_hash
+                OR (value.data IS NULL AND value.blob_hash IS NULL AND (excluded.data IS NOT NULL OR excluded.blob_hash IS NOT NULL))
+            RETURNING id, node_id, path_hash""";
+    // a blob that is written again is only touched when its use is old enough to matter to ValueBlobs#sweep
+    private static final String BLOB_COLUMNS = "INSERT INTO value_blob (hash, data, used_at) VALUES ";
+    private static final String BLOB_ROW = "(?,DATA,?)";
+    private static final String BLOB_SUFFIX = " ON CONFLICT (hash) DO UPDATE SET used_at = excluded.used_at WHERE value_blob.used_at < ?";
+    private static final String EDGE_COLUMNS = "INSERT INTO value_edge (child_id, parent_id, idx) VALUES ";
+    private static final String EDGE_ROW = "(?,?,?)";
+    // partitioned edges live next to their child value, see ValuePartitions
+    private static final String PARTITIONED_EDGE_COLUMNS = "INSERT INTO value_edge (child_id, parent_id, idx, root_folder_id) VALUES ";
+    private static final String PARTITIONED_EDGE_ROW = "(?,?,?,?)";
+
+    private record Edge(long childId, long parentId, int idx, long rootFolderId) {}
+
+    /** a value with its data serialized once for both hashing and binding */
+    record Row(ValueEntity value, byte[] data) {}
+
+    /** a row reported by {@link #upsert}: inserted if {@code id} is the proposed ID, otherwise updated */
+    record Upserted(long id, long nodeId, long pathHash) {}
+
+    /**
+     * Serializes the data of each value and sets its {@code data_hash}, {@code path_hash}, domain
+     * sort keys and {@code root_folder_id}.
+     */
+    static List<Row> prepare(List<ValueEntity> values) {
+        List<Row> rows = new ArrayList<>(values.size());
+        for (ValueEntity value : values) {
+            byte[] data = value.data == null ? null : JqValues.serializeToBytes(value.data);
+            value.dataHash = ValueHashes.dataHash(data);
+            value.computePathHash();
+            value.computeDomainKeys();
+            value.computeRootFolderId();
+            rows.add(new Row(value, data));
+        }
+        return rows;
+    }
+
+    // the data is bound as UTF-8 JSON bytes, converted if the column is jsonb
+    private static String valueRow(DatabaseEngine db) {
+        return VALUE_ROW.replace("DATA", db.dataParameter("?"));
+    }
+
+    /**
+     * Decides how the serialized data of a new value is stored: {@link #encode} returns the bytes
+     * for {@code value.data} (see {@link ValueCompression#encode}), unless {@link #shared} moves
+     * the payload to {@code value_blob} (see {@link ValueBlobs}).
+     */
+    @FunctionalInterface
+    interface DataEncoder {
+        byte[] encode(Connection connection, ValueEntity value, byte[] data) throws SQLException;
+
+        default boolean shared(ValueEntity value, byte[] data) {
+            return false;
+        }
+    }
+
+    static void insert(Connection connection, DatabaseEngine db, List<ValueEntity> values, DataEncoder encoder) throws SQLException {
+        if (values.isEmpty()) {
+            return;
+        }
+        List<Row> rows = encode(connection, db, prepare(values), encoder);
+        switch (db.kind()) {
+            case SQLITE -> insertMultiRow(connection, VALUE_COLUMNS, valueRow(db), rows, ValueBulkInserter::bindValue);
+            case POSTGRESQL -> insertBatched(connection, VALUE_COLUMNS + valueRow(db), rows, ValueBulkInserter::bindValue);
+        }
+        insertEdges(connection, db, values);
+    }
+
+    /**
+     * Inserts the prepared rows, or updates the existing row with the same
+     * {@code (node_id, path_hash)} if its data differs, in one statement per chunk.
+     * Rows that exist with the same data are left alone and are not reported.
+     * No edges are written: callers add them for the inserted rows only.
+     */
+    static List<Upserted> upsert(Connection connection, DatabaseEngine db, List<Row> prepared, DataEncoder encoder) throws SQLException {
+        List<Row> rows = encode(connection, db, prepared, encoder);
+        String suffix = UPSERT_SUFFIX.replace("CONFLICT_TARGET", db.valueConflict()).replace("DISTINCT_FROM", switch (db.kind()) {
+            case SQLITE -> "IS NOT";
+            case POSTGRESQL -> "IS DISTINCT FROM";
+        });
+        List<Upserted> rtrn = new ArrayList<>();
+        for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT) {
+            List<Row> chunk = rows.subList(start, Math.min(rows.size(), start + ROWS_PER_STATEMENT));
+            try (PreparedStatement ps = connection.prepareStatement(multiRowSql(VALUE_COLUMNS, valueRow(db), chunk.size()) + suffix)) {
+                int offset = 1;
+                for (Row r : chunk) {
+                    offset = bindValue(ps, offset, r);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rtrn.add(new Upserted(rs.getLong(1), rs.getLong(2), rs.getLong(3)));
+                    }
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * Applies {@code encoder} to the prepared rows. Shared payloads are written to {@code value_blob}
+     * here, once per hash, and their rows get a {@code NULL} data with the {@code blob_hash} set.
+     * The hashes are computed from the plain JSON, only the stored bytes are encoded.
+     */
+    private static List<Row> encode(Connection connection, DatabaseEngine db, List<Row> prepared, DataEncoder encoder) throws SQLException {
+        List<Row> rows = new ArrayList<>(prepared.size());
+        Map<Long, byte[]> blobs = new LinkedHashMap<>();
+        for (Row row : prepared) {
+            ValueEntity value = row.value();
+            if (row.data() != null && encoder.shared(value, row.data())) {
+                value.blobHash = value.dataHash;
+                blobs.putIfAbsent(value.dataHash, row.data());
+                rows.add(new Row(value, null));
+            } else {
+                value.blobHash = null;
+                rows.add(new Row(value, encoder.encode(connection, value, row.data())));
+            }
+        }
+        insertBlobs(connection, db, blobs);
+        return rows;
+    }
+
+    private static void insertBlobs(Connection connection, DatabaseEngine db, Map<Long, byte[]> blobs) throws SQLException {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp usedAt = Timestamp.valueOf(now);
+        Timestamp touchBefore = Timestamp.valueOf(now.minus(ValueBlobs.TOUCH_INTERVAL));
+        List<Map.Entry<Long, byte[]>> entries = new ArrayList<>(blobs.entrySet());
+        String row = BLOB_ROW.replace("DATA", db.dataParameter("?"));
+        // one statement per chunk on both databases: every hash occurs once, so the upsert touches each row once
+        for (int start = 0; start < entries.size(); start += ROWS_PER_STATEMENT) {
+            List<Map.Entry<Long, byte[]>> chunk = entries.subList(start, Math.min(entries.size(), start + ROWS_PER_STATEMENT));
+            try (PreparedStatement ps = connection.prepareStatement(multiRowSql(BLOB_COLUMNS, row, chunk.size()) + BLOB_SUFFIX)) {
+                int offset = 1;
+                for (Map.Entry<Long, byte[]> blob : chunk) {
+                    ps.setLong(offset, blob.getKey());
+                    ps.setBytes(offset + 1, blob.getValue());
+                    ps.setTimestamp(offset + 2, usedAt);
+                    offset += 3;
+                }
+                ps.setTimestamp(offset, touchBefore);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    static void insertEdges(Connection connection, DatabaseEngine db, List<ValueEntity> values) throws SQLException {
+        List<Edge> edges = new ArrayList<>();
+        for (ValueEntity value : values) {
+            if (value.sources == null) {
+                continue;
+            }
+            for (int i = 0; i < value.sources.size(); i++) {
+                edges.add(new Edge(value.id, value.sources.get(i).id, i, value.rootFolderId));
+            }
+        }
+        if (db.isPartitioned()) {
+            insertBatched(connection, PARTITIONED_EDGE_COLUMNS + PARTITIONED_EDGE_ROW, edges, ValueBulkInserter::bindPartitionedEdge);
+            return;
+        }
+        switch (db.kind()) {
+            case SQLITE -> insertMultiRow(connection, EDGE_COLUMNS, EDGE_ROW, edges, ValueBulkInserter::bindEdge);
+            case POSTGRESQL -> insertBatched(connection, EDGE_COLUMNS + EDGE_ROW, edges, ValueBulkInserter::bindEdge);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Binder<T> {
+        /** binds one row starting at {@code offset} and returns the next free parameter index */
+        int bind(PreparedStatement ps, int offset, T row) throws SQLException;
+    }
+
+    private static <T> void insertMultiRow(Connection connection, String prefix, String row, List<T> rows, Binder<T> binder) throws SQLException {
+        for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT) {
+            List<T> chunk = rows.subList(start, Math.min(rows.size(), start + ROWS_PER_STATEMENT));
+            try (PreparedStatement ps = connection.prepareStatement(multiRowSql(prefix, row, chunk.size()))) {
+                int offset = 1;
+                for (T r : chunk) {
+                    offset = binder.bind(ps, offset, r);
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    private static String multiRowSql(String prefix, String row, int count) {
+        StringBuilder sql = new StringBuilder(prefix.length() + count * (row.length() + 1));
+        sql.append(prefix);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(row);
+        }
+        return sql.toString();
+    }
+
+    private static <T> void insertBatched(Connection connection, String sql, List<T> rows, Binder<T> binder) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            int pending = 0;
+            for (T r : rows) {
+                binder.bind(ps, 1, r);
+                ps.addBatch();
+                if (++pending == ROWS_PER_STATEMENT) {
+                    ps.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    private static int bindValue(PreparedStatement ps, int offset, Row row) throws SQLException {
+        ValueEntity value = row.value();
+        ps.setLong(offset, value.id);
+        if (row.data() == null) {
+            ps.setNull(offset + 1, Types.BINARY);
+        } else {
+            ps.setBytes(offset + 1, row.data());
+        }
+        ps.setInt(offset + 2, value.idx);
+        ps.setLong(offset + 3, value.node.id);
+        if (value.folder == null || value.folder.id == null) {
+            ps.setNull(offset + 4, Types.BIGINT);
+        } else {
+            ps.setLong(offset + 4, value.folder.id);
+        }
+        ps.setTimestamp(offset + 5, Timestamp.valueOf(value.getCreatedAt()));
+        ps.setTimestamp(offset + 6, Timestamp.valueOf(value.getLastUpdated()));
+        ps.setLong(offset + 7, value.pathHash);
+        if (value.dataHash == null) {
+            ps.setNull(offset + 8, Types.BIGINT);
+        } else {
+            ps.setLong(offset + 8, value.dataHash);
+        }
+        if (value.domainNum == null) {
+            ps.setNull(offset + 9, Types.DOUBLE);
+        } else {
+            ps.setDouble(offset + 9, value.domainNum);
+        }
+        if (value.domainTxt == null) {
+            ps.setNull(offset + 10, Types.VARCHAR);
+        } else {
+            ps.setString(offset + 10, value.domainTxt);
+        }
+        if (value.blobHash == null) {
+            ps.setNull(offset + 11, Types.BIGINT);
+        } else {
+            ps.setLong(offset + 11, value.blobHash);
+        }
+        ps.setLong(offset + 12, value.rootFolderId);
+        if (value.domainInt == null) {
+            ps.setNull(offset + 13, Types.BIGINT);
+        } else {
+            ps.setLong(offset + 13, value.domainInt);
+        }
+        return offset + 14;
+    }
+
+    private static int bindEdge(PreparedStatement ps, int offset, Edge edge) throws SQLException {
+        ps.setLong(offset, edge.childId());
+        ps.setLong(offset + 1, edge.parentId());
+        ps.setInt(offset + 2, edge.idx());
+        return offset + 3;
+    }
+
+    private static int bindPartitionedEdge(PreparedStatement ps, int offset, Edge edge) throws SQLException {
+        ps.setLong(bindEdge(ps, offset, edge), edge.rootFolderId());
+        return offset + 4;
+    }
+}
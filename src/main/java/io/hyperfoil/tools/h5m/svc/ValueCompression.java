@@ -0,0 +1,357 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.api.NodeType;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.ValueHashes;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.ValueDataCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.RollbackException;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the data of uploads (root node values) with a preset dictionary per root node when
+ * {@code h5m.compression.enabled} is set. The uploads of a folder usually share their keys and
+ * most of their layout, so a dictionary built from earlier uploads removes most of that
+ * repetition. Values calculated from the uploads are left as plain JSON because the queries
+ * behind views, fingerprints and detection read their data in SQL.
+ * <ul>
+ *     <li>{@link #encode} is applied by {@link ValueBulkInserter} to every new value. The first
+ *     upload of a node without a dictionary becomes its dictionary.</li>
+ *     <li>Reads are decoded by {@link io.hyperfoil.tools.h5m.provided.JqValueDataJdbcType}, so
+ *     compressed and plain rows can be mixed and the option can be turned off at any time.</li>
+ *     <li>{@link #recompress} trains a new dictionary from recent uploads and rewrites the
+ *     existing uploads of a node with it, or as plain JSON if compression is disabled.</li>
+ *     <li>Every {@code h5m.compression.retrain-interval}, {@link #retrainStale} recompresses the
+ *     nodes that got {@code h5m.compression.retrain-uploads} uploads since their dictionary
+ *     was built, so the dictionary follows the layout of the uploads as it changes.</li>
+ * </ul>
+ * Payloads below {@code h5m.compression.min-size} or that do not shrink are stored as is.
+ * The bytes before and after compression are reported as the {@code h5m.compression.bytes.raw}
+ * and {@code h5m.compression.bytes.stored} metrics. Compression is not available with
+ * {@code h5m.postgresql.jsonb}.
+ */
+@ApplicationScoped
+public class ValueCompression {
+
+    private record Dictionary(long id, byte[] data) {}
+
+    // uploads rewritten per transaction by recompress
+    private static final int RECOMPRESS_BATCH = 100;
+    // recent uploads a retrained dictionary is built from
+    private static final int TRAINING_SAMPLES = 16;
+
+    @ConfigProperty(name = "h5m.compression.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "h5m.compression.min-size", defaultValue = "512")
+    int minSize;
+
+    @ConfigProperty(name = "h5m.compression.level", defaultValue = "6")
+    int level;
+
+    @ConfigProperty(name = "h5m.compression.retrain-interval", defaultValue = "PT6H")
+    Duration retrainInterval;
+
+    @ConfigProperty(name = "h5m.compression.retrain-uploads", defaultValue = "1000")
+    int retrainUploads;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    WorkService workService;
+
+    // root node ID -> dictionary new uploads are compressed with
+    private final Map<Long, Dictionary> dictionaries = new ConcurrentHashMap<>();
+    private Counter rawBytes;
+    private Counter storedBytes;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    void init() {
+        rawBytes = Counter.builder("h5m.compression.bytes.raw").description("upload bytes before compression").register(registry);
+        storedBytes = Counter.builder("h5m.compression.bytes.stored").description("upload bytes written after compression").register(registry);
+        Gauge.builder("h5m.compression.ratio", this, ValueCompression::ratio).register(registry);
+    }
+
+    void onStart(@Observes @Priority(4) StartupEvent ev) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "h5m-value-compression");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                retrainStale();
+            } catch (Throwable t) {
+                Log.errorf(t, "Retraining the compression dictionaries failed");
+            }
+        }, retrainInterval.toMillis(), retrainInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private double ratio() {
+        double raw = rawBytes.count();
+        return raw == 0 ? 1.0 : storedBytes.count() / raw;
+    }
+
+    /**
+     * Whether new uploads are compressed: the option is enabled and the data column is {@code BYTEA}.
+     */
+    public boolean isActive() {
+        return enabled && !db.isJsonb();
+    }
+
+    /**
+     * Returns the bytes to store for {@code value} with the UTF-8 JSON {@code json}.
+     */
+    byte[] encode(Connection connection, ValueEntity value, byte[] json) throws SQLException {
+        if (json == null || !isActive() || value.node.type() != NodeType.ROOT) {
+            return json;
+        }
+        rawBytes.increment(json.length);
+        if (json.length < minSize) {
+            storedBytes.increment(json.length);
+            return json;
+        }
+        Dictionary dictionary = dictionary(connection, value.node.getId(), json);
+        byte[] compressed = ValueDataCodec.compress(json, dictionary.id(), dictionary.data(), level);
+        byte[] stored = compressed.length < json.length ? compressed : json;
+        storedBytes.increment(stored.length);
+        return stored;
+    }
+
+    private Dictionary dictionary(Connection connection, long nodeId, byte[] json) throws SQLException {
+        Dictionary cached = dictionaries.get(nodeId);
+        if (cached != null) {
+            return cached;
+        }
+        Dictionary latest = latest(connection, nodeId);
+        if (latest != null) {
+            dictionaries.put(nodeId, latest);
+            return latest;
+        }
+        Dictionary created = insert(connection, nodeId, ValueDataCodec.dictionary(List.of(json)));
+        rememberOnCommit(nodeId, created);
+        return created;
+    }
+
+    private static Dictionary latest(Connection connection, long nodeId) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, data FROM value_dictionary WHERE node_id = ? ORDER BY created_at DESC LIMIT 1")) {
+            ps.setLong(1, nodeId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new Dictionary(rs.getLong(1), rs.getBytes(2)) : null;
+            }
+        }
+    }
+
+    private static Dictionary insert(Connection connection, long nodeId, byte[] data) throws SQLException {
+        long id = ValueHashes.dataHash(data);
+        try (PreparedStatement ps = connection.prepareStatement("""
+                INSERT INTO value_dictionary (id, node_id, data, created_at) VALUES (?, ?, ?, ?)
+                ON CONFLICT (id) DO NOTHING
+                """)) {
+            ps.setLong(1, id);
+            ps.setLong(2, nodeId);
+            ps.setBytes(3, data);
+            ps.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
+            ps.executeUpdate();
+        }
+        return new Dictionary(id, data);
+    }
+
+    private void rememberOnCommit(long nodeId, Dictionary dictionary) {
+        try {
+            tm.getTransaction().registerSynchronization(new Synchronization() {
+                @Override public void beforeCompletion() {}
+                @Override public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        dictionaries.put(nodeId, dictionary);
+                    }
+                }
+            });
+        } catch (RollbackException | SystemException e) {
+            // read back from value_dictionary by the next upload
+            Log.debugf(e, "Dictionary of node %d not remembered", nodeId);
+        }
+    }
+
+    /**
+     * Trains a new dictionary for the uploads of {@code rootNodeId} from its most recent uploads
+     * and rewrites all of them with it, {@value #RECOMPRESS_BATCH} per transaction. With
+     * compression disabled the uploads are rewritten as plain JSON instead. Dictionaries that
+     * are no longer used are kept.
+     *
+     * @return the number of uploads rewritten
+     */
+    public int recompress(long rootNodeId) {
+        if (db.isJsonb()) {
+            Log.infof("Value data is stored as jsonb, uploads of node %d are not compressed", rootNodeId);
+            return 0;
+        }
+        if (isActive()) {
+            Dictionary trained = workService.callInNewTransaction(() ->
+                    em.unwrap(Session.class).doReturningWork(connection -> train(connection, rootNodeId)));
+            if (trained != null) {
+                dictionaries.put(rootNodeId, trained);
+            }
+        }
+        int rewritten = 0;
+        long after = Long.MIN_VALUE;
+        while (true) {
+            long from = after;
+            long[] batch = workService.callInNewTransaction(() ->
+                    em.unwrap(Session.class).doReturningWork(connection -> rewrite(connection, rootNodeId, from)));
+            if (batch == null) {
+                break;
+            }
+            after = batch[0];
+            rewritten += (int) batch[1];
+        }
+        Log.infof("Rewrote %d uploads of node %d", rewritten, rootNodeId);
+        return rewritten;
+    }
+
+    /**
+     * Recompresses the uploads of every node that got at least {@code h5m.compression.retrain-uploads}
+     * uploads since its latest dictionary was built.
+     *
+     * @return the number of nodes retrained
+     */
+    int retrainStale() {
+        if (!isActive()) {
+            return 0;
+        }
+        List<Long> stale = workService.callInNewTransaction(() -> em.createNativeQuery("""
+                SELECT d.node_id FROM value_dictionary d
+                WHERE d.created_at = (SELECT max(x.created_at) FROM value_dictionary x WHERE x.node_id = d.node_id)
+                  AND (SELECT count(*) FROM value v WHERE v.node_id = d.node_id AND v.created_at > d.created_at) >= :uploads
+                """)
+                .setParameter("uploads", retrainUploads)
+                .getResultList()
+                .stream().map(id -> ((Number) id).longValue()).distinct().toList());
+        for (Long nodeId : stale) {
+            recompress(nodeId);
+        }
+        return stale.size();
+    }
+
+    private Dictionary train(Connection connection, long rootNodeId) throws SQLException {
+        List<byte[]> samples = new ArrayList<>();
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT data FROM value WHERE node_id = ? AND data IS NOT NULL ORDER BY id DESC LIMIT ?")) {
+            ps.setLong(1, rootNodeId);
+            ps.setInt(2, TRAINING_SAMPLES);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    samples.add(ValueDataCodec.decompress(rs.getBytes(1), connection));
+                }
+            }
+        }
+        if (samples.isEmpty()) {
+            return null;
+        }
+        // most recent last, closest to the data being compressed
+        Collections.reverse(samples);
+        return insert(connection, rootNodeId, ValueDataCodec.dictionary(samples));
+    }
+
+    /**
+     * Rewrites the next batch of uploads after ID {@code after}.
+     *
+     * @return the last ID read and the number of rows changed, {@code null} when no uploads are left
+     */
+    private long[] rewrite(Connection connection, long rootNodeId, long after) throws SQLException {
+        Dictionary dictionary = isActive() ? dictionaries.get(rootNodeId) : null;
+        long last = after;
+        int changed = 0;
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT id, data FROM value WHERE node_id = ? AND id > ? AND data IS NOT NULL ORDER BY id LIMIT ?");
+             PreparedStatement update = connection.prepareStatement("UPDATE value SET data = ? WHERE id = ?")) {
+            select.setLong(1, rootNodeId);
+            select.setLong(2, after);
+            select.setInt(3, RECOMPRESS_BATCH);
+            List<Object[]> rows = new ArrayList<>();
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new Object[]{ rs.getLong(1), rs.getBytes(2) });
+                }
+            }
+            if (rows.isEmpty()) {
+                return null;
+            }
+            for (Object[] row : rows) {
+                last = (long) row[0];
+                byte[] stored = (byte[]) row[1];
+                byte[] json = ValueDataCodec.decompress(stored, connection);
+                byte[] rewritten = json;
+                if (dictionary != null && json.length >= minSize) {
+                    byte[] compressed = ValueDataCodec.compress(json, dictionary.id(), dictionary.data(), level);
+                    if (compressed.length < json.length) {
+                        rewritten = compressed;
+                    }
+                }
+                if (!Arrays.equals(stored, rewritten)) {
+                    update.setBytes(1, rewritten);
+                    update.setLong(2, last);
+                    update.addBatch();
+                    changed++;
+                }
+            }
+            if (changed > 0) {
+                update.executeBatch();
+            }
+        }
+        return new long[]{ last, changed };
+    }
+}
@@ -0,0 +1,294 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partitions {@code value} and {@code value_edge} on PostgreSQL by {@code root_folder_id}, the
+ * folder of the upload a value was calculated from, when {@code h5m.postgresql.partitioned} is
+ * set. Every folder gets a partition of each table, so the indexes of a folder stay as small as
+ * the folder, the walks below an upload only read its partition (see
+ * {@link DatabaseEngine#inPartition}) and a deleted folder is reclaimed by dropping its
+ * partitions (see {@link #drop}) instead of deleting its rows.
+ * <ul>
+ *     <li>An edge is stored in the partition of its child value. The unique indexes hold the
+ *     partition key, which does not change their meaning because the lineage of a value fixes
+ *     its folder.</li>
+ *     <li>The partitions of a folder are created with the folder ({@link #create}). Values
+ *     without an upload, and values of a folder created before its partition, go to the
+ *     {@code _default} partitions.</li>
+ *     <li>Lookups by ID alone probe every partition; the second-level cache keeps them rare.</li>
+ *     <li>{@code value_edge} only references the child value: a foreign key to the parent would
+ *     need the parent's folder on the edge. {@link io.hyperfoil.tools.h5m.provided.H5mDialect}
+ *     keeps schema updates from adding it back.</li>
+ * </ul>
+ * The tables are converted at startup, in either direction, by copying them. Like switching
+ * {@code h5m.postgresql.jsonb} this is a one-off cost of changing modes.
+ */
+@ApplicationScoped
+public class ValuePartitions {
+
+    private static final List<String> TABLES = List.of("value", "value_edge");
+    private static final String KEY = "root_folder_id";
+    // how long dropping a partition waits for the queries using its table before the reaper retries
+    private static final Duration LOCK_TIMEOUT = Duration.ofSeconds(10);
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    ValueService valueService;
+
+    void onStart(@Observes @Priority(0) StartupEvent ev) {
+        if (db.isSQLite()) {
+            return;
+        }
+        QuarkusTransaction.requiringNew().run(() -> {
+            convert();
+            if (db.isPartitioned()) {
+                createMissing();
+            }
+        });
+    }
+
+    private static String partition(String table, long folderId) {
+        return table + "_f" + folderId;
+    }
+
+    private boolean isPartitioned(String table) {
+        return !em.createNativeQuery("""
+                SELECT 1 FROM pg_partitioned_table p JOIN pg_class c ON c.oid = p.partrelid
+                WHERE c.relname = :table AND c.relnamespace = current_schema()::regnamespace
+                """).setParameter("table", table).getResultList().isEmpty();
+    }
+
+    private boolean exists(long folderId) {
+        return !em.createNativeQuery("""
+                SELECT 1 FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE c.relname = :name AND c.relnamespace = current_schema()::regnamespace
+                """).setParameter("name", partition("value", folderId)).getResultList().isEmpty();
+    }
+
+    /**
+     * Creates the partitions of {@code folderId} in the caller's transaction, if the tables are
+     * partitioned. The partitions are attached, which only locks the default partitions while they
+     * are checked for rows of the folder.
+     */
+    void create(long folderId) {
+        if (!db.isPartitioned() || exists(folderId)) {
+            return;
+        }
+        for (String table : TABLES) {
+            String partition = partition(table, folderId);
+            em.createNativeQuery("CREATE TABLE " + partition + " (LIKE " + table + " INCLUDING DEFAULTS)").executeUpdate();
+            em.createNativeQuery("ALTER TABLE " + table + " ATTACH PARTITION " + partition + " FOR VALUES IN (" + folderId + ")")
+                    .executeUpdate();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createMissing() {
+        List<Number> folders = em.createNativeQuery("SELECT id FROM folder ORDER BY id").getResultList();
+        for (Number folder : folders) {
+            long folderId = folder.longValue();
+            if (exists(folderId)) {
+                continue;
+            }
+            // attaching checks the default partition, which must not hold rows of the folder
+            if (em.createNativeQuery("SELECT 1 FROM value_default WHERE " + KEY + " = :folderId LIMIT 1")
+                    .setParameter("folderId", folderId).getResultList().isEmpty()) {
+                create(folderId);
+            } else {
+                Log.warnf("Values of folder %d are in the default partition, the folder is not partitioned", folderId);
+            }
+        }
+    }
+
+    /**
+     * Drops the partitions of {@code folderId} once the values of other folders calculated from
+     * them are deleted. Each step runs in a transaction of its own.
+     *
+     * @return the number of values deleted, {@code -1} if the folder has no partitions
+     */
+    long drop(long folderId) {
+        if (!db.isPartitioned() || !workService.callInNewTransaction(() -> exists(folderId))) {
+            return -1;
+        }
+        @SuppressWarnings("unchecked")
+        List<Long> dependents = ((List<Number>) workService.callInNewTransaction(() -> em.createNativeQuery(
+                "SELECT DISTINCT e.child_id FROM value_edge e WHERE e." + KEY + " <> :folderId AND e.parent_id IN (SELECT id FROM "
+                        + partition("value", folderId) + ")")
+                .setParameter("folderId", folderId)
+                .getResultList())).stream().map(Number::longValue).toList();
+        long deleted = dependents.isEmpty() ? 0 : valueService.deleteWithDescendants(dependents);
+        List<Long> dropped = workService.callInNewTransaction(() -> {
+            em.createNativeQuery("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT.toMillis() + "ms'").executeUpdate();
+            String values = partition("value", folderId);
+            @SuppressWarnings("unchecked")
+            List<Long> ids = ((List<Number>) em.createNativeQuery("SELECT id FROM " + values).getResultList())
+                    .stream().map(Number::longValue).toList();
+            em.createNativeQuery("DELETE FROM value_archive WHERE value_id IN (SELECT id FROM " + values + ")").executeUpdate();
+            // edges first, they reference the values
+            for (String table : TABLES.reversed()) {
+                String partition = partition(table, folderId);
+                em.createNativeQuery("ALTER TABLE " + table + " DETACH PARTITION " + partition).executeUpdate();
+                em.createNativeQuery("DROP TABLE " + partition).executeUpdate();
+            }
+            return ids;
+        });
+        // only the dropped values, the dependents were evicted by their delete
+        var cache = em.getEntityManagerFactory().unwrap(SessionFactory.class).getCache();
+        for (Long id : dropped) {
+            cache.evictEntityData(ValueEntity.class, id);
+            cache.evictCollectionData(ValueEntity.class.getName() + ".sources", id);
+        }
+        return deleted + dropped.size();
+    }
+
+    /**
+     * Rebuilds {@code value} and {@code value_edge} as partitioned or plain tables to match
+     * {@code h5m.postgresql.partitioned}. The indexes and constraints are read from the old tables
+     * and recreated with the partition key added to or removed from the unique ones.
+     */
+    void convert() {
+        List<?> found = em.createNativeQuery("""
+                SELECT 1 FROM information_schema.columns
+                WHERE table_schema = current_schema() AND table_name = 'value' AND column_name = :key
+                """).setParameter("key", KEY).getResultList();
+        boolean partitioned = isPartitioned("value");
+        if (found.isEmpty() || partitioned == db.isPartitioned()) {
+            return;
+        }
+        boolean target = db.isPartitioned();
+        Log.info(target ? "Partitioning values by folder" : "Merging the value partitions");
+        if (target) {
+            backfill();
+        }
+        List<String> definitions = definitions(target);
+        for (String table : TABLES) {
+            em.createNativeQuery("ALTER TABLE " + table + " RENAME TO " + table + "_old").executeUpdate();
+        }
+        if (target) {
+            em.createNativeQuery("CREATE TABLE value (LIKE value_old INCLUDING DEFAULTS) PARTITION BY LIST (" + KEY + ")").executeUpdate();
+            em.createNativeQuery("ALTER TABLE value ALTER COLUMN " + KEY + " SET NOT NULL").executeUpdate();
+            em.createNativeQuery("CREATE TABLE value_edge (LIKE value_edge_old INCLUDING DEFAULTS, " + KEY + " BIGINT NOT NULL) PARTITION BY LIST (" + KEY + ")")
+                    .executeUpdate();
+            for (String table : TABLES) {
+                em.createNativeQuery("CREATE TABLE " + table + "_default PARTITION OF " + table + " DEFAULT").executeUpdate();
+            }
+            @SuppressWarnings("unchecked")
+            List<Number> folders = em.createNativeQuery("SELECT id FROM folder").getResultList();
+            for (Number folder : folders) {
+                create(folder.longValue());
+            }
+            em.createNativeQuery("INSERT INTO value SELECT * FROM value_old").executeUpdate();
+            em.createNativeQuery("INSERT INTO value_edge (child_id, parent_id, idx, " + KEY + ") "
+                    + "SELECT e.child_id, e.parent_id, e.idx, v." + KEY + " FROM value_edge_old e JOIN value_old v ON v.id = e.child_id")
+                    .executeUpdate();
+        } else {
+            em.createNativeQuery("CREATE TABLE value (LIKE value_old INCLUDING DEFAULTS)").executeUpdate();
+            em.createNativeQuery("ALTER TABLE value ALTER COLUMN " + KEY + " DROP NOT NULL").executeUpdate();
+            em.createNativeQuery("CREATE TABLE value_edge (LIKE value_edge_old INCLUDING DEFAULTS)").executeUpdate();
+            em.createNativeQuery("ALTER TABLE value_edge DROP COLUMN " + KEY).executeUpdate();
+            em.createNativeQuery("INSERT INTO value SELECT * FROM value_old").executeUpdate();
+            em.createNativeQuery("INSERT INTO value_edge (child_id, parent_id, idx) SELECT child_id, parent_id, idx FROM value_edge_old")
+                    .executeUpdate();
+        }
+        // dropping the partitioned tables drops their partitions
+        em.createNativeQuery("DROP TABLE value_edge_old").executeUpdate();
+        em.createNativeQuery("DROP TABLE value_old").executeUpdate();
+        for (String definition : definitions) {
+            em.createNativeQuery(definition).executeUpdate();
+        }
+        for (String table : TABLES) {
+            em.createNativeQuery("ANALYZE " + table).executeUpdate();
+        }
+    }
+
+    /**
+     * Sets {@code root_folder_id} on rows written before the column existed: uploads and
+     * detection values from their folder, calculated values from their parents one level at a
+     * time, and {@code 0} on the rest.
+     */
+    private void backfill() {
+        em.createNativeQuery("UPDATE value SET " + KEY + " = folder_id WHERE " + KEY + " IS NULL AND folder_id IS NOT NULL")
+                .executeUpdate();
+        int updated;
+        do {
+            updated = em.createNativeQuery("""
+                    UPDATE value v SET KEY = p.KEY
+                    FROM value_edge e JOIN value p ON p.id = e.parent_id
+                    WHERE e.child_id = v.id AND v.KEY IS NULL AND p.KEY IS NOT NULL
+                    """.replace("KEY", KEY)).executeUpdate();
+        } while (updated > 0);
+        em.createNativeQuery("UPDATE value SET " + KEY + " = 0 WHERE " + KEY + " IS NULL").executeUpdate();
+    }
+
+    /**
+     * Returns the statements recreating the indexes and constraints of the current tables on the
+     * rebuilt ones. The reference from an edge to its parent value is left out of partitioned tables.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> definitions(boolean partitioned) {
+        List<String> definitions = new ArrayList<>();
+        List<Object[]> constraints = em.createNativeQuery("""
+                SELECT c.conrelid::regclass::text, c.conname, c.contype, pg_get_constraintdef(c.oid)
+                FROM pg_constraint c
+                WHERE c.conrelid IN ('value'::regclass, 'value_edge'::regclass) AND c.contype IN ('p', 'u', 'f')
+                ORDER BY c.contype DESC
+                """).getResultList();
+        for (Object[] row : constraints) {
+            String type = String.valueOf(row[2]);
+            String definition = (String) row[3];
+            if ("f".equals(type)) {
+                if (definition.startsWith("FOREIGN KEY (parent_id)")) {
+                    continue;
+                }
+                definition = partitioned
+                        ? definition.replace("(child_id)", "(child_id, " + KEY + ")").replace("(id)", "(id, " + KEY + ")")
+                        : definition.replace(", " + KEY, "");
+            } else {
+                definition = withKey(definition, partitioned);
+            }
+            definitions.add("ALTER TABLE " + row[0] + " ADD CONSTRAINT " + row[1] + " " + definition);
+        }
+        List<Object[]> indexes = em.createNativeQuery("""
+                SELECT i.indexname, i.indexdef FROM pg_indexes i
+                WHERE i.schemaname = current_schema() AND i.tablename IN ('value', 'value_edge')
+                  AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)
+                """).getResultList();
+        for (Object[] row : indexes) {
+            String definition = (String) row[1];
+            definitions.add(definition.startsWith("CREATE UNIQUE") ? withKey(definition, partitioned) : definition);
+        }
+        return definitions;
+    }
+
+    // adds the partition key to the column list a unique index or constraint ends with, or removes it
+    private static String withKey(String definition, boolean partitioned) {
+        if (!partitioned) {
+            return definition.replace(", " + KEY + ")", ")");
+        }
+        int end = definition.lastIndexOf(')');
+        return definition.substring(0, end) + ", " + KEY + definition.substring(end);
+    }
+}
@@ -8,51 +8,91 @@ import io.hyperfoil.tools.h5m.entity.FolderEntity;
 import io.hyperfoil.tools.h5m.entity.NodeEntity;
 import io.hyperfoil.tools.h5m.entity.ProcessingEntity;
 import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.ValueHashes;
 import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
 import io.hyperfoil.tools.h5m.entity.work.Work;
 import io.hyperfoil.tools.h5m.entity.mapper.CycleAvoidingContext;
 import io.hyperfoil.tools.h5m.entity.node.RootNode;
-import io.hyperfoil.tools.h5m.queue.KahnDagSort;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import io.quarkus.logging.Log;
 import jakarta.enterprise.context.ApplicationScoped;
 import io.hyperfoil.tools.h5m.api.Change;
 import io.hyperfoil.tools.h5m.event.ChangeDetectedEvent;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
+import jakarta.transaction.RollbackException;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.provided.ValueIdAllocator;
 import static io.hyperfoil.tools.h5m.provided.DatabaseEngine.Kind.*;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.NotFoundException;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.query.NativeQuery;
 
 import java.io.*;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @ApplicationScoped
 public class ValueService implements ValueServiceInterface {
 
+    // rows the JDBC driver reads ahead when streaming grouped values
+    private static final int ROWS_PER_FETCH = 200;
+
+    /** one grouped row as JSON text, with the ID of the root value (upload) it belongs to */
+    public record JsonRow(long rootId, String json) {}
+
     @Inject
     EntityManager em;
 
+    @Inject
+    TransactionManager tm;
+
     @Inject
     ApiMapper apiMapper;
 
     @Inject
     DatabaseEngine db;
     @Inject
+    ValueIdAllocator valueIdAllocator;
+    @Inject
     NodeService nodeService;
     @Inject
     ProcessingService processingService;
     @Inject
     WorkService workService;
+    @Inject
+    FolderStatsService folderStats;
+    @Inject
+    ValueCompression compression;
+    @Inject
+    ValueBlobs blobs;
+    @Inject
+    UploadArchive archive;
+    @Inject
+    NodeGraphs graphs;
+    @Inject
+    WorkJournal journal;
 
     // ---- Detection value cache ----
     // In-memory cache of detection values keyed by root value ID (upload ID).
@@ -110,7 +150,12 @@ public class ValueService implements ValueServiceInterface {
     @Override
     @Transactional
     public void purgeValues(){
+        em.createNativeQuery("delete from folder_view_row").executeUpdate();
         em.createNativeQuery("delete from Value").executeUpdate();
+        em.createNativeQuery("delete from value_archive").executeUpdate();
+        blobs.purge();
+        archive.purge();
+        folderStats.valuesPurged();
     }
 
     @Override
@@ -120,9 +165,12 @@ public class ValueService implements ValueServiceInterface {
                     "SELECT f FROM folder f JOIN FETCH f.group g LEFT JOIN FETCH g.sources LEFT JOIN FETCH g.root WHERE f.id = :id",
                     FolderEntity.class
             ).setParameter("id", folderId).getSingleResult();
-            ValueEntity newValue = create(new ValueEntity(folder, folder.group.root, data));
+            ValueEntity newValue = new ValueEntity(folder, folder.group.root, data);
+            createAll(List.of(newValue));
+            folderStats.uploadAdded(folder.id, newValue.getCreatedAt(), newValue.id);
 
             ProcessingEntity tracking = new ProcessingEntity(folder.id, null, newValue.id);
+            tracking.journaled = journal.isEnabled();
             tracking.persist();
 
             List<Work> works = folder.group.getTopLevelNodes().stream()
@@ -147,21 +195,210 @@ public class ValueService implements ValueServiceInterface {
         return value;
     }
 
+    // uploads can be compressed, calculated values shared through value_blob
+    private final ValueBulkInserter.DataEncoder dataEncoder = new ValueBulkInserter.DataEncoder() {
+        @Override
+        public byte[] encode(Connection connection, ValueEntity value, byte[] data) throws SQLException {
+            return compression.encode(connection, value, data);
+        }
+
+        @Override
+        public boolean shared(ValueEntity value, byte[] data) {
+            return blobs.shares(value, data);
+        }
+    };
+
+    /**
+     * Persists new values and their source edges in bulk. Values without an id (and any
+     * new values they use as sources) get ids in one block from {@link ValueIdAllocator}
+     * and are written with {@link ValueBulkInserter}, bypassing the persistence context:
+     * the ids are set on the given instances, which stay unmanaged.
+     * Values that already have an id but are detached are merged as before.
+     */
     @Transactional
     public List<ValueEntity> createAll(List<ValueEntity> values){
+        List<ValueEntity> newValues = new ArrayList<>();
+        Set<ValueEntity> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ValueEntity value : values) {
+            collectNew(value, newValues, seen);
+        }
+        if (!newValues.isEmpty()) {
+            // pending Hibernate inserts (e.g. merged sources) must reach the DB first
+            em.flush();
+            LocalDateTime now = LocalDateTime.now();
+            em.unwrap(Session.class).doWork(connection -> {
+                long[] ids = valueIdAllocator.allocate(connection, newValues.size());
+                for (int i = 0; i < ids.length; i++) {
+                    ValueEntity value = newValues.get(i);
+                    value.id = ids[i];
+                    value.initTimestamps(now);
+                }
+                ValueBulkInserter.insert(connection, db, newValues, dataEncoder);
+            });
+        }
         List<ValueEntity> result = new ArrayList<>(values.size());
         for (ValueEntity value : values) {
-            if(!value.isPersistent()){
-                value = em.merge(value);
+            if (!seen.contains(value) && !value.isPersistent()) {
+                ValueEntity merged = em.merge(value);
+                value.id = merged.id;
+                value = merged;
             }
             result.add(value);
         }
-        for (int i = 0; i < values.size(); i++) {
-            values.get(i).id = result.get(i).id;
-        }
         return result;
     }
 
+    /**
+     * Outcome of {@link #reconcile}.
+     *
+     * @param inserted  new values, now with their IDs
+     * @param changed   calculated values whose data replaced an existing row; their ID is set to that row's ID
+     * @param deleted   IDs of existing values that were not produced again and have been deleted
+     */
+    public record Reconciliation(List<ValueEntity> inserted, List<ValueEntity> changed, List<Long> deleted) {}
+
+    /**
+     * Reconciles freshly calculated values (without IDs) of {@code nodeIds} against the values
+     * those nodes already have below {@code sourceIds}, matching them by {@code (node_id, path_hash)}.
+     * <p>
+     * All values are written with one upsert statement per chunk (see {@link ValueBulkInserter#upsert}),
+     * which reports the inserted and changed rows, so existing values are never loaded into the
+     * persistence context. Existing values whose path hash was not produced again are deleted
+     * together with their dependents, like before.
+     *
+     * @param keepIds  IDs of existing values that the calculation returned as is, never deleted
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public Reconciliation reconcile(List<Long> sourceIds, Collection<Long> nodeIds, List<ValueEntity> calculated, Set<Long> keepIds) {
+        List<Object[]> existing = em.createNativeQuery("""
+                WITH RECURSIVE sourceRecursive (v_id) AS (
+                    SELECT ve.child_id from value_edge ve where ve.parent_id IN :sourceIds
+                    UNION
+                    SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr
+                    ON ve.parent_id = sr.v_id
+                )
+                SELECT v.id, v.node_id, v.path_hash FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id
+                WHERE v.node_id IN :nodeIds
+                """)
+                .setParameter("sourceIds", sourceIds)
+                .setParameter("nodeIds", nodeIds)
+                .getResultList();
+        Map<Long, Long> existingNodes = new HashMap<>();
+        Map<Long, Long> existingHashes = new HashMap<>();
+        for (Object[] row : existing) {
+            long id = ((Number) row[0]).longValue();
+            existingNodes.put(id, ((Number) row[1]).longValue());
+            if (row[2] == null) {
+                // written before path hashes existed, or persisted before its sources
+                existingHashes.put(id, fillHashes(id));
+            } else {
+                existingHashes.put(id, ((Number) row[2]).longValue());
+            }
+        }
+
+        List<ValueEntity> inserted = new ArrayList<>();
+        List<ValueEntity> changed = new ArrayList<>();
+        Set<String> produced = new HashSet<>();
+        if (!calculated.isEmpty()) {
+            em.flush();
+            LocalDateTime now = LocalDateTime.now();
+            em.unwrap(Session.class).doWork(connection -> {
+                long[] ids = valueIdAllocator.allocate(connection, calculated.size());
+                for (int i = 0; i < ids.length; i++) {
+                    ValueEntity value = calculated.get(i);
+                    value.id = ids[i];
+                    value.initTimestamps(now);
+                }
+                // one row per (node, path): a single upsert statement cannot touch a row twice
+                Map<String, ValueBulkInserter.Row> rows = new LinkedHashMap<>();
+                for (ValueBulkInserter.Row row : ValueBulkInserter.prepare(calculated)) {
+                    rows.putIfAbsent(row.value().node.getId() + ":" + row.value().pathHash, row);
+                }
+                produced.addAll(rows.keySet());
+                List<ValueBulkInserter.Upserted> upserted = ValueBulkInserter.upsert(connection, db, new ArrayList<>(rows.values()), dataEncoder);
+                for (ValueBulkInserter.Upserted u : upserted) {
+                    ValueEntity value = rows.get(u.nodeId() + ":" + u.pathHash()).value();
+                    if (value.id == u.id()) {
+                        inserted.add(value);
+                    } else {
+                        value.id = u.id();
+                        changed.add(value);
+                    }
+                }
+                ValueBulkInserter.insertEdges(connection, db, inserted);
+            });
+            Set<ValueEntity> reported = Collections.newSetFromMap(new IdentityHashMap<>());
+            reported.addAll(inserted);
+            reported.addAll(changed);
+            for (ValueEntity value : calculated) {
+                if (!reported.contains(value)) {
+                    value.id = null; // unchanged or duplicate: the proposed id was never used
+                }
+            }
+            evictValues(changed.stream().map(v -> v.id).toList());
+            countChanges(inserted, now);
+        }
+
+        List<Long> deleted = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : existingHashes.entrySet()) {
+            long id = entry.getKey();
+            if (!keepIds.contains(id) && !produced.contains(existingNodes.get(id) + ":" + entry.getValue())) {
+                ValueEntity stale = em.find(ValueEntity.class, id);
+                if (stale != null) {
+                    delete(stale);
+                    deleted.add(id);
+                }
+            }
+        }
+        return new Reconciliation(inserted, changed, deleted);
+    }
+
+    // detection values carry the folder of their upload
+    private void countChanges(List<ValueEntity> inserted, LocalDateTime at) {
+        Map<Long, Integer> perFolder = new HashMap<>();
+        for (ValueEntity value : inserted) {
+            if (value.folder != null && value.folder.id != null && value.node.isDetection()) {
+                perFolder.merge(value.folder.id, 1, Integer::sum);
+            }
+        }
+        perFolder.forEach((folderId, count) -> folderStats.changesAdded(folderId, count, at));
+    }
+
+    /**
+     * Computes and stores the hashes of a value that has none yet and returns its path hash.
+     */
+    private long fillHashes(long id) {
+        ValueEntity value = em.find(ValueEntity.class, id);
+        value.computeHashes();
+        if (value.dataHash == null) {
+            em.createNativeQuery("UPDATE value SET path_hash = :pathHash WHERE id = :id")
+                    .setParameter("pathHash", value.pathHash)
+                    .setParameter("id", id)
+                    .executeUpdate();
+        } else {
+            em.createNativeQuery("UPDATE value SET path_hash = :pathHash, data_hash = :dataHash WHERE id = :id")
+                    .setParameter("pathHash", value.pathHash)
+                    .setParameter("dataHash", value.dataHash)
+                    .setParameter("id", id)
+                    .executeUpdate();
+        }
+        evictValues(List.of(id));
+        return value.pathHash;
+    }
+
+    private static void collectNew(ValueEntity value, List<ValueEntity> newValues, Set<ValueEntity> seen) {
+        if (value.id != null || !seen.add(value)) {
+            return;
+        }
+        if (value.sources != null) {
+            for (ValueEntity source : value.sources) {
+                collectNew(source, newValues, seen);
+            }
+        }
+        newValues.add(value);
+    }
+
     @Transactional
     @SuppressWarnings("unchecked")
     public List<ValueEntity> getDependentValues(ValueEntity v){
@@ -183,29 +420,34 @@ public class ValueService implements ValueServiceInterface {
         return EdgeQueries.getParentCounts(em, "value_edge", childIds);
     }
 
-    @Transactional
+    /**
+     * Deletes {@code value} and every descendant whose parents are all deleted with it.
+     */
     public void delete(ValueEntity value){
-        if(value.id != null && ValueEntity.findById(value.id) != null){
-            List<ValueEntity> dependents = getDependentValues(value);
-            for(ValueEntity dependent : dependents){
-                long parentCount = EdgeQueries.getParentCount(em, "value_edge", dependent.id);
-                if(parentCount <= 1){
-                    delete(dependent);
-                }
-            }
-            deleteValueAndEdges(value.id);
+        if(value.id != null){
+            deleteCascading(List.of(value.id), List.of());
         }
     }
 
-    @Transactional
-    public void deleteForFolder(long folderId) {
-        // Bulk delete - no parent count checks needed since entire folder is going away
-        em.createNativeQuery("DELETE FROM value_edge WHERE child_id IN (SELECT id FROM value WHERE folder_id = :fid)")
-                .setParameter("fid", folderId).executeUpdate();
-        em.createNativeQuery("DELETE FROM value WHERE folder_id = :fid")
-                .setParameter("fid", folderId).executeUpdate();
+    /**
+     * Deletes the values with {@code valueIds} and every descendant whose parents are all deleted
+     * with them, see {@link #deleteCascading}.
+     *
+     * @return the number of values deleted
+     */
+    public int deleteWithDescendants(Collection<Long> valueIds){
+        return valueIds.isEmpty() ? 0 : deleteCascading(valueIds, List.of());
     }
 
+    /**
+     * Deletes the values of the given nodes and every descendant whose parents are all deleted
+     * with them, see {@link #deleteCascading}.
+     *
+     * @return the number of values deleted
+     */
+    public int deleteNodeValues(Collection<Long> nodeIds){
+        return nodeIds.isEmpty() ? 0 : deleteCascading(List.of(), nodeIds);
+    }
 
     @Transactional
     public ValueEntity byId(Long id){
@@ -220,6 +462,8 @@ public class ValueService implements ValueServiceInterface {
     public JqValue getValueData(Long id) {
         ValueEntity value = ValueEntity.findById(id);
         if (value == null) return null;
+        // an archived upload reads its payload back from the segment
+        archive.rehydrate(List.of(value));
         // Access data within the transaction to initialize the lazy proxy
         return value.data;
     }
@@ -237,16 +481,16 @@ public class ValueService implements ValueServiceInterface {
     @SuppressWarnings("unchecked")
     public List<ValueEntity> getDescendantValues(ValueEntity root){
         // Query IDs only, then load via findMultiple() to hit 2LC
-        List<Number> ids = em.createNativeQuery(
+        List<Number> ids = em.createNativeQuery(inRootPartition(
                 """
                 WITH RECURSIVE sourceRecursive (v_id) AS (
-                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId
+                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId IN_PARTITION
                     UNION ALL
                     SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr
-                    ON ve.parent_id = sr.v_id
+                    ON ve.parent_id = sr.v_id IN_PARTITION
                 )
                 SELECT distinct v.id FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id
-                """
+                """, root)
         ).setParameter("rootId", root.id).getResultList();
         List<Long> longIds = ids.stream().map(Number::longValue).toList();
         return em.unwrap(Session.class).findMultiple(ValueEntity.class, longIds);
@@ -284,13 +528,13 @@ public class ValueService implements ValueServiceInterface {
                     """
                     with recursive ancestor(vid) as (
                         select v.id as vid 
-                            from value v where v.node_id = :nodeId and v.data = :data
+                            from value v where v.node_id = :nodeId and v.data_hash = :dataHash
                         union 
                         select v.id as vid 
                             from value v join value_edge ve on v.id = ve.parent_id join ancestor a on a.vid = ve.child_id
                     ),
                     sorter(vid,sortable) as (
-                        select v.id as vid,convert_from(v.data, 'UTF-8')::jsonb as sortable 
+                        select v.id as vid,DATA_JSONB as sortable 
                             from value v where v.node_id = :sortId
                         union
                         select v.id as vid, s.sortable as sortable
@@ -304,18 +548,18 @@ public class ValueService implements ValueServiceInterface {
                              from value v join value_edge ve on v.id = ve.child_id join descendant d on d.vid = ve.parent_id
                     )                        
                     select * from value v join descendant d on v.id=d.vid where v.node_id=:sourceId order by sortable asc;                    
-                    """;
+                    """.replace("DATA_JSONB", db.jsonbData(db.valueData("v")));
                 case SQLITE->
                     """
                     with recursive ancestor(vid) as (
                         select v.id as vid 
-                            from value v where v.node_id = :nodeId and v.data = :data
+                            from value v where v.node_id = :nodeId and v.data_hash = :dataHash
                         union 
                         select v.id as vid 
                             from value v join value_edge ve on v.id = ve.parent_id join ancestor a on a.vid = ve.child_id
                     ),
                     sorter(vid,sortable) as (
-                        select v.id as vid,json_extract(CAST(v.data AS TEXT), '$') as sortable 
+                        select v.id as vid,json_extract(CAST(VALUE_DATA AS TEXT), '$') as sortable 
                             from value v where v.node_id = :sortId
                         union
                         select v.id as vid, s.sortable as sortable
@@ -332,7 +576,7 @@ public class ValueService implements ValueServiceInterface {
                     """;
             }, ValueEntity.class)
                                                    .setParameter("nodeId", fingerprint.node.id)
-                                                   .setParameter("data", JqValues.serializeToBytes(fingerprint.data))
+                                                   .setParameter("dataHash", dataHash(fingerprint))
                                                    .setParameter("sourceId", source.id)
                                                    .setParameter("sortId",sort.id)
                                                    .getResultList());
@@ -371,13 +615,16 @@ public class ValueService implements ValueServiceInterface {
                 ),
                 """;
         }
-        // BYTEA equality — fingerprints are built deterministically by the same
-        // code path, so byte-level equality matches semantic equality
+        // Hash equality — fingerprints are built deterministically by the same
+        // code path, so equal serialized bytes mean equal fingerprints, and the hash
+        // also matches fingerprints stored once in value_blob. Rows written before
+        // data hashes existed compare the data itself.
         sql = sql +
                     """
                     ANCESTOR_PREFIX ancestor(vid) as (
                         select v.id as vid
-                            from value v where v.node_id = :nodeId and v.data = :fingerprint VALUE_ANCESTOR_CRITERIA
+                            from value v where v.node_id = :nodeId
+                                and (v.data_hash = :fingerprintHash or (v.data_hash is null and v.data = FINGERPRINT)) VALUE_ANCESTOR_CRITERIA
                         union
                         select v.id as vid
                             from value v join value_edge ve on v.id = ve.parent_id join ancestor a on a.vid = ve.child_id
@@ -385,45 +632,69 @@ public class ValueService implements ValueServiceInterface {
                     """;
         sql = sql
                 .replace("ANCESTOR_PREFIX",ancestorValue==null?"with recursive":"")
+                .replace("FINGERPRINT", db.dataParameter(":fingerprint"))
                 .replace("VALUE_ANCESTOR_CRITERIA",ancestorValue==null?"":" and exists ( select 1 from valueDescendants where vid = v.id)");
 
+        Double domainNum = null;
+        Long domainInt = null;
+        String domainTxt = null;
         if(domainValue!=null || domainNode!=null) { //we have a sortable domain value
-            // Domain comparison and sorting need JSON-aware semantics.
-            // PostgreSQL: convert BYTEA back to jsonb for native JSON comparison.
-            // SQLite: use json_extract to preserve numeric types — plain CAST to TEXT
-            // would compare lexicographically ("10" < "2") instead of numerically (2 < 10).
-            String domainValueComp = switch (db.kind()){
-                case SQLITE-> "and json_extract(CAST(v.data AS TEXT), '$') GTLT json_extract(CAST(:domain AS TEXT), '$')";
-                case POSTGRESQL-> "and convert_from(v.data, 'UTF-8')::jsonb GTLT convert_from(:domain, 'UTF-8')::jsonb";
-            };
-            // Convert BYTEA data to a sortable type for domain ordering.
-            // BYTEA sorts lexicographically which is meaningless for JSON values.
-            // SQLite: json_extract preserves native JSON types (integer, real, text)
-            // so ORDER BY uses numeric comparison for numbers.
-            String dataToSortable = switch (db.kind()) {
-                case POSTGRESQL -> "convert_from(v.data, 'UTF-8')::jsonb";
-                case SQLITE     -> "json_extract(CAST(v.data AS TEXT), '$')";
+            fillDomainKeys(domainValue != null ? domainValue.node.id : domainNode.id);
+            // Domain comparison and sorting use the sort keys stored with each value:
+            // domain_num for numbers, domain_txt for short strings, served by the
+            // (node_id, domain_num, domain_txt) index instead of parsing the data.
+            // domain_int breaks the ties of integers that are equal as doubles.
+            String domainValueComp = "";
+            if (domainValue != null) {
+                domainNum = domainValue.domainNum != null ? domainValue.domainNum : ValueEntity.domainNum(domainValue.data);
+                domainInt = domainValue.domainInt != null ? domainValue.domainInt : ValueEntity.domainInt(domainValue.data);
+                domainTxt = domainValue.domainTxt != null ? domainValue.domainTxt : ValueEntity.domainTxt(domainValue.data);
+                if (domainInt != null) {
+                    domainValueComp = "and (v.domain_num STRICT :domainNum or (v.domain_num = :domainNum and (v.domain_int is null or v.domain_int GTLT :domainInt)))";
+                } else if (domainNum != null) {
+                    domainValueComp = "and v.domain_num GTLT :domainNum";
+                } else if (domainTxt != null) {
+                    domainValueComp = "and v.domain_num is null and v.domain_txt GTLT :domainTxt";
+                } else {
+                    // Objects, arrays and long strings have no key and compare as JSON.
+                    // PostgreSQL: convert BYTEA back to jsonb for native JSON comparison
+                    // (no conversion when the column is jsonb, see DatabaseEngine#isJsonb).
+                    // SQLite: use json_extract to preserve numeric types — plain CAST to TEXT
+                    // would compare lexicographically ("10" < "2") instead of numerically (2 < 10).
+                    domainValueComp = switch (db.kind()){
+                        case SQLITE-> "and json_extract(CAST(" + db.valueData("v") + " AS TEXT), '$') GTLT json_extract(CAST(:domain AS TEXT), '$')";
+                        case POSTGRESQL-> "and " + db.jsonbData(db.valueData("v")) + " GTLT convert_from(:domain, 'UTF-8')::jsonb";
+                    };
+                }
+            }
+            // The series carries the id of its domain value and reads the keys at the end.
+            // Objects, arrays and long strings have no key and are ordered as JSON.
+            String sortJson = switch (db.kind()) {
+                case SQLITE -> "json_extract(CAST(" + db.valueData("s") + " AS TEXT), '$')";
+                case POSTGRESQL -> db.jsonbData(db.valueData("s"));
             };
-            sql += ("""
-                        sorter(vid,sortable) as (
-                            select v.id as vid,DATA_TO_SORTABLE as sortable
+            sql += """
+                        sorter(vid,sort_id) as (
+                            select v.id as vid, v.id as sort_id
                                 from value v where v.node_id = :sortId DOMAIN_VALUE_COMP
                             union
-                            select v.id as vid, s.sortable as sortable
+                            select v.id as vid, s.sort_id as sort_id
                                 from value v join value_edge ve on v.id = ve.parent_id join sorter s on s.vid = ve.child_id
                         ),
-                        descendant(vid,sortable) as (
-                           select v.id as vid, s.sortable as sortable
+                        descendant(vid,sort_id) as (
+                           select v.id as vid, s.sort_id as sort_id
                              from value v join sorter s on v.id = s.vid join ancestor a on v.id = a.vid
                              where v.node_id = :groupById --limit descendants to values from the grouping node
                            union
-                           select v.id as vid, d.sortable as sortable
+                           select v.id as vid, d.sort_id as sort_id
                                  from value v join value_edge ve on v.id = ve.child_id join descendant d on d.vid = ve.parent_id
                         )
-                        select v.id from value v join descendant d on v.id=d.vid
-                            where v.node_id=:sourceId order by sortable ORDER_DIRECTION
-                        """).replace("DATA_TO_SORTABLE", dataToSortable);
-            sql = sql.replace("DOMAIN_VALUE_COMP",domainValue != null ? domainValueComp : "");
+                        select v.id from value v join descendant d on v.id=d.vid join value s on s.id = d.sort_id
+                            where v.node_id=:sourceId
+                            order by s.domain_num ORDER_DIRECTION, s.domain_int ORDER_DIRECTION, s.domain_txt ORDER_DIRECTION,
+                                case when s.domain_num is null and s.domain_txt is null then SORT_JSON end ORDER_DIRECTION
+                        """;
+            sql = sql.replace("DOMAIN_VALUE_COMP", domainValueComp).replace("SORT_JSON", sortJson);
         }else{
             //sorting by created_at
             // No domain sorting — order by created_at. Both dialects share the same SQL.
@@ -442,6 +713,7 @@ public class ValueService implements ValueServiceInterface {
         }
         sql = sql
                 .replace("GTLT", preceedingValues ? "<=" : ">=") //TODO I think these should be <= and >= to include current sample
+                .replace("STRICT", preceedingValues ? "<" : ">")
                 .replace("ORDER_DIRECTION", preceedingValues ? "desc" : "asc");
         if(offset > 0){
             sql+=" offset :offset";
@@ -457,15 +729,24 @@ public class ValueService implements ValueServiceInterface {
         query
                 .setParameter("nodeId", fingerprint.node.id)
                 .setParameter("fingerprint", JqValues.serializeToBytes(fingerprint.data))
+                .setParameter("fingerprintHash", dataHash(fingerprint))
                 .setParameter("sourceId", rangeNode.id)
                 .setParameter("groupById",groupBy.id);
         if(ancestorValue!=null){
             query.setParameter("ancestorValueId",ancestorValue.id);
         }
         if(domainValue!=null){
-            query
-                .setParameter("sortId",domainValue.node.id)
-                .setParameter("domain",JqValues.serializeToBytes(domainValue.data));
+            query.setParameter("sortId",domainValue.node.id);
+            if (domainInt != null) {
+                query.setParameter("domainNum", domainNum);
+                query.setParameter("domainInt", domainInt);
+            } else if (domainNum != null) {
+                query.setParameter("domainNum", domainNum);
+            } else if (domainTxt != null) {
+                query.setParameter("domainTxt", domainTxt);
+            } else {
+                query.setParameter("domain",JqValues.serializeToBytes(domainValue.data));
+            }
         }else if (domainNode!=null){
             query.setParameter("sortId",domainNode.id);
         }
@@ -498,6 +779,72 @@ public class ValueService implements ValueServiceInterface {
         return rtrn;
     }
 
+    // domain nodes whose values written before the sort keys existed have been given keys
+    private static long dataHash(ValueEntity value) {
+        return value.dataHash != null ? value.dataHash : ValueHashes.dataHash(JqValues.serializeToBytes(value.data));
+    }
+
+    private final Set<Long> domainKeysFilled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Sets the domain sort keys of the values of {@code nodeId} that were stored without them.
+     * Runs once per node and process; values written since then get their keys on insert.
+     * Only rows that get a key are written. The update goes over JDBC, a native query without
+     * query spaces would evict the whole second-level cache; cached values without keys fall
+     * back to their data (see {@link #findMatchingFingerprint}).
+     */
+    private void fillDomainKeys(long nodeId) {
+        if (domainKeysFilled.contains(nodeId)) {
+            return;
+        }
+        String sql = switch (db.kind()) {
+            case SQLITE -> """
+                    UPDATE value SET
+                        domain_num = CASE WHEN json_type(JSON) IN ('integer', 'real') THEN json_extract(JSON, '$') END,
+                        domain_int = CASE WHEN json_type(JSON) = 'integer' THEN json_extract(JSON, '$') END,
+                        domain_txt = CASE WHEN json_type(JSON) = 'text' AND length(json_extract(JSON, '$')) <= MAX_TXT
+                            THEN json_extract(JSON, '$') END
+                    WHERE node_id = ? AND VALUE_DATA IS NOT NULL AND domain_int IS NULL AND domain_txt IS NULL
+                        AND (json_type(JSON) = 'integer' OR (json_type(JSON) = 'real' AND domain_num IS NULL)
+                            OR (json_type(JSON) = 'text' AND length(json_extract(JSON, '$')) <= MAX_TXT))
+                    """.replace("JSON", "CAST(VALUE_DATA AS TEXT)").replace("VALUE_DATA", db.valueData("value"));
+            case POSTGRESQL -> """
+                    UPDATE value SET domain_num = k.num, domain_int = k.whole, domain_txt = k.txt FROM (
+                        SELECT id,
+                            CASE WHEN jsonb_typeof(j) = 'number' THEN (j #>> '{}')::double precision END AS num,
+                            CASE WHEN jsonb_typeof(j) = 'number' AND (j #>> '{}') ~ '^-?[0-9]+$'
+                                AND (j #>> '{}')::numeric BETWEEN -9223372036854775808 AND 9223372036854775807
+                                THEN (j #>> '{}')::bigint END AS whole,
+                            CASE WHEN jsonb_typeof(j) = 'string' AND length(j #>> '{}') <= MAX_TXT THEN j #>> '{}' END AS txt
+                        FROM (SELECT id, DATA_JSONB AS j FROM value
+                            WHERE node_id = ? AND VALUE_DATA IS NOT NULL AND domain_int IS NULL AND domain_txt IS NULL
+                                AND jsonb_typeof(DATA_JSONB) IN ('number', 'string')) d
+                    ) k WHERE value.id = k.id
+                        AND (k.whole IS NOT NULL OR k.txt IS NOT NULL OR (k.num IS NOT NULL AND value.domain_num IS NULL))
+                    """.replace("DATA_JSONB", db.jsonbData(db.valueData("value"))).replace("VALUE_DATA", db.valueData("value"));
+        };
+        String update = sql.replace("MAX_TXT", Integer.toString(ValueEntity.DOMAIN_TXT_MAX));
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(update)) {
+                ps.setLong(1, nodeId);
+                ps.executeUpdate();
+            }
+        });
+        try {
+            tm.getTransaction().registerSynchronization(new Synchronization() {
+                @Override public void beforeCompletion() {}
+                @Override public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        domainKeysFilled.add(nodeId);
+                    }
+                }
+            });
+        } catch (RollbackException | SystemException e) {
+            // filled again by the next query
+            Log.debugf(e, "Domain keys of node %d not remembered", nodeId);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public List<ValueEntity> getAncestor(ValueEntity value, NodeEntity node){
         // Query IDs only, then load via findMultiple() to hit 2LC
@@ -547,6 +894,52 @@ public class ValueService implements ValueServiceInterface {
     @Override
     @Transactional
     public List<JqValue> getGroupedValues(Long nodeId, Long valueId, List<Long> filterNodeIds, Map<Long,JqValue> fingerprints, Long sortByNodeId) {
+        return groupedQuery(nodeId, valueId, filterNodeIds, fingerprints, sortByNodeId, null, null)
+                .getResultList().stream().map(row -> JqValues.parse((String) row[1])).toList();
+    }
+
+    @Override
+    @Transactional
+    public List<JqValue> getGroupedValuesPage(Long nodeId, Long afterRootId, int limit) {
+        return groupedQuery(nodeId, null, null, null, null, afterRootId, limit)
+                .getResultList().stream().map(row -> JqValues.parse((String) row[1])).toList();
+    }
+
+    /**
+     * Passes the grouped rows of {@code nodeId} to {@code rows} as they are read from the database,
+     * without parsing them.
+     * Rows come in root value order unless {@code sortByNodeId} is set.
+     * <p>
+     * A page in root value order selects its {@code limit} root values first and only walks their
+     * values. Each of them gets a row, an empty object if it has none of {@code filterNodeIds}, so
+     * the cursor of the next page is always the last row. A page sorted by a node has to sort every
+     * root value of the node first.
+     *
+     * @param afterRootId keyset cursor: only rows of root values with a greater ID (null for the first page).
+     *                    Not supported together with {@code sortByNodeId}.
+     * @param limit maximum number of rows, null for all of them
+     */
+    @Transactional
+    public void streamGroupedValues(Long nodeId, List<Long> filterNodeIds, Long sortByNodeId, Long afterRootId, Integer limit, Consumer<JsonRow> rows) {
+        try (Stream<Object[]> stream = groupedQuery(nodeId, null, filterNodeIds, null, sortByNodeId, afterRootId, limit)
+                .setFetchSize(ROWS_PER_FETCH).getResultStream()) {
+            stream.forEach(row -> rows.accept(new JsonRow(((Number) row[0]).longValue(), (String) row[1])));
+        }
+    }
+
+    /**
+     * Returns the grouped values query selecting {@code root_id, data}.
+     * The cursor and limit are applied in SQL. In root value order they select the root values
+     * of the page before the values below them are walked, so a page only reads the rows it returns.
+     */
+    private NativeQuery<Object[]> groupedQuery(Long nodeId, Long valueId, List<Long> filterNodeIds, Map<Long,JqValue> fingerprints,
+                                               Long sortByNodeId, Long afterRootId, Integer limit) {
+        if (afterRootId != null && sortByNodeId != null) {
+            throw new BadRequestException("a cursor can only be used with rows in upload order, not sorted by a node");
+        }
+        if (limit != null && limit <= 0) {
+            throw new BadRequestException("limit must be positive: " + limit);
+        }
         String nodeFilter = filterNodeIds != null && !filterNodeIds.isEmpty() ? "node_id in (:nodeIds)" : "";
         String parentValueCte = valueId != null ? switch(db.kind()) {
             case SQLITE ->
@@ -595,9 +988,15 @@ public class ValueService implements ValueServiceInterface {
         } : "";
         String sortJoin    = sortByNodeId != null ? "left join root_sort rs on b.root_id = rs.root_id" : "";
         String sortGroupBy = sortByNodeId != null ? ", rs.sort_num, rs.sort_txt" : "";
-        String sortOrder   = sortByNodeId != null ? "order by rs.sort_num asc nulls last, rs.sort_txt asc" : "";
-        String fingerPrintWhere = "";
+        String sortOrder   = sortByNodeId != null ? "order by rs.sort_num asc nulls last, rs.sort_txt asc, b.root_id" : "order by b.root_id";
+        String rootAfter   = afterRootId != null ? "and id > :afterRootId" : "";
         List<Long> fingerprintIds = fingerprints!=null ? new ArrayList<>(fingerprints.keySet()) : Collections.emptyList();
+        // the page is known before the walk unless the rows are sorted or matched by their values
+        boolean pageRoots  = limit != null && sortByNodeId == null && fingerprintIds.isEmpty() && valueId == null;
+        String pageCte     = pageRoots ? "page_root(id) as (select id from value where node_id = :nodeId ROOT_AFTER order by id limit :limit)," : "";
+        String rootIds     = pageRoots ? "(select id from page_root)" : "(select id from value where node_id = :nodeId ROOT_AFTER)";
+        String limitRows   = limit != null && !pageRoots ? "limit :limit" : "";
+        String fingerPrintWhere = "";
         if(!fingerprintIds.isEmpty()){
             for(int idx=0;idx<fingerprintIds.size();idx++){
                 Long id = fingerprintIds.get(idx);
@@ -618,12 +1017,12 @@ public class ValueService implements ValueServiceInterface {
         String queryStr = (switch (db.kind()) {
             case SQLITE ->
                 """
-                with recursive ANCESTOR_CTE tree(id,node_id,root_id,idx,data) as (
-                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,CAST(v.data AS TEXT) as data
+                with recursive ANCESTOR_CTE PAGE_CTE tree(id,node_id,root_id,idx,data) as (
+                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,CAST(VALUE_DATA AS TEXT) as data
                         from value_edge ve left join value v on ve.child_id = v.id
-                        where ve.parent_id in (select id from value where node_id = :nodeId) ANCESTOR_FILTER
+                        where ve.parent_id in ROOT_IDS ANCESTOR_FILTER
                     union
-                    select v.id,v.node_id,t.root_id,v.idx,CAST(v.data AS TEXT) as data
+                    select v.id,v.node_id,t.root_id,v.idx,CAST(VALUE_DATA AS TEXT) as data
                         from value v join value_edge ve on v.id = ve.child_id join tree t on ve.parent_id = t.id
                 ),
                 SORT_CTE
@@ -631,17 +1030,21 @@ public class ValueService implements ValueServiceInterface {
                     select node_id,root_id,json_group_array(json(data)) as data
                         from tree NODE_FILTER group by node_id,root_id order by idx
                 )
-                select json_group_object(n.name,json((case when json_array_length(b.data) > 1 then b.data else b.data->0 end))) as data
-                    from bynode b join node n on b.node_id = n.id SORT_JOIN group by b.root_id SORT_GROUPBY SORT_ORDER;
-                """;
+                GROUPED_SELECT;
+                """.replace("GROUPED_SELECT", pageRoots ? """
+                select r.id as root_id,coalesce(json_group_object(n.name,json((case when json_array_length(b.data) > 1 then b.data else b.data->0 end)))
+                        filter (where n.name is not null),'{}') as data
+                    from page_root r left join bynode b on b.root_id = r.id left join node n on b.node_id = n.id group by r.id order by r.id""" : """
+                select b.root_id,json_group_object(n.name,json((case when json_array_length(b.data) > 1 then b.data else b.data->0 end))) as data
+                    from bynode b join node n on b.node_id = n.id SORT_JOIN group by b.root_id SORT_GROUPBY SORT_ORDER LIMIT_ROWS""");
             case POSTGRESQL ->
                 """
-                with recursive ANCESTOR_CTE tree(id,node_id,root_id,idx,data) as (
-                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,convert_from(v.data, 'UTF-8')::jsonb as data
+                with recursive ANCESTOR_CTE PAGE_CTE tree(id,node_id,root_id,idx,data) as (
+                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,DATA_JSONB as data
                         from value_edge ve left join value v on ve.child_id = v.id
-                        where ve.parent_id in (select id from value where node_id = :nodeId) ANCESTOR_FILTER
+                        where ve.parent_id in ROOT_IDS ANCESTOR_FILTER
                     union
-                    select v.id,v.node_id,t.root_id,v.idx,convert_from(v.data, 'UTF-8')::jsonb as data
+                    select v.id,v.node_id,t.root_id,v.idx,DATA_JSONB as data
                         from value v join value_edge ve on v.id = ve.child_id join tree t on ve.parent_id = t.id
                 ),
                 SORT_CTE
@@ -649,18 +1052,28 @@ public class ValueService implements ValueServiceInterface {
                     select node_id,root_id,jsonb_agg(to_jsonb(data)) as data
                         from tree NODE_FILTER group by node_id,root_id,idx order by idx
                 )
-                select jsonb_object_agg(n.name,to_jsonb((case when jsonb_array_length(b.data) > 1 then b.data else b.data->0 end))) as data
-                    from bynode b join node n on b.node_id = n.id SORT_JOIN group by b.root_id SORT_GROUPBY SORT_ORDER;
-                """;
+                GROUPED_SELECT;
+                """.replace("GROUPED_SELECT", pageRoots ? """
+                select r.id as root_id,cast(coalesce(jsonb_object_agg(n.name,to_jsonb((case when jsonb_array_length(b.data) > 1 then b.data else b.data->0 end)))
+                        filter (where n.name is not null),'{}'::jsonb) as text) as data
+                    from page_root r left join bynode b on b.root_id = r.id left join node n on b.node_id = n.id group by r.id order by r.id""" : """
+                select b.root_id,cast(jsonb_object_agg(n.name,to_jsonb((case when jsonb_array_length(b.data) > 1 then b.data else b.data->0 end))) as text) as data
+                    from bynode b join node n on b.node_id = n.id SORT_JOIN group by b.root_id SORT_GROUPBY SORT_ORDER LIMIT_ROWS""");
             default -> "";
         }).replace("ANCESTOR_CTE",parentValueCte)
+            .replace("PAGE_CTE", pageCte).replace("ROOT_IDS", rootIds)
             .replace("ANCESTOR_FILTER",parentValueFilter)
             .replace("NODE_FILTER", filter).replace("SORT_CTE", sortCte)
-            .replace("SORT_JOIN", sortJoin).replace("SORT_GROUPBY", sortGroupBy).replace("SORT_ORDER", sortOrder);
+            .replace("SORT_JOIN", sortJoin).replace("SORT_GROUPBY", sortGroupBy).replace("SORT_ORDER", sortOrder)
+            .replace("ROOT_AFTER", rootAfter).replace("LIMIT_ROWS", limitRows)
+            .replace("DATA_JSONB", db.jsonbData(db.valueData("v")))
+            .replace("VALUE_DATA", db.valueData("v"));
 
-        var query = em.unwrap(Session.class).createNativeQuery(
-                queryStr, String.class
+        NativeQuery<Object[]> query = em.unwrap(Session.class).createNativeQuery(
+                queryStr, Object[].class
         ).setParameter("nodeId", nodeId);
+        if (afterRootId != null) query.setParameter("afterRootId", afterRootId);
+        if (limit != null) query.setParameter("limit", limit);
         if (valueId != null) query.setParameter("valueId", valueId);
         if (filterNodeIds != null && !filterNodeIds.isEmpty()) query.setParameter("nodeIds", filterNodeIds);
         if (sortByNodeId != null)  query.setParameter("sortNodeId", sortByNodeId);
@@ -671,7 +1084,7 @@ public class ValueService implements ValueServiceInterface {
                 query.setParameter("data_"+idx,fingerprint.toString());
             }
         }
-        return query.getResultList().stream().map(JqValues::parse).toList();
+        return query;
     }
 
     /**
@@ -680,18 +1093,23 @@ public class ValueService implements ValueServiceInterface {
      * @return
      */
     @Transactional
+    @SuppressWarnings("unchecked")
     public List<Value> getNodeDescendantValues(Long nodeId){
         CycleAvoidingContext cycleContext = new CycleAvoidingContext();
-        return em.unwrap(Session.class).createNativeQuery(
+        // IDs only, the entity loader also resolves data stored in value_blob
+        List<Number> ids = em.createNativeQuery(
                 """
                 WITH RECURSIVE sourceRecursive (v_id) AS (
                      SELECT ve.child_id from value_edge ve where ve.parent_id in (select v.id from value v where v.node_id = :nodeId)
                      UNION ALL
                      SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr ON ve.parent_id = sr.v_id
                 )
-                SELECT distinct * FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id
-                """, ValueEntity.class
-        ).setParameter("nodeId",nodeId).getResultStream().map(entity -> apiMapper.toValue(entity, cycleContext)).toList();
+                SELECT distinct v.id FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id
+                """
+        ).setParameter("nodeId",nodeId).getResultList();
+        List<Long> longIds = ids.stream().map(Number::longValue).toList();
+        return em.unwrap(Session.class).findMultiple(ValueEntity.class, longIds).stream()
+                .map(entity -> apiMapper.toValue(entity, cycleContext)).toList();
     }
     /**
      * returns the values that depend on the root value somewhere up the hierarchy and come from the specified node
@@ -704,16 +1122,16 @@ public class ValueService implements ValueServiceInterface {
     public List<ValueEntity> getDescendantValues(ValueEntity root, NodeEntity node){
         // Query only IDs (skip JSONB data), then batch-load via findMultiple() to hit 2LC.
         // findMultiple() issues a single batched query for any cache misses.
-        List<Number> ids = em.createNativeQuery(
+        List<Number> ids = em.createNativeQuery(inRootPartition(
                 """
                 WITH RECURSIVE sourceRecursive (v_id) AS (
-                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId
+                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId IN_PARTITION
                     UNION ALL
                     SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr
-                    ON ve.parent_id = sr.v_id
+                    ON ve.parent_id = sr.v_id IN_PARTITION
                 )
                 SELECT distinct v.id FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id WHERE v.node_id = :nodeId
-                """
+                """, root)
         ).setParameter("rootId", root.id).setParameter("nodeId",node.id).getResultList();
         List<Long> longIds = ids.stream().map(Number::longValue).toList();
         return em.unwrap(Session.class).findMultiple(ValueEntity.class, longIds);
@@ -730,16 +1148,16 @@ public class ValueService implements ValueServiceInterface {
             return getAllDescendants(rootValueId);
         }
         @SuppressWarnings("unchecked")
-        List<Long> ids =  em.unwrap(Session.class).createNativeQuery(
+        List<Long> ids =  em.unwrap(Session.class).createNativeQuery(inRootPartition(
                 """
                     WITH RECURSIVE sourceRecursive (v_id) AS (
-                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId
+                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId IN_PARTITION
                     UNION ALL
                     SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr
-                    ON ve.parent_id = sr.v_id
+                    ON ve.parent_id = sr.v_id IN_PARTITION
                 )
                 SELECT distinct v.id FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id WHERE v.node_id in :nodeId
-                """,Long.class
+                """, rootValueId),Long.class
         ).setParameter("rootId", rootValueId).setParameter("nodeId",nodeId)
                 .getResultStream().toList();
         CycleAvoidingContext ctx = new CycleAvoidingContext();
@@ -786,17 +1204,17 @@ public class ValueService implements ValueServiceInterface {
 
     @SuppressWarnings("unchecked")
     private List<Value> loadDetectionDescendantsFromDb(long rootValueId) {
-        List<Number> ids = em.createNativeQuery("""
+        List<Number> ids = em.createNativeQuery(inRootPartition("""
                 WITH RECURSIVE descendants(vid) AS (
-                    SELECT ve.child_id FROM value_edge ve WHERE ve.parent_id = :rootId
+                    SELECT ve.child_id FROM value_edge ve WHERE ve.parent_id = :rootId IN_PARTITION
                     UNION ALL
-                    SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.vid
+                    SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.vid IN_PARTITION
                 )
                 SELECT distinct v.id
                 FROM value v
                 JOIN node n ON v.node_id = n.id
                 JOIN descendants d ON v.id = d.vid
-                WHERE n.type IN """ + NodeService.DETECTION_NODES)
+                WHERE n.type IN """ + NodeService.DETECTION_NODES, rootValueId))
                 .setParameter("rootId", rootValueId)
                 .getResultList();
         List<Long> longIds = ids.stream().map(Number::longValue).toList();
@@ -839,15 +1257,15 @@ public class ValueService implements ValueServiceInterface {
         // Query only IDs + node_id (skip JSONB data column transfer).
         // Batch-load entities via findMultiple() which hits the 2LC and issues
         // a single batched query for any cache misses.
-        List<Object[]> rows = em.createNativeQuery("""
+        List<Object[]> rows = em.createNativeQuery(inRootPartition("""
                 WITH RECURSIVE sourceRecursive (v_id) AS (
-                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId
+                    SELECT ve.child_id from value_edge ve where ve.parent_id = :rootId IN_PARTITION
                     UNION ALL
-                    SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr ON ve.parent_id = sr.v_id
+                    SELECT ve.child_id from value_edge ve JOIN sourceRecursive sr ON ve.parent_id = sr.v_id IN_PARTITION
                 )
                 SELECT distinct v.id, v.node_id, v.idx FROM value v JOIN sourceRecursive sr ON v.id = sr.v_id WHERE v.node_id IN (:nodeIds)
                 ORDER BY v.idx asc
-                """)
+                """, root))
                                   .setParameter("rootId", root.id)
                                   .setParameter("nodeIds", nodeIds)
                                   .getResultList();
@@ -887,6 +1305,7 @@ public class ValueService implements ValueServiceInterface {
     public List<Value> getNodeValues(Long nodeId){
         CycleAvoidingContext cycleContext = new CycleAvoidingContext();
         List<ValueEntity> entities = ValueEntity.find("node.id", nodeId).list();
+        archive.rehydrate(entities);
         return entities.stream().map(entity -> apiMapper.toValue(entity, cycleContext)).toList();
     }
 
@@ -896,6 +1315,16 @@ public class ValueService implements ValueServiceInterface {
         return ValueEntity.count("node.id", nodeId);
     }
 
+    @Override
+    @Transactional
+    public long getGroupedValueCount(Long nodeId) {
+        // a value is a grouped row if anything was calculated from it
+        return ((Number) em.createNativeQuery("""
+                SELECT count(*) FROM value v
+                WHERE v.node_id = :nodeId AND EXISTS (SELECT 1 FROM value_edge ve WHERE ve.parent_id = v.id)
+                """).setParameter("nodeId", nodeId).getSingleResult()).longValue();
+    }
+
     @Override
     @Transactional
     public List<Value> getNodeValuesPage(Long nodeId, int limit) {
@@ -904,17 +1333,38 @@ public class ValueService implements ValueServiceInterface {
         List<ValueEntity> entities = ValueEntity.find("node.id = ?1 ORDER BY id DESC", nodeId)
                 .page(0, limit)
                 .list();
+        archive.rehydrate(entities);
         return entities.reversed().stream().map(entity -> apiMapper.toValue(entity, cycleContext)).toList();
     }
 
     @Override
     @Transactional
     public List<JqValue> getLabelValues(Long folderId, Long groupByNodeId, List<Long> nodeIds, Long sortByNodeId) {
+        Long rootNodeId = getFolderRootNodeId(folderId);
+        return getGroupedValues(rootNodeId, null, labelNodeIds(groupByNodeId, nodeIds, sortByNodeId), null, sortByNodeId);
+    }
+
+    /**
+     * Streaming form of {@link #getLabelValues}, see {@link #streamGroupedValues}.
+     * Call {@link #getFolderRootNodeId} first to fail before a response is started.
+     */
+    @Transactional
+    public void streamLabelValues(Long rootNodeId, Long groupByNodeId, List<Long> nodeIds, Long sortByNodeId,
+                                  Long afterRootId, Integer limit, Consumer<JsonRow> rows) {
+        streamGroupedValues(rootNodeId, labelNodeIds(groupByNodeId, nodeIds, sortByNodeId), sortByNodeId, afterRootId, limit, rows);
+    }
+
+    @Transactional
+    public Long getFolderRootNodeId(Long folderId) {
         FolderEntity folder = FolderEntity.findById(folderId);
         if (folder == null) {
             throw new  NotFoundException("Folder not found: " + folderId);
         }
-        Long rootNodeId=folder.group.root.id;
+        return folder.group.root.id;
+    }
+
+    // groupByNodeId and sortByNodeId are always included in every row regardless of nodeIds
+    private static List<Long> labelNodeIds(Long groupByNodeId, List<Long> nodeIds, Long sortByNodeId) {
         List<Long> filterNodeIds = new ArrayList<>();
         if(nodeIds != null ){filterNodeIds.addAll(nodeIds);}
         if(groupByNodeId != null){
@@ -923,64 +1373,221 @@ public class ValueService implements ValueServiceInterface {
         if(sortByNodeId != null){
             filterNodeIds.add(sortByNodeId);
         }
-        return getGroupedValues(rootNodeId, null, filterNodeIds.isEmpty() ? null : filterNodeIds, null, sortByNodeId);
-
+        return filterNodeIds.isEmpty() ? null : filterNodeIds;
     }
 
 
-    @Transactional
+    /**
+     * Deletes the values of {@code node} below {@code root} whose parents are all {@code root} or
+     * deleted with them. Values of other nodes are kept, and so is {@code root}.
+     *
+     * @return the number of values deleted
+     */
     public int deleteDescendantValues(ValueEntity root, NodeEntity node){
-        List<ValueEntity> descendants = getDescendantValues(root,node);
-        Set<Long> deletionSet = new HashSet<>();
-        deletionSet.add(root.id);
-        descendants.forEach(d -> deletionSet.add(d.id));
-        descendants = KahnDagSort.sort(descendants,v->v.getSources()).reversed();
-        int deleted = 0;
-        for(ValueEntity v : descendants){
-            if(!hasExternalParent(v, deletionSet)){
-                deleteValueAndEdges(v.id);
-                deleted++;
-            }
-        }
-        return deleted;
+        return deleteValues(
+                new DeletionStep("INSERT INTO value_doomed (id, seed) VALUES (?, " + DOOMED_ANCHOR + ")", root.id),
+                new DeletionStep(inRootPartition("""
+                        WITH RECURSIVE descendants (id) AS (
+                            SELECT ve.child_id FROM value_edge ve WHERE ve.parent_id = ? IN_PARTITION
+                            UNION
+                            SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.id IN_PARTITION
+                        )
+                        INSERT INTO value_doomed (id, seed)
+                        SELECT v.id, 0 FROM value v JOIN descendants d ON v.id = d.id WHERE v.node_id = ?
+                        """, root), root.id, node.id));
     }
 
-    @Transactional
+    /**
+     * Deletes {@code root} and every descendant whose parents are all deleted with it. Uploads
+     * are not purged.
+     *
+     * @return the number of values deleted
+     */
     public int purge(ValueEntity root){
         if(root.node instanceof RootNode){
             return 0;//don't want to support deleting uploads just yet
         }
-        List<ValueEntity> descendants = getDescendantValues(root);
-        Set<Long> purgeSet = new HashSet<>();
-        purgeSet.add(root.id);
-        descendants.forEach(d -> purgeSet.add(d.id));
-        descendants = KahnDagSort.sort(descendants,v->v.getSources()).reversed();
+        return deleteCascading(List.of(root.id), List.of());
+    }
+
+    // values deleted per statement, and per transaction when the deletion is not part of a caller's transaction
+    private static final int DELETE_CHUNK = 500;
+    // value_doomed.seed: 0 is deleted if all its parents are, a seed is always deleted and an anchor never but counts as a deleted parent
+    private static final int DOOMED_SEED = 1;
+    private static final int DOOMED_ANCHOR = 2;
+
+    /** a statement filling {@code value_doomed}, with its long parameters */
+    private record DeletionStep(String sql, long... parameters) {}
+
+    /**
+     * Deletes the values with {@code valueIds} and the values of {@code nodeIds} (the seeds)
+     * together with every descendant whose parents are all deleted.
+     */
+    private int deleteCascading(Collection<Long> valueIds, Collection<Long> nodeIds){
+        List<DeletionStep> steps = new ArrayList<>();
+        if(!valueIds.isEmpty()){
+            steps.add(new DeletionStep("INSERT INTO value_doomed (id, seed) SELECT id, " + DOOMED_SEED
+                    + " FROM value WHERE id IN (" + placeholders(valueIds.size()) + ")", toLongs(valueIds)));
+        }
+        if(!nodeIds.isEmpty()){
+            steps.add(new DeletionStep("INSERT INTO value_doomed (id, seed) SELECT id, " + DOOMED_SEED
+                    + " FROM value WHERE node_id IN (" + placeholders(nodeIds.size()) + ")", toLongs(nodeIds)));
+        }
+        steps.add(new DeletionStep("""
+                WITH RECURSIVE descendants (id) AS (
+                    SELECT ve.child_id FROM value_edge ve JOIN value_doomed s ON ve.parent_id = s.id
+                    UNION
+                    SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.id
+                )
+                INSERT INTO value_doomed (id, seed)
+                SELECT id, 0 FROM descendants WHERE id NOT IN (SELECT id FROM value_doomed)
+                """));
+        return deleteValues(steps.toArray(DeletionStep[]::new));
+    }
+
+    /**
+     * Set based deletion of values. The candidates are collected by {@code steps} into the
+     * temporary table {@code value_doomed}, candidates with a parent that is not deleted are
+     * dropped until none is left, and the rest are deleted {@value #DELETE_CHUNK} at a time with
+     * their edges, newest first so the children of a value go before it. Called outside of a
+     * transaction, every chunk is committed on its own so the locks are released for the
+     * ingestion running next to a large delete; a caller's transaction deletes all chunks.
+     *
+     * @return the number of values deleted
+     */
+    private int deleteValues(DeletionStep... steps){
+        boolean joined = inTransaction();
+        Callable<long[]> collect = () -> {
+            // the statements below bypass Hibernate, so pending changes of the caller have to be written first
+            em.flush();
+            return em.unwrap(Session.class).doReturningWork(connection -> doomedIds(connection, steps));
+        };
+        long[] ids = call(joined, collect);
         int deleted = 0;
-        for(ValueEntity d : descendants){
-            if(!hasExternalParent(d, purgeSet)){
-                deleteValueAndEdges(d.id);
-                deleted++;
+        for(int from = 0; from < ids.length; from += DELETE_CHUNK){
+            long[] chunk = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + DELETE_CHUNK));
+            deleted += call(joined, () -> deleteChunk(chunk));
+            if(ids.length > DELETE_CHUNK){
+                Log.debugf("Deleted %d of %d values", deleted, ids.length);
             }
         }
-        deleteValueAndEdges(root.id);
-        return 1 + deleted;
+        return deleted;
+    }
+
+    private boolean inTransaction(){
+        try {
+            return tm.getStatus() == Status.STATUS_ACTIVE;
+        } catch (SystemException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private void deleteValueAndEdges(long valueId) {
-        EdgeQueries.deleteParentEdges(em, "value_edge", valueId);
-        EdgeQueries.deleteChildEdges(em, "value_edge", valueId);
-        em.createNativeQuery("DELETE FROM value WHERE id = :id")
-                .setParameter("id", valueId).executeUpdate();
+    private <T> T call(boolean joined, Callable<T> action){
+        if(!joined){
+            return workService.callInNewTransaction(action);
+        }
+        try {
+            return action.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private boolean hasExternalParent(ValueEntity value, Set<Long> deletionSet){
-        List<?> externalParents = em.createNativeQuery(
-            "SELECT 1 FROM value_edge WHERE child_id = :childId AND parent_id NOT IN (:deletionSet)"
-        ).setParameter("childId", value.id)
-         .setParameter("deletionSet", deletionSet)
-         .setMaxResults(1)
-         .getResultList();
-        return !externalParents.isEmpty();
+    private static long[] doomedIds(Connection connection, DeletionStep... steps) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS value_doomed (id BIGINT PRIMARY KEY, seed INTEGER NOT NULL)");
+            statement.executeUpdate("DELETE FROM value_doomed");
+            for(DeletionStep step : steps){
+                try (PreparedStatement ps = connection.prepareStatement(step.sql())) {
+                    for(int i = 0; i < step.parameters().length; i++){
+                        ps.setLong(i + 1, step.parameters()[i]);
+                    }
+                    ps.executeUpdate();
+                }
+            }
+            // each pass drops the candidates whose parent is kept, a chain of kept values takes a pass per level
+            int dropped;
+            do {
+                dropped = statement.executeUpdate("""
+                        DELETE FROM value_doomed WHERE seed = 0 AND EXISTS (
+                            SELECT 1 FROM value_edge ve WHERE ve.child_id = value_doomed.id
+                              AND NOT EXISTS (SELECT 1 FROM value_doomed p WHERE p.id = ve.parent_id)
+                        )
+                        """);
+            } while(dropped > 0);
+            List<Long> ids = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery("SELECT id FROM value_doomed WHERE seed < " + DOOMED_ANCHOR + " ORDER BY id DESC")) {
+                while(rs.next()){
+                    ids.add(rs.getLong(1));
+                }
+            }
+            statement.executeUpdate("DELETE FROM value_doomed");
+            return toLongs(ids);
+        }
+    }
+
+    /**
+     * Deletes one chunk of values with their edges and the view rows of the deleted root values,
+     * updates the folder counters and evicts the deleted values and the cached sources of their
+     * surviving children.
+     */
+    private int deleteChunk(long[] ids){
+        // only uploads and detection values have a folder, and only those are counted in folder_stats
+        Map<List<Long>, Integer> counted = new HashMap<>();
+        Set<Long> orphaned = new HashSet<>();
+        List<Long> deleted = em.unwrap(Session.class).doReturningWork(connection -> {
+            String in = placeholders(ids.length);
+            List<Long> rows = new ArrayList<>();
+            try (PreparedStatement children = connection.prepareStatement("DELETE FROM value_edge WHERE parent_id IN (" + in + ") RETURNING child_id");
+                 PreparedStatement parents = connection.prepareStatement("DELETE FROM value_edge WHERE child_id IN (" + in + ")");
+                 PreparedStatement archived = connection.prepareStatement("DELETE FROM value_archive WHERE value_id IN (" + in + ")");
+                 PreparedStatement viewRows = connection.prepareStatement("DELETE FROM folder_view_row WHERE root_value_id IN (" + in + ")");
+                 PreparedStatement values = connection.prepareStatement("DELETE FROM value WHERE id IN (" + in + ") RETURNING id, folder_id, node_id")) {
+                for(int i = 0; i < ids.length; i++){
+                    children.setLong(i + 1, ids[i]);
+                    parents.setLong(i + 1, ids[i]);
+                    archived.setLong(i + 1, ids[i]);
+                    viewRows.setLong(i + 1, ids[i]);
+                    values.setLong(i + 1, ids[i]);
+                }
+                try (ResultSet rs = children.executeQuery()) {
+                    while(rs.next()){
+                        orphaned.add(rs.getLong(1));
+                    }
+                }
+                parents.executeUpdate();
+                archived.executeUpdate();
+                viewRows.executeUpdate();
+                try (ResultSet rs = values.executeQuery()) {
+                    while(rs.next()){
+                        rows.add(rs.getLong(1));
+                        long folderId = rs.getLong(2);
+                        if(!rs.wasNull()){
+                            counted.merge(List.of(folderId, rs.getLong(3)), 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+            return rows;
+        });
+        counted.forEach((key, count) -> folderStats.valuesDeleted(key.get(0), key.get(1), count));
+        evictValues(deleted);
+        deleted.forEach(orphaned::remove);
+        var cache = em.getEntityManagerFactory().unwrap(SessionFactory.class).getCache();
+        for(Long child : orphaned){
+            cache.evictCollectionData(ValueEntity.class.getName() + ".sources", child);
+        }
+        return deleted.size();
+    }
+
+    private static String placeholders(int count){
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    private static long[] toLongs(Collection<Long> ids){
+        return ids.stream().mapToLong(Long::longValue).toArray();
     }
 
     //TODO getHash(ValueEntity value) to see if a new value is different than the persisted one
@@ -1020,18 +1627,20 @@ public class ValueService implements ValueServiceInterface {
      *
      * Root and detection nodes are excluded as a safety net.
      * Value rows and edges are always preserved for ancestry queries.
+     * Only the nulled values are evicted from the second-level cache.
      *
      * @return the number of values whose data was nulled
      */
     @Transactional
+    @SuppressWarnings("unchecked")
     public int nullifyEphemeralData(long rootValueId) {
-        return em.createNativeQuery("""
+        List<Number> nulled = em.createNativeQuery(inRootPartition("""
             WITH RECURSIVE descendants (v_id) AS (
-                SELECT ve.child_id FROM value_edge ve WHERE ve.parent_id = :rootId
+                SELECT ve.child_id FROM value_edge ve WHERE ve.parent_id = :rootId IN_PARTITION
                 UNION ALL
-                SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.v_id
+                SELECT ve.child_id FROM value_edge ve JOIN descendants d ON ve.parent_id = d.v_id IN_PARTITION
             )
-            UPDATE value SET data = NULL
+            UPDATE value SET data = NULL, blob_hash = NULL
             WHERE id IN (SELECT v_id FROM descendants)
               AND node_id IN (
                 SELECT id FROM node WHERE
@@ -1053,12 +1662,39 @@ public class ValueService implements ValueServiceInterface {
                       AND det.type IN ANALYSIS_NODES
                   )
               )
-              AND data IS NOT NULL
+              AND (data IS NOT NULL OR blob_hash IS NOT NULL)
+            RETURNING id
             """.replaceAll("ROOT_OR_ANALYSIS_NODES",NodeService.ROOT_OR_ANALYSIS_NODES)
-                .replaceAll("ANALYSIS_NODES",NodeService.ANALYSIS_NODES)
+                .replaceAll("ANALYSIS_NODES",NodeService.ANALYSIS_NODES), rootValueId)
             )
             .setParameter("rootId", rootValueId)
-            .executeUpdate();
+            .getResultList();
+        evictValues(nulled);
+        return nulled.size();
+    }
+
+    /**
+     * Replaces {@code IN_PARTITION} in {@code sql}, a walk over the {@code value_edge} rows aliased
+     * {@code ve} below {@code root}, with the condition keeping it in the partition of the root's
+     * folder, see {@link DatabaseEngine#inPartition}. All descendants of an upload share its partition.
+     */
+    private String inRootPartition(String sql, ValueEntity root) {
+        return sql.replace(" IN_PARTITION", db.inPartition("ve", root == null ? null : root.rootFolderId));
+    }
+
+    private String inRootPartition(String sql, long rootValueId) {
+        return inRootPartition(sql, db.isPartitioned() ? em.find(ValueEntity.class, rootValueId) : null);
+    }
+
+    /**
+     * Evicts the given values from the second-level cache after their rows were changed with
+     * native SQL, leaving the rest of the ValueEntity region warm for concurrent work.
+     */
+    void evictValues(Collection<? extends Number> ids) {
+        var cache = em.getEntityManagerFactory().getCache();
+        for (Number id : ids) {
+            cache.evict(ValueEntity.class, id.longValue());
+        }
     }
 
     /**
@@ -1073,6 +1709,7 @@ public class ValueService implements ValueServiceInterface {
      */
     @Transactional
     public int markAutoEphemeral(long groupId) {
+        graphs.changed();
         return em.createNativeQuery("""
             UPDATE node SET ephemeral = 'DISCARD'
             WHERE group_id = :groupId
@@ -1093,17 +1730,22 @@ public class ValueService implements ValueServiceInterface {
     /**
      * Nulls out all existing value data for a specific node.
      * Called when a user explicitly sets ephemeral to DISCARD on a node.
+     * Only the nulled values are evicted from the second-level cache.
      *
      * @return the number of values whose data was nulled
      */
     @Transactional
+    @SuppressWarnings("unchecked")
     public int nullifyNodeData(long nodeId) {
-        return em.createNativeQuery("""
-            UPDATE value SET data = NULL
-            WHERE node_id = :nodeId AND data IS NOT NULL
+        List<Number> nulled = em.createNativeQuery("""
+            UPDATE value SET data = NULL, blob_hash = NULL
+            WHERE node_id = :nodeId AND (data IS NOT NULL OR blob_hash IS NOT NULL)
+            RETURNING id
             """)
             .setParameter("nodeId", nodeId)
-            .executeUpdate();
+            .getResultList();
+        evictValues(nulled);
+        return nulled.size();
     }
 
 }
@@ -10,27 +10,81 @@ import io.hyperfoil.tools.h5m.entity.NodeEntity;
 import io.hyperfoil.tools.h5m.entity.ViewComponentEntity;
 import io.hyperfoil.tools.h5m.entity.ViewEntity;
 import io.hyperfoil.tools.h5m.entity.mapper.ApiMapper;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
 import jakarta.transaction.Transactional;
 import jakarta.ws.rs.NotFoundException;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import org.hibernate.Session;
 
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+/**
+ * Manages folder views. View data is served from {@code folder_view_row}, one materialized row per
+ * (view, root value), instead of aggregating the folder's whole value history on every read. The
+ * rows are maintained on the write path, reads only select them:
+ * <ul>
+ *     <li>{@link ProcessingService} calls {@link #refreshRows} when an upload or a recalculation
+ *     of a view's node ends, failed or not, after the ephemeral data was nulled.</li>
+ *     <li>creating or changing a view, or deleting or nulling the values of a node it shows
+ *     ({@link #rebuildViews}), marks all of its rows as pending; deleting a root value deletes
+ *     its rows ({@link ValueService}).</li>
+ *     <li>pending rows are materialized in the background after the change commits, a batch of
+ *     uploads per transaction, so a request never reads the folder's history. Views without
+ *     any row, e.g. views created before the rows existed, are marked pending at startup.</li>
+ *     <li>reads serve the materialized rows and compute the pending ones, only as many as
+ *     the page needs.</li>
+ * </ul>
+ * The background batch and the changes of a view lock the view's row, so a batch never
+ * materializes rows of components that were changed meanwhile.
+ */
 @ApplicationScoped
 public class ViewService implements ViewServiceInterface {
 
+    // root values per aggregation query / upsert batch
+    private static final int ROOTS_PER_BATCH = 500;
+
     @Inject
     EntityManager em;
 
+    @Inject
+    DatabaseEngine db;
+
     @Inject
     ApiMapper apiMapper;
 
     @Inject
     ValueService valueService;
 
+    @Inject
+    TransactionSynchronizationRegistry registry;
+
+    private ExecutorService builder;
+
     @Override
     @Transactional
     public List<View> getViews(long folderId) {
@@ -79,13 +133,15 @@ public class ViewService implements ViewServiceInterface {
 
         entity.persist();
         folder.views.add(entity);
+        schedule(entity);
         return apiMapper.toView(entity);
     }
 
     @Override
     @Transactional
     public View updateView(Long viewId, View view) {
-        ViewEntity entity = ViewEntity.findById(viewId);
+        // waits for a batch materializing the old components
+        ViewEntity entity = em.find(ViewEntity.class, viewId, LockModeType.PESSIMISTIC_WRITE);
         if (entity == null) {
             throw new NotFoundException("View not found: " + viewId);
         }
@@ -118,6 +174,9 @@ public class ViewService implements ViewServiceInterface {
         }
 
         entity.persist();
+        // components changed, the rows of the old ones go
+        deleteRows(viewId);
+        schedule(entity);
         return apiMapper.toView(entity);
     }
 
@@ -131,32 +190,349 @@ public class ViewService implements ViewServiceInterface {
         if ("Default".equals(entity.name)) {
             throw new IllegalArgumentException("Cannot delete the Default view");
         }
+        deleteRows(viewId);
         entity.delete();
     }
 
     @Override
     @Transactional
     public List<JqValue> getViewData(long folderId, Long viewId) {
+        List<JqValue> rows = new ArrayList<>();
+        if (prepareViewData(folderId, viewId)) {
+            streamViewData(viewId, null, null, row -> rows.add(JqValues.parse(row.json())));
+        }
+        return rows;
+    }
+
+    /**
+     * Checks that the view and folder exist, so {@link #streamViewData} can be started without
+     * failing half way through a response.
+     *
+     * @return false if the view has no components and therefore no data
+     */
+    @Transactional
+    public boolean prepareViewData(long folderId, Long viewId) {
         ViewEntity view = em.createQuery(
             "SELECT v FROM folder_view v LEFT JOIN FETCH v.components c LEFT JOIN FETCH c.node WHERE v.id = :id",
             ViewEntity.class
-        ).setParameter("id", viewId).getSingleResult();
+        ).setParameter("id", viewId).getResultStream().findFirst().orElse(null);
         if (view == null) {
             throw new NotFoundException("View not found: " + viewId);
         }
+        findFolder(folderId);
+        return !view.components.isEmpty();
+    }
 
-        FolderEntity folder = findFolder(folderId);
-        Long rootNodeId = folder.group.root.id;
+    /**
+     * Passes the rows of a view to {@code rows} in upload order as they are read. Rows that are
+     * still pending are computed, without materializing them.
+     *
+     * @param afterRootId keyset cursor: only rows of root values with a greater ID (null for the first page)
+     * @param limit maximum number of rows, null for all of them
+     */
+    @Transactional
+    public void streamViewData(Long viewId, Long afterRootId, Integer limit, Consumer<ValueService.JsonRow> rows) {
+        ViewEntity view = ViewEntity.findById(viewId);
+        if (view == null) {
+            return;
+        }
+        Long pendingAfter = view.rowsPendingAfter;
+        // the join skips rows of root values deleted since they were materialized
+        var query = em.unwrap(Session.class).createNativeQuery("""
+                SELECT r.root_value_id, r.data FROM folder_view_row r JOIN value v ON v.id = r.root_value_id
+                WHERE r.view_id = :viewId AND r.data IS NOT NULL AFTER_ROOT PENDING
+                ORDER BY r.root_value_id LIMIT_ROWS
+                """
+                .replace("AFTER_ROOT", afterRootId != null ? "AND r.root_value_id > :afterRootId" : "")
+                .replace("PENDING", pendingAfter != null ? "AND r.root_value_id <= :pendingAfter" : "")
+                .replace("LIMIT_ROWS", limit != null ? "LIMIT :limit" : ""), Object[].class)
+                .setParameter("viewId", viewId);
+        if (afterRootId != null) query.setParameter("afterRootId", afterRootId);
+        if (pendingAfter != null) query.setParameter("pendingAfter", pendingAfter);
+        if (limit != null) query.setParameter("limit", limit);
+        int served = 0;
+        try (Stream<Object[]> stream = query.setFetchSize(ROOTS_PER_BATCH).getResultStream()) {
+            for (Object[] row : (Iterable<Object[]>) stream::iterator) {
+                rows.accept(new ValueService.JsonRow(((Number) row[0]).longValue(), (String) row[1]));
+                served++;
+            }
+        }
+        if (pendingAfter == null || (limit != null && served >= limit)) {
+            return;
+        }
+        List<Long> nodeIds = nodeIds(view);
+        Long rootNodeId = rootNodeId(view);
+        if (nodeIds.isEmpty() || rootNodeId == null) {
+            return;
+        }
+        long after = afterRootId != null ? Math.max(afterRootId, pendingAfter) : pendingAfter;
+        while (true) {
+            List<Long> roots = rootsAfter(rootNodeId, after);
+            Map<Long, String> computed = compute(nodeIds, roots);
+            for (Long rootId : roots) {
+                String json = computed.get(rootId);
+                if (json != null) {
+                    rows.accept(new ValueService.JsonRow(rootId, json));
+                    if (limit != null && ++served >= limit) {
+                        return;
+                    }
+                }
+            }
+            if (roots.size() < ROOTS_PER_BATCH) {
+                return;
+            }
+            after = roots.getLast();
+        }
+    }
+
+    /**
+     * Rebuilds the rows of {@code rootValueIds} in the views of their folders. If {@code nodeId}
+     * is set, only views with a component that is that node or depends on it are refreshed.
+     */
+    @Transactional
+    public void refreshRows(Collection<Long> rootValueIds, Long nodeId) {
+        if (rootValueIds.isEmpty()) {
+            return;
+        }
+        NodeEntity changed = nodeId != null ? NodeEntity.findById(nodeId) : null;
+        List<ViewEntity> views = em.createQuery("""
+                SELECT DISTINCT v FROM folder_view v JOIN FETCH v.components c JOIN FETCH c.node
+                WHERE v.folder.id IN (SELECT val.folder.id FROM value val WHERE val.id IN :ids)
+                """, ViewEntity.class)
+                .setParameter("ids", rootValueIds)
+                .getResultList();
+        List<Long> roots = List.copyOf(rootValueIds);
+        for (ViewEntity view : views) {
+            if (changed != null && view.components.stream()
+                    .noneMatch(c -> c.node.id.equals(nodeId) || c.node.dependsOn(changed))) {
+                continue;
+            }
+            materialize(view.id, view.components.stream().map(c -> c.node.id).toList(), roots);
+        }
+    }
+
+    /**
+     * Rebuilds all rows of the views with a component on one of {@code nodeIds}, after the values
+     * of those nodes were deleted or nulled.
+     */
+    @Transactional
+    public void rebuildViews(Collection<Long> nodeIds) {
+        if (nodeIds.isEmpty()) {
+            return;
+        }
+        em.createQuery("""
+                SELECT v FROM folder_view v
+                WHERE v.id IN (SELECT vc.view.id FROM folder_view_component vc WHERE vc.node.id IN :nodeIds)
+                """, ViewEntity.class)
+                .setParameter("nodeIds", nodeIds)
+                .getResultList()
+                .forEach(view -> {
+                    // waits for a batch materializing the old data
+                    em.lock(view, LockModeType.PESSIMISTIC_WRITE);
+                    schedule(view);
+                });
+    }
+
+    /**
+     * Marks the views that have no rows at all, views created before the rows were maintained
+     * here or whose folder was empty until then, and starts materializing the pending rows.
+     */
+    void onStart(@Observes @Priority(3) StartupEvent ev) {
+        QuarkusTransaction.requiringNew().run(() -> em.createQuery("""
+                UPDATE folder_view v SET v.rowsPendingAfter = 0
+                WHERE v.rowsPendingAfter IS NULL AND v.components IS NOT EMPTY
+                  AND NOT EXISTS (SELECT 1 FROM folder_view_row r WHERE r.viewId = v.id)
+                """).executeUpdate());
+        builder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "h5m-view-rows");
+            thread.setDaemon(true);
+            return thread;
+        });
+        builder.execute(this::buildPending);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (builder != null) {
+            builder.shutdownNow();
+        }
+    }
+
+    /**
+     * Marks all rows of {@code view} as pending and materializes them once the transaction commits.
+     */
+    private void schedule(ViewEntity view) {
+        view.rowsPendingAfter = 0L;
+        if (registry.getResource(ViewService.class) != null) {
+            return;
+        }
+        registry.putResource(ViewService.class, Boolean.TRUE);
+        registry.registerInterposedSynchronization(new Synchronization() {
+            @Override public void beforeCompletion() {}
+            @Override public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED && builder != null) {
+                    builder.execute(ViewService.this::buildPending);
+                }
+            }
+        });
+    }
+
+    /**
+     * Materializes the pending rows of all views, a batch of uploads per transaction.
+     */
+    void buildPending() {
+        try {
+            while (QuarkusTransaction.requiringNew().call(this::buildBatch)) {
+                // next batch
+            }
+        } catch (Throwable t) {
+            // the next change of a view or the next start carries on
+            Log.errorf(t, "Materializing view rows failed");
+        }
+    }
 
-        List<Long> nodeIds = view.components.stream()
-            .map(c -> c.node.id)
-            .toList();
+    private boolean buildBatch() {
+        List<ViewEntity> pending = em.createQuery(
+                "SELECT v FROM folder_view v WHERE v.rowsPendingAfter IS NOT NULL ORDER BY v.id", ViewEntity.class)
+                .setMaxResults(1)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+        if (pending.isEmpty()) {
+            return false;
+        }
+        ViewEntity view = pending.getFirst();
+        List<Long> nodeIds = nodeIds(view);
+        Long rootNodeId = rootNodeId(view);
+        List<Long> roots = nodeIds.isEmpty() || rootNodeId == null ? List.of() : rootsAfter(rootNodeId, view.rowsPendingAfter);
+        materialize(view.id, nodeIds, roots);
+        view.rowsPendingAfter = roots.size() < ROOTS_PER_BATCH ? null : roots.getLast();
+        return true;
+    }
 
+    private static List<Long> nodeIds(ViewEntity view) {
+        return view.components.stream().map(c -> c.node.id).toList();
+    }
+
+    private static Long rootNodeId(ViewEntity view) {
+        return view.folder == null || view.folder.group == null || view.folder.group.root == null
+                ? null : view.folder.group.root.id;
+    }
+
+    /**
+     * The next {@link #ROOTS_PER_BATCH} uploads with an ID greater than {@code after}.
+     */
+    private List<Long> rootsAfter(long rootNodeId, long after) {
+        @SuppressWarnings("unchecked")
+        List<Number> roots = em.createNativeQuery("SELECT id FROM value WHERE node_id = :rootNodeId AND id > :after ORDER BY id LIMIT :limit")
+                .setParameter("rootNodeId", rootNodeId)
+                .setParameter("after", after)
+                .setParameter("limit", ROOTS_PER_BATCH)
+                .getResultList();
+        return roots.stream().map(Number::longValue).toList();
+    }
+
+    /**
+     * Computes the rows of {@code rootValueIds}, at most {@link #ROOTS_PER_BATCH}, for a view's
+     * nodes. Root values without values for the nodes have no entry or a {@code null} one.
+     */
+    private Map<Long, String> compute(List<Long> nodeIds, List<Long> rootValueIds) {
+        Map<Long, String> rows = new HashMap<>();
+        if (rootValueIds.isEmpty()) {
+            return rows;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> found = em.createNativeQuery(groupedByRootSql())
+                .setParameter("rootIds", rootValueIds)
+                .setParameter("nodeIds", nodeIds)
+                .getResultList();
+        for (Object[] row : found) {
+            rows.put(((Number) row[0]).longValue(), row[1] == null ? null : row[1].toString());
+        }
+        return rows;
+    }
+
+    /**
+     * Computes the rows of {@code rootValueIds} for a view and upserts them. Root values without
+     * values for the view's nodes get a {@code null} row, which is not served.
+     */
+    void materialize(long viewId, List<Long> nodeIds, List<Long> rootValueIds) {
         if (nodeIds.isEmpty()) {
-            return List.of();
+            return;
+        }
+        for (int start = 0; start < rootValueIds.size(); start += ROOTS_PER_BATCH) {
+            List<Long> batch = rootValueIds.subList(start, Math.min(rootValueIds.size(), start + ROOTS_PER_BATCH));
+            Map<Long, String> rows = compute(nodeIds, batch);
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement("""
+                        INSERT INTO folder_view_row (view_id, root_value_id, data, updated_at) VALUES (?,?,?,?)
+                        ON CONFLICT (view_id, root_value_id) DO UPDATE SET data = excluded.data, updated_at = excluded.updated_at
+                        """)) {
+                    for (Long rootId : batch) {
+                        String data = rows.get(rootId);
+                        ps.setLong(1, viewId);
+                        ps.setLong(2, rootId);
+                        if (data == null) {
+                            ps.setNull(3, Types.VARCHAR);
+                        } else {
+                            ps.setString(3, data);
+                        }
+                        ps.setTimestamp(4, now);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
         }
+    }
+
+    /**
+     * Same aggregation as {@link ValueService#getGroupedValues(Long, List)} but limited to the
+     * given root values and returning the root value ID with each row.
+     */
+    private String groupedByRootSql() {
+        return switch (db.kind()) {
+            case SQLITE ->
+                """
+                with recursive tree(id,node_id,root_id,idx,data) as (
+                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,CAST(VALUE_DATA AS TEXT) as data
+                        from value_edge ve join value v on ve.child_id = v.id
+                        where ve.parent_id in (:rootIds)
+                    union
+                    select v.id,v.node_id,t.root_id,v.idx,CAST(VALUE_DATA AS TEXT) as data
+                        from value v join value_edge ve on v.id = ve.child_id join tree t on ve.parent_id = t.id
+                ),
+                bynode as (
+                    select node_id,root_id,json_group_array(json(data)) as data
+                        from tree where node_id in (:nodeIds) group by node_id,root_id order by idx
+                )
+                select b.root_id, json_group_object(n.name,json((case when json_array_length(b.data) > 1 then b.data else b.data->0 end))) as data
+                    from bynode b join node n on b.node_id = n.id group by b.root_id
+                """.replace("VALUE_DATA", db.valueData("v"));
+            case POSTGRESQL ->
+                """
+                with recursive tree(id,node_id,root_id,idx,data) as (
+                    select v.id,v.node_id,ve.parent_id as root_id,v.idx,DATA_JSONB as data
+                        from value_edge ve join value v on ve.child_id = v.id
+                        where ve.parent_id in (:rootIds)
+                    union
+                    select v.id,v.node_id,t.root_id,v.idx,DATA_JSONB as data
+                        from value v join value_edge ve on v.id = ve.child_id join tree t on ve.parent_id = t.id
+                ),
+                bynode as (
+                    select node_id,root_id,jsonb_agg(to_jsonb(data)) as data
+                        from tree where node_id in (:nodeIds) group by node_id,root_id,idx order by idx
+                )
+                select b.root_id, jsonb_object_agg(n.name,to_jsonb((case when jsonb_array_length(b.data) > 1 then b.data else b.data->0 end)))::text as data
+                    from bynode b join node n on b.node_id = n.id group by b.root_id
+                """.replace("DATA_JSONB", db.jsonbData(db.valueData("v")));
+        };
+    }
 
-        return valueService.getGroupedValues(rootNodeId, nodeIds);
+    private void deleteRows(long viewId) {
+        em.createNativeQuery("DELETE FROM folder_view_row WHERE view_id = :viewId")
+                .setParameter("viewId", viewId)
+                .executeUpdate();
     }
 
     private FolderEntity findFolder(long folderId) {
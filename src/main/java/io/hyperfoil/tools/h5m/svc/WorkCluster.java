@@ -0,0 +1,302 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.WorkJournalEntity;
+import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.hyperfoil.tools.h5m.provided.DatabaseEngine;
+import io.hyperfoil.tools.h5m.queue.WorkQueue;
+import io.hyperfoil.tools.h5m.queue.WorkQueueExecutor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import io.quarkus.logging.Log;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster mode, for several instances sharing one PostgreSQL database. Work is not queued in the
+ * memory of the instance creating it but left in the {@link WorkJournal}, where the members of
+ * the cluster {@link WorkJournal#claim claim} the rows of whole root values and run them on an
+ * executor of their own. Cascade work stays with the member that claimed its root value, so the
+ * queue of that member keeps the dependency order within an upload. Members track the root values
+ * they claimed, and the one finishing the last work of an upload, or of a folder being
+ * recalculated, completes its processing record; the status of work running elsewhere is read
+ * from the processing records.
+ * <p>
+ * Members heartbeat in {@code cluster_member}, the rows claimed by a member without a heartbeat
+ * for {@code h5m.cluster.member-timeout} are released for the others. Work that fails is released
+ * as well ({@link #failed}), until it failed {@code h5m.cluster.max-attempts} times: it is then
+ * dropped from the journal and its processing record completes with the error. An instance runs
+ * {@code h5m.cluster.executors} members, so one JVM can exercise the claiming as well. SQLite has
+ * a single writer and no row locks, cluster mode is PostgreSQL only.
+ */
+@ApplicationScoped
+public class WorkCluster {
+
+    private record Member(String id, WorkQueueExecutor executor, AtomicLong claimed) {}
+
+    @ConfigProperty(name = "h5m.cluster.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "h5m.cluster.executors", defaultValue = "1")
+    int executors;
+
+    @ConfigProperty(name = "h5m.cluster.poll-interval", defaultValue = "PT0.5S")
+    Duration pollInterval;
+
+    @ConfigProperty(name = "h5m.cluster.claim-batch", defaultValue = "64")
+    int claimBatch;
+
+    @ConfigProperty(name = "h5m.cluster.member-timeout", defaultValue = "PT30S")
+    Duration memberTimeout;
+
+    @ConfigProperty(name = "h5m.cluster.max-attempts", defaultValue = "3")
+    int maxAttempts;
+
+    @ConfigProperty(name = "h5m.worker.core", defaultValue = "1")
+    int corePoolSize;
+
+    @ConfigProperty(name = "h5m.worker.maxPoolSize", defaultValue = "50")
+    int maxPoolSize;
+
+    @ConfigProperty(name = "h5m.worker.keepalive", defaultValue = "PT60S")
+    Duration keepAlive;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    DatabaseEngine db;
+
+    @Inject
+    WorkJournal journal;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    ProcessingService processingService;
+
+    @Inject
+    MeterRegistry registry;
+
+    private volatile Map<String, Member> members = Map.of();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Whether work is distributed through the journal instead of queued where it is created.
+     */
+    public boolean isActive() {
+        return enabled && !db.isSQLite() && journal.isEnabled();
+    }
+
+    void onStart(@Observes @Priority(6) StartupEvent ev) {
+        if (!enabled) {
+            return;
+        }
+        if (!isActive()) {
+            Log.warn("h5m.cluster.enabled needs PostgreSQL and the work journal, running as a single instance");
+            return;
+        }
+        String instance = UUID.randomUUID().toString();
+        Map<String, Member> started = new LinkedHashMap<>();
+        for (int i = 0; i < executors; i++) {
+            String id = instance + "-" + i;
+            WorkQueueExecutor executor = new WorkQueueExecutor(corePoolSize, maxPoolSize, keepAlive.toSeconds(), TimeUnit.SECONDS, new WorkQueue());
+            executor.allowCoreThreadTimeOut(false);
+            executor.prestartAllCoreThreads();
+            new ExecutorServiceMetrics(executor, "h5mWorkExecutor", List.of(Tag.of("member", id))).bindTo(registry);
+            started.put(id, new Member(id, executor, new AtomicLong()));
+        }
+        members = Collections.unmodifiableMap(started);
+        Log.infof("Joining the work cluster as %s with %d members", instance, executors);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "h5m-work-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, pollInterval.toMillis(), pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            for (Member member : members.values()) {
+                member.executor().shutdownNow();
+            }
+            for (Member member : members.values()) {
+                member.executor().awaitTermination(10, TimeUnit.SECONDS);
+            }
+            // hand the unfinished work over without waiting for the member timeout
+            QuarkusTransaction.requiringNew().run(() -> {
+                int released = journal.release(members.keySet());
+                em.unwrap(Session.class).doWork(connection -> {
+                    try (PreparedStatement ps = connection.prepareStatement("DELETE FROM cluster_member WHERE id = ?")) {
+                        for (String id : members.keySet()) {
+                            ps.setString(1, id);
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                });
+                Log.infof("Left the work cluster, released %d work journal entries", released);
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.warnf(e, "Leaving the work cluster failed, the claims are released after %s", memberTimeout);
+        }
+    }
+
+    /**
+     * Heartbeats, releases the claims of members that stopped and lets every member with room in
+     * its queue claim work. Runs every {@code h5m.cluster.poll-interval}.
+     */
+    void poll() {
+        try {
+            heartbeat();
+            for (Member member : members.values()) {
+                if (member.executor().getWorkQueue().size() < claimBatch) {
+                    claim(member);
+                }
+            }
+        } catch (Throwable t) {
+            Log.errorf(t, "Claiming work from the work journal failed");
+        }
+    }
+
+    private void heartbeat() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement("""
+                        INSERT INTO cluster_member (id, heartbeat_at) VALUES (?, LOCALTIMESTAMP)
+                        ON CONFLICT (id) DO UPDATE SET heartbeat_at = excluded.heartbeat_at
+                        """)) {
+                    for (String id : members.keySet()) {
+                        ps.setString(1, id);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
+            int released = journal.releaseAbandoned(memberTimeout);
+            if (released > 0) {
+                Log.infof("Released %d work journal entries claimed by members without a heartbeat", released);
+            }
+        });
+    }
+
+    private void claim(Member member) {
+        Set<Long> rootValueIds = new LinkedHashSet<>();
+        List<Work> works = QuarkusTransaction.requiringNew().call(() -> {
+            List<WorkJournalEntity> rows = journal.claim(member.id(), claimBatch);
+            rows.forEach(row -> rootValueIds.add(row.rootValueId));
+            return journal.resume(rows);
+        });
+        if (rootValueIds.isEmpty()) {
+            return;
+        }
+        member.claimed().addAndGet(works.size());
+        Log.debugf("Member %s claimed %d work items of %d root values", member.id(), works.size(), rootValueIds.size());
+        Set<Long> withWork = new LinkedHashSet<>();
+        for (Work work : works) {
+            withWork.add(work.getSourceValueIds()[0]);
+        }
+        processingService.trackClaimed(withWork);
+        try {
+            workService.create(works);
+        } catch (RuntimeException e) {
+            works.forEach(work -> failed(work, e));
+            return;
+        }
+        for (Long rootValueId : rootValueIds) {
+            if (!withWork.contains(rootValueId)) {
+                // only rows of deleted nodes, which resume removed
+                processingService.completeClaimed(rootValueId, null);
+            }
+        }
+    }
+
+    /**
+     * Records a failed attempt at the claimed {@code work}: its journal row is released for another
+     * claim, by any member, or dropped once it failed {@code h5m.cluster.max-attempts} times, and
+     * the error is then recorded on the processing of its root value, which completes as failed
+     * unless work of it is still outstanding.
+     */
+    void failed(Work work, Throwable error) {
+        String message = error.getMessage() == null ? error.toString() : error.getMessage();
+        long rootValueId = work.getSourceValueIds()[0];
+        boolean dropped;
+        try {
+            dropped = QuarkusTransaction.requiringNew().call(() -> {
+                if (!journal.failed(work, maxAttempts)) {
+                    Log.warnf(error, "%s failed, released for another attempt", work);
+                    return false;
+                }
+                Log.errorf(error, "Dropped %s after %d failed attempts", work, maxAttempts);
+                processingService.recordFailure(rootValueId, work + ": " + message);
+                return true;
+            });
+        } catch (RuntimeException e) {
+            Log.errorf(e, "Recording the failure of %s failed, its row stays claimed until the member stops", work);
+            return;
+        }
+        if (dropped) {
+            // the tracker of the root value may have completed before the row was dropped
+            processingService.completeClaimed(rootValueId, null);
+        }
+    }
+
+    /**
+     * The queue of the member {@code id} of this instance, {@code null} for other members.
+     */
+    WorkQueue queueOf(String id) {
+        Member member = members.get(id);
+        return member == null ? null : member.executor().getWorkQueue();
+    }
+
+    /**
+     * The members run by this instance.
+     */
+    Set<String> members() {
+        return members.keySet();
+    }
+
+    /**
+     * The number of work items the member {@code id} of this instance claimed from the journal.
+     */
+    long claimed(String id) {
+        Member member = members.get(id);
+        return member == null ? 0 : member.claimed().get();
+    }
+
+    public boolean isIdle() {
+        return members.values().stream().allMatch(member -> member.executor().getWorkQueue().isIdle());
+    }
+}
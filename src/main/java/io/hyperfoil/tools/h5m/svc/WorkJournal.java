@@ -0,0 +1,324 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.WorkJournalEntity;
+import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.quarkus.logging.Log;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the unfinished frontier of the work queue in {@code work_journal}, so recovery after a
+ * crash resumes the work that was queued but not done instead of re-running whole uploads and
+ * recalculations. Work is recorded in the transaction that queues it, which is the one that
+ * stored the values it is calculated from, and forgotten in the transaction that stores its
+ * results; a row therefore exists exactly as long as its work is outstanding.
+ * <p>
+ * Rows are keyed by node and source values like the duplicates of the queue, so queuing the same
+ * work twice records it once. Work without a single persisted active node or without source
+ * values is not recorded, the uploads and recalculations it belongs to are re-run from the
+ * start. The rows are written over JDBC: a native DML query would evict the second-level cache.
+ * <p>
+ * In cluster mode the journal is also the shared queue: {@link WorkCluster} members {@link #claim}
+ * the rows of whole root values and cascade work is recorded as claimed by the member that
+ * queued it.
+ */
+@ApplicationScoped
+public class WorkJournal {
+
+    @ConfigProperty(name = "h5m.work-journal.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @Inject
+    EntityManager em;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records {@code works} in the current transaction.
+     */
+    void queued(Collection<Work> works) {
+        if (!enabled) {
+            return;
+        }
+        List<Work> recorded = works.stream().filter(WorkJournal::isRecorded).toList();
+        if (recorded.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    INSERT INTO work_journal (node_id, value_ids, root_value_id, cascades, dispatches, queued_at, claimed_by, claimed_at)
+                    VALUES (?,?,?,?,?,?,?,?)
+                    ON CONFLICT (node_id, value_ids) DO UPDATE SET claimed_by = excluded.claimed_by, claimed_at = excluded.claimed_at
+                    WHERE work_journal.claimed_by IS NULL AND excluded.claimed_by IS NOT NULL
+                    """)) {
+                for (Work work : recorded) {
+                    ps.setLong(1, work.getActiveNodeIds()[0]);
+                    ps.setString(2, valueIds(work.getSourceValueIds()));
+                    ps.setLong(3, work.getSourceValueIds()[0]);
+                    ps.setBoolean(4, work.isCascade());
+                    ps.setBoolean(5, work.isDispatch());
+                    ps.setTimestamp(6, now);
+                    ps.setString(7, work.getClaimedBy());
+                    ps.setTimestamp(8, work.getClaimedBy() == null ? null : now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Forgets {@code work} in the current transaction, so it is gone once the results commit.
+     */
+    void completed(Work work) {
+        if (!records(work)) {
+            return;
+        }
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "DELETE FROM work_journal WHERE node_id = ? AND value_ids = ?")) {
+                ps.setLong(1, work.getActiveNodeIds()[0]);
+                ps.setString(2, valueIds(work.getSourceValueIds()));
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Counts a failed attempt at the claimed {@code work} in a transaction of its own: the row is
+     * released for any member to claim again, or dropped once {@code maxAttempts} attempts failed.
+     *
+     * @return whether the row was dropped
+     */
+    boolean failed(Work work, int maxAttempts) {
+        if (!records(work)) {
+            return false;
+        }
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement release = connection.prepareStatement("""
+                    UPDATE work_journal SET attempts = attempts + 1, claimed_by = NULL, claimed_at = NULL
+                    WHERE node_id = ? AND value_ids = ? AND attempts + 1 < ?
+                    """)) {
+                release.setLong(1, work.getActiveNodeIds()[0]);
+                release.setString(2, valueIds(work.getSourceValueIds()));
+                release.setInt(3, maxAttempts);
+                if (release.executeUpdate() > 0) {
+                    return false;
+                }
+            }
+            try (PreparedStatement drop = connection.prepareStatement(
+                    "DELETE FROM work_journal WHERE node_id = ? AND value_ids = ?")) {
+                drop.setLong(1, work.getActiveNodeIds()[0]);
+                drop.setString(2, valueIds(work.getSourceValueIds()));
+                return drop.executeUpdate() > 0;
+            }
+        });
+    }
+
+    /**
+     * Outstanding work calculated from the upload {@code rootValueId}.
+     */
+    List<WorkJournalEntity> forUpload(long rootValueId) {
+        return WorkJournalEntity.list("rootValueId", rootValueId);
+    }
+
+    /**
+     * Outstanding work calculated from the uploads of the folder {@code folderId}.
+     */
+    List<WorkJournalEntity> forFolder(long folderId) {
+        return em.createQuery("""
+                SELECT j FROM work_journal j
+                WHERE j.rootValueId IN (SELECT v.id FROM value v WHERE v.folder.id = :folderId)
+                """, WorkJournalEntity.class).setParameter("folderId", folderId).getResultList();
+    }
+
+    /**
+     * Outstanding work calculated from the upload {@code rootValueId}, by any member.
+     */
+    long outstanding(long rootValueId) {
+        return WorkJournalEntity.count("rootValueId", rootValueId);
+    }
+
+    /**
+     * Outstanding work calculated from the uploads of the folder {@code folderId}, by any member.
+     */
+    long outstandingInFolder(long folderId) {
+        return em.createQuery("""
+                SELECT count(j) FROM work_journal j
+                WHERE j.rootValueId IN (SELECT v.id FROM value v WHERE v.folder.id = :folderId)
+                """, Long.class).setParameter("folderId", folderId).getSingleResult();
+    }
+
+    /**
+     * Claims the unclaimed rows of the root values first in line for {@code member}, PostgreSQL
+     * only. The candidates are the oldest {@code batch} unclaimed rows, skipping the ones other
+     * members are claiming; a root value is claimed as a whole and only while no other member
+     * holds rows of it, so the work of one upload stays on one member and keeps its dependency
+     * order in that member's queue. The transaction-scoped advisory lock on the root value keeps
+     * two members from claiming the same one at once.
+     *
+     * @return the claimed rows, managed in the current transaction
+     */
+    List<WorkJournalEntity> claim(String member, int batch) {
+        LocalDateTime claimedAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        int claimed = em.unwrap(Session.class).doReturningWork(connection -> {
+            Set<Long> rootValueIds = new LinkedHashSet<>();
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    SELECT root_value_id FROM work_journal WHERE claimed_by IS NULL
+                    ORDER BY queued_at LIMIT ? FOR UPDATE SKIP LOCKED
+                    """)) {
+                ps.setInt(1, batch);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rootValueIds.add(rs.getLong(1));
+                    }
+                }
+            }
+            int rows = 0;
+            try (PreparedStatement lock = connection.prepareStatement("SELECT pg_try_advisory_xact_lock(?)");
+                 PreparedStatement update = connection.prepareStatement("""
+                         UPDATE work_journal SET claimed_by = ?, claimed_at = ?
+                         WHERE (node_id, value_ids) IN (SELECT node_id, value_ids FROM work_journal
+                             WHERE root_value_id = ? AND claimed_by IS NULL FOR UPDATE SKIP LOCKED)
+                         AND NOT EXISTS (SELECT 1 FROM work_journal o
+                             WHERE o.root_value_id = ? AND o.claimed_by IS NOT NULL AND o.claimed_by <> ?)
+                         """)) {
+                for (Long rootValueId : rootValueIds) {
+                    lock.setLong(1, rootValueId);
+                    try (ResultSet rs = lock.executeQuery()) {
+                        if (!rs.next() || !rs.getBoolean(1)) {
+                            continue;
+                        }
+                    }
+                    update.setString(1, member);
+                    update.setTimestamp(2, Timestamp.valueOf(claimedAt));
+                    update.setLong(3, rootValueId);
+                    update.setLong(4, rootValueId);
+                    update.setString(5, member);
+                    rows += update.executeUpdate();
+                }
+            }
+            return rows;
+        });
+        if (claimed == 0) {
+            return List.of();
+        }
+        return WorkJournalEntity.list("claimedBy = ?1 and claimedAt = ?2", member, claimedAt);
+    }
+
+    /**
+     * Releases the rows claimed by members without a heartbeat for {@code timeout}, so other
+     * members resume the work of a crashed one. Heartbeats use the clock of the database.
+     *
+     * @return the number of rows released
+     */
+    int releaseAbandoned(Duration timeout) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    UPDATE work_journal SET claimed_by = NULL, claimed_at = NULL
+                    WHERE claimed_by IS NOT NULL AND claimed_by NOT IN (
+                        SELECT m.id FROM cluster_member m WHERE m.heartbeat_at > LOCALTIMESTAMP - make_interval(secs => ?))
+                    """)) {
+                ps.setDouble(1, timeout.toMillis() / 1000.0);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Releases the rows claimed by {@code members}, when they stop.
+     */
+    int release(Collection<String> members) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            int released = 0;
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "UPDATE work_journal SET claimed_by = NULL, claimed_at = NULL WHERE claimed_by = ?")) {
+                for (String member : members) {
+                    ps.setString(1, member);
+                    released += ps.executeUpdate();
+                }
+            }
+            return released;
+        });
+    }
+
+    /**
+     * Work for the recorded rows, with the sources of the nodes loaded so the work can be queued
+     * after the transaction, claimed by the member that claimed the row. Rows of deleted nodes
+     * are removed.
+     */
+    List<Work> resume(List<WorkJournalEntity> rows) {
+        List<Work> rtrn = new ArrayList<>(rows.size());
+        for (WorkJournalEntity row : rows) {
+            NodeEntity node = NodeEntity.findById(row.nodeId);
+            if (node == null) {
+                Log.debugf("Node %d of %s no longer exists, removing it", row.nodeId, row);
+                row.delete();
+                continue;
+            }
+            List<Long> valueIds = Arrays.stream(row.valueIds.split(",")).map(Long::valueOf).toList();
+            Work work = new Work(node, new ArrayList<>(node.sources), valueIds);
+            work.setCascade(row.cascades);
+            work.setDispatch(row.dispatches);
+            work.setClaimedBy(row.claimedBy);
+            rtrn.add(work);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Removes the rows that no incomplete upload or recalculation would resume, left by work
+     * that failed or by uploads and folders deleted since.
+     *
+     * @return the number of rows removed
+     */
+    int purgeOrphans() {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    DELETE FROM work_journal WHERE NOT EXISTS (
+                        SELECT 1 FROM processing p WHERE p.completed = ? AND (p.value_id = work_journal.root_value_id
+                            OR p.folder_id = (SELECT v.folder_id FROM value v WHERE v.id = work_journal.root_value_id)))
+                    """)) {
+                ps.setBoolean(1, false);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Whether {@code work} is recorded when it is queued.
+     */
+    boolean records(Work work) {
+        return enabled && isRecorded(work);
+    }
+
+    private static boolean isRecorded(Work work) {
+        return work.getActiveNodeIds().length == 1 && work.getActiveNodeIds()[0] != 0
+                && work.getSourceValueIds().length > 0;
+    }
+
+    private static String valueIds(long[] ids) {
+        return Arrays.stream(ids).mapToObj(Long::toString).collect(Collectors.joining(","));
+    }
+}
@@ -1,10 +1,10 @@
 package io.hyperfoil.tools.h5m.svc;
 
-import io.hyperfoil.tools.jjq.value.JqValues;
 import io.hyperfoil.tools.h5m.api.svc.WorkServiceInterface;
 import io.hyperfoil.tools.h5m.entity.NodeEntity;
 import io.hyperfoil.tools.h5m.entity.ValueEntity;
 import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
 import io.hyperfoil.tools.h5m.queue.WorkQueue;
 import io.hyperfoil.tools.h5m.queue.WorkQueueExecutor;
 import io.micrometer.core.instrument.MeterRegistry;
@@ -30,6 +30,7 @@ import io.quarkus.logging.Log;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 
+import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.Callable;
@@ -38,7 +39,9 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @ApplicationScoped
 public class WorkService implements WorkServiceInterface {
@@ -68,6 +71,8 @@ public class WorkService implements WorkServiceInterface {
      * {@link jakarta.persistence.PessimisticLockException} (SQLITE_BUSY /
      * SQLITE_BUSY_SNAPSHOT) up to {@link #RETRY_LIMIT} times with
      * exponential backoff and jitter to handle single-writer contention.
+     * With the {@link SqliteWriter} active the action is committed by the
+     * writer thread instead, possibly together with other callers' actions.
      * <p>
      * The action is wrapped to capture the original exception before Quarkus
      * transaction management can lose it during rollback (e.g., if rollback
@@ -75,6 +80,10 @@ public class WorkService implements WorkServiceInterface {
      * replaced by a QuarkusTransactionException wrapping SystemException).
      */
     <T> T callInNewTransaction(Callable<T> action) {
+        if (writer.isActive()) {
+            // the writer thread is the only writer, nothing to retry
+            return writer.call(action);
+        }
         if (!db.isSQLite()) {
             return QuarkusTransaction.requiringNew().call(action);
         }
@@ -115,6 +124,9 @@ public class WorkService implements WorkServiceInterface {
     @Inject
     ValueService valueService;
 
+    @Inject
+    UploadArchive archive;
+
     @Inject
     MeterRegistry registry;
 
@@ -127,6 +139,18 @@ public class WorkService implements WorkServiceInterface {
     @Inject
     ProcessingService processingService;
 
+    @Inject
+    SqliteWriter writer;
+
+    @Inject
+    NodeGraphs graphs;
+
+    @Inject
+    WorkJournal journal;
+
+    @Inject
+    WorkCluster cluster;
+
     @ConfigProperty(name = "h5m.worker.core", defaultValue = "1")
     int corePoolSize;
 
@@ -138,32 +162,6 @@ public class WorkService implements WorkServiceInterface {
 
     private WorkQueueExecutor workExecutor;
 
-    /**
-     * Eagerly initializes the NodeEntity.sources chains for all active nodes
-     * in the given Work item. This forces Hibernate to load the lazy source
-     * collections while the session is still open, so that
-     * NodeEntity.dependsOn() can traverse them in afterCompletion (outside
-     * the session) without throwing LazyInitializationException.
-     */
-    private void initializeSources(Work work) {
-        if (work.getActiveNodes() == null) return;
-        for (NodeEntity node : work.getActiveNodes()) {
-            initializeSourceChain(node, new HashSet<>());
-        }
-    }
-
-    private void initializeSourceChain(NodeEntity node, Set<Long> visited) {
-        if (node.sources == null || node.sources.isEmpty()) return;
-        // Touch the collection to force Hibernate to initialize the lazy proxy
-        int size = node.sources.size();
-        for (int i = 0; i < size; i++) {
-            NodeEntity source = node.sources.get(i);
-            if (source.id != null && visited.add(source.id)) {
-                initializeSourceChain(source, visited);
-            }
-        }
-    }
-
     @Transactional
     void onStart(@Observes @Priority(1) StartupEvent ev) {
         workExecutor = new WorkQueueExecutor(corePoolSize, maxPoolSize, keepAlive.toSeconds(), TimeUnit.SECONDS, new WorkQueue());
@@ -181,15 +179,35 @@ public class WorkService implements WorkServiceInterface {
 
     /**
      * Creates work items and queues them for execution.
-     * Work items are NOT persisted to the DB — they exist only in memory.
-     * Queue insertion is deferred until the current transaction commits
-     * to ensure source values are visible to worker threads.
+     * Work items are NOT persisted to the DB — they exist only in memory,
+     * the {@link WorkJournal} records them in the current transaction for
+     * crash recovery. Queue insertion is deferred until the current transaction
+     * commits to ensure source values are visible to worker threads.
+     * <p>
+     * In cluster mode work that no member claimed is only recorded, a member of the
+     * {@link WorkCluster} claims it from the journal. Claimed work goes to the queue of its
+     * member; work created together comes from one place (cascade work inherits the claim of
+     * the work it came from), so it shares a queue. Work for several nodes is split into the work
+     * of each node, which the journal records. What is left unrecorded has no source values or
+     * no persisted node and calculates nothing, it goes to the local queue, which has no tracker
+     * for it, and is not missed when the instance stops.
      */
     @Transactional
     public void create(List<Work> works) {
-        WorkQueue workQueue = workExecutor.getWorkQueue();
+        List<Work> local = works;
+        if (cluster.isActive()) {
+            Map<Boolean, List<Work>> shared = works.stream()
+                    .flatMap(WorkService::perNode)
+                    .collect(Collectors.partitioningBy(w -> w.getClaimedBy() == null && journal.records(w)));
+            journal.queued(shared.get(true));
+            local = shared.get(false);
+        }
+        if (local.isEmpty()) {
+            return;
+        }
+        WorkQueue workQueue = queueOf(local.get(0));
         List<Work> newWorks = new ArrayList<>();
-        for (Work work : works) {
+        for (Work work : local) {
             if (workQueue.hasWork(work)) {
                 continue;
             }
@@ -199,16 +217,19 @@ public class WorkService implements WorkServiceInterface {
         if (!newWorks.isEmpty()) {
             List<Work> toQueue = List.copyOf(newWorks);
             for (Work work : toQueue) {
-                // Pre-compute ancestor node IDs while the Hibernate session is
-                // open. WorkQueue.sort() → dependsOn() runs in afterCompletion
-                // (outside the session) and needs these for O(1) dependency checks.
-                work.precomputeAncestors();
+                // Pre-compute ancestors from the compiled graph of the group (or
+                // while the Hibernate session is open). WorkQueue.sort() → dependsOn()
+                // runs in afterCompletion (outside the session) and needs these for
+                // O(1) dependency checks.
+                work.precomputeAncestors(graphOf(work));
                 // Increment trackers for each work item (before afterCompletion decrement)
                 processingService.incrementTrackers(work);
             }
+            journal.queued(toQueue);
             workQueue.incrementDeferred(toQueue.size());
             try {
-                tm.getTransaction().registerSynchronization(new Synchronization() {
+                // on the SQLite writer, with the action that created the work rather than its batch
+                writer.registerSynchronization(new Synchronization() {
                     @Override
                     public void beforeCompletion() {}
 
@@ -247,11 +268,43 @@ public class WorkService implements WorkServiceInterface {
         }
     }
 
+    /**
+     * {@code work} split into the work of each of its active nodes, with the same source values.
+     */
+    private static Stream<Work> perNode(Work work) {
+        List<NodeEntity> activeNodes = work.getActiveNodes();
+        if (activeNodes == null || activeNodes.size() < 2) {
+            return Stream.of(work);
+        }
+        List<Long> sourceValueIds = Arrays.stream(work.getSourceValueIds()).boxed().toList();
+        return activeNodes.stream().map(node -> {
+            Work single = new Work(node, new ArrayList<>(node.sources), sourceValueIds);
+            single.setCascade(work.isCascade());
+            single.setDispatch(work.isDispatch());
+            single.setClaimedBy(work.getClaimedBy());
+            return single;
+        });
+    }
+
     public WorkQueue getQueue(){return workExecutor.getWorkQueue();}
 
     @Override
     public boolean isIdle() {
-        return workExecutor.getWorkQueue().isIdle();
+        return workExecutor.getWorkQueue().isIdle() && cluster.isIdle();
+    }
+
+    /**
+     * The queue of the {@link WorkCluster} member that claimed {@code work}, the queue of this
+     * instance for work that was not claimed.
+     */
+    private WorkQueue queueOf(Work work) {
+        if (work.getClaimedBy() != null) {
+            WorkQueue claimed = cluster.queueOf(work.getClaimedBy());
+            if (claimed != null) {
+                return claimed;
+            }
+        }
+        return workExecutor.getWorkQueue();
     }
 
     @Override
@@ -262,150 +315,25 @@ public class WorkService implements WorkServiceInterface {
 
     @Transactional
     public void execute(Work w){
-        WorkQueue workQueue = workExecutor.getWorkQueue();
+        WorkQueue workQueue = queueOf(w);
         boolean decrementDeferred = false;
         try {
-            // Batch-load source values with sources eagerly fetched in a single
-            // query. The 2LC does not cache @Basic(LAZY) properties for entities
-            // with associations (HHH-20773), so em.find() cache hits still
-            // trigger a DB round-trip for the lazy data field. This JPQL query
-            // eagerly fetches the sources collection via LEFT JOIN FETCH.
-            // Note: Entity Graph (fetchgraph/loadgraph) was tested but causes
-            // a 3x regression despite generating identical SQL — the overhead
-            // is in Hibernate's entity initialization, not in query generation.
-            List<ValueEntity> sourceValues;
-            List<Long> sourceIds = w.getSourceValueIds();
-            if (sourceIds == null || sourceIds.isEmpty()) {
-                sourceValues = List.of();
-            } else {
-                sourceValues = em.createQuery(
-                        "SELECT v FROM value v LEFT JOIN FETCH v.sources WHERE v.id IN :ids",
-                        ValueEntity.class)
-                    .setParameter("ids", sourceIds)
-                    .getResultList();
-            }
-
-            // Reload active nodes in this transaction's persistence context —
-            // calculateValues() accesses node.sources which is lazy
-            Set<NodeEntity> activeNodes = new HashSet<>();
-            for (NodeEntity an : w.getActiveNodes()) {
-                NodeEntity managed = em.find(NodeEntity.class, an.id);
-                if (managed != null) {
-                    activeNodes.add(managed);
-                }
-            }
-            if(activeNodes.isEmpty() || sourceValues.isEmpty()){
+            Loaded loaded = load(w);
+            if(loaded == null){
+                journal.completed(w);
                 // Nothing to process — still need to decrement trackers
                 processingService.decrementTrackers(w);
                 return;
             }
-
-            //looping over values works for Jq / Js nodes but what about cross test comparison
-            //calculateValue should probably accept all sourceValues and leave it to the node function to decide
-            List<ValueEntity> calculated = new ArrayList<>();
-            for(NodeEntity node : activeNodes){
-                List<ValueEntity> thisIteration = nodeService.calculateValues(node, sourceValues);
-                calculated.addAll(thisIteration);
-            }
-            if (calculated.isEmpty()) {
+            Calculation calculation = calculate(loaded);
+            if (calculation.isEmpty()) {
+                journal.completed(w);
                 // Node produced no values (e.g., JQ expression didn't match the data).
-                // Skip the dedup loop and cascade — no DB queries needed.
+                // Skip the reconciliation and cascade — no DB queries needed.
                 return;
             }
-            List<ValueEntity> newOrUpdated = new ArrayList<>();
-            List<ValueEntity> toPersist = new ArrayList<>();
-            for(ValueEntity v : sourceValues) {
-                for(NodeEntity activeNode : activeNodes){
-                    Map<String, ValueEntity> descendants = valueService.getDescendantValueByPath(v, activeNode);
-                    for(Iterator<ValueEntity> iter = calculated.iterator(); iter.hasNext();){
-                        ValueEntity newValue = iter.next();
-                        String path = newValue.getPath();
-                        if(descendants.containsKey(path)){
-                            ValueEntity existingValue = descendants.get(path);
-                            if(existingValue.getId().equals(newValue.getId())) {
-                                //if it's the same value we don't have to work with it
-                            }else if( newValue.data.equals(existingValue.data)){
-                                if(newValue.id != null){
-                                    valueService.delete(newValue);
-                                }
-                                iter.remove();
-                            }else{
-                                //update the existing value's data via native SQL
-                                //(@Immutable entities can't be updated through Hibernate)
-                                em.createNativeQuery("UPDATE value SET data = :data WHERE id = :id")
-                                    .setParameter("data", JqValues.serializeToBytes(newValue.data))
-                                    .setParameter("id", existingValue.getId())
-                                    .executeUpdate();
-                                // Evict from 2LC since cached value is now stale
-                                em.getEntityManagerFactory().getCache().evict(ValueEntity.class, existingValue.getId());
-                                newOrUpdated.add(existingValue);
-                            }
-                            descendants.remove(path);//remove it so we know what is left over
-                        }else{
-                            toPersist.add(newValue);
-                        }
-                    }
-                    if(!descendants.isEmpty()){//values that need to be deleted
-                        descendants.values().forEach(valueService::delete);
-                    }
-                }
-            }
-            if (!toPersist.isEmpty()) {
-                valueService.createAll(toPersist);
-            }
-            newOrUpdated.addAll(calculated);
-            if(!newOrUpdated.isEmpty()){
-                Set<NodeEntity> createdValues = newOrUpdated.stream().map(v->v.node).collect(Collectors.toSet());
-                for(NodeEntity node : createdValues){
-                    if(node.isDetection()){
-                        // Build enriched Change records from the detection values
-                        // already in memory — no additional DB lookups needed
-                        List<Change> changes = newOrUpdated.stream()
-                                .filter(v -> v.node.equals(node))
-                                .map(v -> new Change(
-                                        v.getId(),
-                                        node.getId(),
-                                        node.name,
-                                        node.type(),
-                                        v.data,
-                                        v.data != null ? v.data.getField("fingerprint") : null
-                                ))
-                                .toList();
-                        long folderId = sourceValues.stream()
-                                .filter(v -> v.folder != null)
-                                .map(v -> v.folder.id)
-                                .findFirst()
-                                .orElse(-1L);
-                        // Derive rootValueId from sourceValueIds — for upload work,
-                        // the first ID is the root value (upload ID)
-                        long rootValueId = w.getSourceValueIds().isEmpty() ? -1L : w.getSourceValueIds().getFirst();
-                        changeDetectedEvent.fire(new ChangeDetectedEvent(folderId,
-                                changes, w.isDispatch(), rootValueId));
-                    }
-                    // Cascade work inherits source value IDs and dispatch flag, so
-                    // tracker association is derived automatically via findTrackers()
-                    if(w.isCascade()) {
-                        List<Long> sourceValueIds = sourceValues.stream().map(ValueEntity::getId).toList();
-                        List<Work> cascadeWork = nodeService.getDependentNodes(node).stream()
-                                .map(n -> {
-                                    Work cascaded = new Work(n, n.sources, sourceValueIds);
-                                    cascaded.setDispatch(w.isDispatch());
-                                    return cascaded;
-                                })
-                                .toList();
-
-                        create(cascadeWork);
-                    }
-                }
-            }
-
-            // Release entities from the persistence context to prevent memory
-            // accumulation during bulk imports.  All new/updated values have
-            // already been flushed to the DB, cascade Work items carry entity
-            // IDs and will reload via em.find() in their own transactions, and
-            // the change-detected events have already been fired.
-            em.flush();
-            em.clear();
+            store(w, calculation, changeDetectedEvent::fire);
+            journal.completed(w);
 
             // Defer decrement until after this transaction commits so that
             // isIdle() cannot return true while the DB commit is still in flight.
@@ -421,18 +349,98 @@ public class WorkService implements WorkServiceInterface {
                 });
             }
         }catch( Exception e){
-            Log.debugf(e, "WorkRunner caught: %s\n work=%s", e.getMessage(), w);
-            w.incrementRetryCount();
-            if(db.isSQLite() && w.getRetryCount() < RETRY_LIMIT){
-                backoffSleep(w.getRetryCount());
-                workQueue.add(w);
-                // Skip decrement in finally — work is re-queued and will be
-                // decremented when the retry completes
-                decrementDeferred = true;
+            decrementDeferred = retryOrFail(workQueue, w, e);
+        } finally {
+            if(!decrementDeferred && w.getActiveNodes() != null && !w.getActiveNodes().isEmpty()){
+                workQueue.decrement(w);
+                processingService.decrementTrackers(w);
+                w.releaseReferences();
+            }
+        }
+    }
+
+    /**
+     * Handles claimed work whose transaction failed to commit once {@link #execute} returned, like
+     * claimed work failing within it (see {@link WorkCluster#failed}).
+     */
+    public void failedCommit(Work w, RuntimeException e) {
+        if (w.getClaimedBy() != null && cluster.isActive()) {
+            cluster.failed(w, e);
+        }
+    }
+
+    /**
+     * Whether {@link Work#run()} should use {@link #executeWithWriter} instead of {@link #execute}.
+     */
+    public boolean isSingleWriter() {
+        return writer.isActive();
+    }
+
+    /**
+     * Executes a work item with its writes handed to the {@link SqliteWriter}. The values are
+     * calculated in a read transaction on the calling runner, so runners compute in parallel,
+     * and only the reconciliation and the cascade are queued for the writer, which commits them
+     * together with the results of other runners. Detection nodes read the folder history and
+     * delete superseded values while they calculate, so their work runs on the writer entirely.
+     * <p>
+     * The writer may run a step twice, so change events are collected and fired on the runner
+     * after the commit, and trackers are decremented once the writer returned. The values
+     * calculated in the read transaction are detached; the writer only reads them to build its
+     * native statements and loads what it changes in the persistence context of the step.
+     */
+    public void executeWithWriter(Work w){
+        WorkQueue workQueue = queueOf(w);
+        boolean decrementDeferred = false;
+        try {
+            boolean detection = w.getActiveNodes() != null && w.getActiveNodes().stream().anyMatch(NodeEntity::isDetection);
+            List<ChangeDetectedEvent> events = new ArrayList<>();
+            boolean loaded;
+            if (detection) {
+                loaded = writer.call(() -> {
+                    events.clear();
+                    Loaded found = load(w);
+                    if (found == null) {
+                        journal.completed(w);
+                        return false;
+                    }
+                    Calculation calculation = calculate(found);
+                    if (!calculation.isEmpty()) {
+                        store(w, calculation, events::add);
+                    }
+                    journal.completed(w);
+                    return true;
+                });
             } else {
-                // Fail trackers so CompletableFutures complete exceptionally
-                processingService.failTrackers(w, e);
+                Calculation calculation = QuarkusTransaction.requiringNew().call(() -> {
+                    Loaded found = load(w);
+                    return found == null ? null : calculate(found);
+                });
+                loaded = calculation != null;
+                if (loaded && !calculation.isEmpty()) {
+                    writer.call(() -> {
+                        events.clear();
+                        store(w, calculation, events::add);
+                        journal.completed(w);
+                        return null;
+                    });
+                } else if (journal.records(w)) {
+                    writer.call(() -> {
+                        journal.completed(w);
+                        return null;
+                    });
+                }
+            }
+            if (!loaded) {
+                // Nothing to process — still need to decrement trackers
+                processingService.decrementTrackers(w);
+                return;
+            }
+            if (!events.isEmpty()) {
+                // observers look up the new values, which a transaction started after the commit sees
+                QuarkusTransaction.requiringNew().run(() -> events.forEach(changeDetectedEvent::fire));
             }
+        }catch( Exception e){
+            decrementDeferred = retryOrFail(workQueue, w, e);
         } finally {
             if(!decrementDeferred && w.getActiveNodes() != null && !w.getActiveNodes().isEmpty()){
                 workQueue.decrement(w);
@@ -442,4 +450,198 @@ public class WorkService implements WorkServiceInterface {
         }
     }
 
+    private record Loaded(List<ValueEntity> sourceValues, Set<NodeEntity> activeNodes) {}
+
+    /**
+     * Calculated values split into the ones the nodes returned as is (already persisted) and the
+     * fresh ones to reconcile. The split is made once: reconciling assigns IDs to fresh values.
+     */
+    private record Calculation(Loaded loaded, List<ValueEntity> fresh, List<ValueEntity> kept) {
+        boolean isEmpty() {
+            return fresh.isEmpty() && kept.isEmpty();
+        }
+    }
+
+    /**
+     * Loads the source values and active nodes of {@code w}, {@code null} if there is nothing to process.
+     */
+    private Loaded load(Work w) {
+        // Batch-load source values with sources eagerly fetched in a single
+        // query. The 2LC does not cache @Basic(LAZY) properties for entities
+        // with associations (HHH-20773), so em.find() cache hits still
+        // trigger a DB round-trip for the lazy data field. This JPQL query
+        // eagerly fetches the sources collection via LEFT JOIN FETCH.
+        // Note: Entity Graph (fetchgraph/loadgraph) was tested but causes
+        // a 3x regression despite generating identical SQL — the overhead
+        // is in Hibernate's entity initialization, not in query generation.
+        List<ValueEntity> sourceValues;
+        long[] sourceIds = w.getSourceValueIds();
+        if (sourceIds.length == 0) {
+            sourceValues = List.of();
+        } else {
+            sourceValues = em.createQuery(
+                    "SELECT v FROM value v LEFT JOIN FETCH v.sources WHERE v.id IN :ids",
+                    ValueEntity.class)
+                .setParameter("ids", Arrays.stream(sourceIds).boxed().toList())
+                .getResultList();
+            archive.rehydrate(sourceValues);
+        }
+
+        // Reload active nodes in this transaction's persistence context —
+        // calculateValues() accesses node.sources which is lazy
+        Set<NodeEntity> activeNodes = new HashSet<>();
+        if (w.getActiveNodes() != null) {
+            for (NodeEntity an : w.getActiveNodes()) {
+                NodeEntity managed = em.find(NodeEntity.class, an.id);
+                if (managed != null) {
+                    activeNodes.add(managed);
+                }
+            }
+        }
+        if(activeNodes.isEmpty() || sourceValues.isEmpty()){
+            return null;
+        }
+        return new Loaded(sourceValues, activeNodes);
+    }
+
+    private Calculation calculate(Loaded loaded) throws IOException {
+        //looping over values works for Jq / Js nodes but what about cross test comparison
+        //calculateValue should probably accept all sourceValues and leave it to the node function to decide
+        List<ValueEntity> fresh = new ArrayList<>();
+        List<ValueEntity> kept = new ArrayList<>();
+        for(NodeEntity node : loaded.activeNodes()){
+            for (ValueEntity v : nodeService.calculateValues(node, loaded.sourceValues())) {
+                if (v.id == null) {
+                    fresh.add(v);
+                } else {
+                    kept.add(v);
+                }
+            }
+        }
+        return new Calculation(loaded, fresh, kept);
+    }
+
+    /**
+     * Reconciles the calculated values with the stored ones, reports the new detection values
+     * to {@code events} and queues the cascade work.
+     */
+    private void store(Work w, Calculation calculation, Consumer<ChangeDetectedEvent> events) {
+        List<ValueEntity> sourceValues = calculation.loaded().sourceValues();
+        // Values the node returned as is (already persisted) are kept; everything
+        // else is matched against the existing values by (node_id, path_hash) in
+        // one set-based upsert that reports the inserted and changed rows.
+        Set<Long> keepIds = calculation.kept().stream().map(v -> v.id).collect(Collectors.toSet());
+        List<ValueEntity> newOrUpdated = new ArrayList<>(calculation.kept());
+        ValueService.Reconciliation reconciliation = valueService.reconcile(
+                sourceValues.stream().map(ValueEntity::getId).toList(),
+                calculation.loaded().activeNodes().stream().map(NodeEntity::getId).toList(),
+                calculation.fresh(), keepIds);
+        newOrUpdated.addAll(reconciliation.inserted());
+        newOrUpdated.addAll(reconciliation.changed());
+        if(!newOrUpdated.isEmpty()){
+            Set<NodeEntity> createdValues = newOrUpdated.stream().map(v->v.node).collect(Collectors.toSet());
+            for(NodeEntity node : createdValues){
+                if(node.isDetection()){
+                    // Build enriched Change records from the detection values
+                    // already in memory — no additional DB lookups needed
+                    List<Change> changes = newOrUpdated.stream()
+                            .filter(v -> v.node.equals(node))
+                            .map(v -> new Change(
+                                    v.getId(),
+                                    node.getId(),
+                                    node.name,
+                                    node.type(),
+                                    v.data,
+                                    v.data != null ? v.data.getField("fingerprint") : null
+                            ))
+                            .toList();
+                    long folderId = sourceValues.stream()
+                            .filter(v -> v.folder != null)
+                            .map(v -> v.folder.id)
+                            .findFirst()
+                            .orElse(-1L);
+                    // Derive rootValueId from sourceValueIds — for upload work,
+                    // the first ID is the root value (upload ID)
+                    long rootValueId = w.getSourceValueIds().length == 0 ? -1L : w.getSourceValueIds()[0];
+                    events.accept(new ChangeDetectedEvent(folderId,
+                            changes, w.isDispatch(), rootValueId));
+                }
+                // Cascade work inherits source value IDs, dispatch flag and claim, so
+                // tracker association is derived automatically via findTrackers()
+                if(w.isCascade()) {
+                    List<Long> sourceValueIds = sourceValues.stream().map(ValueEntity::getId).toList();
+                    List<Work> cascadeWork = dependentWork(node, sourceValueIds);
+                    cascadeWork.forEach(cascaded -> {
+                        cascaded.setDispatch(w.isDispatch());
+                        cascaded.setClaimedBy(w.getClaimedBy());
+                    });
+
+                    create(cascadeWork);
+                }
+            }
+        }
+
+        // Release entities from the persistence context to prevent memory
+        // accumulation during bulk imports.  All new/updated values have
+        // already been flushed to the DB, cascade Work items carry entity
+        // IDs and will reload via em.find() in their own transactions, and
+        // the change-detected events have already been fired. On the SQLite
+        // writer the persistence context belongs to this action alone.
+        em.flush();
+        em.clear();
+    }
+
+    private NodeGraph graphOf(Work work) {
+        List<NodeEntity> activeNodes = work.getActiveNodes();
+        return activeNodes == null || activeNodes.isEmpty() ? null : graphs.forNode(activeNodes.iterator().next().id);
+    }
+
+    /**
+     * Work for the nodes using {@code node} as a source. The dependents and their sources come
+     * from the compiled graph of the group and the entity caches, the query is only a fallback
+     * for nodes outside of a graph.
+     */
+    private List<Work> dependentWork(NodeEntity node, List<Long> sourceValueIds) {
+        NodeGraph graph = graphs.forNode(node.id);
+        if (graph == null || !graph.contains(node.id)) {
+            return nodeService.getDependentNodes(node).stream()
+                    .map(n -> new Work(n, n.sources, sourceValueIds))
+                    .toList();
+        }
+        List<Work> rtrn = new ArrayList<>();
+        for (Long childId : graph.children(node.id)) {
+            NodeEntity child = em.find(NodeEntity.class, childId);
+            List<NodeEntity> sources = graph.sources(childId).stream()
+                    .map(sourceId -> em.find(NodeEntity.class, sourceId))
+                    .toList();
+            if (child != null && !sources.contains(null)) {
+                rtrn.add(new Work(child, sources, sourceValueIds));
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * Re-queues a failed work item on SQLite until it hit the retry limit, then fails its trackers.
+     *
+     * @return whether the work was re-queued, so it is decremented when the retry completes
+     */
+    private boolean retryOrFail(WorkQueue workQueue, Work w, Exception e) {
+        Log.debugf(e, "WorkRunner caught: %s\n work=%s", e.getMessage(), w);
+        if (w.getClaimedBy() != null && cluster.isActive()) {
+            // retried by the next claim, the other work of the root value carries on meanwhile
+            cluster.failed(w, e);
+            return false;
+        }
+        w.incrementRetryCount();
+        if(db.isSQLite() && w.getRetryCount() < RETRY_LIMIT){
+            backoffSleep(w.getRetryCount());
+            workQueue.add(w);
+            return true;
+        }
+        // Fail trackers so CompletableFutures complete exceptionally
+        processingService.failTrackers(w, e);
+        return false;
+    }
+
 }
@@ -1,7 +1,14 @@
 package io.hyperfoil.tools.h5m;
 
 import io.agroal.api.AgroalDataSource;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.svc.AuthorizationService;
+import io.hyperfoil.tools.h5m.svc.FolderService;
+import io.hyperfoil.tools.h5m.svc.NodeGraphs;
+import io.hyperfoil.tools.h5m.svc.ProcessingService;
 import io.hyperfoil.tools.h5m.svc.ValueService;
+import io.hyperfoil.tools.jjq.value.JqValues;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.transaction.Status;
@@ -10,9 +17,15 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class FreshDb {
@@ -29,6 +42,21 @@ public class FreshDb {
     @Inject
     ValueService valueService;
 
+    @Inject
+    AuthorizationService authService;
+
+    @Inject
+    NodeGraphs nodeGraphs;
+
+    @Inject
+    FolderService folders;
+
+    @Inject
+    ProcessingService processing;
+
+    /** a folder created by {@link #cpuFolder} */
+    protected record CpuFolder(long folderId, long rootNodeId, long cpuNodeId, List<Long> uploadIds) {}
+
     @BeforeEach
     @AfterEach
     public void dropRows() throws Exception {
@@ -36,6 +64,7 @@ public class FreshDb {
         // prevents stale cached entities when IDs are reused
         emf.getCache().evictAll();
         valueService.clearDetectionCache();
+        authService.invalidate();
 
         if (tm.getStatus() != Status.STATUS_NO_TRANSACTION) {
             tm.rollback();
@@ -43,6 +72,9 @@ public class FreshDb {
         try(Connection conn = ds.getConnection()){
             try(Statement stmt = conn.createStatement()){
                 stmt.executeUpdate("DELETE from processing");
+                stmt.executeUpdate("DELETE from work_journal");
+                stmt.executeUpdate("DELETE from cluster_member");
+                stmt.executeUpdate("DELETE from folder_view_row");
                 stmt.executeUpdate("DELETE from folder_view_component");
                 stmt.executeUpdate("DELETE from folder_view");
                 stmt.executeUpdate("DELETE from notification_log");
@@ -51,6 +83,12 @@ public class FreshDb {
                 stmt.executeUpdate("DELETE from team_members");
                 stmt.executeUpdate("DELETE from value_edge");
                 stmt.executeUpdate("DELETE from value");
+                stmt.executeUpdate("DELETE from value_dictionary");
+                stmt.executeUpdate("DELETE from value_blob");
+                stmt.executeUpdate("DELETE from value_archive");
+                stmt.executeUpdate("DELETE from archive_lease");
+                stmt.executeUpdate("DELETE from folder_stats");
+                stmt.executeUpdate("DELETE from folder_deletion");
                 stmt.executeUpdate("DELETE from folder");
                 stmt.executeUpdate("UPDATE node SET group_id = NULL, original_group_id = NULL, target_group_id = NULL, previous_version_id = NULL, original_node_id = NULL");
                 stmt.executeUpdate("DELETE from node_edge");
@@ -60,6 +98,8 @@ public class FreshDb {
                 stmt.executeUpdate("DELETE from team");
             }
         }
+        // node ids are reused on SQLite once the rows are gone
+        nodeGraphs.changed();
     }
 
     protected long countRows(String table) throws SQLException {
@@ -70,4 +110,44 @@ public class FreshDb {
             return ((Number) rs.getObject(1)).longValue();
         }
     }
+
+    /**
+     * Counts the rows of {@code table} matching {@code where}, with {@code ?} placeholders for
+     * {@code parameters}.
+     */
+    protected long countRows(String table, String where, Object... parameters) throws SQLException {
+        try (Connection conn = ds.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE " + where)) {
+            for (int i = 0; i < parameters.length; i++) {
+                ps.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return ((Number) rs.getObject(1)).longValue();
+            }
+        }
+    }
+
+    /**
+     * Creates the folder {@code name} with a node {@code cpu} reading {@code .cpu} and ingests
+     * {@code uploads} uploads {@code {"cpu": i}}.
+     */
+    protected CpuFolder cpuFolder(String name, int uploads) throws Exception {
+        tm.begin();
+        long folderId = folders.create(name).id();
+        FolderEntity folder = folders.read(folderId);
+        JqNode cpu = new JqNode("cpu", ".cpu", folder.group.root);
+        cpu.group = folder.group;
+        cpu.persist();
+        long rootNodeId = folder.group.root.id;
+        long cpuNodeId = cpu.id;
+        tm.commit();
+        List<Long> uploadIds = new ArrayList<>();
+        for (int i = 0; i < uploads; i++) {
+            long uploadId = valueService.createRootValue(folderId, JqValues.parse("{\"cpu\": " + i + "}"));
+            assertTrue(processing.awaitIngestion(uploadId, 30, TimeUnit.SECONDS), "upload " + i + " of " + name + " was not ingested");
+            uploadIds.add(uploadId);
+        }
+        return new CpuFolder(folderId, rootNodeId, cpuNodeId, uploadIds);
+    }
 }
@@ -0,0 +1,111 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for the {@link DaemonClient} side of the daemon protocol.
+ */
+class DaemonClientTest {
+
+    @Test
+    void commandLineQuotesArguments() {
+        assertEquals("node add jq '{\"a\": 1}' \"two words\" .", DaemonClient.commandLine(
+                new String[]{ "node", "add", "jq", "{\"a\": 1}", "two words", "." }));
+    }
+
+    @Test
+    void commandLineMakesRelativeFilesAbsolute() throws Exception {
+        Path file = Files.createTempFile(Path.of(""), "daemon-client", ".json");
+        try {
+            String line = DaemonClient.commandLine(new String[]{ "folder", "upload", file.getFileName().toString() });
+            assertEquals("folder upload " + file.toAbsolutePath().normalize(), line);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void commandLineOnlyRewritesFileParameters() throws Exception {
+        Path file = Files.createTempFile(Path.of(""), "daemon-client", ".json");
+        String name = file.getFileName().toString();
+        Path cwd = Path.of("").toAbsolutePath();
+        try {
+            assertEquals("folder upload " + file.toAbsolutePath().normalize() + " to " + name, DaemonClient.commandLine(
+                    new String[]{ "folder", "upload", name, "to", name }), "the target folder is not a file");
+            assertEquals("folder upload async " + cwd.resolve("new.json"), DaemonClient.commandLine(
+                    new String[]{ "folder", "upload", "async", "new.json" }));
+            assertEquals("folder export test --to=" + cwd.resolve("out/test.json"), DaemonClient.commandLine(
+                    new String[]{ "folder", "export", "test", "--to=out/test.json" }));
+            assertEquals("folder export test to " + cwd.resolve("test.json"), DaemonClient.commandLine(
+                    new String[]{ "folder", "export", "test", "to", "test.json" }));
+            assertEquals("node add jq " + name + " .cpu", DaemonClient.commandLine(
+                    new String[]{ "node", "add", "jq", name, ".cpu" }), "arguments of other commands are sent as they are");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void serverDropsAClientThatSendsNothing(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("h5m.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                 SocketChannel client = server.accept()) {
+                assertThrows(SocketTimeoutException.class, () -> DaemonServer.readLine(client, Duration.ofMillis(100)));
+            }
+        }
+    }
+
+    @Test
+    void sendStreamsOutputAndReturnsStatus(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("h5m.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            CompletableFuture<String> received = CompletableFuture.supplyAsync(() -> {
+                try (SocketChannel client = server.accept()) {
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+                    ByteArrayOutputStream line = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = in.read()) != '\n') {
+                        line.write(b);
+                    }
+                    DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+                    DaemonServer.write(out, DaemonServer.OUTPUT, "one\n");
+                    DaemonServer.write(out, DaemonServer.OUTPUT, "two\n");
+                    DaemonServer.write(out, DaemonServer.EXIT, "1");
+                    out.flush();
+                    return line.toString(StandardCharsets.UTF_8);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int status = DaemonClient.send(socket, "folder list", new PrintStream(output, true, StandardCharsets.UTF_8));
+
+            assertEquals("folder list", received.get());
+            assertEquals("one\ntwo\n", output.toString(StandardCharsets.UTF_8));
+            assertEquals(1, status);
+        }
+    }
+}
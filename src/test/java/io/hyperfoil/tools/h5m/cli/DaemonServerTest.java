@@ -0,0 +1,87 @@
+package io.hyperfoil.tools.h5m.cli;
+
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+@TestProfile(DaemonServerTest.Daemon.class)
+public class DaemonServerTest extends FreshDb {
+
+    public static class Daemon implements QuarkusTestProfile {
+
+        static final Path SOCKET;
+
+        static {
+            try {
+                Path dir = Files.createTempDirectory("h5m-daemon-");
+                dir.toFile().deleteOnExit();
+                SOCKET = dir.resolve("h5m.sock");
+            } catch (IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("h5m.daemon.socket", SOCKET.toString());
+        }
+    }
+
+    @Inject
+    DaemonServer server;
+
+    private static String send(String line, int expectedStatus) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int status = DaemonClient.send(Daemon.SOCKET, line, new PrintStream(output, true, StandardCharsets.UTF_8));
+        String printed = output.toString(StandardCharsets.UTF_8);
+        assertEquals(expectedStatus, status, "exit status of '" + line + "', printed:\n" + printed);
+        return printed;
+    }
+
+    @Test
+    public void commands_run_in_the_daemon_with_their_exit_status() throws Exception {
+        CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!server.isServing()) {
+                assertTrue(System.currentTimeMillis() < deadline, "the daemon did not start");
+                Thread.sleep(10);
+            }
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(Daemon.SOCKET),
+                    "only the owner should be able to connect");
+
+            send("folder add daemon-test", 0);
+            assertTrue(send("folder list", 0).contains("daemon-test"));
+            // fails with a result, not an exception
+            assertTrue(send("folder remove missing-folder", 1).contains("not found"));
+        } finally {
+            server.stop();
+            serving.get(10, TimeUnit.SECONDS);
+        }
+        assertFalse(Files.exists(Daemon.SOCKET));
+    }
+}
@@ -161,6 +161,29 @@ public class H5mTest {
         );
         String output = results.getLast();
         assertFalse(output.contains(testName),"expect to not find foo folder: "+output);
+        assertTrue(results.get(1).contains("value(s) reclaimed"),"expect the folder to be reclaimed before the command returns: "+results.get(1));
+    }
+    @Test
+    public void reap_after_remove_finds_nothing_left() {
+        String testName = StackWalker.getInstance()
+                .walk(s -> s.skip(0).findFirst())
+                .get()
+                .getMethodName();
+        List<String> results = run(aeshLauncher,
+                new String[]{"folder","add",testName},
+                new String[]{"folder","remove",testName},
+                new String[]{"folder","reap"}
+        );
+        String output = results.getLast();
+        assertTrue(output.contains("Reclaimed 0 deleted folder(s)"),"remove should leave nothing to reap: "+output);
+    }
+    @Test
+    public void vacuum_of_a_new_database_has_nothing_to_rebuild() {
+        List<String> results = run(aeshLauncher,
+                new String[]{"folder","vacuum"}
+        );
+        String output = results.getLast();
+        assertTrue(output.contains("Nothing to rebuild"),"a new database should already return its space: "+output);
     }
     @Test
     public void add_js_uses_other_nodes() {
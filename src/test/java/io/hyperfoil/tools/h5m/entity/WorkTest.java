@@ -9,6 +9,7 @@ import io.hyperfoil.tools.h5m.entity.work.Work;
 import io.quarkus.test.junit.QuarkusTest;
 import org.junit.jupiter.api.Test;
 
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -118,4 +119,40 @@ public class WorkTest {
 
         assertFalse(wTwo.dependsOn(wOne));
     }
+
+    @Test
+    public void equals_ignores_active_node_order_and_survives_release(){
+        NodeEntity root = new RootNode();
+        root.id = 1L;
+        NodeEntity one = new JqNode("one");
+        one.id = 2L;
+        NodeEntity two = new JqNode("two");
+        two.id = 3L;
+
+        Work work1 = new Work(new LinkedHashSet<>(List.of(one, two)), List.of(root), List.of(10L, 11L));
+        Work work2 = new Work(new LinkedHashSet<>(List.of(two, one)), List.of(root), List.of(10L, 11L));
+        Work reordered = new Work(new LinkedHashSet<>(List.of(one, two)), List.of(root), List.of(11L, 10L));
+
+        assertEquals(work1, work2);
+        assertEquals(work1.hashCode(), work2.hashCode());
+        assertNotEquals(work1, reordered, "source values are compared in order");
+
+        int hash = work1.hashCode();
+        work1.releaseReferences();
+        assertNull(work1.getActiveNodes());
+        assertEquals(hash, work1.hashCode(), "released work should still be found in the queue");
+        assertEquals(work1, work2);
+    }
+
+    @Test
+    public void equals_unpersisted_nodes_only_same_instance(){
+        NodeEntity one = new JqNode("one");
+        NodeEntity two = new JqNode("two");
+
+        Work wOne = new Work(one, null, List.of(1L));
+        Work wTwo = new Work(two, null, List.of(1L));
+
+        assertEquals(wOne, wOne);
+        assertNotEquals(wOne, wTwo, "nodes without an id cannot be told apart by id");
+    }
 }
@@ -0,0 +1,49 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests reading the recorded schema version before the application starts.
+ */
+class SchemaConfigSourceFactoryTest {
+
+    @Test
+    void missingDatabaseIsNotCreated(@TempDir Path dir) {
+        Path db = dir.resolve("h5m.db");
+        assertNull(SchemaConfigSourceFactory.storedChecksum("jdbc:sqlite:" + db, null, null));
+        assertFalse(Files.exists(db));
+    }
+
+    @Test
+    void databaseWithoutVersions(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        execute(url, "CREATE TABLE folder (id INTEGER PRIMARY KEY)");
+        assertNull(SchemaConfigSourceFactory.storedChecksum(url, null, null));
+    }
+
+    @Test
+    void latestVersionIsCurrent(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        execute(url, "CREATE TABLE schema_version (version INTEGER PRIMARY KEY, checksum TEXT NOT NULL)");
+        execute(url, "INSERT INTO schema_version VALUES (1, 'aaa'), (2, 'bbb')");
+        assertEquals("bbb", SchemaConfigSourceFactory.storedChecksum(url + "?journal_mode=WAL", null, null));
+    }
+
+    private static void execute(String url, String sql) throws Exception {
+        try (Connection connection = new H5mDriver().connect(url, new Properties());
+                Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the pragmas of new SQLite connections.
+ */
+class SqliteConnectionInitializerTest {
+
+    private static final int INCREMENTAL = 2;
+
+    @Test
+    void newFileUsesIncrementalVacuum(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection connection = new H5mDriver().connect(url, new Properties())) {
+            new SqliteConnectionInitializer().onConnectionCreate(connection);
+            execute(connection, "CREATE TABLE folder (id INTEGER PRIMARY KEY)");
+            assertEquals(INCREMENTAL, autoVacuum(connection));
+        }
+    }
+
+    @Test
+    void existingFileIsNotRebuiltByNewConnections(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection connection = new H5mDriver().connect(url, new Properties())) {
+            execute(connection, "CREATE TABLE folder (id INTEGER PRIMARY KEY, name TEXT)");
+        }
+        try (Connection connection = new H5mDriver().connect(url, new Properties())) {
+            new SqliteConnectionInitializer().onConnectionCreate(connection);
+            assertEquals(0, autoVacuum(connection), "only an explicit rebuild should rewrite the file");
+            assertFalse(SqliteConnectionInitializer.usesIncrementalVacuum(connection));
+        }
+    }
+
+    @Test
+    void existingFileIsRebuiltOnce(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection connection = new H5mDriver().connect(url, new Properties())) {
+            execute(connection, "CREATE TABLE folder (id INTEGER PRIMARY KEY, name TEXT)");
+            execute(connection, "INSERT INTO folder (name) VALUES ('a'), ('b')");
+            assertEquals(0, autoVacuum(connection), "a file created without the pragma does not vacuum");
+        }
+        try (Connection connection = new H5mDriver().connect(url, new Properties())) {
+            assertTrue(SqliteConnectionInitializer.rebuildForIncrementalVacuum(connection));
+            assertEquals(INCREMENTAL, autoVacuum(connection));
+            assertFalse(SqliteConnectionInitializer.rebuildForIncrementalVacuum(connection), "a rebuilt file is left alone");
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT count(*) FROM folder")) {
+                rs.next();
+                assertEquals(2, rs.getInt(1), "the rebuild should keep the rows");
+            }
+        }
+    }
+
+    private static int autoVacuum(Connection connection) throws Exception {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("pragma auto_vacuum")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
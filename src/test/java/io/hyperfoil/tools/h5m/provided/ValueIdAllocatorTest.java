@@ -0,0 +1,100 @@
+package io.hyperfoil.tools.h5m.provided;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reserving value IDs on SQLite from several processes sharing the database file.
+ */
+class ValueIdAllocatorTest {
+
+    private static ValueIdAllocator allocator(String url) {
+        DatabaseEngine db = new DatabaseEngine();
+        db.jdbcUrl = url;
+        ValueIdAllocator allocator = new ValueIdAllocator();
+        allocator.db = db;
+        allocator.sqliteBlockSize = 10;
+        return allocator;
+    }
+
+    private static Connection connect(String url) throws Exception {
+        return new H5mDriver().connect(url, new Properties());
+    }
+
+    private static void createTables(Connection connection) throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE value (id INTEGER PRIMARY KEY)");
+        }
+        allocator("unused").createBlockTable(connection);
+    }
+
+    @Test
+    void allocatorsSharingAFileReserveDistinctBlocks(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection first = connect(url); Connection second = connect(url)) {
+            createTables(first);
+            ValueIdAllocator a = allocator(url);
+            ValueIdAllocator b = allocator(url);
+
+            assertEquals(1, a.next(first));
+            assertEquals(11, b.next(second), "the second process should reserve after the first block");
+            assertEquals(2, a.next(first), "a committed block stays reserved");
+            long[] more = b.allocate(second, 15);
+            assertEquals(12, more[0]);
+            assertTrue(more[14] > 20, "the rest should come from a block after the first one's");
+            assertEquals(3, a.next(first));
+        }
+    }
+
+    @Test
+    void reservationStartsAfterExistingValues(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection connection = connect(url)) {
+            createTables(connection);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("INSERT INTO value (id) VALUES (500)");
+            }
+            assertEquals(501, allocator(url).next(connection));
+        }
+    }
+
+    @Test
+    void blockOfRolledBackTransactionIsNotReused(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection first = connect(url); Connection second = connect(url)) {
+            createTables(first);
+            ValueIdAllocator a = allocator(url);
+            first.setAutoCommit(false);
+            assertEquals(1, a.next(first));
+            first.rollback();
+            first.setAutoCommit(true);
+
+            assertEquals(1, allocator(url).next(second), "the reservation was rolled back");
+            assertEquals(11, a.next(first), "the first process should not hand out IDs of the rolled back block");
+        }
+    }
+
+    @Test
+    void rollbackKeepsCommittedBlocks(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("h5m.db");
+        try (Connection connection = connect(url)) {
+            createTables(connection);
+            ValueIdAllocator a = allocator(url);
+            assertEquals(1, a.next(connection));
+            connection.setAutoCommit(false);
+            assertEquals(2, a.next(connection));
+            connection.rollback();
+            connection.setAutoCommit(true);
+
+            assertEquals(3, a.next(connection), "the committed block should outlive the rollback");
+        }
+    }
+}
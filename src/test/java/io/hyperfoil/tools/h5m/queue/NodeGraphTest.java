@@ -0,0 +1,93 @@
+package io.hyperfoil.tools.h5m.queue;
+
+import io.hyperfoil.tools.h5m.api.EphemeralMode;
+import io.hyperfoil.tools.h5m.api.NodeType;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeGraphTest {
+
+    private static NodeGraph.Node node(long id, NodeType type, EphemeralMode mode) {
+        return new NodeGraph.Node(id, type, mode);
+    }
+
+    private static NodeGraph.Edge edge(long child, long parent) {
+        return new NodeGraph.Edge(child, parent);
+    }
+
+    // root(1) <- a(2) <- b(3) <- c(4), b <- ft(5), a <- d(6, KEEP)
+    private static NodeGraph graph() {
+        return new NodeGraph(10, 1,
+                List.of(node(5, NodeType.FIXED_THRESHOLD, EphemeralMode.AUTO),
+                        node(4, NodeType.JQ, EphemeralMode.AUTO),
+                        node(3, NodeType.JQ, EphemeralMode.AUTO),
+                        node(2, NodeType.JQ, EphemeralMode.AUTO),
+                        node(6, NodeType.JQ, EphemeralMode.KEEP),
+                        node(1, NodeType.ROOT, EphemeralMode.AUTO)),
+                List.of(edge(2, 1), edge(3, 2), edge(4, 3), edge(5, 3), edge(6, 2)));
+    }
+
+    @Test
+    public void topological_order_puts_sources_first() {
+        List<Long> order = graph().topologicalOrder();
+        assertEquals(6, order.size());
+        assertTrue(order.indexOf(1L) < order.indexOf(2L));
+        assertTrue(order.indexOf(2L) < order.indexOf(3L));
+        assertTrue(order.indexOf(3L) < order.indexOf(4L));
+        assertTrue(order.indexOf(3L) < order.indexOf(5L));
+        assertTrue(order.indexOf(2L) < order.indexOf(6L));
+    }
+
+    @Test
+    public void sources_and_children() {
+        NodeGraph graph = graph();
+        assertEquals(List.of(2L), graph.sources(3));
+        assertEquals(Set.of(4L, 5L), Set.copyOf(graph.children(3)));
+        assertEquals(List.of(), graph.children(4));
+        assertEquals(List.of(), graph.sources(99));
+    }
+
+    @Test
+    public void ancestors() {
+        NodeGraph graph = graph();
+        assertTrue(graph.dependsOn(4, 1));
+        assertTrue(graph.dependsOn(5, 2));
+        assertFalse(graph.dependsOn(6, 3));
+        assertFalse(graph.dependsOn(1, 4));
+
+        BitSet ancestors = graph.ancestors(List.of(4L, 6L));
+        assertNotNull(ancestors);
+        assertTrue(graph.isIn(ancestors, 1L));
+        assertTrue(graph.isIn(ancestors, 3L));
+        assertFalse(graph.isIn(ancestors, 5L));
+        assertFalse(graph.isIn(ancestors, 99L));
+        assertNull(graph.ancestors(List.of(4L, 99L)), "nodes outside of the graph have no ancestors in it");
+        assertSame(graph.ancestors(4), graph.ancestors(List.of(4L)), "the ancestors of a single node are shared");
+        assertNull(graph.ancestors(99));
+    }
+
+    @Test
+    public void ephemeral_flags() {
+        NodeGraph graph = graph();
+        assertFalse(graph.isEphemeral(1), "root cannot be ephemeral");
+        assertTrue(graph.isEphemeral(2), "auto node with child is ephemeral");
+        assertTrue(graph.isEphemeral(3), "auto node with a non-analysis child is ephemeral");
+        assertFalse(graph.isEphemeral(4), "auto node without child is not ephemeral");
+        assertFalse(graph.isEphemeral(5), "analysis node cannot be ephemeral");
+        assertFalse(graph.isEphemeral(6), "keep node is not ephemeral");
+        assertEquals(Set.of(2L, 3L), graph.ephemeralSources(4));
+        assertEquals(Set.of(), graph.ephemeralSources(2));
+    }
+
+    @Test
+    public void cycle_is_rejected() {
+        assertThrows(IllegalStateException.class, () -> new NodeGraph(1, 1,
+                List.of(node(1, NodeType.JQ, EphemeralMode.AUTO), node(2, NodeType.JQ, EphemeralMode.AUTO)),
+                List.of(edge(1, 2), edge(2, 1))));
+    }
+}
@@ -894,6 +894,51 @@ public class RestEndpointTest extends FreshDb {
                 .body("[1].start_time", notNullValue());
     }
 
+    @Test
+    public void view_data_is_materialized_per_upload() throws Exception {
+        folderService.importFolder(Path.of("src/test/resources/rhivos/nodes.json"), false);
+        long rhivosFolderId = folderService.find("rhivos-perf-comprehensive").id();
+
+        tm.begin();
+        FolderEntity folder = FolderEntity.find("name", "rhivos-perf-comprehensive").firstResult();
+        Long startTimeNodeId = folder.group.sources.stream()
+                .filter(n -> "start_time".equals(n.name) && n.sources.contains(folder.group.root))
+                .findFirst().get().id;
+        tm.commit();
+
+        String viewJson = viewToJson(new io.hyperfoil.tools.h5m.api.View(
+                null, "materialized-view", null,
+                List.of(new io.hyperfoil.tools.h5m.api.ViewComponent(null, startTimeNodeId, null, null, "Start Time", 0))
+        ));
+        Long viewId = given()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(viewJson)
+                .when().post("/api/folder/" + rhivosFolderId + "/view")
+                .then()
+                .statusCode(200)
+                .extract().jsonPath().getLong("id");
+
+        try (InputStream is = getClass().getResourceAsStream("/rhivos/40375.json")) {
+            JqValue runData = JqValues.parse(is.readAllBytes());
+            processingService.awaitIngestion(valueService.createRootValue(rhivosFolderId, runData), 30, TimeUnit.SECONDS);
+        }
+
+        given()
+                .when().get("/api/folder/" + rhivosFolderId + "/view/" + viewId + "/data")
+                .then()
+                .statusCode(200)
+                .body("size()", equalTo(1))
+                .body("[0].start_time", notNullValue());
+        // one materialized row per (view, upload)
+        assertEquals(1, countRows("folder_view_row WHERE view_id = " + viewId));
+
+        given()
+                .when().delete("/api/folder/" + rhivosFolderId + "/view/" + viewId)
+                .then()
+                .statusCode(204);
+        assertEquals(0, countRows("folder_view_row WHERE view_id = " + viewId));
+    }
+
     @Test
     public void view_component_ordering() throws Exception {
         folderService.importFolder(Path.of("src/test/resources/rhivos/nodes.json"), false);
@@ -8,9 +8,14 @@ import io.hyperfoil.tools.h5m.api.User;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 @QuarkusTest
@@ -29,6 +34,15 @@ public class AuthorizationServiceTest extends FreshDb {
     @Inject
     FolderService folderService;
 
+    @Inject
+    CacheVersions versions;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    EntityManager em;
+
     @Test
     void security_is_enabled() {
         assertFalse(authService.isLocalMode());
@@ -121,6 +135,64 @@ public class AuthorizationServiceTest extends FreshDb {
                 () -> authService.requireFolderModify("outsider", folder));
     }
 
+    @Test
+    void isMemberOfTeam_reflects_membership_changes() {
+        long teamId = teamService.create("dev");
+        long userId = userService.create("bob", Role.USER);
+        assertFalse(authService.isMemberOfTeam("bob", teamId));
+
+        teamService.addMember(teamId, userId);
+        assertTrue(authService.isMemberOfTeam("bob", teamId));
+
+        teamService.removeMember(teamId, userId);
+        assertFalse(authService.isMemberOfTeam("bob", teamId));
+    }
+
+    @Test
+    void isAdmin_reflects_role_changes() {
+        long userId = userService.create("promoted", Role.USER);
+        assertFalse(authService.isAdmin("promoted"));
+
+        userService.setRole(userId, Role.ADMIN);
+        assertTrue(authService.isAdmin("promoted"));
+    }
+
+    @Test
+    void isAdmin_follows_role_changes_of_another_instance() throws Exception {
+        userService.create("remote", Role.ADMIN);
+        assertTrue(authService.isAdmin("remote"));
+
+        // another instance on the same database changes the row and bumps the shared counter
+        tm.begin();
+        em.createQuery("UPDATE h5m_user u SET u.role = :role WHERE u.username = :username")
+                .setParameter("role", Role.USER)
+                .setParameter("username", "remote")
+                .executeUpdate();
+        versions.bump(AuthorizationService.VERSION);
+        tm.commit();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (authService.isAdmin("remote")) {
+            assertTrue(System.currentTimeMillis() < deadline, "the revoked role should be dropped after the recheck interval");
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void uncommitted_changes_are_not_published() throws Exception {
+        long userId = userService.create("pending", Role.ADMIN);
+        assertTrue(authService.isAdmin("pending"));
+
+        tm.begin();
+        userService.setRole(userId, Role.USER);
+        assertFalse(authService.isAdmin("pending"), "the changing transaction should see its change");
+        boolean seenByOthers = CompletableFuture.supplyAsync(() -> authService.isAdmin("pending")).get(10, TimeUnit.SECONDS);
+        tm.rollback();
+
+        assertTrue(seenByOthers, "other callers should not see the uncommitted role");
+        assertTrue(authService.isAdmin("pending"), "the rolled back role should not be served");
+    }
+
     @Test
     void requireAdmin_throws_for_non_admin() {
         userService.create("regular", Role.USER);
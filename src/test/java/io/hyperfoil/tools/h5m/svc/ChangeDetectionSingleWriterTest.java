@@ -0,0 +1,23 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.cli.CliProfile;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@QuarkusTest
+@TestProfile(ChangeDetectionSingleWriterTest.SingleWriter.class)
+public class ChangeDetectionSingleWriterTest extends ChangeDetectionTest {
+
+    public static class SingleWriter extends CliProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            Map<String, String> overrides = new HashMap<>(super.getConfigOverrides());
+            overrides.put("h5m.sqlite.single-writer", "true");
+            overrides.put("h5m.sqlite.writer.max-batch", "4");
+            return overrides;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.provided.ValueDataCodec;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+@TestProfile(FolderServiceCompressionTest.Compressed.class)
+public class FolderServiceCompressionTest extends FolderServiceTest {
+
+    public static class Compressed implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("h5m.compression.enabled", "true", "h5m.compression.min-size", "0",
+                    "h5m.compression.retrain-uploads", "2");
+        }
+    }
+
+    @Inject
+    ValueCompression compression;
+
+    @Test
+    public void uploads_are_stored_compressed() throws Exception {
+        long folderId = folderService.create("compressed-upload-test").id();
+        String json = "{\"name\": \"" + "y".repeat(600) + "\"}";
+        long uploadId = valueService.createRootValue(folderId, JqValues.parse(json));
+        processingService.awaitIngestion(uploadId, 30, TimeUnit.SECONDS);
+
+        tm.begin();
+        byte[] stored = (byte[]) em.createNativeQuery("SELECT data FROM value WHERE id = :id", byte[].class)
+                .setParameter("id", uploadId).getSingleResult();
+        tm.commit();
+        assertTrue(ValueDataCodec.isCompressed(stored), "upload should be stored compressed");
+        assertTrue(stored.length < json.length(), "compressed upload should be smaller: " + stored.length);
+        assertArrayEquals(JqValues.serializeToBytes(JqValues.parse(json)),
+                ValueDataCodec.decompress(stored, id -> null));
+    }
+
+    @Test
+    public void dictionaries_with_enough_new_uploads_are_retrained() throws Exception {
+        long folderId = folderService.create("retrain-test").id();
+        String json = "{\"name\": \"" + "z".repeat(600) + "\", \"cpu\": 1}";
+        valueService.createRootValue(folderId, JqValues.parse(json));
+        assertEquals(0, compression.retrainStale(), "a fresh dictionary should not be retrained");
+
+        Thread.sleep(10);
+        valueService.createRootValue(folderId, JqValues.parse(json.replace("1", "2")));
+        processingService.awaitIngestion(valueService.createRootValue(folderId, JqValues.parse(json.replace("1", "3"))), 30, TimeUnit.SECONDS);
+        assertEquals(1, compression.retrainStale());
+        assertEquals(2, countRows("value_dictionary"), "a new dictionary should be trained");
+        assertEquals(0, compression.retrainStale(), "the new dictionary should not be retrained right away");
+    }
+}
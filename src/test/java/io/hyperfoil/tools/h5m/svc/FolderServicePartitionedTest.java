@@ -0,0 +1,37 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@QuarkusTest
+@TestProfile(FolderServicePartitionedTest.Partitioned.class)
+public class FolderServicePartitionedTest extends FolderServiceTest {
+
+    public static class Partitioned implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("h5m.postgresql.partitioned", "true");
+        }
+    }
+
+    @Test
+    public void folder_values_are_stored_and_dropped_with_its_partition() throws Exception {
+        long folderId = cpuFolder("partition-test", 3).folderId();
+
+        assertEquals(6, countRows("value_f" + folderId), "uploads and calculated values should be in the folder's partition");
+        assertEquals(3, countRows("value_edge_f" + folderId));
+
+        folderService.delete(folderId);
+        reaper.reap(folderId);
+
+        assertEquals(0, countRows("pg_class WHERE relname IN ('value_f" + folderId + "', 'value_edge_f" + folderId + "')"),
+                "the partitions should be dropped");
+        assertEquals(0, countRows("folder_deletion"));
+    }
+}
@@ -1,9 +1,57 @@
 package io.hyperfoil.tools.h5m.svc;
 
+import io.agroal.api.AgroalDataSource;
 import io.hyperfoil.tools.h5m.cli.CliProfile;
+import io.hyperfoil.tools.jjq.value.JqValues;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @QuarkusTest
 @TestProfile(CliProfile.class)
-public class FolderServiceSqliteTest extends FolderServiceTest{}
+public class FolderServiceSqliteTest extends FolderServiceTest {
+
+    @Inject
+    AgroalDataSource dataSource;
+
+    private long pageCount() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("pragma page_count")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void deleted_folder_returns_its_pages_to_the_file_system() throws Exception {
+        long before = pageCount();
+        long folderId = folderService.create("vacuum-test").id();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder padding = new StringBuilder();
+            for (int j = 0; j < 50; j++) {
+                padding.append(UUID.randomUUID());
+            }
+            processingService.awaitIngestion(valueService.createRootValue(folderId,
+                    JqValues.parse("{\"i\": " + i + ", \"padding\": \"" + padding + "\"}")), 30, TimeUnit.SECONDS);
+        }
+        long filled = pageCount();
+        assertTrue(filled > before + 20, "the uploads should take pages: " + before + " -> " + filled);
+
+        folderService.delete(folderId);
+        reaper.reap(folderId);
+
+        long after = pageCount();
+        assertTrue(after < before + (filled - before) / 2, "the file should shrink: " + filled + " -> " + after);
+    }
+}
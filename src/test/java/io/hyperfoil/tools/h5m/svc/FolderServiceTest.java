@@ -2,6 +2,7 @@ package io.hyperfoil.tools.h5m.svc;
 
 import io.hyperfoil.tools.jjq.value.*;
 import io.hyperfoil.tools.h5m.api.EphemeralMode;
+import io.hyperfoil.tools.h5m.api.FolderSummary;
 import io.hyperfoil.tools.h5m.FreshDb;
 import io.hyperfoil.tools.h5m.entity.FolderEntity;
 import io.hyperfoil.tools.h5m.entity.NodeEntity;
@@ -19,6 +20,7 @@ import jakarta.persistence.EntityManager;
 import jakarta.transaction.TransactionManager;
 import org.junit.jupiter.api.Test;
 
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -46,6 +48,9 @@ public class FolderServiceTest extends FreshDb {
     @Inject
     ValueService valueService;
 
+    @Inject
+    FolderReaper reaper;
+
     private void awaitIdle(long timeoutMs) throws InterruptedException {
         long deadline = System.currentTimeMillis() + timeoutMs;
         int stableChecks = 0;
@@ -489,4 +494,185 @@ public class FolderServiceTest extends FreshDb {
         assertNotNull(NodeEntity.findById(nodeId), "Node should not be deleted");
         tm.commit();
     }
+
+    @Test
+    public void delete_tombstones_folder_and_reaper_reclaims_values() throws Exception {
+        CpuFolder created = cpuFolder("reaper-test", 3);
+        long folderId = created.folderId();
+
+        folderService.delete(folderId);
+
+        assertNull(folderService.find("reaper-test"), "deleted folder should be hidden at once");
+        assertNull(folderService.read(folderId));
+        assertTrue(folderService.list().stream().noneMatch(f -> f.id() == folderId));
+        long reused = folderService.create("reaper-test").id();
+        assertNotEquals(folderId, reused, "the name of a deleted folder should be free again");
+
+        reaper.reap(folderId);
+
+        assertEquals(0, countRows("value", "node_id = ?", created.cpuNodeId()), "calculated values should be reclaimed");
+        assertEquals(0, countRows("value", "folder_id = ?", folderId), "uploads should be reclaimed");
+        assertEquals(0, countRows("folder", "id = ?", folderId), "folder row should be removed last");
+        assertEquals(0, countRows("folder_deletion"));
+    }
+
+    @Test
+    public void retention_archives_uploads_and_recalculation_reads_them_back() throws Exception {
+        CpuFolder created = cpuFolder("retention-test", 3);
+        long folderId = created.folderId();
+        long rootId = created.rootNodeId();
+        long nodeId = created.cpuNodeId();
+
+        folderService.setRetention(folderId, null, 1);
+        assertEquals(2, folderService.archive(folderId));
+        assertEquals(0, folderService.archive(folderId), "archived uploads should not be archived again");
+
+        assertEquals(2, countRows("value", "node_id = ? AND data IS NULL", rootId), "older payloads should leave the database");
+        assertEquals(3, countRows("value", "node_id = ?", rootId), "upload rows should stay");
+        valueService.deleteNodeValues(List.of(nodeId));
+
+        processingService.recalculateNode(nodeId);
+        processingService.awaitRecalculation(nodeId, 30, TimeUnit.SECONDS);
+
+        assertEquals(3, countRows("(SELECT DISTINCT data_hash FROM value WHERE node_id = ?) hashes", "true", nodeId),
+                "every upload, archived or not, should be recalculated");
+        assertEquals(2, countRows("value", "node_id = ? AND data IS NULL", rootId), "recalculation should not write the payloads back");
+    }
+
+    @Test
+    public void archived_uploads_are_read_back_by_readers_and_the_structure_rebuild() throws Exception {
+        CpuFolder created = cpuFolder("archive-read-test", 2);
+        long folderId = created.folderId();
+
+        folderService.setRetention(folderId, null, 0);
+        assertEquals(2, folderService.archive(folderId));
+
+        JqValue data = valueService.getValueData(created.uploadIds().getFirst());
+        assertNotNull(data, "an archived upload should be read back from its segment");
+        assertTrue(data.has("cpu"));
+        assertTrue(valueService.getNodeValues(created.rootNodeId()).stream().allMatch(v -> v.data() != null));
+        assertTrue(valueService.getNodeValuesPage(created.rootNodeId(), 1).getFirst().data().has("cpu"));
+        assertTrue(folderService.rebuildStructure(folderId, null).has("cpu"), "the rebuild should merge archived uploads");
+        assertEquals(2, countRows("value", "node_id = ? AND data IS NULL", created.rootNodeId()), "reads should not write the payloads back");
+    }
+
+    @Test
+    public void archiving_skips_a_folder_leased_by_another_run() throws Exception {
+        CpuFolder created = cpuFolder("archive-lease-test", 2);
+        long folderId = created.folderId();
+        folderService.setRetention(folderId, null, 1);
+
+        tm.begin();
+        em.createNativeQuery("INSERT INTO archive_lease (folder_id, owner, renewed_at) VALUES (?1, 'other', ?2)")
+                .setParameter(1, folderId).setParameter(2, LocalDateTime.now()).executeUpdate();
+        tm.commit();
+        assertEquals(0, folderService.archive(folderId));
+        assertEquals(0, countRows("value", "data IS NULL"));
+
+        tm.begin();
+        em.createNativeQuery("UPDATE archive_lease SET renewed_at = ?1")
+                .setParameter(1, LocalDateTime.now().minusHours(1)).executeUpdate();
+        tm.commit();
+        assertEquals(1, folderService.archive(folderId), "an expired lease should be taken over");
+        assertEquals(0, countRows("archive_lease"), "the lease should be released");
+    }
+
+    @Test
+    public void folder_stats_follow_uploads_and_deletes() throws Exception {
+        long first = cpuFolder("stats-test", 2).uploadIds().getFirst();
+
+        FolderSummary summary = folderService.getDashboardSummaries().getFirst();
+        assertEquals(2, summary.uploadCount());
+        assertEquals(1, summary.nodeCount());
+        assertNotNull(summary.lastUpload());
+
+        tm.begin();
+        valueService.delete(ValueEntity.findById(first));
+        tm.commit();
+        assertEquals(1, folderService.getFolderUploadCount().get("stats-test"));
+
+        tm.begin();
+        em.createNativeQuery("UPDATE folder_stats SET upload_count = 42").executeUpdate();
+        tm.commit();
+        assertEquals(1, folderService.rebuildStats());
+        assertEquals(1, folderService.getDashboardSummaries().getFirst().uploadCount());
+    }
+
+    @Test
+    public void folder_stats_are_written_on_create_and_not_on_read() throws Exception {
+        long folderId = folderService.create("stats-read-test").id();
+        assertEquals(1, countRows("folder_stats", "folder_id = ?", folderId), "a new folder should be counted at once");
+
+        tm.begin();
+        em.createNativeQuery("DELETE FROM folder_stats").executeUpdate();
+        tm.commit();
+        FolderSummary summary = folderService.getDashboardSummaries().getFirst();
+        assertEquals(folderId, summary.id());
+        assertEquals(0, summary.uploadCount());
+        assertEquals(0, countRows("folder_stats"), "the dashboard should not write");
+    }
+
+    @Test
+    public void counting_an_upload_keeps_the_second_level_cache() throws Exception {
+        long folderId = folderService.create("stats-cache-test").id();
+        long first = valueService.createRootValue(folderId, JqValues.parse("{\"a\": 1}"));
+        processingService.awaitIngestion(first, 30, TimeUnit.SECONDS);
+        var cache = em.getEntityManagerFactory().getCache();
+        tm.begin();
+        ValueEntity.findById(first);
+        tm.commit();
+        assertTrue(cache.contains(ValueEntity.class, first));
+
+        processingService.awaitIngestion(valueService.createRootValue(folderId, JqValues.parse("{\"a\": 2}")), 30, TimeUnit.SECONDS);
+
+        assertTrue(cache.contains(ValueEntity.class, first), "the folder_stats update should not evict cached values");
+        assertEquals(2, folderService.getFolderUploadCount().get("stats-cache-test"));
+    }
+
+    @Test
+    public void structure_merges_each_upload() throws Exception {
+        long folderId = folderService.create("structure-test").id();
+
+        processingService.awaitIngestion(valueService.createRootValue(folderId, JqValues.parse("{\"a\": 1}")), 30, TimeUnit.SECONDS);
+        assertTrue(folderService.structure(folderId).has("a"), "structure should be built from the first upload");
+
+        processingService.awaitIngestion(valueService.createRootValue(folderId, JqValues.parse("{\"b\": \"x\"}")), 30, TimeUnit.SECONDS);
+        JqValue structure = folderService.structure(folderId);
+        assertTrue(structure.has("a") && structure.has("b"), "structure should merge both uploads: " + structure);
+
+        JqValue sampled = folderService.rebuildStructure(folderId, 1);
+        assertFalse(sampled.has("a"), "a sampled rebuild should only use the latest upload: " + sampled);
+        assertTrue(sampled.has("b"), "a sampled rebuild should only use the latest upload: " + sampled);
+    }
+
+    @Test
+    public void structure_is_merged_in_the_background() throws Exception {
+        long folderId = folderService.create("structure-merge-test").id();
+        processingService.awaitIngestion(valueService.createRootValue(folderId, JqValues.parse("{\"merged\": 1}")), 30, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (countRows("folder_stats", "folder_id = ? AND structure LIKE ?", folderId, "%merged%") == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "the upload should be merged into the stored structure");
+            Thread.sleep(20);
+        }
+        assertTrue(folderService.structure(folderId).has("merged"));
+    }
+
+    @Test
+    public void compress_keeps_upload_data() throws Exception {
+        long folderId = folderService.create("compress-test").id();
+        String json = "{\"name\": \"" + "x".repeat(600) + "\", \"cpu\": 95}";
+        long first = valueService.createRootValue(folderId, JqValues.parse(json));
+        long second = valueService.createRootValue(folderId, JqValues.parse(json.replace("95", "99")));
+        processingService.awaitIngestion(second, 30, TimeUnit.SECONDS);
+
+        assertEquals(2, folderService.compress(folderId));
+        em.getEntityManagerFactory().getCache().evictAll();
+
+        tm.begin();
+        assertEquals(JqValues.parse(json).toJsonString(), ValueEntity.<ValueEntity>findById(first).data.toJsonString());
+        assertEquals(99, ValueEntity.<ValueEntity>findById(second).data.get("cpu").asLong(0));
+        tm.commit();
+        assertTrue(folderService.rebuildStructure(folderId, null).has("name"));
+    }
 }
@@ -0,0 +1,76 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.entity.node.RootNode;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class NodeEvaluationCacheTest {
+
+    private static NodeEvaluationCache cache(int maxEntries, Path spillDir) {
+        NodeEvaluationCache cache = new NodeEvaluationCache();
+        cache.enabled = true;
+        cache.maxEntries = maxEntries;
+        cache.spillDir = Optional.ofNullable(spillDir);
+        cache.registry = new SimpleMeterRegistry();
+        cache.init();
+        return cache;
+    }
+
+    private static Map<Long, ValueEntity> input(NodeEntity root, String json) {
+        root.id = 1L;
+        return Map.of(root.id, new ValueEntity(null, root, JqValues.parse(json)));
+    }
+
+    @Test
+    public void key_depends_on_operation_and_data() {
+        NodeEvaluationCache cache = cache(10, null);
+        NodeEntity root = new RootNode();
+        NodeEntity a = new JqNode("a", ".a", root);
+        NodeEntity b = new JqNode("b", ".b", root);
+
+        NodeEvaluationCache.Key key = cache.key(a, input(root, "{\"a\":1}"));
+        assertEquals(key, cache.key(a, input(root, "{\"a\":1}")));
+        assertNotEquals(key, cache.key(a, input(root, "{\"a\":2}")));
+        assertNotEquals(key, cache.key(b, input(root, "{\"a\":1}")));
+    }
+
+    @Test
+    public void get_reports_hits_and_misses() {
+        NodeEvaluationCache cache = cache(10, null);
+        NodeEvaluationCache.Key key = new NodeEvaluationCache.Key(1, 2);
+        assertNull(cache.get(key));
+        cache.put(key, List.of(JqValues.parse("1")));
+        assertEquals(List.of(JqValues.parse("1")), cache.get(key));
+        assertEquals(0.5, cache.hitRatio());
+    }
+
+    @Test
+    public void evicted_entries_spill_to_disk(@TempDir Path dir) {
+        NodeEvaluationCache cache = cache(1, dir);
+        NodeEvaluationCache.Key first = new NodeEvaluationCache.Key(1, 1);
+        NodeEvaluationCache.Key second = new NodeEvaluationCache.Key(2, 2);
+        cache.put(first, List.of(JqValues.parse("{\"x\":1}")));
+        cache.put(second, List.of(JqValues.parse("{\"x\":2}")));
+        assertEquals(1, cache.size());
+
+        List<JqValue> spilled = cache.get(first);
+        assertNotNull(spilled, "evicted entry should be read back from the spill directory");
+        assertEquals(JqValues.parse("{\"x\":1}"), spilled.getFirst());
+    }
+}
@@ -0,0 +1,69 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+public class NodeGraphsTest extends FreshDb {
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    FolderService folderService;
+
+    @Inject
+    NodeService nodeService;
+
+    @Inject
+    NodeGraphs graphs;
+
+    @Test
+    public void graph_is_compiled_once_and_replaced_when_nodes_change() throws Exception {
+        tm.begin();
+        long folderId = folderService.create("graph-test").id();
+        FolderEntity folder = folderService.read(folderId);
+        long groupId = folder.group.id;
+        long rootId = folder.group.root.id;
+        NodeEntity a = new JqNode("a", ".a", folder.group.root);
+        a.group = folder.group;
+        a.persist();
+        NodeEntity b = new JqNode("b", ".b", a);
+        b.group = folder.group;
+        b.persist();
+        tm.commit();
+
+        NodeGraph graph = graphs.forGroup(groupId);
+        assertNotNull(graph);
+        assertSame(graph, graphs.forGroup(groupId), "the compiled graph should be reused");
+        assertSame(graph, graphs.forNode(rootId), "the root should be found in the graph of its group");
+        assertEquals(List.of(rootId, a.id, b.id), graph.topologicalOrder());
+        assertTrue(graph.dependsOn(b.id, rootId));
+        assertFalse(graph.isEphemeral(b.id));
+
+        tm.begin();
+        NodeEntity c = new JqNode("c", ".c", nodeService.read(b.id));
+        c.group = folderService.read(folderId).group;
+        c.persist();
+        assertNull(graphs.forGroup(groupId), "a transaction changing nodes should not use the graphs");
+        tm.commit();
+
+        NodeGraph changed = graphs.forGroup(groupId);
+        assertNotSame(graph, changed);
+        assertTrue(changed.version() > graph.version());
+        assertEquals(List.of(c.id), changed.children(b.id));
+        assertTrue(changed.isEphemeral(b.id), "b has a child now");
+        assertTrue(nodeService.isEphemeral(b));
+    }
+}
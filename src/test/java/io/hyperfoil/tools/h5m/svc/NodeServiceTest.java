@@ -267,6 +267,53 @@ public class NodeServiceTest extends FreshDb {
         assertNull(ValueEntity.findById(value.id), "value associated with the node should be deleted");
     }
 
+    @Test
+    public void delete_node_with_more_values_than_a_chunk() throws HeuristicRollbackException, SystemException, HeuristicMixedException, RollbackException, NotSupportedException {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity aNode = new JqNode("a", ".a", rootNode);
+        aNode.persist();
+        NodeEntity bNode = new JqNode("b", ".b", rootNode);
+        bNode.persist();
+        // only depends on a, deleted with it
+        NodeEntity cNode = new JqNode("c", ".c", aNode);
+        cNode.persist();
+        // also depends on b, kept
+        NodeEntity dNode = new JqNode("d", ".d", List.of(aNode, bNode));
+        dNode.persist();
+        ValueEntity rootValue = new ValueEntity(null, rootNode, JqNumber.of(0));
+        rootValue.persist();
+        ValueEntity bValue = new ValueEntity(null, bNode, JqNumber.of(0));
+        bValue.sources = List.of(rootValue);
+        bValue.persist();
+        ValueEntity dValue = null;
+        for (int i = 0; i < 700; i++) {
+            ValueEntity aValue = new ValueEntity(null, aNode, JqNumber.of(i));
+            aValue.sources = List.of(rootValue);
+            aValue.persist();
+            ValueEntity cValue = new ValueEntity(null, cNode, JqNumber.of(i));
+            cValue.sources = List.of(aValue);
+            cValue.persist();
+            if (i == 0) {
+                dValue = new ValueEntity(null, dNode, JqNumber.of(i));
+                dValue.sources = List.of(aValue, bValue);
+                dValue.persist();
+            }
+        }
+        tm.commit();
+
+        nodeService.delete(aNode.id);
+
+        assertNull(NodeEntity.findById(aNode.id), "a should be deleted");
+        assertNull(NodeEntity.findById(cNode.id), "c should be deleted with its only source");
+        assertNotNull(NodeEntity.findById(dNode.id), "d should be kept for its other source");
+        assertEquals(0, ValueEntity.count("node.id in ?1", List.of(aNode.id, cNode.id)));
+        assertEquals(1, ValueEntity.count("node.id", dNode.id), "the value of d should be kept for its other parent");
+        assertNotNull(ValueEntity.findById(bValue.id));
+        assertNotNull(ValueEntity.findById(rootValue.id));
+    }
+
     @Test
     public void renameParameters_spaced_parameters() {
         assertEquals("function foo( biz , buz ){}", nodeService.renameParameters("function foo( fiz , fuzz ){}", Map.of("fiz", "biz", "fuzz", "buz")));
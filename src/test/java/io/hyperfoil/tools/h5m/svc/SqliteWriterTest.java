@@ -0,0 +1,116 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+@TestProfile(ChangeDetectionSingleWriterTest.SingleWriter.class)
+public class SqliteWriterTest extends FreshDb {
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    SqliteWriter writer;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    ProcessingService processingService;
+
+    @Inject
+    FolderService folderService;
+
+    @Inject
+    ValueService valueService;
+
+    private static Synchronization recording(List<Integer> statuses) {
+        return new Synchronization() {
+            @Override
+            public void beforeCompletion() {}
+
+            @Override
+            public void afterCompletion(int status) {
+                statuses.add(status);
+            }
+        };
+    }
+
+    @Test
+    public void failing_action_leaves_the_trackers_of_its_batch_alone() throws Exception {
+        CpuFolder created = cpuFolder("writer-test", 0);
+        tm.begin();
+        FolderEntity folder = folderService.read(created.folderId());
+        NodeEntity cpu = NodeEntity.findById(created.cpuNodeId());
+        long good = valueService.create(new ValueEntity(folder, folder.group.root, JqValues.parse("{\"cpu\": 1}"))).id;
+        long bad = valueService.create(new ValueEntity(folder, folder.group.root, JqValues.parse("{\"cpu\": 2}"))).id;
+        Work goodWork = new Work(cpu, new ArrayList<>(cpu.sources), List.of(good));
+        Work badWork = new Work(cpu, new ArrayList<>(cpu.sources), List.of(bad));
+        String folderName = folder.name;
+        tm.commit();
+        ProcessingService.ActivityTracker goodTracker = processingService.createForIngestion(created.rootNodeId(), good, folderName);
+        ProcessingService.ActivityTracker badTracker = processingService.createForIngestion(created.rootNodeId(), bad, folderName);
+
+        // hold the writer until both actions wait for it, so they are committed in one batch
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> blocker = CompletableFuture.supplyAsync(() -> writer.call(() -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        List<Integer> goodStatuses = new CopyOnWriteArrayList<>();
+        List<Integer> badStatuses = new CopyOnWriteArrayList<>();
+        CompletableFuture<Object> goodAction = CompletableFuture.supplyAsync(() -> writer.call(() -> {
+            workService.create(List.of(goodWork));
+            writer.registerSynchronization(recording(goodStatuses));
+            return null;
+        }));
+        CompletableFuture<Object> badAction = CompletableFuture.supplyAsync(() -> writer.call(() -> {
+            workService.create(List.of(badWork));
+            writer.registerSynchronization(recording(badStatuses));
+            throw new IllegalStateException("failing batch member");
+        }));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (writer.waiting() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline, "the actions did not reach the writer");
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        blocker.get(10, TimeUnit.SECONDS);
+        goodAction.get(10, TimeUnit.SECONDS);
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> badAction.get(10, TimeUnit.SECONDS));
+        assertEquals("failing batch member", failure.getCause().getMessage());
+        assertEquals(List.of(Status.STATUS_COMMITTED), goodStatuses, "the good action should complete once, with the commit");
+        assertEquals(List.of(Status.STATUS_ROLLEDBACK), badStatuses);
+
+        goodTracker.getFuture().get(30, TimeUnit.SECONDS);
+        assertEquals(1, countRows("value", "node_id = ?", created.cpuNodeId()), "only the work of the good action should run");
+        assertTrue(badTracker.getFuture().isDone(), "the rolled back work should not be counted");
+        assertEquals(0, countRows("work_journal"));
+    }
+}
@@ -0,0 +1,93 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.entity.node.RootNode;
+import io.hyperfoil.tools.jjq.value.JqObject;
+import io.hyperfoil.tools.jjq.value.JqString;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+@TestProfile(ValueServiceBlobTest.Blobs.class)
+public class ValueServiceBlobTest extends ValueServiceTest {
+
+    @Inject
+    ValueBlobs valueBlobs;
+
+    public static class Blobs implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("h5m.value-blobs.enabled", "true", "h5m.value-blobs.min-size", "0");
+        }
+    }
+
+    @Test
+    public void createAll_stores_identical_payloads_once() throws Exception {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity aNode = new JqNode("a", ".a");
+        aNode.sources = List.of(rootNode);
+        aNode.persist();
+        ValueEntity firstRoot = new ValueEntity(null, rootNode, JqObject.of("run", JqString.of("1")));
+        firstRoot.persist();
+        ValueEntity secondRoot = new ValueEntity(null, rootNode, JqObject.of("run", JqString.of("2")));
+        secondRoot.persist();
+        tm.commit();
+
+        JqValue config = JqObject.of("env", JqString.of("prod"));
+        ValueEntity first = new ValueEntity(null, aNode, config, List.of(firstRoot));
+        ValueEntity second = new ValueEntity(null, aNode, config, List.of(secondRoot));
+        valueService.createAll(List.of(first, second));
+
+        assertNotNull(first.blobHash, "payload should be shared");
+        assertEquals(first.blobHash, second.blobHash);
+        tm.begin();
+        assertEquals(1, ((Number) em.createNativeQuery("SELECT count(*) FROM value_blob").getSingleResult()).intValue());
+        assertEquals(0, ((Number) em.createNativeQuery("SELECT count(*) FROM value WHERE node_id = :nodeId AND data IS NOT NULL")
+                .setParameter("nodeId", aNode.id).getSingleResult()).intValue());
+        tm.commit();
+        em.getEntityManagerFactory().getCache().evictAll();
+        assertEquals(config, valueService.getValueData(second.id));
+
+        assertEquals(2, valueService.nullifyNodeData(aNode.id));
+        assertNull(valueService.getValueData(first.id), "nulled data should not fall back to the blob");
+    }
+
+    @Test
+    public void inline_moves_shared_payloads_back_into_the_values() throws Exception {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity aNode = new JqNode("a", ".a");
+        aNode.sources = List.of(rootNode);
+        aNode.persist();
+        ValueEntity root = new ValueEntity(null, rootNode, JqObject.of("run", JqString.of("1")));
+        root.persist();
+        tm.commit();
+        JqValue config = JqObject.of("env", JqString.of("prod"));
+        ValueEntity shared = new ValueEntity(null, aNode, config, List.of(root));
+        valueService.createAll(List.of(shared));
+        assertNotNull(shared.blobHash);
+
+        assertEquals(1, valueBlobs.inline());
+
+        tm.begin();
+        assertEquals(1, ((Number) em.createNativeQuery("SELECT count(*) FROM value WHERE node_id = :nodeId AND data IS NOT NULL AND blob_hash IS NULL")
+                .setParameter("nodeId", aNode.id).getSingleResult()).intValue());
+        tm.commit();
+        em.getEntityManagerFactory().getCache().evictAll();
+        assertEquals(config, valueService.getValueData(shared.id));
+    }
+}
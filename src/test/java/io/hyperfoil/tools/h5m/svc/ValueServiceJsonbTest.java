@@ -0,0 +1,41 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@QuarkusTest
+@TestProfile(ValueServiceJsonbTest.Jsonb.class)
+public class ValueServiceJsonbTest extends ValueServiceTest {
+
+    public static class Jsonb implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("h5m.postgresql.jsonb", "true");
+        }
+    }
+
+    @Test
+    public void data_is_stored_as_jsonb() throws Exception {
+        for (String table : new String[]{"value", "value_blob"}) {
+            assertEquals(1, countRows("information_schema.columns",
+                    "table_schema = current_schema() AND table_name = ? AND column_name = 'data' AND data_type = 'jsonb'", table),
+                    table + ".data should be converted to jsonb");
+        }
+    }
+
+    @Test
+    public void data_is_indexed_as_jsonb() throws Exception {
+        for (String index : JsonbStorage.INDEXES.keySet()) {
+            assertEquals(1, countRows("pg_indexes", "schemaname = current_schema() AND tablename = 'value' AND indexname = ?", index),
+                    "missing index " + index);
+        }
+        assertEquals(0, countRows("pg_indexes", "schemaname = current_schema() AND tablename = 'value' AND indexname IN ('value_data_gin', 'value_data_unhashed')"),
+                "indexes no query uses should be dropped");
+    }
+}
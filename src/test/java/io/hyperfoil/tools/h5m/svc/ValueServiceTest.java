@@ -16,12 +16,14 @@ import io.quarkus.test.junit.QuarkusTest;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.*;
+import jakarta.ws.rs.BadRequestException;
 import org.hibernate.LazyInitializationException;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -100,6 +102,71 @@ public class ValueServiceTest extends FreshDb {
     }
 
 
+    @Test
+    public void createAll_inserts_values_and_edges_in_bulk() throws Exception {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity aNode = new JqNode("a",".a");
+        aNode.sources=List.of(rootNode);
+        aNode.persist();
+        ValueEntity rootValue = new ValueEntity(null,rootNode,JqObject.of("a",JqString.of("x")));
+        rootValue.persist();
+        tm.commit();
+
+        ValueEntity first = new ValueEntity(null,aNode,JqString.of("x"),List.of(rootValue));
+        ValueEntity second = new ValueEntity(null,aNode,JqString.of("y"),List.of(rootValue));
+        second.idx = 1;
+        ValueEntity nested = new ValueEntity(null,aNode,JqString.of("z"),List.of(first));
+        valueService.createAll(List.of(second, nested));
+
+        assertNotNull(first.id, "new source should be inserted with the values that use it");
+        assertNotNull(second.id);
+        assertNotNull(nested.id);
+        assertNotEquals(first.id, second.id);
+        assertTrue(rootValue.id < first.id, "allocated ids should follow persisted ids");
+
+        tm.begin();
+        ValueEntity found = ValueEntity.findById(nested.id);
+        assertNotNull(found);
+        assertEquals(JqString.of("z"), found.data);
+        assertEquals(1, found.sources.size());
+        assertEquals(first.id, found.sources.getFirst().id);
+        assertEquals(1, ValueEntity.<ValueEntity>findById(second.id).idx);
+        assertNotNull(found.getCreatedAt());
+        assertEquals(3, valueService.getDescendantValues(rootValue).size());
+        tm.commit();
+    }
+
+    @Test
+    public void nullifyNodeData_evicts_only_nulled_values() throws Exception {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity aNode = new JqNode("a",".a");
+        aNode.sources=List.of(rootNode);
+        aNode.persist();
+        ValueEntity rootValue = new ValueEntity(null,rootNode,JqObject.of("a",JqString.of("x")));
+        rootValue.persist();
+        ValueEntity aValue = new ValueEntity(null,aNode,JqString.of("x"),List.of(rootValue));
+        aValue.persist();
+        tm.commit();
+
+        var cache = em.getEntityManagerFactory().getCache();
+        tm.begin();
+        ValueEntity.findById(rootValue.id);
+        ValueEntity.findById(aValue.id);
+        tm.commit();
+        assertTrue(cache.contains(ValueEntity.class, rootValue.id));
+        assertTrue(cache.contains(ValueEntity.class, aValue.id));
+
+        assertEquals(1, valueService.nullifyNodeData(aNode.id));
+
+        assertFalse(cache.contains(ValueEntity.class, aValue.id), "nulled value should be evicted");
+        assertTrue(cache.contains(ValueEntity.class, rootValue.id), "other values should stay cached");
+        assertNull(valueService.getValueData(aValue.id));
+    }
+
     @Test
     public void delete_does_not_cascade_to_shared_child() throws HeuristicRollbackException, SystemException, HeuristicMixedException, RollbackException, NotSupportedException {
         tm.begin();
@@ -1479,6 +1546,67 @@ public class ValueServiceTest extends FreshDb {
         assertFalse(results.get(0).has("build_id"), "row should not have build_id when filtered out: " + results.get(0));
     }
 
+    @Test
+    public void getGroupedValuesPage_uses_keyset_cursor() throws HeuristicRollbackException, SystemException, HeuristicMixedException, RollbackException, NotSupportedException {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity throughputNode = new JqNode("throughput",".tps");
+        throughputNode.sources = List.of(rootNode);
+        throughputNode.persist();
+        List<ValueEntity> roots = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ValueEntity root = new ValueEntity(null, rootNode, JqValues.parse("{ \"tps\": " + (100 + i) + " }"));
+            root.persist();
+            new ValueEntity(null, throughputNode, root.data.getField("tps"), List.of(root)).persist();
+            roots.add(root);
+        }
+        tm.commit();
+
+        List<JqValue> first = valueService.getGroupedValuesPage(rootNode.id, null, 2);
+        assertEquals(2, first.size(), "first page should be limited: " + first);
+        assertEquals("100", first.get(0).getField("throughput").asText());
+        assertEquals("101", first.get(1).getField("throughput").asText());
+
+        List<ValueService.JsonRow> streamed = new ArrayList<>();
+        valueService.streamGroupedValues(rootNode.id, null, null, null, 2, streamed::add);
+        assertEquals(roots.get(1).id, streamed.getLast().rootId());
+
+        List<JqValue> second = valueService.getGroupedValuesPage(rootNode.id, streamed.getLast().rootId(), 2);
+        assertEquals(1, second.size(), "second page should start after the cursor: " + second);
+        assertEquals("102", second.get(0).getField("throughput").asText());
+        assertEquals(3, valueService.getGroupedValueCount(rootNode.id));
+    }
+
+    @Test
+    public void grouped_page_has_a_row_for_every_upload_on_it() throws Exception {
+        tm.begin();
+        NodeEntity rootNode = new RootNode();
+        rootNode.persist();
+        NodeEntity throughputNode = new JqNode("throughput",".tps");
+        throughputNode.sources = List.of(rootNode);
+        throughputNode.persist();
+        List<ValueEntity> roots = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ValueEntity root = new ValueEntity(null, rootNode, JqValues.parse("{ \"tps\": " + (100 + i) + " }"));
+            root.persist();
+            // the second upload has no throughput
+            if (i != 1) {
+                new ValueEntity(null, throughputNode, root.data.getField("tps"), List.of(root)).persist();
+            }
+            roots.add(root);
+        }
+        tm.commit();
+
+        List<ValueService.JsonRow> page = new ArrayList<>();
+        valueService.streamGroupedValues(rootNode.id, List.of(throughputNode.id), null, roots.get(0).id, 1, page::add);
+
+        assertEquals(1, page.size());
+        assertEquals(roots.get(1).id, page.getFirst().rootId(), "the upload without the node should not be skipped");
+        assertEquals("{}", page.getFirst().json());
+        assertThrows(BadRequestException.class, () -> valueService.getGroupedValuesPage(rootNode.id, null, 0));
+    }
+
     @Test
     public void getGroupedValues_sorted() throws HeuristicRollbackException, SystemException, HeuristicMixedException, RollbackException, NotSupportedException
     {
@@ -2182,4 +2310,94 @@ public class ValueServiceTest extends FreshDb {
         }
     }
 
+    @Test
+    public void findMatchingFingerprint_string_domain_uses_sort_keys() throws SystemException, NotSupportedException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
+        tm.begin();
+        NodeGroupEntity group = new NodeGroupEntity("fmf_string_domain");
+        group.persist();
+        NodeEntity rootNode = group.root;
+        NodeEntity fpNode = new JqNode("fp", ".fp", List.of(rootNode));
+        fpNode.persist();
+        NodeEntity rangeNode = new JqNode("range", ".range", List.of(rootNode));
+        rangeNode.persist();
+        NodeEntity domainNode = new JqNode("domain", ".domain", List.of(rootNode));
+        domainNode.persist();
+
+        String[] domains = {"2024-03-01", "2024-01-15", "2024-02-10"};
+        ValueEntity[] domainValues = new ValueEntity[domains.length];
+        ValueEntity[] fpValues = new ValueEntity[domains.length];
+        for (int i = 0; i < domains.length; i++) {
+            ValueEntity rootValue = new ValueEntity(null, rootNode, JqString.of("root" + i));
+            rootValue.persist();
+            ValueEntity rangeValue = new ValueEntity(null, rangeNode, JqNumber.of(i));
+            rangeValue.sources = List.of(rootValue);
+            rangeValue.persist();
+            domainValues[i] = new ValueEntity(null, domainNode, JqString.of(domains[i]));
+            domainValues[i].sources = List.of(rootValue);
+            domainValues[i].persist();
+            fpValues[i] = new ValueEntity(null, fpNode, JqString.of("fp"));
+            fpValues[i].sources = List.of(rootValue);
+            fpValues[i].persist();
+        }
+        tm.commit();
+        assertEquals("2024-02-10", domainValues[2].domainTxt);
+        assertNull(domainValues[2].domainNum);
+
+        // domain <= 2024-02-10: 2024-01-15 (range 1) then 2024-02-10 (range 2)
+        List<ValueEntity> preceding = valueService.findMatchingFingerprint(
+                rangeNode, rootNode, fpValues[0], domainNode, domainValues[2], null, -1, 0, true);
+        assertEquals(2, preceding.size(), preceding.toString());
+        assertEquals(1.0, valueService.getValueData(preceding.get(0).getId()).tryDouble(), 0.01);
+        assertEquals(2.0, valueService.getValueData(preceding.get(1).getId()).tryDouble(), 0.01);
+    }
+
+    @Test
+    public void findMatchingFingerprint_orders_large_integer_and_object_domains() throws SystemException, NotSupportedException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
+        tm.begin();
+        NodeGroupEntity group = new NodeGroupEntity("fmf_exact_domain");
+        group.persist();
+        NodeEntity rootNode = group.root;
+        NodeEntity fpNode = new JqNode("fp", ".fp", List.of(rootNode));
+        fpNode.persist();
+        NodeEntity rangeNode = new JqNode("range", ".range", List.of(rootNode));
+        rangeNode.persist();
+        NodeEntity nanosNode = new JqNode("nanos", ".nanos", List.of(rootNode));
+        nanosNode.persist();
+        NodeEntity objectNode = new JqNode("object", ".object", List.of(rootNode));
+        objectNode.persist();
+
+        // nanosecond timestamps that are equal as doubles
+        long[] nanos = {1700000000000000003L, 1700000000000000001L, 1700000000000000002L};
+        String[] objects = {"{\"at\": 3}", "{\"at\": 1}", "{\"at\": 2}"};
+        ValueEntity[] nanosValues = new ValueEntity[nanos.length];
+        ValueEntity fpValue = null;
+        for (int i = 0; i < nanos.length; i++) {
+            ValueEntity rootValue = new ValueEntity(null, rootNode, JqString.of("root" + i));
+            rootValue.persist();
+            ValueEntity rangeValue = new ValueEntity(null, rangeNode, JqNumber.of(i));
+            rangeValue.sources = List.of(rootValue);
+            rangeValue.persist();
+            nanosValues[i] = new ValueEntity(null, nanosNode, JqNumber.of(nanos[i]));
+            nanosValues[i].sources = List.of(rootValue);
+            nanosValues[i].persist();
+            ValueEntity objectValue = new ValueEntity(null, objectNode, JqValues.parse(objects[i]));
+            objectValue.sources = List.of(rootValue);
+            objectValue.persist();
+            fpValue = new ValueEntity(null, fpNode, JqString.of("fp"));
+            fpValue.sources = List.of(rootValue);
+            fpValue.persist();
+        }
+        tm.commit();
+        assertEquals(nanos[2], nanosValues[2].domainInt);
+
+        // nanos >= ...002: range 2 (...002) then range 0 (...003)
+        List<ValueEntity> following = valueService.findMatchingFingerprint(
+                rangeNode, rootNode, fpValue, nanosNode, nanosValues[2], null, -1, 0, false);
+        assertEquals(List.of(2.0, 0.0), following.stream().map(v -> valueService.getValueData(v.getId()).tryDouble()).toList());
+
+        List<ValueEntity> byObject = valueService.findMatchingFingerprint(
+                rangeNode, rootNode, fpValue, objectNode, null, -1, 0, false);
+        assertEquals(List.of(1.0, 2.0, 0.0), byObject.stream().map(v -> valueService.getValueData(v.getId()).tryDouble()).toList());
+    }
+
 }
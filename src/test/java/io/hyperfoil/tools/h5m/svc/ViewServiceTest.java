@@ -0,0 +1,133 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.hyperfoil.tools.h5m.api.View;
+import io.hyperfoil.tools.h5m.api.ViewComponent;
+import io.hyperfoil.tools.jjq.value.JqObject;
+import io.hyperfoil.tools.jjq.value.JqValue;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+public class ViewServiceTest extends FreshDb {
+
+    @Inject
+    ViewService viewService;
+
+    @Inject
+    ValueService valueService;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    EntityManager em;
+
+    private long folderId;
+    private long cpuId;
+    private List<Long> uploadIds;
+
+    private void createFolder() throws Exception {
+        CpuFolder created = cpuFolder("view-test", 3);
+        folderId = created.folderId();
+        cpuId = created.cpuNodeId();
+        uploadIds = created.uploadIds();
+    }
+
+    private long createCpuView() throws Exception {
+        long viewId = viewService.createView(folderId, new View(null, "cpu-view", folderId,
+                List.of(new ViewComponent(null, cpuId, null, null, "cpu", 0)))).id();
+        awaitRows(viewId);
+        return viewId;
+    }
+
+    // rows are materialized in the background once the change commits
+    private void awaitRows(long viewId) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (countRows("folder_view", "id = ? AND rows_pending_after IS NOT NULL", viewId) > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "rows of view " + viewId + " were not materialized");
+            Thread.sleep(20);
+        }
+    }
+
+    private static JqValue cpu(JqValue row) {
+        assertInstanceOf(JqObject.class, row);
+        return ((JqObject) row).get("cpu");
+    }
+
+    @Test
+    public void rows_are_materialized_when_the_view_is_created() throws Exception {
+        createFolder();
+
+        long viewId = createCpuView();
+
+        assertEquals(3, countRows("folder_view_row"), "the uploads before the view should have rows");
+        List<JqValue> rows = viewService.getViewData(folderId, viewId);
+        assertEquals(3, rows.size());
+        assertEquals("2", cpu(rows.get(2)).toJsonString());
+        assertEquals(3, countRows("folder_view_row"), "reading should not write rows");
+    }
+
+    @Test
+    public void rows_of_nulled_values_are_not_stale() throws Exception {
+        createFolder();
+        long viewId = createCpuView();
+        assertEquals("0", cpu(viewService.getViewData(folderId, viewId).get(0)).toJsonString());
+
+        given().queryParam("mode", "DISCARD")
+                .when().put("/api/node/" + cpuId + "/ephemeral")
+                .then().statusCode(204);
+
+        List<JqValue> rows = viewService.getViewData(folderId, viewId);
+        assertEquals(3, rows.size());
+        for (JqValue row : rows) {
+            JqValue cpu = cpu(row);
+            assertTrue(cpu == null || cpu.isNull(), "nulled data should not be served from the row: " + row.toJsonString());
+        }
+    }
+
+    @Test
+    public void pending_rows_are_computed_when_read() throws Exception {
+        createFolder();
+        long viewId = createCpuView();
+        // as if the background had only materialized the first upload
+        tm.begin();
+        em.createNativeQuery("UPDATE folder_view SET rows_pending_after = ?1 WHERE id = ?2")
+                .setParameter(1, uploadIds.get(0)).setParameter(2, viewId).executeUpdate();
+        em.createNativeQuery("DELETE FROM folder_view_row WHERE root_value_id > ?1")
+                .setParameter(1, uploadIds.get(0)).executeUpdate();
+        tm.commit();
+
+        List<JqValue> rows = viewService.getViewData(folderId, viewId);
+        assertEquals(3, rows.size());
+        assertEquals("2", cpu(rows.get(2)).toJsonString());
+        List<String> page = new ArrayList<>();
+        viewService.streamViewData(viewId, uploadIds.get(0), 1, row -> page.add(row.json()));
+        assertEquals(1, page.size());
+        assertEquals("1", cpu(JqValues.parse(page.getFirst())).toJsonString());
+        assertEquals(1, countRows("folder_view_row"), "reading should not write rows");
+    }
+
+    @Test
+    public void rows_of_deleted_uploads_are_deleted() throws Exception {
+        createFolder();
+        long viewId = createCpuView();
+
+        valueService.deleteWithDescendants(List.of(uploadIds.get(0)));
+
+        assertEquals(2, countRows("folder_view_row"));
+        List<JqValue> rows = viewService.getViewData(folderId, viewId);
+        assertEquals(2, rows.size());
+        assertEquals("1", cpu(rows.get(0)).toJsonString());
+    }
+}
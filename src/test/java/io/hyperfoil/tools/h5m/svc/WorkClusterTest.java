@@ -0,0 +1,322 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.agroal.api.AgroalDataSource;
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.hyperfoil.tools.h5m.api.Processing;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.entity.NodeEntity;
+import io.hyperfoil.tools.h5m.entity.ProcessingEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.WorkJournalEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.h5m.entity.work.Work;
+import io.hyperfoil.tools.h5m.queue.NodeGraph;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+@TestProfile(WorkClusterTest.Cluster.class)
+public class WorkClusterTest extends FreshDb {
+
+    // three members in this JVM claiming two rows each, polled by the tests only
+    public static class Cluster implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of(
+                    "h5m.cluster.enabled", "true",
+                    "h5m.cluster.executors", "3",
+                    "h5m.cluster.claim-batch", "2",
+                    "h5m.cluster.poll-interval", "PT1H",
+                    "h5m.cluster.max-attempts", "2");
+        }
+    }
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    FolderService folderService;
+
+    @Inject
+    ProcessingService processingService;
+
+    @Inject
+    ValueService valueService;
+
+    @Inject
+    WorkJournal journal;
+
+    @Inject
+    WorkCluster cluster;
+
+    @Inject
+    WorkService workService;
+
+    @Inject
+    AgroalDataSource dataSource;
+
+    @Inject
+    NodeGraphs graphs;
+
+    @Inject
+    CacheVersions versions;
+
+    private long folderId;
+    private long aId;
+    private long bId;
+    private long xId;
+
+    // root -> a -> b, root -> x
+    private void createFolder() throws Exception {
+        tm.begin();
+        folderId = folderService.create("cluster-test").id();
+        FolderEntity folder = folderService.read(folderId);
+        JqNode a = new JqNode("a", ".key", folder.group.root);
+        a.group = folder.group;
+        a.persist();
+        JqNode b = new JqNode("b", ". + \"_b\"", a);
+        b.group = folder.group;
+        b.persist();
+        JqNode x = new JqNode("x", ".other", folder.group.root);
+        x.group = folder.group;
+        x.persist();
+        folder.group.sources.addAll(List.of(a, b, x));
+        folder.group.persist();
+        aId = a.id;
+        bId = b.id;
+        xId = x.id;
+        tm.commit();
+    }
+
+    private WorkJournalEntity row(long nodeId, long rootValueId, String claimedBy) {
+        WorkJournalEntity row = new WorkJournalEntity();
+        row.nodeId = nodeId;
+        row.valueIds = Long.toString(rootValueId);
+        row.rootValueId = rootValueId;
+        row.cascades = true;
+        row.dispatches = true;
+        row.queuedAt = LocalDateTime.now();
+        row.claimedBy = claimedBy;
+        row.claimedAt = claimedBy == null ? null : LocalDateTime.now();
+        return row;
+    }
+
+    // polls like the scheduler of the cluster until nothing is left to process
+    private void pollUntilCompleted() throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            cluster.poll();
+            tm.begin();
+            long incomplete = ProcessingEntity.count("completed", false);
+            tm.commit();
+            if (incomplete == 0) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail(incomplete + " processing operations did not complete");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void uploads_are_claimed_once_and_spread_over_the_members() throws Exception {
+        createFolder();
+        Map<String, Long> before = new HashMap<>();
+        cluster.members().forEach(member -> before.put(member, cluster.claimed(member)));
+        List<Long> uploadIds = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            uploadIds.add(valueService.createRootValue(folderId,
+                    JqValues.parse("{\"key\": \"k" + i + "\", \"other\": \"o" + i + "\"}")));
+        }
+        assertEquals(12, countRows("work_journal"), "the work of a and x waits for a member to claim it");
+        assertEquals(Processing.State.RUNNING, processingService.getIngestionStatus(uploadIds.get(0)).state());
+        assertFalse(processingService.awaitIngestion(uploadIds.get(0), 50, TimeUnit.MILLISECONDS));
+
+        pollUntilCompleted();
+
+        assertEquals(0, countRows("work_journal"));
+        long claimed = 0;
+        for (String member : cluster.members()) {
+            long byMember = cluster.claimed(member) - before.get(member);
+            assertTrue(byMember > 0, "member " + member + " should have claimed work");
+            claimed += byMember;
+        }
+        assertEquals(12, claimed, "every row should be claimed by one member once");
+        for (long uploadId : uploadIds) {
+            assertTrue(processingService.awaitIngestion(uploadId, 1, TimeUnit.SECONDS));
+            assertEquals(Processing.State.COMPLETED, processingService.getIngestionStatus(uploadId).state());
+        }
+        tm.begin();
+        assertEquals(6, ValueEntity.find("node.id", bId).count(), "cascade work should run on the claiming member");
+        assertEquals(6, ValueEntity.find("node.id", xId).count());
+        tm.commit();
+    }
+
+    @Test
+    public void root_value_is_claimed_by_one_member_at_a_time() throws Exception {
+        createFolder();
+        tm.begin();
+        row(aId, 1001, "other-member").persist();
+        row(xId, 1001, null).persist();
+        row(aId, 1002, null).persist();
+        tm.commit();
+
+        tm.begin();
+        List<WorkJournalEntity> claimed = journal.claim("member", 10);
+        tm.commit();
+
+        assertEquals(1, claimed.size());
+        assertEquals(1002, claimed.get(0).rootValueId, "rows of a root value another member works on should wait");
+        tm.begin();
+        assertNull(WorkJournalEntity.<WorkJournalEntity>find("nodeId = ?1 and rootValueId = ?2", xId, 1001L).firstResult().claimedBy);
+        assertEquals("member", WorkJournalEntity.<WorkJournalEntity>find("rootValueId", 1002L).firstResult().claimedBy);
+        tm.commit();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    @Test
+    public void failing_work_is_retried_then_dropped_and_its_upload_fails() throws Exception {
+        createFolder();
+        // the values of x cannot be stored, a and b are unaffected
+        execute("CREATE OR REPLACE FUNCTION cluster_test_fail() RETURNS trigger AS $$ BEGIN RAISE EXCEPTION 'failing node'; END $$ LANGUAGE plpgsql");
+        execute("CREATE TRIGGER cluster_test_fail BEFORE INSERT ON value FOR EACH ROW WHEN (NEW.node_id = " + xId + ") EXECUTE FUNCTION cluster_test_fail()");
+        try {
+            long uploadId = valueService.createRootValue(folderId, JqValues.parse("{\"key\": \"k\", \"other\": \"o\"}"));
+
+            pollUntilCompleted();
+
+            assertEquals(0, countRows("work_journal"), "the failing row should be dropped after its attempts");
+            Processing status = processingService.getIngestionStatus(uploadId);
+            assertEquals(Processing.State.FAILED, status.state());
+            assertTrue(status.error().contains("failing node"), status.error());
+            tm.begin();
+            assertEquals(1, ValueEntity.find("node.id", bId).count(), "the work that did not fail should complete");
+            assertEquals(0, ValueEntity.find("node.id", xId).count());
+            tm.commit();
+        } finally {
+            execute("DROP TRIGGER IF EXISTS cluster_test_fail ON value");
+            execute("DROP FUNCTION IF EXISTS cluster_test_fail()");
+        }
+    }
+
+    @Test
+    public void work_for_several_nodes_is_journaled_per_node() throws Exception {
+        createFolder();
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        ValueEntity rootValue = valueService.create(new ValueEntity(folder, folder.group.root,
+                JqValues.parse("{\"key\": \"k\", \"other\": \"o\"}")));
+        long rootValueId = rootValue.id;
+        NodeEntity a = NodeEntity.findById(aId);
+        NodeEntity x = NodeEntity.findById(xId);
+        Work both = new Work(Set.of(a, x), List.of(folder.group.root), List.of(rootValueId));
+        tm.commit();
+
+        workService.create(List.of(both));
+
+        tm.begin();
+        assertEquals(List.of(aId, xId), WorkJournalEntity.<WorkJournalEntity>find("rootValueId = ?1 order by nodeId", rootValueId)
+                .stream().map(row -> row.nodeId).toList(), "each node should be resumable on its own");
+        tm.commit();
+    }
+
+    @Test
+    public void work_without_source_values_is_not_journaled() throws Exception {
+        createFolder();
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        NodeEntity a = NodeEntity.findById(aId);
+        Work empty = new Work(a, List.of(folder.group.root), List.of());
+        tm.commit();
+
+        workService.create(List.of(empty));
+
+        assertEquals(0, countRows("work_journal"), "work that calculates nothing should stay on the local queue");
+        tm.begin();
+        assertEquals(0, ValueEntity.find("node.id", aId).count());
+        tm.commit();
+    }
+
+    @Test
+    public void node_graphs_are_dropped_when_another_instance_changes_nodes() throws Exception {
+        createFolder();
+        tm.begin();
+        long groupId = folderService.read(folderId).group.id;
+        tm.commit();
+        NodeGraph graph = graphs.forGroup(groupId);
+        assertSame(graph, graphs.forGroup(groupId));
+
+        // another instance committed a node change
+        tm.begin();
+        versions.bump(NodeGraphs.VERSION);
+        tm.commit();
+
+        assertNotSame(graph, graphs.forGroup(groupId), "the graph should be compiled again");
+    }
+
+    @Test
+    public void node_changes_bump_the_shared_graph_version() throws Exception {
+        createFolder();
+        tm.begin();
+        long before = versions.read(NodeGraphs.VERSION);
+        tm.commit();
+
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        JqNode y = new JqNode("y", ".y", folder.group.root);
+        y.group = folder.group;
+        y.persist();
+        tm.commit();
+
+        tm.begin();
+        assertTrue(versions.read(NodeGraphs.VERSION) > before, "the other instances should notice the new node");
+        tm.commit();
+    }
+
+    @Test
+    public void work_of_a_stopped_member_is_resumed() throws Exception {
+        createFolder();
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        ValueEntity rootValue = valueService.create(new ValueEntity(folder, folder.group.root,
+                JqValues.parse("{\"key\": \"orphaned\"}")));
+        long rootValueId = rootValue.id;
+        ProcessingEntity tracking = new ProcessingEntity(folderId, null, rootValueId);
+        tracking.journaled = true;
+        tracking.persist();
+        // claimed by a member that never heartbeats
+        row(aId, rootValueId, "stopped-member").persist();
+        tm.commit();
+
+        pollUntilCompleted();
+
+        tm.begin();
+        assertEquals("\"orphaned_b\"", ValueEntity.find("node.id", bId).<ValueEntity>list().get(0).data.toString());
+        tm.commit();
+        assertEquals(0, countRows("work_journal"));
+    }
+}
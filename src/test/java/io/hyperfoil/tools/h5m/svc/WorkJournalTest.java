@@ -0,0 +1,172 @@
+package io.hyperfoil.tools.h5m.svc;
+
+import io.hyperfoil.tools.h5m.FreshDb;
+import io.hyperfoil.tools.h5m.entity.FolderEntity;
+import io.hyperfoil.tools.h5m.entity.ProcessingEntity;
+import io.hyperfoil.tools.h5m.entity.ValueEntity;
+import io.hyperfoil.tools.h5m.entity.WorkJournalEntity;
+import io.hyperfoil.tools.h5m.entity.node.JqNode;
+import io.hyperfoil.tools.jjq.value.JqValues;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+public class WorkJournalTest extends FreshDb {
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    FolderService folderService;
+
+    @Inject
+    ProcessingService processingService;
+
+    @Inject
+    ValueService valueService;
+
+    private long folderId;
+    private long aId;
+    private long bId;
+    private long xId;
+
+    // root -> a -> b, root -> x
+    private void createFolder() throws Exception {
+        tm.begin();
+        folderId = folderService.create("journal-test").id();
+        FolderEntity folder = folderService.read(folderId);
+        JqNode a = new JqNode("a", ".key", folder.group.root);
+        a.group = folder.group;
+        a.persist();
+        JqNode b = new JqNode("b", ". + \"_b\"", a);
+        b.group = folder.group;
+        b.persist();
+        JqNode x = new JqNode("x", ".other", folder.group.root);
+        x.group = folder.group;
+        x.persist();
+        folder.group.sources.addAll(List.of(a, b, x));
+        folder.group.persist();
+        aId = a.id;
+        bId = b.id;
+        xId = x.id;
+        tm.commit();
+    }
+
+    private long journalSize() throws Exception {
+        tm.begin();
+        long count = WorkJournalEntity.count();
+        tm.commit();
+        return count;
+    }
+
+    private void awaitCompleted(long rootValueId) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            tm.begin();
+            ProcessingEntity tracking = ProcessingEntity.find("valueId", rootValueId).firstResult();
+            boolean completed = tracking.completed;
+            tm.commit();
+            if (completed) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Ingestion of " + rootValueId + " did not complete");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void journal_is_empty_once_upload_is_processed() throws Exception {
+        createFolder();
+        long uploadId = valueService.createRootValue(folderId, JqValues.parse("{\"key\": \"k\", \"other\": \"o\"}"));
+        processingService.getByRootValueId(uploadId).afterCleanup.get(30, TimeUnit.SECONDS);
+
+        assertEquals(0, journalSize(), "completed work should be removed from the journal");
+        tm.begin();
+        ProcessingEntity tracking = ProcessingEntity.find("valueId", uploadId).firstResult();
+        assertTrue(tracking.isJournaled());
+        assertEquals("\"k_b\"", ValueEntity.find("node.id", bId).<ValueEntity>list().get(0).data.toString());
+        tm.commit();
+    }
+
+    @Test
+    public void recovery_resumes_only_outstanding_work() throws Exception {
+        createFolder();
+        // simulate a crash after x was calculated: only the work for a is outstanding
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        ValueEntity rootValue = valueService.create(new ValueEntity(folder, folder.group.root,
+                JqValues.parse("{\"key\": \"resumed\", \"other\": \"o\"}")));
+        long rootValueId = rootValue.id;
+        ProcessingEntity tracking = new ProcessingEntity(folderId, null, rootValueId);
+        tracking.journaled = true;
+        tracking.persist();
+        WorkJournalEntity row = new WorkJournalEntity();
+        row.nodeId = aId;
+        row.valueIds = Long.toString(rootValueId);
+        row.rootValueId = rootValueId;
+        row.cascades = true;
+        row.dispatches = true;
+        row.queuedAt = LocalDateTime.now();
+        row.persist();
+        tm.commit();
+
+        processingService.recoverIncompleteProcessing(null);
+        awaitCompleted(rootValueId);
+
+        tm.begin();
+        assertEquals("\"resumed_b\"", ValueEntity.find("node.id", bId).<ValueEntity>list().get(0).data.toString(),
+                "the resumed work should cascade");
+        assertEquals(0, ValueEntity.find("node.id", xId).count(), "work that was not outstanding should not run again");
+        tm.commit();
+        assertEquals(0, journalSize());
+    }
+
+    @Test
+    public void recovery_completes_journaled_upload_without_outstanding_work() throws Exception {
+        createFolder();
+        tm.begin();
+        FolderEntity folder = folderService.read(folderId);
+        ValueEntity rootValue = valueService.create(new ValueEntity(folder, folder.group.root,
+                JqValues.parse("{\"key\": \"done\"}")));
+        long rootValueId = rootValue.id;
+        ProcessingEntity tracking = new ProcessingEntity(folderId, null, rootValueId);
+        tracking.journaled = true;
+        tracking.persist();
+        long trackingId = tracking.id;
+        tm.commit();
+
+        processingService.recoverIncompleteProcessing(null);
+
+        tm.begin();
+        assertTrue(ProcessingEntity.<ProcessingEntity>findById(trackingId).completed);
+        assertEquals(0, ValueEntity.find("node.id", aId).count(), "nothing should be calculated again");
+        tm.commit();
+    }
+
+    @Test
+    public void recovery_removes_orphaned_entries() throws Exception {
+        createFolder();
+        tm.begin();
+        WorkJournalEntity row = new WorkJournalEntity();
+        row.nodeId = aId;
+        row.valueIds = "999999";
+        row.rootValueId = 999999L;
+        row.queuedAt = LocalDateTime.now();
+        row.persist();
+        tm.commit();
+
+        processingService.recoverIncompleteProcessing(null);
+
+        assertEquals(0, journalSize(), "entries no processing operation resumes should be removed");
+    }
+}
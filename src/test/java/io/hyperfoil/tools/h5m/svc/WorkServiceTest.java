@@ -11,6 +11,7 @@ import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.QuarkusTestProfile;
 import io.quarkus.test.junit.TestProfile;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
 import jakarta.transaction.*;
 
 import org.junit.jupiter.api.Test;
@@ -19,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 @QuarkusTest
 @TestProfile(WorkServiceTest.NoWorkers.class)
@@ -37,6 +39,12 @@ public class WorkServiceTest extends FreshDb {
     @Inject
     WorkService workService;
 
+    @Inject
+    ValueService valueService;
+
+    @Inject
+    EntityManager em;
+
 
 
     @Test
@@ -61,4 +69,50 @@ public class WorkServiceTest extends FreshDb {
         assertEquals(0,workService.getQueue().size(),"parent should not queue child work");
     }
 
+    @Test
+    public void execute_reconciles_by_path_hash() throws SystemException, NotSupportedException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
+        tm.begin();
+        NodeEntity root = new RootNode();
+        root.persist();
+        NodeEntity node = new JqNode("a",".a",root);
+        node.persist();
+        ValueEntity value = new ValueEntity(null,root, JqValues.parse("""
+                { "a" : 1 }
+                """));
+        value.persist();
+        tm.commit();
+        assertNotNull(value.pathHash,"persisted value should have a path hash");
+
+        Work work = new Work(node,node.sources, List.of(value.id));
+        work.setCascade(false);
+        workService.execute(work);
+        List<ValueEntity> first = valueService.getDescendantValues(value,node);
+        assertEquals(1,first.size());
+        Long firstId = first.getFirst().id;
+        assertNotNull(first.getFirst().pathHash);
+        assertNotNull(first.getFirst().dataHash);
+
+        //same data: nothing inserted or changed
+        workService.execute(work);
+        List<ValueEntity> second = valueService.getDescendantValues(value,node);
+        assertEquals(1,second.size());
+        assertEquals(firstId,second.getFirst().id);
+
+        //new data for the same path updates the existing row in place
+        tm.begin();
+        em.createNativeQuery("UPDATE value SET data = :data WHERE id = :id")
+                .setParameter("data", JqValues.serializeToBytes(JqValues.parse("""
+                        { "a" : 2 }
+                        """)))
+                .setParameter("id", value.id)
+                .executeUpdate();
+        tm.commit();
+        em.getEntityManagerFactory().getCache().evict(ValueEntity.class);
+        workService.execute(work);
+        List<ValueEntity> third = valueService.getDescendantValues(value,node);
+        assertEquals(1,third.size());
+        assertEquals(firstId,third.getFirst().id);
+        assertEquals(JqValues.parse("2"),valueService.getValueData(firstId));
+    }
+
 }